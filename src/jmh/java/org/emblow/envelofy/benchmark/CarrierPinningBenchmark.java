@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A micro-benchmark of carrier pinning, not a load test of the chat path.
+ * Each task takes one of a few shared locks around a short sleep, then
+ * sleeps twice more outside it; nothing here touches Spring, the database
+ * or a provider, so the times say how the thread model and lock type
+ * schedule blocking work, not how the application behaves under load;
+ * {@link ChatLoadReport} measures that.
+ * <p>
+ * With {@code synchronized} the lock pins a virtual thread to its carrier
+ * while it sleeps, which is the difference the locking parameter shows
+ * against Tomcat's default 200 platform threads. Peak threads, heap and
+ * resident memory are printed after each iteration; run with
+ * {@code -prof gc} for allocation rates.
+ *
+ * @author Nicholas J Emblow
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.virtualThreadScheduler.parallelism=8")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CarrierPinningBenchmark {
+    private static final int PLATFORM_THREADS = 200;
+    private static final int TASKS_PER_SESSION = 3;
+    private static final int LOCKS = 4;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"reentrant-lock", "synchronized"})
+    public String locking;
+
+    @Param("1000")
+    public int sessions;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final Object[] monitors = new Object[LOCKS];
+    private final ReentrantLock[] locks = new ReentrantLock[LOCKS];
+    private ExecutorService executor;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        for (int i = 0; i < LOCKS; i++) {
+            monitors[i] = new Object();
+            locks[i] = new ReentrantLock();
+        }
+        executor = "virtual".equals(threads)
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(PLATFORM_THREADS);
+        threadBean.resetPeakThreadCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("%n  peak threads %d, heap used %d MB, rss %s%n",
+            threadBean.getPeakThreadCount(),
+            (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024),
+            residentMemory());
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public int sessions() throws Exception {
+        List<Future<?>> requests = new ArrayList<>(sessions * TASKS_PER_SESSION);
+        for (int session = 0; session < sessions; session++) {
+            for (int request = 0; request < TASKS_PER_SESSION; request++) {
+                int lock = (session + request) % LOCKS;
+                requests.add(executor.submit(() -> handle(lock)));
+            }
+        }
+        for (Future<?> request : requests) {
+            request.get();
+        }
+        return requests.size();
+    }
+
+    private void handle(int lock) {
+        if ("synchronized".equals(locking)) {
+            synchronized (monitors[lock]) {
+                sleep(1);
+            }
+        } else {
+            locks[lock].lock();
+            try {
+                sleep(1);
+            } finally {
+                locks[lock].unlock();
+            }
+        }
+        // Blocking outside the lock, standing in for I/O that never pins
+        sleep(5);
+        sleep(50);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // VmRSS from procfs; not available off Linux
+    private static String residentMemory() {
+        try {
+            return Files.readAllLines(Path.of("/proc/self/status")).stream()
+                .filter(line -> line.startsWith("VmRSS:"))
+                .map(line -> line.substring("VmRSS:".length()).trim())
+                .findFirst()
+                .orElse("n/a");
+        } catch (IOException e) {
+            return "n/a";
+        }
+    }
+}
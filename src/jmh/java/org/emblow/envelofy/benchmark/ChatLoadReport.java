@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.benchmark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.emblow.envelofy.EnvelofyApplication;
+import org.emblow.envelofy.service.SettingService;
+import org.emblow.envelofy.service.TestDataService;
+import org.emblow.envelofy.service.UserService;
+import org.emblow.envelofy.service.llm.BlockingWorkScheduler;
+import org.emblow.envelofy.service.llm.LLMService;
+import org.emblow.envelofy.service.llm.ResponseEvent;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Load test of the real chat path. For each thread mode the application
+ * context is started on a fresh in-memory database with
+ * {@code spring.threads.virtual.enabled} set accordingly. A user with
+ * TestDataService's ledger is created, and the OpenAI provider is pointed
+ * at a {@link ProviderStubServer}. Then a burst of concurrent
+ * {@code streamUserQuery} calls goes through the provider bean the UI
+ * uses: context building on the BlockingWorkScheduler, the shared
+ * transport, the stream parser and the response cache.
+ * <p>
+ * Every query is distinct, so none is answered from the response cache.
+ * Time to first event and to completion are reported as percentiles, with
+ * throughput, failures and the peak platform thread count, one CSV line
+ * per mode. Virtual threads don't show in the thread count.
+ *
+ * Usage: ChatLoadReport [outputDirectory] [requests] [concurrency] [virtual,...]
+ *
+ * @author Nicholas J Emblow
+ */
+public final class ChatLoadReport {
+    private static final String USERNAME = "load";
+    private static final String[] QUESTIONS = {
+        "How much is left in Groceries?",
+        "What did I spend on Transport last month?",
+        "Am I on track with Entertainment?",
+        "Which envelope is closest to running out?"
+    };
+    private static final Duration TIMEOUT = Duration.ofMinutes(10);
+
+    private ChatLoadReport() {}
+
+    public static void main(String[] args) throws IOException {
+        Path outputDirectory = Path.of(args.length > 0 ? args[0] : "target/benchmark");
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        String modes = args.length > 3 ? args[3] : "false,true";
+        Files.createDirectories(outputDirectory);
+
+        try (ProviderStubServer stub = new ProviderStubServer(0, 32, 200, 10, 0.0);
+             PrintWriter summary = new PrintWriter(
+                 Files.newBufferedWriter(outputDirectory.resolve("chat-load.csv")))) {
+            summary.println("virtual_threads,requests,concurrency,failed,seconds,requests_per_s,"
+                + "first_p50_ms,first_p95_ms,first_p99_ms,done_p50_ms,done_p95_ms,done_p99_ms,peak_threads");
+            for (String mode : modes.split(",")) {
+                run(Boolean.parseBoolean(mode.trim()), requests, concurrency, stub, summary);
+            }
+        }
+    }
+
+    private static void run(boolean virtualThreads, int requests, int concurrency, ProviderStubServer stub,
+                            PrintWriter summary) {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(EnvelofyApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(
+                    "spring.threads.virtual.enabled=" + virtualThreads,
+                    "spring.datasource.url=jdbc:h2:mem:chat-load-" + virtualThreads + ";DB_CLOSE_DELAY=-1",
+                    "spring.jpa.show-sql=false",
+                    "logging.level.root=WARN",
+                    "logging.level.org.springframework.security=WARN",
+                    "logging.level.com.vaadin=WARN",
+                    "logging.level.org.atmosphere=WARN",
+                    "llm.service.type=chatgpt",
+                    "openai.api.key=sk-stub")
+                .run()) {
+            Authentication authentication = signIn(context);
+            BlockingWorkScheduler.withAuthentication(authentication, () -> {
+                context.getBean(SettingService.class)
+                    .saveSetting("openai.chat.endpoint", stub.baseUrl() + "/v1/chat/completions");
+                context.getBean(TestDataService.class).createTestData();
+                return null;
+            });
+            LLMService llmService = context.getBean(LLMService.class);
+
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            threadBean.resetPeakThreadCount();
+            List<Long> firstEvent = Collections.synchronizedList(new ArrayList<>(requests));
+            List<Long> done = Collections.synchronizedList(new ArrayList<>(requests));
+            AtomicInteger failed = new AtomicInteger();
+
+            long start = System.nanoTime();
+            Flux.range(0, requests)
+                .flatMap(i -> Flux.defer(() -> {
+                    long sent = System.nanoTime();
+                    String query = QUESTIONS[i % QUESTIONS.length] + " (" + i + ")";
+                    // The UI thread calls in with the user signed in; the call reads it there
+                    Flux<ResponseEvent> events = BlockingWorkScheduler.withAuthentication(authentication,
+                        () -> llmService.streamUserQuery(query));
+                    return events
+                        .index()
+                        .doOnNext(event -> {
+                            if (event.getT1() == 0) {
+                                firstEvent.add(System.nanoTime() - sent);
+                            }
+                        })
+                        .then(Mono.fromRunnable(() -> done.add(System.nanoTime() - sent)))
+                        .onErrorResume(e -> {
+                            failed.incrementAndGet();
+                            return Mono.empty();
+                        });
+                }), concurrency)
+                .blockLast(TIMEOUT);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            String line = String.format(Locale.ROOT, "%s,%d,%d,%d,%.2f,%.1f,%d,%d,%d,%d,%d,%d,%d",
+                virtualThreads, requests, concurrency, failed.get(), seconds, done.size() / seconds,
+                percentile(firstEvent, 0.50), percentile(firstEvent, 0.95), percentile(firstEvent, 0.99),
+                percentile(done, 0.50), percentile(done, 0.95), percentile(done, 0.99),
+                threadBean.getPeakThreadCount());
+            summary.println(line);
+            summary.flush();
+            System.out.println(line);
+        }
+    }
+
+    private static Authentication signIn(ConfigurableApplicationContext context) {
+        context.getBean(UserService.class).createUser(USERNAME, "load-password", "load@example.com");
+        return new UsernamePasswordAuthenticationToken(USERNAME, null, List.of());
+    }
+
+    // Nearest-rank percentile in milliseconds
+    private static long percentile(List<Long> nanos, double quantile) {
+        List<Long> sorted;
+        synchronized (nanos) {
+            sorted = new ArrayList<>(nanos);
+        }
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(quantile * sorted.size());
+        return sorted.get(Math.max(0, rank - 1)) / 1_000_000;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.benchmark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.emblow.envelofy.service.ml.TransactionNaiveBayes.TransactionFeatures;
+import org.emblow.envelofy.service.ml.UserClassifierModel;
+
+/**
+ * Held-out quality report for the envelope classifier. For each ledger size
+ * the synthetic ledger is shuffled with a fixed seed, split 80/20, trained on
+ * the first part and scored on the rest. Per-envelope precision, recall and
+ * F1 are written as CSV next to a one-line-per-size summary, so accuracy
+ * regressions show up as diffs in the build artifacts.
+ *
+ * Usage: ClassifierAccuracyReport [outputDirectory] [size,size,...]
+ *
+ * @author Nicholas J Emblow
+ */
+public final class ClassifierAccuracyReport {
+    private static final long SEED = 42;
+    private static final double TRAIN_SHARE = 0.8;
+
+    private ClassifierAccuracyReport() {}
+
+    public static void main(String[] args) throws IOException {
+        Path outputDirectory = Path.of(args.length > 0 ? args[0] : "target/benchmark");
+        String sizes = args.length > 1 ? args[1] : "10000,100000";
+        Files.createDirectories(outputDirectory);
+
+        try (PrintWriter summary = new PrintWriter(
+                Files.newBufferedWriter(outputDirectory.resolve("classifier-accuracy-summary.csv")))) {
+            summary.println("transactions,accuracy,macro_f1,train_ms,predict_us_per_tx");
+            for (String size : sizes.split(",")) {
+                evaluate(Integer.parseInt(size.trim()), outputDirectory, summary);
+            }
+        }
+    }
+
+    private static void evaluate(int size, Path outputDirectory, PrintWriter summary) throws IOException {
+        List<TransactionFeatures> ledger = new ArrayList<>(new SyntheticLedgerGenerator(SEED).generate(size));
+        Collections.shuffle(ledger, new Random(SEED));
+        int split = (int) (ledger.size() * TRAIN_SHARE);
+        List<TransactionFeatures> training = ledger.subList(0, split);
+        List<TransactionFeatures> heldOut = ledger.subList(split, ledger.size());
+
+        long trainStart = System.nanoTime();
+        UserClassifierModel model = UserClassifierModel.train(training);
+        long trainNanos = System.nanoTime() - trainStart;
+
+        Map<String, int[]> confusion = new TreeMap<>(); // envelope -> {tp, fp, fn}
+        SyntheticLedgerGenerator.envelopes().forEach(e -> confusion.put(e, new int[3]));
+        int correct = 0;
+
+        long predictStart = System.nanoTime();
+        for (TransactionFeatures tx : heldOut) {
+            String predicted = model.predict(tx).entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse("");
+            if (predicted.equals(tx.category())) {
+                correct++;
+                confusion.get(tx.category())[0]++;
+            } else {
+                // No prediction is a miss for the true envelope, not a false positive for an envelope of its own
+                if (!predicted.isEmpty()) {
+                    confusion.computeIfAbsent(predicted, k -> new int[3])[1]++;
+                }
+                confusion.get(tx.category())[2]++;
+            }
+        }
+        long predictNanos = System.nanoTime() - predictStart;
+
+        double f1Sum = 0;
+        Path reportFile = outputDirectory.resolve("classifier-accuracy-" + size + ".csv");
+        try (PrintWriter report = new PrintWriter(Files.newBufferedWriter(reportFile))) {
+            report.println("envelope,support,precision,recall,f1");
+            for (Map.Entry<String, int[]> entry : confusion.entrySet()) {
+                int tp = entry.getValue()[0];
+                int fp = entry.getValue()[1];
+                int fn = entry.getValue()[2];
+                double precision = tp + fp == 0 ? 0 : (double) tp / (tp + fp);
+                double recall = tp + fn == 0 ? 0 : (double) tp / (tp + fn);
+                double f1 = precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+                f1Sum += f1;
+                report.println(String.format(Locale.ROOT, "%s,%d,%.4f,%.4f,%.4f",
+                    entry.getKey(), tp + fn, precision, recall, f1));
+            }
+        }
+
+        double accuracy = heldOut.isEmpty() ? 0 : (double) correct / heldOut.size();
+        double macroF1 = f1Sum / confusion.size();
+        String line = String.format(Locale.ROOT, "%d,%.4f,%.4f,%d,%.2f",
+            size, accuracy, macroF1, trainNanos / 1_000_000,
+            heldOut.isEmpty() ? 0 : predictNanos / 1000.0 / heldOut.size());
+        summary.println(line);
+        System.out.println(line);
+    }
+}
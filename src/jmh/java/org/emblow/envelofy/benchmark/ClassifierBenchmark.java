@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.emblow.envelofy.service.ml.TransactionNaiveBayes;
+import org.emblow.envelofy.service.ml.TransactionNaiveBayes.TransactionFeatures;
+import org.emblow.envelofy.service.ml.UserClassifierModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Train and predict latency of the envelope classifiers on synthetic ledgers
+ * of growing size.
+ *
+ * @author Nicholas J Emblow
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx4g" })
+public class ClassifierBenchmark {
+    private static final int PREDICT_SAMPLES = 1024;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int transactions;
+
+    private List<TransactionFeatures> ledger;
+    private TransactionFeatures[] queries;
+    private TransactionNaiveBayes generalModel;
+    private UserClassifierModel userModel;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ledger = new SyntheticLedgerGenerator(42).generate(transactions);
+        queries = new SyntheticLedgerGenerator(7).generate(PREDICT_SAMPLES)
+            .toArray(TransactionFeatures[]::new);
+
+        generalModel = new TransactionNaiveBayes();
+        generalModel.train(ledger);
+        userModel = UserClassifierModel.train(ledger);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public TransactionNaiveBayes trainNaiveBayes() {
+        TransactionNaiveBayes model = new TransactionNaiveBayes();
+        model.train(ledger);
+        return model;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public UserClassifierModel trainUserModel() {
+        return UserClassifierModel.train(ledger);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Object predictNaiveBayes() {
+        return generalModel.predict(nextQuery());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Object predictUserModel() {
+        return userModel.predict(nextQuery());
+    }
+
+    private TransactionFeatures nextQuery() {
+        next = (next + 1) & (PREDICT_SAMPLES - 1);
+        return queries[next];
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for the remote chat providers, for latency and load runs
+ * without network or API keys. It answers the OpenAI chat completions
+ * endpoints (as ChatGPT and Groq call them) and Ollama's {@code /api/chat},
+ * streamed or not, with a fixed number of tokens after a configurable time
+ * to first token and gap between tokens. A share of requests can be failed
+ * with 503 or 429 to exercise the transport's retries.
+ *
+ * Point a provider at it with openai.chat.endpoint=http://localhost:PORT/v1/chat/completions,
+ * groq.base.url=http://localhost:PORT or ollama.url=http://localhost:PORT.
+ *
+ * Usage: ProviderStubServer [port] [tokens] [firstTokenMs] [tokenMs] [failureRate]
+ *
+ * @author Nicholas J Emblow
+ */
+public final class ProviderStubServer implements AutoCloseable {
+    private static final Pattern STREAM = Pattern.compile("\"stream\"\\s*:\\s*true");
+    private static final String TOKEN = "token ";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final int tokens;
+    private final long firstTokenMillis;
+    private final long tokenMillis;
+    private final double failureRate;
+    private final LongAdder served = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public ProviderStubServer(int port, int tokens, long firstTokenMillis, long tokenMillis, double failureRate)
+            throws IOException {
+        this.tokens = tokens;
+        this.firstTokenMillis = firstTokenMillis;
+        this.tokenMillis = tokenMillis;
+        this.failureRate = failureRate;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        server.createContext("/v1/chat/completions", exchange -> handle(exchange, false));
+        server.createContext("/openai/v1/chat/completions", exchange -> handle(exchange, false));
+        server.createContext("/api/chat", exchange -> handle(exchange, true));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 18080;
+        int tokens = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long firstTokenMillis = args.length > 2 ? Long.parseLong(args[2]) : 200;
+        long tokenMillis = args.length > 3 ? Long.parseLong(args[3]) : 20;
+        double failureRate = args.length > 4 ? Double.parseDouble(args[4]) : 0.0;
+        ProviderStubServer stub = new ProviderStubServer(port, tokens, firstTokenMillis, tokenMillis, failureRate);
+        System.out.printf("Provider stub listening on %s (%d tokens, %d ms first, %d ms between, %.0f%% failures)%n",
+            stub.baseUrl(), tokens, firstTokenMillis, tokenMillis, failureRate * 100);
+    }
+
+    public String baseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public long served() {
+        return served.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange, boolean ollama) throws IOException {
+        try (exchange) {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                failed.increment();
+                int status = ThreadLocalRandom.current().nextBoolean() ? 503 : 429;
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            pause(firstTokenMillis);
+            boolean stream = STREAM.matcher(body).find();
+            if (stream) {
+                stream(exchange, ollama);
+            } else {
+                respond(exchange, ollama);
+            }
+            served.increment();
+        }
+    }
+
+    private void respond(HttpExchange exchange, boolean ollama) throws IOException {
+        pause(tokenMillis * (tokens - 1));
+        String content = TOKEN.repeat(tokens);
+        String json = ollama
+            ? "{\"message\":{\"role\":\"assistant\",\"content\":\"" + content + "\"},\"done\":true}"
+            : "{\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"" + content
+                + "\"},\"finish_reason\":\"stop\"}]}";
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private void stream(HttpExchange exchange, boolean ollama) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", ollama ? "application/x-ndjson" : "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        for (int i = 0; i < tokens; i++) {
+            if (i > 0) {
+                pause(tokenMillis);
+            }
+            String chunk = ollama
+                ? "{\"message\":{\"role\":\"assistant\",\"content\":\"" + TOKEN + "\"},\"done\":false}\n"
+                : "data: {\"choices\":[{\"index\":0,\"delta\":{\"content\":\"" + TOKEN + "\"}}]}\n\n";
+            out.write(chunk.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        String last = ollama
+            ? "{\"message\":{\"role\":\"assistant\",\"content\":\"\"},\"done\":true}\n"
+            : "data: [DONE]\n\n";
+        out.write(last.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void pause(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
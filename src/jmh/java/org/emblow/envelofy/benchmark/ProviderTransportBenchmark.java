@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.emblow.envelofy.service.llm.ProviderTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClient;
+
+/**
+ * Chat request latency through the shared provider transport against the
+ * local provider stub, under concurrent load and with a share of requests
+ * failing. Sample mode reports the percentiles, so the tail is visible.
+ *
+ * @author Nicholas J Emblow
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(8)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+public class ProviderTransportBenchmark {
+    private static final String OPENAI_STREAM = "{\"model\":\"stub\",\"stream\":true,\"messages\":[{\"role\":\"user\",\"content\":\"How much did I spend?\"}]}";
+    private static final String OPENAI_CALL = "{\"model\":\"stub\",\"stream\":false,\"messages\":[{\"role\":\"user\",\"content\":\"How much did I spend?\"}]}";
+    private static final String OLLAMA_STREAM = "{\"model\":\"stub\",\"stream\":true,\"messages\":[{\"role\":\"user\",\"content\":\"How much did I spend?\"}]}";
+
+    @Param({"0.0", "0.05"})
+    public double failureRate;
+
+    private ProviderStubServer stub;
+    private ProviderTransport transport;
+    private WebClient client;
+
+    @Setup
+    public void setUp() throws IOException {
+        stub = new ProviderStubServer(0, 32, 50, 5, failureRate);
+        transport = new ProviderTransport(32, 10_000, 30_000, 300_000, 2_000, 10_000, 30_000, 2048, 4, 50, 500, 0.5);
+        client = transport.client(stub.baseUrl(), "sk-stub");
+    }
+
+    @TearDown
+    public void tearDown() {
+        transport.shutdown();
+        stub.close();
+    }
+
+    @Benchmark
+    public String openAiCall() {
+        return transport.call("stub", client.post()
+                .uri("/v1/chat/completions")
+                .bodyValue(OPENAI_CALL))
+            .block();
+    }
+
+    @Benchmark
+    public Long openAiStream() {
+        return transport.stream("stub", client.post()
+                .uri("/v1/chat/completions")
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .bodyValue(OPENAI_STREAM))
+            .count()
+            .block();
+    }
+
+    @Benchmark
+    public Long ollamaStream() {
+        return transport.stream("stub", client.post()
+                .uri("/api/chat")
+                .bodyValue(OLLAMA_STREAM))
+            .count()
+            .block();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.benchmark;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.emblow.envelofy.domain.Account;
+import org.emblow.envelofy.service.ml.TransactionNaiveBayes.TransactionFeatures;
+
+/**
+ * Reproducible ledger for classifier benchmarks. It starts from the envelopes,
+ * accounts and descriptions that TestDataService creates and widens them into
+ * bank-statement style merchants (store numbers, card prefixes, locations),
+ * with a few merchants shared between envelopes so accuracy is not trivially
+ * perfect. The same seed always yields the same ledger.
+ *
+ * @author Nicholas J Emblow
+ */
+public final class SyntheticLedgerGenerator {
+    private static final LocalDateTime BASE_DATE = LocalDateTime.of(2025, 1, 1, 9, 0);
+    private static final int SPAN_DAYS = 730;
+
+    private static final String[] PREFIXES = { "", "", "POS ", "SQ *", "DEBIT ", "CHECKCARD " };
+    private static final String[] LOCATIONS = { "", "SEATTLE WA", "PORTLAND OR", "AUSTIN TX", "DENVER CO", "ONLINE" };
+
+    private record AccountProfile(String name, Account.AccountType type) {}
+
+    private static final AccountProfile CHECKING = new AccountProfile("Main Checking", Account.AccountType.CHECKING);
+    private static final AccountProfile SAVINGS = new AccountProfile("Emergency Fund", Account.AccountType.SAVINGS);
+    private static final AccountProfile CREDIT = new AccountProfile("Rewards Card", Account.AccountType.CREDIT_CARD);
+
+    private record Merchant(
+        String envelope,
+        String name,
+        double minAmount,
+        double maxAmount,
+        int fixedDayOfMonth,
+        double weight,
+        AccountProfile preferredAccount
+    ) {}
+
+    private static final List<Merchant> MERCHANTS = List.of(
+        // TestDataService envelopes and descriptions
+        new Merchant("Rent", "Monthly Rent Payment", 1750, 1850, 1, 1.0, CHECKING),
+        new Merchant("Rent", "Greystar Property Mgmt", 1750, 1850, 1, 0.5, CHECKING),
+        new Merchant("Utilities", "Power and Water Bill", 150, 300, 15, 1.0, CHECKING),
+        new Merchant("Utilities", "City Light Electric", 60, 180, 12, 0.8, CHECKING),
+        new Merchant("Utilities", "Comcast Xfinity Internet", 70, 90, 20, 0.8, CREDIT),
+        new Merchant("Groceries", "Weekly Groceries", 120, 160, 0, 3.0, CHECKING),
+        new Merchant("Groceries", "Safeway Store", 20, 180, 0, 3.0, CREDIT),
+        new Merchant("Groceries", "Trader Joes", 25, 120, 0, 2.5, CREDIT),
+        new Merchant("Groceries", "Whole Foods Market", 15, 140, 0, 2.0, CREDIT),
+        new Merchant("Groceries", "Target Grocery", 30, 110, 0, 1.0, CHECKING),
+        new Merchant("Groceries", "Amazon Fresh", 40, 150, 0, 1.0, CREDIT),
+        new Merchant("Entertainment", "Movie Tickets", 20, 45, 0, 1.0, CREDIT),
+        new Merchant("Entertainment", "Restaurant Dinner", 35, 80, 0, 1.0, CREDIT),
+        new Merchant("Entertainment", "Bowling Night", 20, 60, 0, 0.5, CREDIT),
+        new Merchant("Entertainment", "Board Game Cafe", 15, 40, 0, 0.5, CREDIT),
+        new Merchant("Entertainment", "Bar Tab", 20, 70, 0, 0.8, CREDIT),
+        new Merchant("Entertainment", "Coffee and Dessert", 8, 25, 0, 0.8, CREDIT),
+        new Merchant("Entertainment", "Arcade Games", 10, 40, 0, 0.4, CREDIT),
+        new Merchant("Entertainment", "Mini Golf", 15, 35, 0, 0.3, CREDIT),
+        new Merchant("Entertainment", "Concert Tickets", 60, 200, 0, 0.3, CREDIT),
+        new Merchant("Transport", "Monthly Bus Pass", 60, 60, 1, 1.0, CHECKING),
+        new Merchant("Transport", "Uber Ride", 15, 35, 0, 2.0, CREDIT),
+        new Merchant("Transport", "Lyft Ride", 12, 40, 0, 1.0, CREDIT),
+        new Merchant("Transport", "Shell Oil Gas Station", 30, 70, 0, 1.5, CREDIT),
+        // Wider merchant set beyond the test data
+        new Merchant("Dining", "Starbucks Store", 4, 12, 0, 2.5, CREDIT),
+        new Merchant("Dining", "Chipotle Mexican Grill", 9, 25, 0, 1.5, CREDIT),
+        new Merchant("Dining", "Uber Eats", 18, 45, 0, 1.5, CREDIT),
+        new Merchant("Dining", "Restaurant Lunch", 12, 30, 0, 1.0, CHECKING),
+        new Merchant("Subscriptions", "Netflix.com", 15.49, 15.49, 7, 1.0, CREDIT),
+        new Merchant("Subscriptions", "Spotify USA", 10.99, 10.99, 18, 1.0, CREDIT),
+        new Merchant("Subscriptions", "Amazon Prime Membership", 14.99, 14.99, 3, 0.8, CREDIT),
+        new Merchant("Health", "CVS Pharmacy", 8, 60, 0, 1.0, CHECKING),
+        new Merchant("Health", "Planet Fitness Membership", 24.99, 24.99, 17, 0.8, CHECKING),
+        new Merchant("Shopping", "Amazon Mktplace Pmts", 10, 200, 0, 2.0, CREDIT),
+        new Merchant("Shopping", "Target Store", 15, 150, 0, 1.5, CREDIT),
+        new Merchant("Shopping", "Best Buy", 30, 600, 0, 0.5, CREDIT),
+        new Merchant("Savings", "Transfer to Emergency Fund", 100, 500, 28, 0.8, SAVINGS)
+    );
+
+    private final long seed;
+    private final double[] cumulativeWeights;
+
+    public SyntheticLedgerGenerator(long seed) {
+        this.seed = seed;
+        this.cumulativeWeights = new double[MERCHANTS.size()];
+        double total = 0;
+        for (int i = 0; i < MERCHANTS.size(); i++) {
+            total += MERCHANTS.get(i).weight();
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    public List<TransactionFeatures> generate(int count) {
+        Random random = new Random(seed);
+        List<TransactionFeatures> ledger = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ledger.add(next(random));
+        }
+        return ledger;
+    }
+
+    private TransactionFeatures next(Random random) {
+        Merchant merchant = pickMerchant(random);
+
+        LocalDateTime date = BASE_DATE.minusDays(random.nextInt(SPAN_DAYS))
+            .withHour(7 + random.nextInt(14));
+        if (merchant.fixedDayOfMonth() > 0) {
+            date = date.withDayOfMonth(merchant.fixedDayOfMonth());
+        }
+
+        double amount = merchant.minAmount() +
+            random.nextDouble() * (merchant.maxAmount() - merchant.minAmount());
+
+        // Mostly the merchant's usual account, occasionally any other
+        AccountProfile account = random.nextDouble() < 0.8
+            ? merchant.preferredAccount()
+            : switch (random.nextInt(3)) {
+                case 0 -> CHECKING;
+                case 1 -> SAVINGS;
+                default -> CREDIT;
+            };
+
+        return new TransactionFeatures(
+            describe(merchant, random),
+            BigDecimal.valueOf(amount).setScale(2, RoundingMode.HALF_UP),
+            date,
+            merchant.envelope(),
+            account.type(),
+            account.name()
+        );
+    }
+
+    private Merchant pickMerchant(Random random) {
+        double target = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, target);
+        return MERCHANTS.get(index >= 0 ? index : -index - 1);
+    }
+
+    private String describe(Merchant merchant, Random random) {
+        StringBuilder description = new StringBuilder();
+        description.append(PREFIXES[random.nextInt(PREFIXES.length)]);
+        description.append(random.nextBoolean() ? merchant.name().toUpperCase() : merchant.name());
+        if (random.nextDouble() < 0.4) {
+            description.append(" #").append(1000 + random.nextInt(9000));
+        }
+        String location = LOCATIONS[random.nextInt(LOCATIONS.length)];
+        if (!location.isEmpty()) {
+            description.append(' ').append(location);
+        }
+        return description.toString();
+    }
+
+    public static List<String> envelopes() {
+        return MERCHANTS.stream().map(Merchant::envelope).distinct().toList();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.emblow.envelofy.service.ml.FeatureHashingTokenizer;
+import org.emblow.envelofy.service.ml.FeatureHashingTokenizer.TokenBuffer;
+import org.emblow.envelofy.service.ml.TransactionNaiveBayes.TransactionFeatures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The hashing tokenizer against the regex pipeline it replaced.
+ *
+ * @author Nicholas J Emblow
+ */
+@State(Scope.Thread)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TokenizerBenchmark {
+    private static final int SAMPLES = 1024;
+
+    private String[] descriptions;
+    private final FeatureHashingTokenizer unigrams = new FeatureHashingTokenizer();
+    private final FeatureHashingTokenizer bigrams = new FeatureHashingTokenizer(FeatureHashingTokenizer.DEFAULT_BUCKETS, true);
+    private final TokenBuffer buffer = new TokenBuffer();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        descriptions = new SyntheticLedgerGenerator(42).generate(SAMPLES).stream()
+            .map(TransactionFeatures::description)
+            .toArray(String[]::new);
+    }
+
+    @Benchmark
+    public String[] regexTokenizer() {
+        return nextDescription().toLowerCase()
+            .replaceAll("[^a-z0-9\\s]", "")
+            .split("\\s+");
+    }
+
+    @Benchmark
+    public int hashingTokenizer() {
+        return unigrams.tokenize(nextDescription(), buffer).size();
+    }
+
+    @Benchmark
+    public int hashingTokenizerWithBigrams() {
+        return bigrams.tokenize(nextDescription(), buffer).size();
+    }
+
+    private String nextDescription() {
+        next = (next + 1) & (SAMPLES - 1);
+        return descriptions[next];
+    }
+}
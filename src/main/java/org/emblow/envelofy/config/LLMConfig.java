@@ -28,12 +28,27 @@ import org.emblow.envelofy.service.ml.SpendingInsightService;
 import org.emblow.envelofy.service.PatternService;
 import org.emblow.envelofy.service.IntentDetectionService;
 import org.emblow.envelofy.service.ml.AdvancedMLService;
+import org.emblow.envelofy.service.llm.BlockingWorkScheduler;
+import org.emblow.envelofy.service.llm.FinancialContextCache;
+import org.emblow.envelofy.service.llm.InferenceScheduler;
 import org.emblow.envelofy.service.llm.LLMService;
 import org.emblow.envelofy.service.llm.ChatGPTService;
+import org.emblow.envelofy.service.llm.ConversationKvCache;
+import org.emblow.envelofy.service.llm.ConversationSummaryService;
+import org.emblow.envelofy.service.llm.JllamaModelManager;
 import org.emblow.envelofy.service.llm.JllamaService;
 import org.emblow.envelofy.service.llm.OllamaService;
+import org.emblow.envelofy.service.llm.ProviderHealthTracker;
+import org.emblow.envelofy.service.llm.ProviderTransport;
+import org.emblow.envelofy.service.llm.ResponseCache;
+import org.emblow.envelofy.service.llm.RoutingLLMService;
+import org.emblow.envelofy.service.llm.TokenCountingService;
 import org.emblow.envelofy.service.llm.GroqService;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 @Configuration
 public class LLMConfig {
 
@@ -53,33 +68,86 @@ public class LLMConfig {
             PatternService patternService,
             AdvancedMLService advancedMLService,
             IntentDetectionService intentDetectionService,
-            AccountService accountService
+            AccountService accountService,
+            FinancialContextCache contextCache,
+            TokenCountingService tokenCounter,
+            ResponseCache responseCache,
+            ConversationSummaryService conversationSummaries,
+            BlockingWorkScheduler blockingWork,
+            JllamaModelManager jllamaModelManager,
+            ConversationKvCache conversationKvCache,
+            InferenceScheduler inferenceScheduler,
+            ProviderTransport providerTransport,
+            ProviderHealthTracker providerHealthTracker
     ) {
         String type = settingService.getSetting("llm.service.type", "jllama").trim().toLowerCase();
+        // Providers to hedge to and fall back on, in order, when the primary is slow or failing
+        List<String> fallbacks = Arrays.stream(settingService.getSetting("llm.service.fallback", "").split(","))
+            .map(name -> name.trim().toLowerCase())
+            .filter(name -> !name.isEmpty() && !name.equals("none") && !name.equals(type))
+            .distinct()
+            .toList();
+
+        List<String> names = new ArrayList<>();
+        names.add(type);
+        names.addAll(fallbacks);
+
+        List<RoutingLLMService.Route> routes = new ArrayList<>();
+        for (String name : names) {
+            LLMService service = createService(name,
+                transactionService, envelopeService, insightService, patternService,
+                advancedMLService, intentDetectionService, accountService, contextCache, tokenCounter, responseCache,
+                conversationSummaries, blockingWork, jllamaModelManager, conversationKvCache, inferenceScheduler,
+                providerTransport);
+            routes.add(new RoutingLLMService.Route(name, service));
+        }
+        if (routes.size() == 1) {
+            return routes.get(0).service();
+        }
+        return new RoutingLLMService(routes, providerHealthTracker);
+    }
+
+    private LLMService createService(
+            String type,
+            TransactionService transactionService,
+            EnvelopeService envelopeService,
+            SpendingInsightService insightService,
+            PatternService patternService,
+            AdvancedMLService advancedMLService,
+            IntentDetectionService intentDetectionService,
+            AccountService accountService,
+            FinancialContextCache contextCache,
+            TokenCountingService tokenCounter,
+            ResponseCache responseCache,
+            ConversationSummaryService conversationSummaries,
+            BlockingWorkScheduler blockingWork,
+            JllamaModelManager jllamaModelManager,
+            ConversationKvCache conversationKvCache,
+            InferenceScheduler inferenceScheduler,
+            ProviderTransport providerTransport
+    ) {
         switch (type) {
             case "chatgpt":
                 String openaiApiKey = settingService.getSetting("openai.api.key", "sk-default");
                 String openaiChatEndpoint = settingService.getSetting("openai.chat.endpoint", "https://api.openai.com/v1/chat/completions");
                 return new ChatGPTService(
                     transactionService, envelopeService, insightService, patternService, 
-                    advancedMLService, intentDetectionService, accountService,
-                    openaiApiKey, openaiChatEndpoint
+                    advancedMLService, intentDetectionService, accountService, contextCache, tokenCounter, responseCache,
+                    conversationSummaries, blockingWork, providerTransport, openaiApiKey, openaiChatEndpoint
                 );
             case "jllama":
-                String jllamaDirectory = settingService.getSetting("jllama.model.directory", "./models");
-                String jllamaModelName = settingService.getSetting("jllama.model.name", "tjake/Llama-3.2-1B-Instruct-JQ4");
                 return new JllamaService(
                     transactionService, envelopeService, insightService, patternService, 
-                    advancedMLService, intentDetectionService, accountService,
-                    jllamaModelName, jllamaDirectory
+                    advancedMLService, intentDetectionService, accountService, contextCache, tokenCounter, responseCache,
+                    conversationSummaries, blockingWork, jllamaModelManager, conversationKvCache, inferenceScheduler
                 );
             case "ollama":
                 String ollamaUrl = settingService.getSetting("ollama.url", "http://localhost:11434");
                 String ollamaModel = settingService.getSetting("ollama.model", "dolphin3:latest");
                 return new OllamaService(
                     transactionService, envelopeService, insightService, patternService, 
-                    advancedMLService, intentDetectionService, accountService,
-                    ollamaUrl, ollamaModel
+                    advancedMLService, intentDetectionService, accountService, contextCache, tokenCounter, responseCache,
+                    conversationSummaries, blockingWork, providerTransport, ollamaUrl, ollamaModel
                 );
             case "groq":
                 String groqApiKey = settingService.getSetting("groq.api.key", "gsk-default");
@@ -87,8 +155,8 @@ public class LLMConfig {
                 String groqModel = settingService.getSetting("groq.chat.model", "mixtral-8x7b-32768");
                 return new GroqService(
                     transactionService, envelopeService, insightService, patternService, 
-                    advancedMLService, intentDetectionService, accountService,
-                    groqApiKey, groqBaseUrl, groqModel
+                    advancedMLService, intentDetectionService, accountService, contextCache, tokenCounter, responseCache,
+                    conversationSummaries, blockingWork, providerTransport, groqApiKey, groqBaseUrl, groqModel
                 );
             default:
                 throw new IllegalArgumentException("Unknown LLM service type: " + type);
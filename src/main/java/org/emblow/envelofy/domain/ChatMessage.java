@@ -41,6 +41,10 @@ public class ChatMessage {
  
     @Column(columnDefinition = "TEXT") // For chart JSON, no strict length limit
     private String chartData;
+
+    // Counted once when stored; messages from before the column existed count as 0
+    @Column(columnDefinition = "INT DEFAULT 0 NOT NULL")
+    private int tokenCount;
     
     @NotNull
     private LocalDateTime timestamp;
@@ -74,10 +78,10 @@ public class ChatMessage {
     public ChatSession getSession() { return session; }
     public void setSession(ChatSession session) { this.session = session; }
 
-    public int estimateTokens() {
-        return content.length() / 4; // Rough estimate: 4 chars per token
-    }
     public String getChartData() { return chartData; }
     public void setChartData(String chartData) { this.chartData = chartData; }
 
+    public int getTokenCount() { return tokenCount; }
+    public void setTokenCount(int tokenCount) { this.tokenCount = tokenCount; }
+
 }
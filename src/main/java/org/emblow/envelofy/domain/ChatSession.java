@@ -46,6 +46,16 @@ public class ChatSession {
     @OneToMany(mappedBy = "session", cascade = CascadeType.ALL, orphanRemoval = true)
     private List<ChatMessage> messages = new ArrayList<>();
 
+    // Rolling summary of the turns up to and including summarizedThroughId
+    @Column(columnDefinition = "TEXT")
+    private String summary;
+
+    private Long summarizedThroughId;
+
+    // Running total of the stored messages' tokens, kept by ChatHistoryService
+    @Column(columnDefinition = "INT DEFAULT 0 NOT NULL")
+    private int tokenCount;
+
     // Constructors
     public ChatSession() {}
 
@@ -71,6 +81,15 @@ public class ChatSession {
     public List<ChatMessage> getMessages() { return messages; }
     public void setMessages(List<ChatMessage> messages) { this.messages = messages; }
 
+    public String getSummary() { return summary; }
+    public void setSummary(String summary) { this.summary = summary; }
+
+    public Long getSummarizedThroughId() { return summarizedThroughId; }
+    public void setSummarizedThroughId(Long summarizedThroughId) { this.summarizedThroughId = summarizedThroughId; }
+
+    public int getTokenCount() { return tokenCount; }
+    public void setTokenCount(int tokenCount) { this.tokenCount = tokenCount; }
+
     public void addMessage(ChatMessage message) {
         messages.add(message);
         message.setSession(this);
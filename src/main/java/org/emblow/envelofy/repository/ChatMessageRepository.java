@@ -24,11 +24,33 @@ package org.emblow.envelofy.repository;
 import org.emblow.envelofy.domain.ChatMessage;
 import org.emblow.envelofy.domain.ChatSession;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 @Repository
 public interface ChatMessageRepository extends JpaRepository<ChatMessage, Long> {
     List<ChatMessage> findBySessionOrderByTimestampAsc(ChatSession session);
+
+    List<ChatMessage> findBySessionAndIdGreaterThanOrderByIdAsc(ChatSession session, Long id);
+
+    // Oldest first; callers read only as far as they need and must close the stream
+    @Query("SELECT m.id AS id, m.tokenCount AS tokenCount FROM ChatMessage m " +
+           "WHERE m.session.id = :sessionId AND m.id <= :throughId ORDER BY m.id")
+    Stream<MessageTokens> streamTokens(@Param("sessionId") Long sessionId, @Param("throughId") Long throughId);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM ChatMessage m WHERE m.session.id = :sessionId AND m.id <= :throughId")
+    int deleteThrough(@Param("sessionId") Long sessionId, @Param("throughId") Long throughId);
+
+    interface MessageTokens {
+        Long getId();
+        int getTokenCount();
+    }
 }
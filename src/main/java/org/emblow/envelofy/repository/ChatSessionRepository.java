@@ -24,11 +24,26 @@ package org.emblow.envelofy.repository;
 import org.emblow.envelofy.domain.ChatSession;
 import org.emblow.envelofy.domain.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 
 @Repository
 public interface ChatSessionRepository extends JpaRepository<ChatSession, Long> {
     List<ChatSession> findByOwnerOrderByCreatedAtDesc(User owner);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE ChatSession s SET s.summary = :summary, s.summarizedThroughId = :throughId WHERE s.id = :id")
+    int updateSummary(@Param("id") Long id, @Param("summary") String summary, @Param("throughId") Long throughId);
+
+    // In the database rather than on the entity, so concurrent appends to a session don't lose counts
+    @Modifying
+    @Transactional
+    @Query("UPDATE ChatSession s SET s.tokenCount = s.tokenCount + :delta WHERE s.id = :id")
+    int addTokens(@Param("id") Long id, @Param("delta") int delta);
 }
@@ -48,6 +48,8 @@ public interface TransactionRepository extends JpaRepository<Transaction, Long>
         LocalDateTime date,
         User owner
     );
+    
+    List<Transaction> findByEnvelope_Owner(User owner);
 
 }
 
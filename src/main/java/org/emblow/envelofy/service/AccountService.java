@@ -28,6 +28,7 @@ import java.util.Map;
 import org.emblow.envelofy.exception.AccountException;
 import org.emblow.envelofy.exception.BusinessException;
 import org.emblow.envelofy.exception.ValidationException;
+import org.emblow.envelofy.service.DataVersionService.DataDomain;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataIntegrityViolationException;
@@ -38,10 +39,16 @@ public class AccountService {
 
     private final AccountRepository accountRepository;
     private final SecurityService securityService;
+    private final DataVersionService dataVersionService;
 
-    public AccountService(AccountRepository accountRepository, SecurityService securityService) {
+    public AccountService(
+        AccountRepository accountRepository,
+        SecurityService securityService,
+        DataVersionService dataVersionService
+    ) {
         this.accountRepository = accountRepository;
         this.securityService = securityService;
+        this.dataVersionService = dataVersionService;
     }
 
     public List<Account> getAllAccounts() {
@@ -71,7 +78,9 @@ public class AccountService {
         account.setAccountNumber(accountNumber);
         
         try {
-            return accountRepository.save(account);
+            Account saved = accountRepository.save(account);
+            dataVersionService.bump(currentUser.getId(), DataDomain.ACCOUNTS);
+            return saved;
         } catch (DataIntegrityViolationException e) {
             throw new AccountException(AccountException.DUPLICATE_ACCOUNT, 
                 "An account with this name already exists");
@@ -120,6 +129,7 @@ public class AccountService {
         }
         
         accountRepository.save(account);
+        dataVersionService.bump(account.getOwner().getId(), DataDomain.ACCOUNTS);
     }
     
     private void validateBalanceUpdate(Long accountId, BigDecimal amount) {
@@ -164,6 +174,7 @@ public class AccountService {
         
         accountRepository.save(source);
         accountRepository.save(target);
+        dataVersionService.bump(source.getOwner().getId(), DataDomain.ACCOUNTS);
     }
     
     private void validateTransfer(Long sourceId, Long targetId, BigDecimal amount) {
@@ -204,7 +215,9 @@ public class AccountService {
                 throw new RuntimeException("Cannot assign account owner to another user.");
             }
         }
-        return accountRepository.save(account);
+        Account saved = accountRepository.save(account);
+        dataVersionService.bump(saved.getOwner().getId(), DataDomain.ACCOUNTS);
+        return saved;
     }
 
     @Transactional
@@ -218,5 +231,6 @@ public class AccountService {
         }
         
         accountRepository.delete(account);
+        dataVersionService.bump(account.getOwner().getId(), DataDomain.ACCOUNTS);
     }
 }
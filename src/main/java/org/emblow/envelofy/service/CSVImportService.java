@@ -16,6 +16,8 @@
  */
 package org.emblow.envelofy.service;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.emblow.envelofy.domain.Transaction;
@@ -25,7 +27,7 @@ import org.emblow.envelofy.domain.Account;
 import org.emblow.envelofy.repository.TransactionRepository;
 import org.emblow.envelofy.repository.EnvelopeRepository;
 import org.emblow.envelofy.repository.AccountRepository;
-import org.emblow.envelofy.service.PatternService;
+import org.emblow.envelofy.service.EnvelopeSuggestionService.EnvelopeSuggestion;
 
 import java.io.BufferedReader;
 import java.io.StringReader;
@@ -37,23 +39,28 @@ import org.emblow.envelofy.repository.AccountRepository;
 
 @Service
 public class CSVImportService {
+    private static final Logger log = LoggerFactory.getLogger(CSVImportService.class);
+    // The threshold imports have always used; the accuracy report only measures the classifier on
+    // its own, so there is no held-out evidence yet for a different cut-off on the fused score
+    private static final double AUTO_ASSIGN_CONFIDENCE = 0.7;
+
     private final TransactionRepository transactionRepository;
     private final EnvelopeRepository envelopeRepository;
     private final AccountRepository accountRepository;
-    private final PatternService patternService;
+    private final EnvelopeSuggestionService suggestionService;
     private final TransactionService transactionService;
 
     public CSVImportService(
         TransactionRepository transactionRepository,
         EnvelopeRepository envelopeRepository,
         AccountRepository accountRepository,
-        PatternService patternService,
+        EnvelopeSuggestionService suggestionService,
         TransactionService transactionService
     ) {
         this.transactionRepository = transactionRepository;
         this.envelopeRepository = envelopeRepository;
         this.accountRepository = accountRepository;
-        this.patternService = patternService;
+        this.suggestionService = suggestionService;
         this.transactionService = transactionService;
     }
 
@@ -78,6 +85,8 @@ public class CSVImportService {
                 reader.readLine();
             }
 
+            // Parse every row first so envelope suggestions can be made in one batch
+            List<ParsedRow> rows = new ArrayList<>();
             String line;
             while ((line = reader.readLine()) != null) {
                 try {
@@ -101,20 +110,41 @@ public class CSVImportService {
                         Math.abs(mapping.amountMultiplier())
                     );
 
-                    // Find best envelope match using pattern service.
                     Transaction temp = new Transaction();
                     temp.setDate(date);
                     temp.setDescription(description);
                     temp.setAmount(amount);
                     temp.setAccount(account);
+                    temp.setType(txType);
+                    rows.add(new ParsedRow(line, temp));
                     
-                    Map<Envelope, Double> suggestions = patternService.suggestEnvelopes(temp);
-                    
+                } catch (Exception e) {
+                    result.addError("Error processing line: " + line + " - " + e.getMessage());
+                    result.incrementFailed();
+                }
+            }
+
+            List<List<EnvelopeSuggestion>> suggestions;
+            try {
+                suggestions = suggestionService.suggestAll(
+                    rows.stream().map(ParsedRow::transaction).toList(),
+                    1
+                );
+            } catch (Exception e) {
+                // Import into the default envelope rather than not at all
+                log.warn("Could not suggest envelopes for CSV import, using the default envelope: {}", e.getMessage());
+                suggestions = Collections.nCopies(rows.size(), List.of());
+            }
+
+            for (int i = 0; i < rows.size(); i++) {
+                ParsedRow row = rows.get(i);
+                Transaction temp = row.transaction();
+                try {
                     // Use highest confidence suggestion or default envelope.
-                    Envelope targetEnvelope = suggestions.entrySet().stream()
-                        .max(Map.Entry.comparingByValue())
-                        .filter(e -> e.getValue() > 0.7) // Minimum confidence threshold
-                        .map(Map.Entry::getKey)
+                    Envelope targetEnvelope = suggestions.get(i).stream()
+                        .findFirst()
+                        .filter(s -> s.confidence() > AUTO_ASSIGN_CONFIDENCE)
+                        .map(EnvelopeSuggestion::envelope)
                         .orElse(defaultEnvelope);
 
                     // Instead of manually constructing and saving the transaction,
@@ -122,16 +152,16 @@ public class CSVImportService {
                     transactionService.recordTransaction(
                         targetEnvelope.getId(),
                         account.getId(),
-                        date,
-                        description,
-                        amount,
-                        txType
+                        temp.getDate(),
+                        temp.getDescription(),
+                        temp.getAmount(),
+                        temp.getType()
                     );
                     
                     result.incrementSuccessful();
                     
                 } catch (Exception e) {
-                    result.addError("Error processing line: " + line + " - " + e.getMessage());
+                    result.addError("Error processing line: " + row.line() + " - " + e.getMessage());
                     result.incrementFailed();
                 }
             }
@@ -152,6 +182,8 @@ public class CSVImportService {
         return new BigDecimal(cleaned).multiply(BigDecimal.valueOf(multiplier));
     }
 
+    private record ParsedRow(String line, Transaction transaction) {}
+
     // Record to define CSV column mapping.
     public record CSVMapping(
         boolean hasHeader,
@@ -37,13 +37,16 @@ public class CategoryService {
     
     private final CategoryRepository categoryRepository;
     private final SecurityService securityService;
+    private final EnvelopeIndexService envelopeIndexService;
 
     public CategoryService(
         CategoryRepository categoryRepository,
-        SecurityService securityService
+        SecurityService securityService,
+        EnvelopeIndexService envelopeIndexService
     ) {
         this.categoryRepository = categoryRepository;
         this.securityService = securityService;
+        this.envelopeIndexService = envelopeIndexService;
     }
 
     @Transactional
@@ -61,7 +64,9 @@ public class CategoryService {
             Category category = new Category(name, description);
             category.setOwner(currentUser);
             
-            return categoryRepository.save(category);
+            Category saved = categoryRepository.save(category);
+            envelopeIndexService.invalidate(currentUser.getId());
+            return saved;
             
         } catch (Exception e) {
             log.error("Error creating category", e);
@@ -81,7 +86,9 @@ public class CategoryService {
             category.setName(name);
             category.setDescription(description);
             
-            return categoryRepository.save(category);
+            Category saved = categoryRepository.save(category);
+            envelopeIndexService.invalidate(category.getOwner().getId());
+            return saved;
             
         } catch (Exception e) {
             log.error("Error updating category", e);
@@ -99,6 +106,7 @@ public class CategoryService {
             securityService.validateOwnership(category.getOwner());
             
             categoryRepository.delete(category);
+            envelopeIndexService.invalidate(category.getOwner().getId());
             
         } catch (Exception e) {
             log.error("Error deleting category", e);
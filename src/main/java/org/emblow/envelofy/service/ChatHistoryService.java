@@ -22,22 +22,28 @@ package org.emblow.envelofy.service;
  */
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.emblow.envelofy.domain.ChatSession;
 import org.emblow.envelofy.domain.ChatMessage;
 import org.emblow.envelofy.domain.User;
 import org.emblow.envelofy.repository.ChatSessionRepository;
 import org.emblow.envelofy.repository.ChatMessageRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 import org.emblow.envelofy.domain.ChartArtifact;
 import org.emblow.envelofy.repository.ChartArtifactRepository;
+import org.emblow.envelofy.repository.ChatMessageRepository.MessageTokens;
+import org.emblow.envelofy.service.llm.ConversationSummaryService;
+import org.emblow.envelofy.service.llm.TokenCountingService;
 
 @Service
 public class ChatHistoryService {
-    private static final int MAX_TOKENS = 4000; // Adjust based on LLM limits
-
     @Autowired
     private SecurityService securityService;
 
@@ -49,15 +55,27 @@ public class ChatHistoryService {
     
     private final ChartArtifactRepository chartArtifactRepository;
 
+    private final TokenCountingService tokenCounter;
+
+    private final ConversationSummaryService conversationSummaries;
+
+    private final int retainedTokens;
+
     @Autowired
     public ChatHistoryService(SecurityService securityService,
                             ChatSessionRepository chatSessionRepository,
                             ChatMessageRepository chatMessageRepository,
-                            ChartArtifactRepository chartArtifactRepository) {
+                            ChartArtifactRepository chartArtifactRepository,
+                            TokenCountingService tokenCounter,
+                            ConversationSummaryService conversationSummaries,
+                            @Value("${envelofy.chat.history.retained-tokens:4000}") int retainedTokens) {
         this.securityService = securityService;
         this.chatSessionRepository = chatSessionRepository;
         this.chatMessageRepository = chatMessageRepository;
         this.chartArtifactRepository = chartArtifactRepository;
+        this.tokenCounter = tokenCounter;
+        this.conversationSummaries = conversationSummaries;
+        this.retainedTokens = retainedTokens;
     }
 
     @Transactional
@@ -97,10 +115,8 @@ public class ChatHistoryService {
         ChatSession session = getSession(sessionId)
             .orElseThrow(() -> new RuntimeException("Chat session not found or access denied"));
         
-        ChatMessage message = new ChatMessage(role, content);
-        session.addMessage(message);
-        trimHistory(session);
-        chatSessionRepository.save(session);
+        ChatMessage message = append(session, role, content);
+        trimHistory(session, message);
     }
 
     @Transactional
@@ -108,8 +124,7 @@ public class ChatHistoryService {
         ChatSession session = getSession(sessionId)
             .orElseThrow(() -> new RuntimeException("Chat session not found or access denied"));
 
-        ChatMessage message = new ChatMessage(role, content);
-        session.addMessage(message);
+        ChatMessage message = append(session, role, content);
 
         // Save charts if present
         if (chartDataList != null && !chartDataList.isEmpty()) {
@@ -119,8 +134,8 @@ public class ChatHistoryService {
             }
         }
 
-        trimHistory(session);
-        chatSessionRepository.save(session);
+        trimHistory(session, message);
+        compactAfterCommit(sessionId);
     }
 
     @Transactional(readOnly = true)
@@ -130,14 +145,54 @@ public class ChatHistoryService {
         return chatMessageRepository.findBySessionOrderByTimestampAsc(session);
     }
 
-    private void trimHistory(ChatSession session) {
-        List<ChatMessage> messages = session.getMessages();
-        int totalTokens = messages.stream().mapToInt(ChatMessage::estimateTokens).sum();
-        
-        while (totalTokens > MAX_TOKENS && !messages.isEmpty()) {
-            ChatMessage oldest = messages.remove(0);
-            chatMessageRepository.delete(oldest);
-            totalTokens -= oldest.estimateTokens();
+    // The summarizer reads the stored turn, so it starts once the turn is committed
+    private void compactAfterCommit(Long sessionId) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                conversationSummaries.compactLater(sessionId);
+            }
+        });
+    }
+
+    // Stores the message on its own, so the session's messages are never loaded
+    private ChatMessage append(ChatSession session, String role, String content) {
+        ChatMessage message = new ChatMessage(role, content);
+        message.setSession(session);
+        message.setTokenCount(tokenCounter.count(content));
+        chatMessageRepository.save(message);
+        chatSessionRepository.addTokens(session.getId(), message.getTokenCount());
+        return message;
+    }
+
+    // Caps what a session stores; fitting a prompt to the provider's window is up to historyFor
+    private void trimHistory(ChatSession session, ChatMessage appended) {
+        // The session was read before the append was counted
+        int excess = session.getTokenCount() + appended.getTokenCount() - retainedTokens;
+        if (excess <= 0) {
+            return;
+        }
+        // The new message always stays; while summaries are kept, only turns already folded into one may go
+        long deletableThrough = appended.getId() - 1;
+        if (conversationSummaries.isSummarizing()) {
+            Long summarizedThrough = session.getSummarizedThroughId();
+            deletableThrough = Math.min(deletableThrough, summarizedThrough != null ? summarizedThrough : 0L);
+        }
+
+        // The oldest messages that cover the excess; usually one or two, since each append adds one
+        long cutoff = 0;
+        int freed = 0;
+        try (Stream<MessageTokens> oldest = chatMessageRepository.streamTokens(session.getId(), deletableThrough)) {
+            Iterator<MessageTokens> messages = oldest.iterator();
+            while (freed < excess && messages.hasNext()) {
+                MessageTokens message = messages.next();
+                cutoff = message.getId();
+                freed += message.getTokenCount();
+            }
+        }
+        if (cutoff > 0) {
+            chatMessageRepository.deleteThrough(session.getId(), cutoff);
+            chatSessionRepository.addTokens(session.getId(), -freed);
         }
     }
 
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+/**
+ *
+ * @author Nicholas J Emblow
+ */
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-user change counters for each kind of financial data. Write services
+ * bump the counter of what they changed; caches remember the version they
+ * were built at and rebuild once it moves. Caches that must drop state
+ * eagerly, such as persisted models, listen for {@link DataChangedEvent}.
+ */
+@Service
+public class DataVersionService {
+    private final SecurityService securityService;
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final Map<Long, AtomicLongArray> versions = new ConcurrentHashMap<>();
+
+    public DataVersionService(SecurityService securityService, ApplicationEventPublisher eventPublisher) {
+        this.securityService = securityService;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Bumps the counter now and again after the surrounding transaction
+     * completes, so a cache filled from uncommitted state is not trusted.
+     * The change is published once the transaction has completed.
+     */
+    public void bump(Long userId, DataDomain domain) {
+        counters(userId).incrementAndGet(domain.ordinal());
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    counters(userId).incrementAndGet(domain.ordinal());
+                    eventPublisher.publishEvent(new DataChangedEvent(userId, domain));
+                }
+            });
+        } else {
+            eventPublisher.publishEvent(new DataChangedEvent(userId, domain));
+        }
+    }
+
+    public void bumpCurrentUser(DataDomain domain) {
+        bump(securityService.getCurrentUser().getId(), domain);
+    }
+
+    /**
+     * Combined version of the given domains. Counters only grow, so the sum
+     * changes whenever any of them does.
+     */
+    public long version(Long userId, Set<DataDomain> domains) {
+        AtomicLongArray counters = counters(userId);
+        long version = 0;
+        for (DataDomain domain : domains) {
+            version += counters.get(domain.ordinal());
+        }
+        return version;
+    }
+
+    private AtomicLongArray counters(Long userId) {
+        return versions.computeIfAbsent(userId, id -> new AtomicLongArray(DataDomain.values().length));
+    }
+
+    public record DataChangedEvent(Long userId, DataDomain domain) {}
+
+    public enum DataDomain {
+        ACCOUNTS,
+        ENVELOPES,
+        TRANSACTIONS
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+/**
+ *
+ * @author Nicholas J Emblow
+ */
+import org.emblow.envelofy.domain.Category;
+import org.emblow.envelofy.domain.Envelope;
+import org.emblow.envelofy.domain.User;
+import org.emblow.envelofy.repository.CategoryRepository;
+import org.emblow.envelofy.repository.EnvelopeRepository;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-user lookup from category to envelope and from envelope name to
+ * envelope, so suggestion paths don't reload envelopes or compare names
+ * for every transaction. Rebuilt lazily after any envelope or category of
+ * the user is created, renamed or deleted.
+ */
+@Service
+public class EnvelopeIndexService {
+    private final CategoryRepository categoryRepository;
+    private final EnvelopeRepository envelopeRepository;
+    private final SecurityService securityService;
+
+    private final Map<Long, EnvelopeIndex> indexes = new ConcurrentHashMap<>();
+
+    public EnvelopeIndexService(
+        CategoryRepository categoryRepository,
+        EnvelopeRepository envelopeRepository,
+        SecurityService securityService
+    ) {
+        this.categoryRepository = categoryRepository;
+        this.envelopeRepository = envelopeRepository;
+        this.securityService = securityService;
+    }
+
+    public EnvelopeIndex getIndex() {
+        return getIndex(securityService.getCurrentUser());
+    }
+
+    public EnvelopeIndex getIndex(User user) {
+        return indexes.computeIfAbsent(user.getId(), id -> build(user));
+    }
+
+    /**
+     * Drops the user's index. Inside a transaction this happens again after
+     * commit, so a concurrent lookup can't re-cache the old rows.
+     */
+    public void invalidate(Long userId) {
+        indexes.remove(userId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    indexes.remove(userId);
+                }
+            });
+        }
+    }
+
+    public void invalidateCurrentUser() {
+        invalidate(securityService.getCurrentUser().getId());
+    }
+
+    private EnvelopeIndex build(User user) {
+        List<Envelope> envelopes = envelopeRepository.findByOwner(user);
+
+        Map<String, Envelope> byName = new HashMap<>();
+        envelopes.forEach(envelope -> byName.putIfAbsent(envelope.getName(), envelope));
+
+        Map<Long, Envelope> byCategory = new HashMap<>();
+        for (Category category : categoryRepository.findByOwner(user)) {
+            Envelope envelope = category.getEnvelope() != null
+                ? category.getEnvelope()
+                : matchByName(category, envelopes);
+            if (envelope != null) {
+                byCategory.put(category.getId(), envelope);
+            }
+        }
+        return new EnvelopeIndex(byCategory, byName);
+    }
+
+    // Categories not linked to an envelope fall back to the old name rule, resolved once here
+    private static Envelope matchByName(Category category, List<Envelope> envelopes) {
+        String name = category.getName().toLowerCase();
+        Envelope contains = null;
+        for (Envelope envelope : envelopes) {
+            String envelopeName = envelope.getName().toLowerCase();
+            if (envelopeName.equals(name)) {
+                return envelope;
+            }
+            if (contains == null && envelopeName.contains(name)) {
+                contains = envelope;
+            }
+        }
+        return contains;
+    }
+
+    public record EnvelopeIndex(
+        Map<Long, Envelope> byCategoryId,
+        Map<String, Envelope> byName
+    ) {
+        public Envelope forCategory(Category category) {
+            return byCategoryId.get(category.getId());
+        }
+
+        public Envelope forName(String name) {
+            return byName.get(name);
+        }
+    }
+}
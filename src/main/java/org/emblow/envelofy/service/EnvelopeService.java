@@ -34,6 +34,7 @@ import org.emblow.envelofy.exception.BusinessException;
 import org.emblow.envelofy.exception.EnvelopeException;
 import org.emblow.envelofy.exception.ValidationException;
 import org.emblow.envelofy.repository.EnvelopeRepository;
+import org.emblow.envelofy.service.DataVersionService.DataDomain;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataIntegrityViolationException;
@@ -43,12 +44,18 @@ public class EnvelopeService {
         private static final Logger log = LoggerFactory.getLogger(EnvelopeService.class);
     private final EnvelopeRepository envelopeRepository;
     private final SecurityService securityService;
+    private final EnvelopeIndexService envelopeIndexService;
+    private final DataVersionService dataVersionService;
     public EnvelopeService(
         EnvelopeRepository envelopeRepository,
-        SecurityService securityService
+        SecurityService securityService,
+        EnvelopeIndexService envelopeIndexService,
+        DataVersionService dataVersionService
     ) {
         this.envelopeRepository = envelopeRepository;
         this.securityService = securityService;
+        this.envelopeIndexService = envelopeIndexService;
+        this.dataVersionService = dataVersionService;
     }
 
 
@@ -73,7 +80,10 @@ public class EnvelopeService {
         Envelope envelope = new Envelope(name, initialAllocation, currentUser);
         
         try {
-            return envelopeRepository.save(envelope);
+            Envelope saved = envelopeRepository.save(envelope);
+            envelopeIndexService.invalidate(currentUser.getId());
+            dataVersionService.bump(currentUser.getId(), DataDomain.ENVELOPES);
+            return saved;
         } catch (DataIntegrityViolationException e) {
             throw new BusinessException("DUPLICATE_ENVELOPE", 
                 "An envelope with this name already exists");
@@ -135,18 +145,27 @@ public class EnvelopeService {
         
         envelopeRepository.save(source);
         envelopeRepository.save(target);
+        dataVersionService.bump(currentUser.getId(), DataDomain.ENVELOPES);
     }
 
     @Transactional
     public Envelope save(Envelope envelope) {
-        return envelopeRepository.save(envelope);
+        Envelope saved = envelopeRepository.save(envelope);
+        if (saved.getOwner() != null) {
+            envelopeIndexService.invalidate(saved.getOwner().getId());
+            dataVersionService.bump(saved.getOwner().getId(), DataDomain.ENVELOPES);
+        }
+        return saved;
     }
 
     @Transactional
     public Envelope updateEnvelope(Long id, String name) {
         Envelope envelope = getEnvelope(id);
         envelope.setName(name);
-        return envelopeRepository.save(envelope);
+        Envelope saved = envelopeRepository.save(envelope);
+        envelopeIndexService.invalidate(envelope.getOwner().getId());
+        dataVersionService.bump(envelope.getOwner().getId(), DataDomain.ENVELOPES);
+        return saved;
     }
     
     private void validateReallocation(Long sourceId, Long targetId, BigDecimal amount) {
@@ -212,6 +231,8 @@ public class EnvelopeService {
         try {
             envelopeRepository.save(target);
             envelopeRepository.deleteById(sourceId);
+            envelopeIndexService.invalidate(currentUser.getId());
+            dataVersionService.bump(currentUser.getId(), DataDomain.ENVELOPES);
         } catch (Exception e) {
             throw new BusinessException("DELETE_FAILED", 
                 "Failed to delete envelope: " + e.getMessage());
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+/**
+ *
+ * @author Nicholas J Emblow
+ */
+import org.emblow.envelofy.domain.Category;
+import org.emblow.envelofy.domain.Envelope;
+import org.emblow.envelofy.domain.Transaction;
+import org.emblow.envelofy.domain.User;
+import org.emblow.envelofy.service.EnvelopeIndexService.EnvelopeIndex;
+import org.emblow.envelofy.service.ml.ClassifierRegistry;
+import org.emblow.envelofy.service.ml.TransactionNaiveBayes.TransactionFeatures;
+import org.emblow.envelofy.service.ml.UserClassifierModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single entry point for envelope suggestions. Pattern rules and the user's
+ * Naive Bayes ensemble are evaluated together and fused into one calibrated
+ * score per envelope, with the contribution of each source kept alongside.
+ * <p>
+ * Per-user state (compiled patterns, envelope index, model) is loaded once
+ * per call, so {@link #suggestAll} costs one lookup for a whole batch such as a
+ * CSV import.
+ */
+@Service
+public class EnvelopeSuggestionService {
+    private static final Logger log = LoggerFactory.getLogger(EnvelopeSuggestionService.class);
+
+    // Transactions after which the model is trusted half as much as it can be
+    private static final double MODEL_HALF_TRUST = 50.0;
+    // Mass kept back for "none of the above", so agreement is needed to get near 1
+    private static final double UNCERTAINTY = 0.25;
+    private static final double MIN_MODEL_PROBABILITY = 0.05;
+
+    private final PatternService patternService;
+    private final EnvelopeIndexService envelopeIndexService;
+    private final SecurityService securityService;
+    private final ClassifierRegistry classifierRegistry;
+
+    public EnvelopeSuggestionService(
+        PatternService patternService,
+        EnvelopeIndexService envelopeIndexService,
+        SecurityService securityService,
+        ClassifierRegistry classifierRegistry
+    ) {
+        this.patternService = patternService;
+        this.envelopeIndexService = envelopeIndexService;
+        this.securityService = securityService;
+        this.classifierRegistry = classifierRegistry;
+    }
+
+    /**
+     * Returns up to {@code limit} suggestions for the transaction, best first.
+     */
+    public List<EnvelopeSuggestion> suggest(Transaction transaction, int limit) {
+        return suggestAll(List.of(transaction), limit).get(0);
+    }
+
+    /**
+     * Returns up to {@code limit} suggestions for each transaction, best
+     * first, in the same order as the given transactions.
+     */
+    public List<List<EnvelopeSuggestion>> suggestAll(List<Transaction> transactions, int limit) {
+        try {
+            List<List<EnvelopeSuggestion>> results = new ArrayList<>(transactions.size());
+            if (transactions.isEmpty()) {
+                return results;
+            }
+
+            SuggestionContext context = loadContext();
+            for (Transaction transaction : transactions) {
+                results.add(score(context, transaction, limit));
+            }
+            return results;
+
+        } catch (Exception e) {
+            log.error("Error suggesting envelopes", e);
+            throw new RuntimeException("Could not suggest envelopes: " + e.getMessage());
+        }
+    }
+
+    private SuggestionContext loadContext() {
+        User currentUser = securityService.getCurrentUser();
+        UserClassifierModel model = classifierRegistry.getModel(currentUser);
+        double modelReliability = model.getTransactionCount() /
+            (model.getTransactionCount() + MODEL_HALF_TRUST);
+
+        return new SuggestionContext(
+            patternService.getMatcher(),
+            envelopeIndexService.getIndex(currentUser),
+            model,
+            modelReliability
+        );
+    }
+
+    private List<EnvelopeSuggestion> score(SuggestionContext context, Transaction transaction, int limit) {
+        if (transaction.getDescription() == null || transaction.getDescription().isBlank()) {
+            return List.of();
+        }
+
+        // Pattern source: reliability grows with the confidence of the matching rules
+        Map<Category, Double> categoryScores = patternService.scoreCategories(transaction, context.matcher());
+        double patternTotal = categoryScores.values().stream()
+            .mapToDouble(Double::doubleValue)
+            .sum();
+        Map<Envelope, Double> patternScores = Map.of();
+        if (patternTotal > 0) {
+            categoryScores.replaceAll((category, score) -> score / patternTotal);
+            patternScores = patternService.mapToEnvelopes(categoryScores, context.index());
+        }
+        double patternReliability = patternScores.isEmpty() ? 0.0 : Math.min(1.0, patternTotal);
+
+        // Model source: reliability grows with the amount of history it was trained on
+        Map<Envelope, Double> modelScores = new HashMap<>();
+        context.model().predict(featuresOf(transaction)).forEach((name, probability) -> {
+            Envelope envelope = context.index().forName(name);
+            if (envelope != null && probability > MIN_MODEL_PROBABILITY) {
+                modelScores.put(envelope, probability);
+            }
+        });
+        double modelReliability = modelScores.isEmpty() ? 0.0 : context.modelReliability();
+
+        Set<Envelope> candidates = new LinkedHashSet<>(patternScores.keySet());
+        candidates.addAll(modelScores.keySet());
+        double norm = patternReliability + modelReliability + UNCERTAINTY;
+
+        List<EnvelopeSuggestion> suggestions = new ArrayList<>(candidates.size());
+        for (Envelope envelope : candidates) {
+            double patternScore = patternScores.getOrDefault(envelope, 0.0);
+            double modelScore = modelScores.getOrDefault(envelope, 0.0);
+            double confidence = (patternReliability * patternScore + modelReliability * modelScore) / norm;
+            suggestions.add(new EnvelopeSuggestion(envelope, confidence, patternScore, modelScore));
+        }
+        suggestions.sort(Comparator.comparingDouble(EnvelopeSuggestion::confidence).reversed());
+        return suggestions.size() > limit ? suggestions.subList(0, limit) : suggestions;
+    }
+
+    // Unsaved transactions from the dialogs may not have every field filled in yet
+    private TransactionFeatures featuresOf(Transaction transaction) {
+        return new TransactionFeatures(
+            transaction.getDescription(),
+            transaction.getAmount() != null ? transaction.getAmount() : BigDecimal.ZERO,
+            transaction.getDate() != null ? transaction.getDate() : LocalDateTime.now(),
+            null,
+            transaction.getAccount() != null ? transaction.getAccount().getType() : null,
+            transaction.getAccount() != null ? transaction.getAccount().getName() : null
+        );
+    }
+
+    private record SuggestionContext(
+        PatternMatcher matcher,
+        EnvelopeIndex index,
+        UserClassifierModel model,
+        double modelReliability
+    ) {}
+
+    /**
+     * A suggested envelope. {@code confidence} is the fused, calibrated score;
+     * {@code patternScore} and {@code modelScore} are what each source said
+     * on its own.
+     */
+    public record EnvelopeSuggestion(
+        Envelope envelope,
+        double confidence,
+        double patternScore,
+        double modelScore
+    ) {}
+}
@@ -20,6 +20,7 @@ package org.emblow.envelofy.service;
  *
  * @author Nicholas J Emblow
  */
+import org.emblow.envelofy.service.ml.FeatureHashingTokenizer;
 import org.emblow.envelofy.service.ml.TransactionNaiveBayes;
 import org.springframework.stereotype.Service;
 
@@ -34,7 +35,8 @@ public class IntentDetectionService {
     private final TransactionNaiveBayes classifier;
 
     public IntentDetectionService() {
-        this.classifier = new TransactionNaiveBayes();
+        // Bigrams help separate phrasings like "next month" from "this month"
+        this.classifier = new TransactionNaiveBayes(false, new FeatureHashingTokenizer(1 << 12, true));
         trainClassifier();
     }
 
@@ -264,12 +266,22 @@ public class IntentDetectionService {
     }
 
     public String detectIntent(String query) {
+        return classify(query).intent();
+    }
+
+    /**
+     * The most likely intent with its posterior probability, so callers can
+     * fall back to a general answer when the classifier is unsure.
+     */
+    public IntentPrediction classify(String query) {
         TransactionNaiveBayes.TransactionFeatures features = createFeatures(query, "unknown");
         Map<String, Double> predictions = classifier.predict(features);
 
         return predictions.entrySet().stream()
             .max(Map.Entry.comparingByValue())
-            .map(Map.Entry::getKey)
-            .orElse("general");
+            .map(entry -> new IntentPrediction(entry.getKey(), entry.getValue()))
+            .orElse(new IntentPrediction("general", 0.0));
     }
+
+    public record IntentPrediction(String intent, double confidence) {}
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Finds merchant tokens and n-grams that reliably point at one category.
+ * Descriptions are split into runs of letters, so store numbers, dates and
+ * card prefixes fall away, and every 1..n word window becomes a candidate.
+ * <p>
+ * Word windows only shortlist candidates: those seen as a window in at
+ * least {@code minSupport} transactions. A merchant pattern matches any
+ * description that contains it, so "gas" also fires on "VEGAS". Each
+ * shortlisted candidate is therefore scored with that same substring test
+ * over every description. It is accepted when at least {@code minSupport}
+ * of the descriptions containing it, and at least {@code minConfidence} of
+ * them, belong to one category. Accepted candidates are then reduced to a
+ * small set that still explains the same transactions.
+ *
+ * @author Nicholas J Emblow
+ */
+public final class MerchantPatternMiner {
+    private static final int MIN_TOKEN_LENGTH = 3;
+    // Longest run of punctuation/space allowed between the words of an n-gram
+    private static final int MAX_SEPARATOR_LENGTH = 3;
+
+    // Bank statement noise that says nothing about the merchant
+    private static final Set<String> NOISE = Set.of(
+        "pos", "sq", "tst", "debit", "credit", "checkcard", "card", "purchase", "payment",
+        "recurring", "online", "www", "com", "net", "org", "inc", "llc", "ltd", "the", "and"
+    );
+
+    private final int minSupport;
+    private final double minConfidence;
+    private final int maxNgram;
+
+    public MerchantPatternMiner(int minSupport, double minConfidence, int maxNgram) {
+        this.minSupport = minSupport;
+        this.minConfidence = minConfidence;
+        this.maxNgram = maxNgram;
+    }
+
+    public List<MinedPattern> mine(List<Example> examples) {
+        Map<String, LongAdder> windows = new ConcurrentHashMap<>();
+        examples.parallelStream().forEach(example -> {
+            for (String candidate : candidates(example.description())) {
+                windows.computeIfAbsent(candidate, k -> new LongAdder()).increment();
+            }
+        });
+
+        String[] descriptions = examples.stream()
+            .map(example -> example.description() != null ? example.description().toLowerCase() : "")
+            .toArray(String[]::new);
+        List<MinedPattern> accepted = windows.entrySet().parallelStream()
+            .filter(entry -> entry.getValue().sum() >= minSupport)
+            .map(entry -> score(entry.getKey(), examples, descriptions))
+            .filter(Objects::nonNull)
+            .collect(Collectors.toCollection(ArrayList::new));
+
+        return cover(examples, descriptions, accepted);
+    }
+
+    // Support and confidence over every description containing the text, as the matcher will apply it
+    private MinedPattern score(String text, List<Example> examples, String[] descriptions) {
+        Map<Long, Integer> byCategory = new HashMap<>();
+        int total = 0;
+        for (int i = 0; i < descriptions.length; i++) {
+            if (descriptions[i].contains(text)) {
+                byCategory.merge(examples.get(i).categoryId(), 1, Integer::sum);
+                total++;
+            }
+        }
+        Long bestCategory = null;
+        int bestCount = 0;
+        for (Map.Entry<Long, Integer> entry : byCategory.entrySet()) {
+            if (entry.getValue() > bestCount) {
+                bestCount = entry.getValue();
+                bestCategory = entry.getKey();
+            }
+        }
+        double confidence = total == 0 ? 0.0 : (double) bestCount / total;
+        if (bestCount < minSupport || confidence < minConfidence) {
+            return null;
+        }
+        return new MinedPattern(text, bestCategory, bestCount, confidence);
+    }
+
+    /**
+     * Greedy set cover over the accepted candidates: the best supported
+     * come first, and each is kept only while it still explains at least
+     * {@code minSupport} transactions of its category that no kept pattern
+     * explains yet. Synonyms ("shell", "oil", "gas station") and longer
+     * n-grams of a kept word collapse into one pattern.
+     */
+    private List<MinedPattern> cover(List<Example> examples, String[] descriptions, List<MinedPattern> accepted) {
+        accepted.sort(Comparator.comparingInt(MinedPattern::support).reversed()
+            .thenComparingInt(p -> p.text().length())
+            .thenComparing(MinedPattern::text));
+
+        // The transactions of its own category each pattern matches
+        List<int[]> coverage = accepted.parallelStream()
+            .map(pattern -> IntStream.range(0, descriptions.length)
+                .filter(e -> examples.get(e).categoryId().equals(pattern.categoryId())
+                    && descriptions[e].contains(pattern.text()))
+                .toArray())
+            .toList();
+
+        boolean[] explained = new boolean[examples.size()];
+        List<MinedPattern> kept = new ArrayList<>();
+        for (int i = 0; i < accepted.size(); i++) {
+            int fresh = 0;
+            for (int e : coverage.get(i)) {
+                if (!explained[e]) {
+                    fresh++;
+                }
+            }
+            if (fresh >= minSupport) {
+                kept.add(accepted.get(i));
+                for (int e : coverage.get(i)) {
+                    explained[e] = true;
+                }
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Distinct candidate patterns of one description.
+     */
+    Set<String> candidates(String description) {
+        Set<String> result = new HashSet<>();
+        if (description == null) {
+            return result;
+        }
+        String lower = description.toLowerCase();
+
+        // Start and end offsets of each run of letters
+        List<int[]> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean letter = i < lower.length() && Character.isLetter(lower.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                tokens.add(new int[] { start, i });
+                start = -1;
+            }
+        }
+
+        for (int first = 0; first < tokens.size(); first++) {
+            if (isNoise(lower, tokens.get(first))) {
+                continue;
+            }
+            for (int last = first; last < tokens.size() && last - first < maxNgram; last++) {
+                if (last > first && !isSeparator(lower, tokens.get(last - 1)[1], tokens.get(last)[0])) {
+                    break;
+                }
+                if (isNoise(lower, tokens.get(last))) {
+                    continue; // May still be bridged by a longer n-gram
+                }
+                String candidate = lower.substring(tokens.get(first)[0], tokens.get(last)[1]);
+                if (last > first || candidate.length() >= MIN_TOKEN_LENGTH) {
+                    result.add(candidate);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isNoise(String text, int[] token) {
+        return token[1] - token[0] < 2 || NOISE.contains(text.substring(token[0], token[1]));
+    }
+
+    // Digits between words (store numbers, dates) make the n-gram one-off
+    private static boolean isSeparator(String text, int from, int to) {
+        if (to - from > MAX_SEPARATOR_LENGTH) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (Character.isLetterOrDigit(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public record Example(String description, Long categoryId) {}
+
+    public record MinedPattern(String text, Long categoryId, int support, double confidence) {}
+}
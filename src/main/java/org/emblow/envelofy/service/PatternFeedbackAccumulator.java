@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+/**
+ *
+ * @author Nicholas J Emblow
+ */
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Write-behind buffer for pattern feedback. Each "was this suggestion right"
+ * event is appended to a journal and counted in a per-pattern tally instead
+ * of updating the Pattern row inside the caller's transaction. Tallies are
+ * applied in one JDBC batch on a timer or once enough events are pending.
+ * Feedback given inside a transaction is only recorded once it commits.
+ * <p>
+ * Pattern accuracy is a running mean, so any number of events for a pattern
+ * fold into a single UPDATE with the same result as applying them one by one
+ * through {@link org.emblow.envelofy.domain.Pattern#incrementMatch}.
+ * <p>
+ * Crash safety: on flush the journal is sealed under a batch id, and the id
+ * is recorded in the same database transaction as the batch. Sealed journals
+ * still on disk at startup are replayed, and already recorded batch ids are
+ * skipped, so every event is applied exactly once. Journal writes are flushed
+ * to the OS per call, so a process crash loses nothing. A power loss can lose
+ * events written since the last flush.
+ */
+@Service
+public class PatternFeedbackAccumulator {
+    private static final Logger log = LoggerFactory.getLogger(PatternFeedbackAccumulator.class);
+
+    private static final String JOURNAL_FILE = "feedback.journal";
+    private static final String SEALED_PREFIX = "feedback-";
+    private static final String SEALED_SUFFIX = ".sealed";
+
+    private static final String UPDATE_PATTERN =
+        "UPDATE Pattern SET " +
+        "accuracy = (accuracy * matchCount + ?) / (matchCount + ?), " +
+        "confidence = (1.0 - 1.0 / (matchCount + ?)) * ((accuracy * matchCount + ?) / (matchCount + ?)), " +
+        "matchCount = matchCount + ? " +
+        "WHERE id = ?";
+    private static final String BATCH_APPLIED =
+        "SELECT COUNT(*) FROM pattern_feedback_batch WHERE batch_id = ?";
+    private static final String RECORD_BATCH =
+        "INSERT INTO pattern_feedback_batch (batch_id, applied_at) VALUES (?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Path journalDirectory;
+    private final long flushIntervalMillis;
+    private final int flushThreshold;
+
+    // Its own scheduler, so flushing doesn't depend on application-wide @Scheduled support
+    private final ThreadPoolTaskScheduler flusher = new ThreadPoolTaskScheduler();
+
+    // Striped by pattern id through the map's bins and each tally's LongAdders
+    private final Map<Long, Tally> tallies = new ConcurrentHashMap<>();
+    private final LongAdder pendingEvents = new LongAdder();
+
+    // Recording holds the read lock, sealing a batch takes the write lock
+    private final ReentrantReadWriteLock epochLock = new ReentrantReadWriteLock();
+    // A lock rather than a monitor: journal writes block on disk, which would pin a virtual thread
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private BufferedWriter journal;
+    private long batchSequence = 0;
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Deque<Batch> unapplied = new ArrayDeque<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final List<Consumer<Set<Long>>> flushListeners = new CopyOnWriteArrayList<>();
+
+    public PatternFeedbackAccumulator(
+        JdbcTemplate jdbcTemplate,
+        PlatformTransactionManager transactionManager,
+        @Value("${envelofy.patterns.feedback.journal-directory:./data/pattern-feedback}") String journalDirectory,
+        @Value("${envelofy.patterns.feedback.flush-interval-ms:5000}") long flushIntervalMillis,
+        @Value("${envelofy.patterns.feedback.flush-threshold:500}") int flushThreshold
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.journalDirectory = Path.of(journalDirectory);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flushThreshold = flushThreshold;
+        this.flusher.setThreadNamePrefix("pattern-feedback-");
+        this.flusher.setDaemon(true);
+        this.flusher.initialize();
+    }
+
+    /**
+     * Queues journals left behind by a previous run. They are applied by the
+     * first scheduled flush, which only starts once the application is ready
+     * and the schema is guaranteed to be initialized.
+     */
+    @PostConstruct
+    void recover() {
+        try {
+            Files.createDirectories(journalDirectory);
+            Path active = journalDirectory.resolve(JOURNAL_FILE);
+            if (Files.exists(active)) {
+                Files.move(active, sealedPath(nextBatchId()), StandardCopyOption.ATOMIC_MOVE);
+            }
+            try (Stream<Path> files = Files.list(journalDirectory)) {
+                files.filter(p -> p.getFileName().toString().startsWith(SEALED_PREFIX))
+                    .filter(p -> p.getFileName().toString().endsWith(SEALED_SUFFIX))
+                    .sorted()
+                    .forEach(p -> unapplied.add(readBatch(p)));
+            }
+            if (!unapplied.isEmpty()) {
+                log.info("Recovered {} unapplied pattern feedback batches", unapplied.size());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not recover pattern feedback journal: " + e.getMessage());
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startFlushing() {
+        flusher.scheduleWithFixedDelay(this::flush,
+            Instant.now().plusMillis(flushIntervalMillis), Duration.ofMillis(flushIntervalMillis));
+    }
+
+    /**
+     * Records the same verdict for several patterns of one user. Inside a
+     * transaction the verdict is recorded after it commits, so feedback from
+     * a rolled-back change is never applied.
+     */
+    public void record(Long userId, Collection<Long> patternIds, boolean correct) {
+        if (patternIds.isEmpty()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            List<Long> ids = List.copyOf(patternIds);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    journal(userId, ids, correct);
+                }
+            });
+        } else {
+            journal(userId, patternIds, correct);
+        }
+    }
+
+    private void journal(Long userId, Collection<Long> patternIds, boolean correct) {
+        StringBuilder lines = new StringBuilder(patternIds.size() * 16);
+        for (Long patternId : patternIds) {
+            lines.append(userId).append(',').append(patternId).append(',').append(correct ? 1 : 0).append('\n');
+        }
+
+        epochLock.readLock().lock();
+        try {
+            appendToJournal(lines);
+            for (Long patternId : patternIds) {
+                tallies.computeIfAbsent(patternId, id -> new Tally(userId)).add(correct);
+            }
+            pendingEvents.add(patternIds.size());
+        } finally {
+            epochLock.readLock().unlock();
+        }
+
+        if (pendingEvents.sum() >= flushThreshold && flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    public long getPendingEvents() {
+        return pendingEvents.sum();
+    }
+
+    /**
+     * Called with the ids of the users whose patterns changed after each
+     * applied batch, e.g. to drop cached matchers holding old confidences.
+     */
+    public void addFlushListener(Consumer<Set<Long>> listener) {
+        flushListeners.add(listener);
+    }
+
+    public void flush() {
+        if (!flushLock.tryLock()) {
+            return; // Another thread is already flushing
+        }
+        try {
+            Batch sealed = seal();
+            if (sealed != null) {
+                unapplied.add(sealed);
+            }
+            while (!unapplied.isEmpty()) {
+                Batch batch = unapplied.peek();
+                apply(batch);
+                unapplied.poll();
+                Files.deleteIfExists(batch.file());
+
+                Set<Long> users = new HashSet<>();
+                batch.deltas().values().forEach(delta -> users.add(delta.userId()));
+                flushListeners.forEach(listener -> listener.accept(users));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Left queued and on disk, the next flush retries it
+            log.warn("Could not flush pattern feedback, will retry", e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        flusher.shutdown();
+        flush();
+        journalLock.lock();
+        try {
+            closeJournal();
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private void appendToJournal(CharSequence lines) {
+        journalLock.lock();
+        try {
+            try {
+                if (journal == null) {
+                    journal = Files.newBufferedWriter(
+                        journalDirectory.resolve(JOURNAL_FILE),
+                        StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND
+                    );
+                }
+                journal.append(lines);
+                journal.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not record pattern feedback: " + e.getMessage());
+            }
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private Batch seal() throws IOException {
+        epochLock.writeLock().lock();
+        try {
+            if (tallies.isEmpty()) {
+                return null;
+            }
+            Path active = journalDirectory.resolve(JOURNAL_FILE);
+            journalLock.lock();
+            try {
+                closeJournal();
+                try (FileChannel channel = FileChannel.open(active, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            } finally {
+                journalLock.unlock();
+            }
+            String batchId = nextBatchId();
+            Path sealed = sealedPath(batchId);
+            Files.move(active, sealed, StandardCopyOption.ATOMIC_MOVE);
+
+            Map<Long, Delta> deltas = new HashMap<>();
+            tallies.forEach((patternId, tally) -> deltas.put(patternId, tally.toDelta()));
+            tallies.clear();
+            pendingEvents.reset();
+            return new Batch(batchId, sealed, deltas);
+        } finally {
+            epochLock.writeLock().unlock();
+        }
+    }
+
+    private void apply(Batch batch) {
+        transactionTemplate.executeWithoutResult(status -> {
+            Integer applied = jdbcTemplate.queryForObject(BATCH_APPLIED, Integer.class, batch.id());
+            if (applied != null && applied > 0) {
+                return; // Applied before a crash, only the journal was left behind
+            }
+
+            List<Object[]> updates = new ArrayList<>(batch.deltas().size());
+            batch.deltas().forEach((patternId, delta) -> {
+                long total = delta.correct() + delta.incorrect();
+                // Bound as doubles so the divisions are never integer or fixed-scale
+                double correct = delta.correct();
+                double events = total;
+                updates.add(new Object[] {
+                    correct, events,
+                    events, correct, events,
+                    total,
+                    patternId
+                });
+            });
+            jdbcTemplate.batchUpdate(UPDATE_PATTERN, updates);
+            jdbcTemplate.update(RECORD_BATCH, batch.id(), Timestamp.valueOf(LocalDateTime.now()));
+        });
+        log.debug("Applied pattern feedback batch {} for {} patterns", batch.id(), batch.deltas().size());
+    }
+
+    private Batch readBatch(Path file) {
+        Map<Long, Tally> parsed = new HashMap<>();
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            lines.forEach(line -> {
+                String[] parts = line.split(",");
+                if (parts.length != 3) {
+                    return; // Torn last line from a crash mid-write
+                }
+                try {
+                    long userId = Long.parseLong(parts[0]);
+                    long patternId = Long.parseLong(parts[1]);
+                    parsed.computeIfAbsent(patternId, id -> new Tally(userId)).add("1".equals(parts[2]));
+                } catch (NumberFormatException e) {
+                    log.warn("Skipping malformed pattern feedback entry in {}", file);
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read pattern feedback journal: " + e.getMessage());
+        }
+
+        String name = file.getFileName().toString();
+        String batchId = name.substring(SEALED_PREFIX.length(), name.length() - SEALED_SUFFIX.length());
+        Map<Long, Delta> deltas = new HashMap<>();
+        parsed.forEach((patternId, tally) -> deltas.put(patternId, tally.toDelta()));
+        return new Batch(batchId, file, deltas);
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warn("Could not close pattern feedback journal", e);
+            }
+            journal = null;
+        }
+    }
+
+    // Only called while sealing, under the epoch write lock
+    private String nextBatchId() {
+        return String.format("%013d-%06d", System.currentTimeMillis(), batchSequence++);
+    }
+
+    private Path sealedPath(String batchId) {
+        return journalDirectory.resolve(SEALED_PREFIX + batchId + SEALED_SUFFIX);
+    }
+
+    private static final class Tally {
+        private final long userId;
+        private final LongAdder correct = new LongAdder();
+        private final LongAdder incorrect = new LongAdder();
+
+        Tally(long userId) {
+            this.userId = userId;
+        }
+
+        void add(boolean wasCorrect) {
+            (wasCorrect ? correct : incorrect).increment();
+        }
+
+        Delta toDelta() {
+            return new Delta(userId, correct.sum(), incorrect.sum());
+        }
+    }
+
+    private record Delta(long userId, long correct, long incorrect) {}
+
+    private record Batch(String id, Path file, Map<Long, Delta> deltas) {}
+}
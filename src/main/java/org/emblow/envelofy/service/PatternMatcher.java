@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+import org.emblow.envelofy.domain.Pattern;
+import org.emblow.envelofy.domain.Transaction;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Immutable, precompiled form of one user's patterns. It matches the same
+ * transactions as {@link Pattern#appliesTo}, but parses every pattern once:
+ * <ul>
+ *   <li>merchant patterns are merged into an Aho-Corasick automaton, so a
+ *       description is scanned once no matter how many merchants exist</li>
+ *   <li>temporal patterns are bucketed by day of week and day of month</li>
+ *   <li>amount patterns are kept as sorted thresholds and binary searched</li>
+ * </ul>
+ * Patterns that {@code appliesTo} could never match (unparseable values,
+ * unknown operators) are dropped at compile time.
+ *
+ * @author Nicholas J Emblow
+ */
+public final class PatternMatcher {
+    private static final int[] NO_PATTERNS = new int[0];
+    // Same tolerance as Pattern.matchesAmount for '=' patterns
+    private static final double AMOUNT_TOLERANCE = 0.01;
+
+    private final Pattern[] patterns;
+
+    // Aho-Corasick automaton, children stored per state as sorted runs (CSR)
+    private final int[] childStart;
+    private final char[] childChars;
+    private final int[] childTargets;
+    private final int[] failure;
+    // Nearest state on the failure chain (itself included) that ends a pattern, or -1
+    private final int[] outputLink;
+    private final int[] outputStart;
+    private final int[] outputs;
+
+    private final int[][] byDayOfWeek;
+    private final int[][] byDayOfMonth;
+
+    private final double[] greaterThanValues;
+    private final int[] greaterThanPatterns;
+    private final double[] lessThanValues;
+    private final int[] lessThanPatterns;
+    private final double[] equalValues;
+    private final int[] equalPatterns;
+
+    private PatternMatcher(Pattern[] patterns, Builder builder) {
+        this.patterns = patterns;
+        this.childStart = builder.childStart;
+        this.childChars = builder.childChars;
+        this.childTargets = builder.childTargets;
+        this.failure = builder.failure;
+        this.outputLink = builder.outputLink;
+        this.outputStart = builder.outputStart;
+        this.outputs = builder.outputs;
+        this.byDayOfWeek = builder.byDayOfWeek;
+        this.byDayOfMonth = builder.byDayOfMonth;
+        this.greaterThanValues = builder.greaterThan.values;
+        this.greaterThanPatterns = builder.greaterThan.patterns;
+        this.lessThanValues = builder.lessThan.values;
+        this.lessThanPatterns = builder.lessThan.patterns;
+        this.equalValues = builder.equal.values;
+        this.equalPatterns = builder.equal.patterns;
+    }
+
+    public static PatternMatcher compile(Collection<Pattern> source) {
+        Pattern[] patterns = source.toArray(new Pattern[0]);
+        return new PatternMatcher(patterns, new Builder(patterns));
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+    /**
+     * Calls {@code action} once for every pattern that applies to the
+     * transaction. Fields left null (e.g. on an unsaved transaction) simply
+     * match nothing of their pattern type.
+     */
+    public void forEachMatch(Transaction transaction, Consumer<Pattern> action) {
+        BitSet matched = new BitSet(patterns.length);
+        matchMerchants(transaction.getDescription(), matched);
+        matchTiming(transaction.getDate(), matched);
+        matchAmount(transaction.getAmount(), matched);
+        for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+            action.accept(patterns[i]);
+        }
+    }
+
+    public List<Pattern> matches(Transaction transaction) {
+        List<Pattern> result = new ArrayList<>();
+        forEachMatch(transaction, result::add);
+        return result;
+    }
+
+    private void matchMerchants(String description, BitSet matched) {
+        if (description == null || outputs.length == 0) {
+            return;
+        }
+        // Empty merchant patterns sit on the root and match every description
+        for (int k = outputStart[0]; k < outputStart[1]; k++) {
+            matched.set(outputs[k]);
+        }
+        int state = 0;
+        for (int i = 0, n = description.length(); i < n; i++) {
+            char c = Character.toLowerCase(description.charAt(i));
+            int next;
+            while ((next = child(state, c)) < 0 && state != 0) {
+                state = failure[state];
+            }
+            state = Math.max(next, 0);
+            for (int out = outputLink[state]; out > 0; out = outputLink[failure[out]]) {
+                for (int k = outputStart[out]; k < outputStart[out + 1]; k++) {
+                    matched.set(outputs[k]);
+                }
+            }
+        }
+    }
+
+    private int child(int state, char c) {
+        int index = Arrays.binarySearch(childChars, childStart[state], childStart[state + 1], c);
+        return index >= 0 ? childTargets[index] : -1;
+    }
+
+    private void matchTiming(LocalDateTime date, BitSet matched) {
+        if (date == null) {
+            return;
+        }
+        for (int id : byDayOfWeek[date.getDayOfWeek().getValue()]) {
+            matched.set(id);
+        }
+        for (int id : byDayOfMonth[date.getDayOfMonth()]) {
+            matched.set(id);
+        }
+    }
+
+    private void matchAmount(BigDecimal amount, BitSet matched) {
+        if (amount == null) {
+            return;
+        }
+        double value = amount.doubleValue();
+
+        // '>' thresholds strictly below the amount
+        int end = lowerBound(greaterThanValues, value);
+        for (int i = 0; i < end; i++) {
+            matched.set(greaterThanPatterns[i]);
+        }
+        // '<' thresholds strictly above the amount
+        for (int i = upperBound(lessThanValues, value); i < lessThanValues.length; i++) {
+            matched.set(lessThanPatterns[i]);
+        }
+        // '=' values within the tolerance, narrowed by search then checked exactly
+        for (int i = lowerBound(equalValues, value - 2 * AMOUNT_TOLERANCE);
+                i < equalValues.length && equalValues[i] <= value + 2 * AMOUNT_TOLERANCE; i++) {
+            if (Math.abs(value - equalValues[i]) < AMOUNT_TOLERANCE) {
+                matched.set(equalPatterns[i]);
+            }
+        }
+    }
+
+    // First index whose value is >= key
+    private static int lowerBound(double[] values, double key) {
+        int low = 0, high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // First index whose value is > key
+    private static int upperBound(double[] values, double key) {
+        int low = 0, high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static final class Builder {
+        int[] childStart;
+        char[] childChars;
+        int[] childTargets;
+        int[] failure;
+        int[] outputLink;
+        int[] outputStart;
+        int[] outputs;
+
+        final int[][] byDayOfWeek = new int[8][];
+        final int[][] byDayOfMonth = new int[32][];
+
+        final Thresholds greaterThan = new Thresholds();
+        final Thresholds lessThan = new Thresholds();
+        final Thresholds equal = new Thresholds();
+
+        Builder(Pattern[] patterns) {
+            List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+            List<List<Integer>> terminals = new ArrayList<>();
+            trie.add(new TreeMap<>());
+            terminals.add(new ArrayList<>());
+
+            Map<Integer, List<Integer>> dayOfWeek = new HashMap<>();
+            Map<Integer, List<Integer>> dayOfMonth = new HashMap<>();
+
+            for (int id = 0; id < patterns.length; id++) {
+                Pattern pattern = patterns[id];
+                String text = pattern.getPattern();
+                if (text == null || pattern.getType() == null) {
+                    continue;
+                }
+                switch (pattern.getType()) {
+                    case MERCHANT -> addMerchant(trie, terminals, text, id);
+                    case TEMPORAL -> addTiming(dayOfWeek, dayOfMonth, text, id);
+                    case AMOUNT -> addAmount(text, id);
+                }
+            }
+
+            buildAutomaton(trie, terminals);
+            fill(byDayOfWeek, dayOfWeek);
+            fill(byDayOfMonth, dayOfMonth);
+            greaterThan.sort();
+            lessThan.sort();
+            equal.sort();
+        }
+
+        private static void addMerchant(
+            List<TreeMap<Character, Integer>> trie,
+            List<List<Integer>> terminals,
+            String text,
+            int id
+        ) {
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = Character.toLowerCase(text.charAt(i));
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    terminals.add(new ArrayList<>());
+                    trie.get(state).put(c, next);
+                }
+                state = next;
+            }
+            // An empty merchant pattern is contained in every description
+            terminals.get(state).add(id);
+        }
+
+        private static void addTiming(
+            Map<Integer, List<Integer>> dayOfWeek,
+            Map<Integer, List<Integer>> dayOfMonth,
+            String text,
+            int id
+        ) {
+            // Pattern format: DOW:HH or DOM:HH, only the day part is matched
+            String day = text.split(":")[0];
+            try {
+                if (day.startsWith("DOW")) {
+                    int value = Integer.parseInt(day.substring(3));
+                    if (value >= 1 && value <= 7) {
+                        dayOfWeek.computeIfAbsent(value, k -> new ArrayList<>()).add(id);
+                    }
+                } else if (day.startsWith("DOM")) {
+                    int value = Integer.parseInt(day.substring(3));
+                    if (value >= 1 && value <= 31) {
+                        dayOfMonth.computeIfAbsent(value, k -> new ArrayList<>()).add(id);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Never matches, same as Pattern.matchesTiming
+            }
+        }
+
+        private void addAmount(String text, int id) {
+            if (text.isEmpty()) {
+                return;
+            }
+            double value;
+            try {
+                value = Double.parseDouble(text.substring(1));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            switch (text.charAt(0)) {
+                case '>' -> greaterThan.add(value, id);
+                case '<' -> lessThan.add(value, id);
+                case '=' -> equal.add(value, id);
+                default -> { }
+            }
+        }
+
+        private void buildAutomaton(List<TreeMap<Character, Integer>> trie, List<List<Integer>> terminals) {
+            int states = trie.size();
+            childStart = new int[states + 1];
+            for (int s = 0; s < states; s++) {
+                childStart[s + 1] = childStart[s] + trie.get(s).size();
+            }
+            childChars = new char[childStart[states]];
+            childTargets = new int[childStart[states]];
+            for (int s = 0; s < states; s++) {
+                int k = childStart[s];
+                // TreeMap iterates in char order, so each run is sorted for binary search
+                for (Map.Entry<Character, Integer> edge : trie.get(s).entrySet()) {
+                    childChars[k] = edge.getKey();
+                    childTargets[k] = edge.getValue();
+                    k++;
+                }
+            }
+
+            outputStart = new int[states + 1];
+            for (int s = 0; s < states; s++) {
+                outputStart[s + 1] = outputStart[s] + terminals.get(s).size();
+            }
+            outputs = new int[outputStart[states]];
+            for (int s = 0; s < states; s++) {
+                int k = outputStart[s];
+                for (int id : terminals.get(s)) {
+                    outputs[k++] = id;
+                }
+            }
+
+            // Breadth-first so a state's failure target is always finished first
+            failure = new int[states];
+            outputLink = new int[states];
+            outputLink[0] = outputStart[1] > outputStart[0] ? 0 : -1;
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int k = childStart[0]; k < childStart[1]; k++) {
+                int child = childTargets[k];
+                failure[child] = 0;
+                outputLink[child] = hasOutput(child) ? child : outputLink[0];
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (int k = childStart[state]; k < childStart[state + 1]; k++) {
+                    char c = childChars[k];
+                    int child = childTargets[k];
+                    int f = failure[state];
+                    int next;
+                    while ((next = childOf(f, c)) < 0 && f != 0) {
+                        f = failure[f];
+                    }
+                    failure[child] = Math.max(next, 0);
+                    outputLink[child] = hasOutput(child) ? child : outputLink[failure[child]];
+                    queue.add(child);
+                }
+            }
+        }
+
+        private boolean hasOutput(int state) {
+            return outputStart[state + 1] > outputStart[state];
+        }
+
+        private int childOf(int state, char c) {
+            int index = Arrays.binarySearch(childChars, childStart[state], childStart[state + 1], c);
+            return index >= 0 ? childTargets[index] : -1;
+        }
+
+        private static void fill(int[][] table, Map<Integer, List<Integer>> source) {
+            for (int i = 0; i < table.length; i++) {
+                List<Integer> ids = source.get(i);
+                table[i] = ids == null
+                    ? NO_PATTERNS
+                    : ids.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+    }
+
+    private static final class Thresholds {
+        double[] values = new double[0];
+        int[] patterns = NO_PATTERNS;
+        private final List<double[]> pending = new ArrayList<>();
+
+        void add(double value, int id) {
+            pending.add(new double[] { value, id });
+        }
+
+        void sort() {
+            pending.sort((a, b) -> Double.compare(a[0], b[0]));
+            values = new double[pending.size()];
+            patterns = new int[pending.size()];
+            for (int i = 0; i < pending.size(); i++) {
+                values[i] = pending.get(i)[0];
+                patterns[i] = (int) pending.get(i)[1];
+            }
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+/**
+ *
+ * @author Nicholas J Emblow
+ */
+import org.emblow.envelofy.domain.Category;
+import org.emblow.envelofy.domain.Envelope;
+import org.emblow.envelofy.domain.Pattern;
+import org.emblow.envelofy.domain.Pattern.PatternType;
+import org.emblow.envelofy.domain.Transaction;
+import org.emblow.envelofy.domain.User;
+import org.emblow.envelofy.repository.CategoryRepository;
+import org.emblow.envelofy.repository.PatternRepository;
+import org.emblow.envelofy.repository.TransactionRepository;
+import org.emblow.envelofy.repository.UserRepository;
+import org.emblow.envelofy.service.EnvelopeIndexService.EnvelopeIndex;
+import org.emblow.envelofy.service.MerchantPatternMiner.Example;
+import org.emblow.envelofy.service.MerchantPatternMiner.MinedPattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.support.CronTrigger;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Background job that turns each user's history into compact merchant
+ * patterns. createPatternsFromTransaction stores one full description and
+ * one exact amount per transaction; this job mines the merchant words that
+ * actually predict a category, adds them as patterns, and removes the
+ * one-off rows they make redundant.
+ */
+@Service
+public class PatternMiningService {
+    private static final Logger log = LoggerFactory.getLogger(PatternMiningService.class);
+    // Same tolerance as Pattern.matchesAmount for '=' patterns
+    private static final double AMOUNT_TOLERANCE = 0.01;
+
+    private final UserRepository userRepository;
+    private final TransactionRepository transactionRepository;
+    private final PatternRepository patternRepository;
+    private final CategoryRepository categoryRepository;
+    private final PatternService patternService;
+    private final EnvelopeIndexService envelopeIndexService;
+    private final TransactionTemplate transactionTemplate;
+    private final MerchantPatternMiner miner;
+    private final String cron;
+
+    // Its own scheduler, so mining doesn't depend on application-wide @Scheduled support
+    private final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+
+    public PatternMiningService(
+        UserRepository userRepository,
+        TransactionRepository transactionRepository,
+        PatternRepository patternRepository,
+        CategoryRepository categoryRepository,
+        PatternService patternService,
+        EnvelopeIndexService envelopeIndexService,
+        PlatformTransactionManager transactionManager,
+        @Value("${envelofy.patterns.mining.cron:0 30 3 * * *}") String cron,
+        @Value("${envelofy.patterns.mining.min-support:3}") int minSupport,
+        @Value("${envelofy.patterns.mining.min-confidence:0.9}") double minConfidence,
+        @Value("${envelofy.patterns.mining.max-ngram:3}") int maxNgram
+    ) {
+        this.userRepository = userRepository;
+        this.transactionRepository = transactionRepository;
+        this.patternRepository = patternRepository;
+        this.categoryRepository = categoryRepository;
+        this.patternService = patternService;
+        this.envelopeIndexService = envelopeIndexService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.miner = new MerchantPatternMiner(minSupport, minConfidence, maxNgram);
+        this.cron = cron;
+        this.scheduler.setThreadNamePrefix("pattern-miner-");
+        this.scheduler.setDaemon(true);
+        this.scheduler.initialize();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleMining() {
+        scheduler.schedule(this::mineAllUsers, new CronTrigger(cron));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    public void mineAllUsers() {
+        for (User user : userRepository.findAll()) {
+            try {
+                mineForUser(user);
+            } catch (Exception e) {
+                // One user's failure shouldn't stop the others
+                log.warn("Pattern mining failed for user {}", user.getId(), e);
+            }
+        }
+    }
+
+    public MiningResult mineForUser(User user) {
+        try {
+            MiningResult result = transactionTemplate.execute(status -> mine(user));
+            patternService.invalidateMatcher(user.getId());
+            log.info("Mined patterns for user {}: {} transactions, {} created, {} removed",
+                user.getId(), result.transactions(), result.created(), result.removed());
+            return result;
+        } catch (Exception e) {
+            log.error("Error mining patterns", e);
+            throw new RuntimeException("Could not mine patterns: " + e.getMessage());
+        }
+    }
+
+    private MiningResult mine(User user) {
+        List<Transaction> history = transactionRepository.findByEnvelope_Owner(user);
+        Map<Long, Category> byEnvelope = categoriesByEnvelope(user);
+        Map<Long, Category> categories = new HashMap<>();
+        List<Example> examples = new ArrayList<>(history.size());
+        for (Transaction transaction : history) {
+            Category category = byEnvelope.get(transaction.getEnvelope().getId());
+            if (category != null && transaction.getDescription() != null) {
+                categories.putIfAbsent(category.getId(), category);
+                examples.add(new Example(transaction.getDescription(), category.getId()));
+            }
+        }
+        if (examples.isEmpty()) {
+            return new MiningResult(history.size(), 0, 0, 0);
+        }
+
+        List<MinedPattern> mined = miner.mine(examples);
+        List<Pattern> existing = patternRepository.findByUserId(user.getId());
+
+        Map<String, Pattern> existingMerchants = new HashMap<>();
+        existing.stream()
+            .filter(p -> p.getType() == PatternType.MERCHANT)
+            .forEach(p -> existingMerchants.putIfAbsent(p.getPattern().toLowerCase(), p));
+
+        // The row that carries each mined pattern's statistics, new or already stored
+        Map<String, Pattern> carriers = new HashMap<>();
+        List<Pattern> created = new ArrayList<>();
+        for (MinedPattern candidate : mined) {
+            Pattern stored = existingMerchants.get(candidate.text());
+            if (stored != null) {
+                carriers.put(candidate.text(), stored);
+                continue;
+            }
+            Pattern pattern = new Pattern(candidate.text(), PatternType.MERCHANT, categories.get(candidate.categoryId()));
+            // Seed the statistics incrementMatch would have built from this history
+            pattern.setMatchCount(candidate.support());
+            pattern.setAccuracy(candidate.confidence());
+            pattern.setConfidence((1.0 - 1.0 / candidate.support()) * candidate.confidence());
+            created.add(pattern);
+            carriers.put(candidate.text(), pattern);
+        }
+
+        Set<Pattern> folded = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Pattern> redundant = findRedundant(existing, mined, history, carriers, folded);
+
+        List<Pattern> changed = new ArrayList<>(created);
+        folded.stream().filter(p -> p.getId() != null).forEach(changed::add);
+        patternRepository.saveAll(changed);
+        patternRepository.deleteAll(redundant);
+        return new MiningResult(history.size(), mined.size(), created.size(), redundant.size());
+    }
+
+    /**
+     * The category each envelope is scored under, resolved through the same
+     * index suggestions use to carry category scores over to envelopes. The
+     * envelope side of the link is never set, so it can't be read directly.
+     */
+    private Map<Long, Category> categoriesByEnvelope(User user) {
+        EnvelopeIndex index = envelopeIndexService.getIndex(user);
+        Map<Long, Category> byEnvelope = new HashMap<>();
+        for (Category category : categoryRepository.findByOwner(user)) {
+            Envelope envelope = index.forCategory(category);
+            if (envelope != null) {
+                byEnvelope.putIfAbsent(envelope.getId(), category);
+            }
+        }
+        return byEnvelope;
+    }
+
+    /**
+     * One-off rows a mined pattern makes redundant: merchant patterns that
+     * contain a mined pattern of the same category (the mined one matches
+     * every description they match), and exact-amount patterns that never
+     * matched again and fit at most one transaction in the history. A
+     * removed merchant row's feedback is folded into the pattern covering
+     * it, which is added to {@code folded}.
+     */
+    private List<Pattern> findRedundant(
+        List<Pattern> existing,
+        List<MinedPattern> mined,
+        List<Transaction> history,
+        Map<String, Pattern> carriers,
+        Set<Pattern> folded
+    ) {
+        Set<String> minedTexts = new HashSet<>();
+        mined.forEach(m -> minedTexts.add(m.text()));
+
+        double[] amounts = history.stream()
+            .filter(t -> t.getAmount() != null)
+            .mapToDouble(t -> t.getAmount().doubleValue())
+            .sorted()
+            .toArray();
+
+        List<Pattern> redundant = new ArrayList<>();
+        for (Pattern pattern : existing) {
+            String text = pattern.getPattern();
+            if (pattern.getType() == PatternType.MERCHANT) {
+                String lower = text.toLowerCase();
+                if (minedTexts.contains(lower)) {
+                    continue;
+                }
+                MinedPattern covering = mined.stream()
+                    .filter(m -> m.categoryId().equals(pattern.getCategory().getId()) && lower.contains(m.text()))
+                    .findFirst()
+                    .orElse(null);
+                if (covering != null) {
+                    redundant.add(pattern);
+                    Pattern carrier = carriers.get(covering.text());
+                    if (fold(pattern, carrier)) {
+                        folded.add(carrier);
+                    }
+                }
+            } else if (pattern.getType() == PatternType.AMOUNT
+                    && text.startsWith("=")
+                    && pattern.getMatchCount() == 0
+                    && countAmountMatches(amounts, text) <= 1) {
+                redundant.add(pattern);
+            }
+        }
+        return redundant;
+    }
+
+    /**
+     * Adds a removed row's matches to the pattern replacing it, with the
+     * running-mean accuracy and confidence incrementMatch would have
+     * reached had the feedback gone to that pattern all along.
+     */
+    private static boolean fold(Pattern from, Pattern into) {
+        if (into == null || from.getMatchCount() == 0
+                || !into.getCategory().getId().equals(from.getCategory().getId())) {
+            return false;
+        }
+        int matches = into.getMatchCount() + from.getMatchCount();
+        double accuracy = (into.getAccuracy() * into.getMatchCount()
+            + from.getAccuracy() * from.getMatchCount()) / matches;
+        into.setMatchCount(matches);
+        into.setAccuracy(accuracy);
+        into.setConfidence((1.0 - 1.0 / matches) * accuracy);
+        return true;
+    }
+
+    private static int countAmountMatches(double[] sortedAmounts, String pattern) {
+        double value;
+        try {
+            value = Double.parseDouble(pattern.substring(1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        int from = Arrays.binarySearch(sortedAmounts, value - 2 * AMOUNT_TOLERANCE);
+        int count = 0;
+        for (int i = from >= 0 ? from : -from - 1;
+                i < sortedAmounts.length && sortedAmounts[i] <= value + 2 * AMOUNT_TOLERANCE; i++) {
+            if (Math.abs(sortedAmounts[i] - value) < AMOUNT_TOLERANCE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public record MiningResult(int transactions, int mined, int created, int removed) {}
+}
@@ -27,17 +27,25 @@ import org.emblow.envelofy.domain.Transaction;
 import org.emblow.envelofy.domain.Envelope;
 import org.emblow.envelofy.domain.User;
 import org.emblow.envelofy.repository.PatternRepository;
+import org.emblow.envelofy.service.EnvelopeIndexService.EnvelopeIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 @Service
@@ -48,18 +56,27 @@ public class PatternService {
     private final PatternRepository patternRepository;
     private final CategoryService categoryService;
     private final SecurityService securityService;
-    private final EnvelopeService envelopeService;
+    private final EnvelopeIndexService envelopeIndexService;
+    private final PatternFeedbackAccumulator feedbackAccumulator;
+
+    // Compiled patterns per user id, rebuilt lazily after invalidation
+    private final Map<Long, PatternMatcher> matchers = new ConcurrentHashMap<>();
 
     public PatternService(
         PatternRepository patternRepository,
         CategoryService categoryService,
         SecurityService securityService,
-        EnvelopeService envelopeService  // Add this parameter
+        EnvelopeIndexService envelopeIndexService,
+        PatternFeedbackAccumulator feedbackAccumulator
     ) {
         this.patternRepository = patternRepository;
         this.categoryService = categoryService;
         this.securityService = securityService;
-        this.envelopeService = envelopeService;  // Add this assignment
+        this.envelopeIndexService = envelopeIndexService;
+        this.feedbackAccumulator = feedbackAccumulator;
+
+        // Applied feedback changes confidences held by the compiled patterns
+        feedbackAccumulator.addFlushListener(userIds -> userIds.forEach(matchers::remove));
     }
 
 
@@ -76,7 +93,9 @@ public class PatternService {
             }
             
             Pattern newPattern = new Pattern(pattern, type, category);
-            return patternRepository.save(newPattern);
+            Pattern saved = patternRepository.save(newPattern);
+            invalidateMatcher(category.getOwner().getId());
+            return saved;
             
         } catch (IllegalArgumentException e) {
             log.error("Error creating pattern", e);
@@ -94,6 +113,7 @@ public class PatternService {
             categoryService.validateOwnership(pattern.getCategory().getId());
             
             patternRepository.delete(pattern);
+            invalidateMatcher(pattern.getCategory().getOwner().getId());
             
         } catch (Exception e) {
             log.error("Error deleting pattern", e);
@@ -101,76 +121,121 @@ public class PatternService {
         }
     }
 
- public Map<Envelope, Double> suggestEnvelopes(Transaction transaction) {
-    try {
+    public Map<Envelope, Double> suggestEnvelopes(Transaction transaction) {
+        try {
+            // Track category scores first since patterns don't link directly to envelopes
+            Map<Category, Double> categoryScores = scoreCategories(transaction, getMatcher());
+
+            // Normalize category scores
+            double total = categoryScores.values().stream()
+                .mapToDouble(Double::doubleValue)
+                .sum();
+            if (total <= 0) {
+                return new HashMap<>();
+            }
+            categoryScores.replaceAll((category, score) -> score / total);
+
+            return mapToEnvelopes(categoryScores, envelopeIndexService.getIndex());
+
+        } catch (Exception e) {
+            log.error("Error suggesting envelopes", e);
+            throw new RuntimeException("Could not suggest envelopes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * All of the current user's patterns, compiled once and reused until a
+     * pattern is created or deleted, or feedback for it has been applied.
+     */
+    public PatternMatcher getMatcher() {
         User currentUser = securityService.getCurrentUser();
-        Map<Envelope, Double> suggestions = new HashMap<>();
-        
-        // Get confident patterns for current user
-        List<Pattern> patterns = patternRepository.findConfidentPatterns(
-            currentUser.getId(), 
-            MIN_CONFIDENCE
-        );
-        
-        // Track category scores first since patterns don't link directly to envelopes
+        return matchers.computeIfAbsent(currentUser.getId(), userId ->
+            PatternMatcher.compile(patternRepository.findByUserId(userId)));
+    }
+
+    /**
+     * Sums the confidence of every confident pattern that applies to the
+     * transaction, per category. Scores are left unnormalized so callers can
+     * tell a single weak match from several strong ones.
+     */
+    public Map<Category, Double> scoreCategories(Transaction transaction, PatternMatcher matcher) {
         Map<Category, Double> categoryScores = new HashMap<>();
-        
-        // Match patterns against transaction
-        for (Pattern pattern : patterns) {
-            if (pattern.appliesTo(transaction)) {
-                Category category = pattern.getCategory();
-                categoryScores.merge(category, pattern.getConfidence(), Double::sum);
+        matcher.forEachMatch(transaction, pattern -> {
+            Double confidence = pattern.getConfidence();
+            if (confidence != null && confidence >= MIN_CONFIDENCE) {
+                categoryScores.merge(pattern.getCategory(), confidence, Double::sum);
             }
+        });
+        return categoryScores;
+    }
+
+    /**
+     * Drops the user's compiled patterns. Inside a transaction this happens
+     * again after commit, so a concurrent lookup can't re-cache the old rows.
+     */
+    public void invalidateMatcher(Long userId) {
+        matchers.remove(userId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    matchers.remove(userId);
+                }
+            });
         }
-        
-        // Normalize category scores
-        double total = categoryScores.values().stream()
-            .mapToDouble(Double::doubleValue)
-            .sum();
-            
-        if (total > 0) {
-            categoryScores.forEach((category, score) -> 
-                categoryScores.put(category, score / total));
-                
-            // Find envelopes with matching categories and apply the scores
-            List<Envelope> userEnvelopes = envelopeService.getAllEnvelopes();  // Need to inject EnvelopeService
-            for (Envelope envelope : userEnvelopes) {
-                // Match envelopes to categories based on names as a simple approach
-                categoryScores.entrySet().stream()
-                    .filter(entry -> envelope.getName().toLowerCase()
-                        .contains(entry.getKey().getName().toLowerCase()))
-                    .findFirst()
-                    .ifPresent(entry -> suggestions.put(envelope, entry.getValue()));
+    }
+
+    /**
+     * Carries category scores over to the envelopes they belong to.
+     */
+    public Map<Envelope, Double> mapToEnvelopes(Map<Category, Double> categoryScores, EnvelopeIndex index) {
+        Map<Envelope, Double> suggestions = new HashMap<>();
+        categoryScores.forEach((category, score) -> {
+            Envelope envelope = index.forCategory(category);
+            if (envelope != null) {
+                suggestions.merge(envelope, score, Double::sum);
             }
-        }
-        
+        });
         return suggestions;
-        
-    } catch (Exception e) {
-        log.error("Error suggesting envelopes", e);
-        throw new RuntimeException("Could not suggest envelopes: " + e.getMessage());
     }
-}
 
     @Transactional
     public void learnFromTransaction(Transaction transaction, boolean wasCorrect) {
+        learnFromTransactions(List.of(transaction), wasCorrect);
+    }
+
+    /**
+     * Records the same verdict for many transactions, e.g. after reviewing an
+     * import. Match statistics are queued in the {@link PatternFeedbackAccumulator}
+     * and written in batches rather than updated row by row here. Patterns
+     * learned from unmatched transactions are created once per batch, and
+     * only if the user doesn't already have them.
+     */
+    @Transactional
+    public void learnFromTransactions(Collection<Transaction> transactions, boolean wasCorrect) {
         try {
             User currentUser = securityService.getCurrentUser();
-            List<Pattern> patterns = patternRepository.findByUserId(currentUser.getId());
+            PatternMatcher matcher = getMatcher();
             
-            boolean patternFound = false;
-            for (Pattern pattern : patterns) {
-                if (pattern.appliesTo(transaction)) {
-                    pattern.incrementMatch(wasCorrect);
-                    patternFound = true;
+            List<Long> matchedPatternIds = new ArrayList<>();
+            // The user's patterns plus those created in this batch; loaded on first use
+            Set<PatternKey> known = null;
+            for (Transaction transaction : transactions) {
+                List<Pattern> matched = matcher.matches(transaction);
+                matched.forEach(pattern -> matchedPatternIds.add(pattern.getId()));
+                
+                // If no patterns matched and the transaction was correct,
+                // create new patterns based on the transaction
+                if (matched.isEmpty() && wasCorrect) {
+                    if (known == null) {
+                        known = patternRepository.findByUserId(currentUser.getId()).stream()
+                            .map(PatternKey::of)
+                            .collect(Collectors.toCollection(HashSet::new));
+                    }
+                    createPatternsFromTransaction(transaction, known);
                 }
             }
-            
-            // If no patterns matched and the transaction was correct,
-            // create new patterns based on the transaction
-            if (!patternFound && wasCorrect) {
-                createPatternsFromTransaction(transaction);
-            }
+            feedbackAccumulator.record(currentUser.getId(), matchedPatternIds, wasCorrect);
             
         } catch (Exception e) {
             log.error("Error learning from transaction", e);
@@ -178,7 +243,7 @@ public class PatternService {
         }
     }
 
-    private void createPatternsFromTransaction(Transaction transaction) {
+    private void createPatternsFromTransaction(Transaction transaction, Set<PatternKey> known) {
         try {
             Category category = transaction.getEnvelope().getCategory();
             if (category == null) {
@@ -186,12 +251,10 @@ public class PatternService {
                 return;
             }
             
+            List<Pattern> created = new ArrayList<>();
             // Create merchant pattern
-            createPattern(
-                transaction.getDescription().toLowerCase(),
-                PatternType.MERCHANT,
-                category.getId()
-            );
+            createPatternIfNew(transaction.getDescription().toLowerCase(), PatternType.MERCHANT, category,
+                known, created);
             
             // Create temporal pattern
             LocalDateTime date = transaction.getDate();
@@ -203,18 +266,35 @@ public class PatternService {
                 // Weekly pattern
                 temporalPattern = "DOW" + date.getDayOfWeek().getValue() + ":" + date.getHour();
             }
-            createPattern(temporalPattern, PatternType.TEMPORAL, category.getId());
+            createPatternIfNew(temporalPattern, PatternType.TEMPORAL, category, known, created);
             
             // Create amount pattern
             String amountPattern = "=" + transaction.getAmount().toString();
-            createPattern(amountPattern, PatternType.AMOUNT, category.getId());
+            createPatternIfNew(amountPattern, PatternType.AMOUNT, category, known, created);
             
+            if (!created.isEmpty()) {
+                patternRepository.saveAll(created);
+                invalidateMatcher(category.getOwner().getId());
+            }
         } catch (Exception e) {
             log.error("Error creating patterns from transaction", e);
             // Don't throw - this is a best-effort pattern creation
         }
     }
 
+    private static void createPatternIfNew(String text, PatternType type, Category category,
+                                           Set<PatternKey> known, List<Pattern> created) {
+        if (known.add(new PatternKey(type, text, category.getId()))) {
+            created.add(new Pattern(text, type, category));
+        }
+    }
+
+    private record PatternKey(PatternType type, String text, Long categoryId) {
+        static PatternKey of(Pattern pattern) {
+            return new PatternKey(pattern.getType(), pattern.getPattern(), pattern.getCategory().getId());
+        }
+    }
+
     public List<Pattern> getPatternsByCategory(Long categoryId) {
         try {
             // Validate category ownership
@@ -83,6 +83,14 @@ public class SettingService {
             Setting.SettingCategory.LLM,
             "Type of LLM service to use"
         );
+
+        saveSettingIfNotExists(
+            "llm.service.fallback",
+            environment.getProperty("llm.service.fallback", ""),
+            Setting.SettingType.STRING,
+            Setting.SettingCategory.LLM,
+            "LLM services to hedge to when the primary is slow or failing"
+        );
         
         saveSettingIfNotExists(
             "openai.api.key",
@@ -35,6 +35,7 @@ import java.util.Map;
 import org.emblow.envelofy.domain.User;
 import org.emblow.envelofy.exception.BusinessException;
 import org.emblow.envelofy.exception.ValidationException;
+import org.emblow.envelofy.service.DataVersionService.DataDomain;
 
 // Update TransactionService.java
 @Service
@@ -44,19 +45,22 @@ public class TransactionService {
     private final AccountRepository accountRepository;
     private final SecurityService securityService;
     private final PatternService patternService;
+    private final DataVersionService dataVersionService;
 
     public TransactionService(
         TransactionRepository transactionRepository,
         EnvelopeRepository envelopeRepository,
         AccountRepository accountRepository,
         SecurityService securityService,
-        PatternService patternService
+        PatternService patternService,
+        DataVersionService dataVersionService
     ) {
         this.transactionRepository = transactionRepository;
         this.envelopeRepository = envelopeRepository;
         this.accountRepository = accountRepository;
         this.securityService = securityService;
         this.patternService = patternService;
+        this.dataVersionService = dataVersionService;
     }
 
     public List<Transaction> getRecentTransactions(LocalDateTime start, LocalDateTime end) {
@@ -147,6 +151,7 @@ public class TransactionService {
         envelopeRepository.save(envelope);
         accountRepository.save(account);
         Transaction saved = transactionRepository.save(transaction);
+        dataVersionService.bump(currentUser.getId(), DataDomain.TRANSACTIONS);
 
         updatePatternLearning(saved);
 
@@ -235,6 +240,7 @@ public class TransactionService {
         }
 
         Transaction updated = transactionRepository.save(transaction);
+        dataVersionService.bump(currentUser.getId(), DataDomain.TRANSACTIONS);
 
         if (!oldEnvelope.getId().equals(newEnvelope.getId())) {
             updatePatternLearning(updated);
@@ -269,6 +275,7 @@ public class TransactionService {
         envelopeRepository.save(envelope);
         accountRepository.save(account);
         transactionRepository.delete(transaction);
+        dataVersionService.bump(envelope.getOwner().getId(), DataDomain.TRANSACTIONS);
     }
 
     private void updatePatternLearning(Transaction transaction) {
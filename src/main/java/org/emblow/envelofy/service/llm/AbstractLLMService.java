@@ -16,7 +16,11 @@
  */
 package org.emblow.envelofy.service.llm;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
 import org.emblow.envelofy.domain.Envelope;
 import org.emblow.envelofy.domain.Transaction;
 import org.emblow.envelofy.service.EnvelopeService;
@@ -27,18 +31,30 @@ import org.emblow.envelofy.service.ml.AdvancedMLService;
 import org.emblow.envelofy.service.ml.SpendingInsight;
 import org.emblow.envelofy.service.ml.SpendingInsightService;
 import org.springframework.web.client.RestTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import org.emblow.envelofy.domain.TransactionType;
 
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
-import org.emblow.envelofy.domain.Account;
 import org.emblow.envelofy.service.AccountService;
 import org.emblow.envelofy.service.ml.SpendingInsightType;
+import org.emblow.envelofy.service.IntentDetectionService.IntentPrediction;
+import org.emblow.envelofy.service.llm.FinancialContextCache.ContextSection;
+import org.emblow.envelofy.service.llm.TokenCountingService.PromptBudget;
 
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutor;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.context.ReactiveSecurityContextHolder;
@@ -48,6 +64,21 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 public abstract class AbstractLLMService implements LLMService {
+    private static final Logger log = LoggerFactory.getLogger(AbstractLLMService.class);
+    private static final Duration FUNCTION_TIMEOUT = Duration.ofSeconds(10);
+    private static final DateTimeFormatter FUNCTION_DATE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+    private static final double MIN_INTENT_CONFIDENCE = 0.6;
+    // Sections kept first when the context has to be cut to fit the window
+    private static final List<ContextSection> SECTION_PRIORITY = List.of(
+        ContextSection.OVERALL_STATUS, ContextSection.ENVELOPES, ContextSection.CATEGORY_SPENDING,
+        ContextSection.ACCOUNTS, ContextSection.RECENT_TRANSACTIONS, ContextSection.INSIGHTS
+    );
+    // Sections each intent needs; general questions get everything
+    private static final Map<String, Set<ContextSection>> INTENT_SECTIONS = Map.of(
+        "budget", EnumSet.of(ContextSection.ENVELOPES, ContextSection.OVERALL_STATUS, ContextSection.CATEGORY_SPENDING),
+        "spending", EnumSet.of(ContextSection.ENVELOPES, ContextSection.RECENT_TRANSACTIONS, ContextSection.CATEGORY_SPENDING),
+        "prediction", EnumSet.of(ContextSection.INSIGHTS, ContextSection.OVERALL_STATUS, ContextSection.CATEGORY_SPENDING)
+    );
 
     // Common dependencies
     protected final TransactionService transactionService;
@@ -57,6 +88,12 @@ public abstract class AbstractLLMService implements LLMService {
     protected final AdvancedMLService advancedMLService;
     protected final IntentDetectionService intentDetectionService;
     protected final AccountService accountService;
+    protected final FinancialContextCache contextCache;
+    protected final TokenCountingService tokenCounter;
+    protected final ResponseCache responseCache;
+    protected final ConversationSummaryService conversationSummaries;
+    // Everything that blocks on the database runs here, off the reactive pipeline
+    protected final BlockingWorkScheduler blockingWork;
     
     // Common utilities
     protected final RestTemplate restTemplate;
@@ -69,7 +106,12 @@ public abstract class AbstractLLMService implements LLMService {
             PatternService patternService,
             AdvancedMLService advancedMLService,
             IntentDetectionService intentDetectionService,
-            AccountService accountService
+            AccountService accountService,
+            FinancialContextCache contextCache,
+            TokenCountingService tokenCounter,
+            ResponseCache responseCache,
+            ConversationSummaryService conversationSummaries,
+            BlockingWorkScheduler blockingWork
     ) {
         this.transactionService = transactionService;
         this.envelopeService = envelopeService;
@@ -78,129 +120,335 @@ public abstract class AbstractLLMService implements LLMService {
         this.advancedMLService = advancedMLService;
         this.intentDetectionService = intentDetectionService;
         this.accountService = accountService;
+        this.contextCache = contextCache;
+        this.tokenCounter = tokenCounter;
+        this.responseCache = responseCache;
+        this.conversationSummaries = conversationSummaries;
+        this.blockingWork = blockingWork;
         this.restTemplate = new RestTemplate();
-        this.objectMapper = new ObjectMapper();
+        // Reads model output, so it forgives the slips models make in otherwise valid JSON
+        this.objectMapper = JsonMapper.builder()
+            .enable(JsonReadFeature.ALLOW_TRAILING_COMMA,
+                    JsonReadFeature.ALLOW_SINGLE_QUOTES,
+                    JsonReadFeature.ALLOW_UNQUOTED_FIELD_NAMES,
+                    JsonReadFeature.ALLOW_UNESCAPED_CONTROL_CHARS)
+            .build();
     }
 
+    /**
+     * Builds the context on the {@link BlockingWorkScheduler}, then calls
+     * the provider and resolves function calls without blocking.
+     */
     @Override
-    public String processUserQuery(String userQuery) {
-        String context = buildFinancialContext();
-        String prompt = buildPrompt(userQuery, context);
-        String rawResponse = callLLM(prompt);
-        return processFunctionCalls(rawResponse);
+    public Mono<String> processUserQueryAsync(String userQuery) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return blockingWork.call(authentication, () -> buildFinancialContext(userQuery))
+            .flatMap(context -> BlockingWorkScheduler.withAuthentication(authentication,
+                () -> callLLM(buildPrompt(userQuery, context))))
+            .flatMap(rawResponse -> processFunctionCalls(rawResponse, authentication))
+            .contextWrite(ReactiveSecurityContextHolder.withAuthentication(authentication));
     }
-/************* getting issues with streaming processing function calls
+
+    /**
+     * Streams the response as it is generated. Tokens run through a
+     * {@link ResponseStreamParser}, so text reaches the caller immediately
+     * and each chart or table function call runs as soon as its object is
+     * complete, while the model is still writing the rest.
+     * <p>
+     * Within a chat session the prompt carries the conversation so far, as
+     * kept by the {@link ConversationSummaryService}.
+     * <p>
+     * A question answered before on unchanged data is replayed from the
+     * {@link ResponseCache}; a new answer is cached once it completes with
+     * all of its function calls resolved. Follow-up questions depend on
+     * their conversation, so they are neither replayed nor cached.
+     * <p>
+     * Nothing here blocks the subscriber: history, cache lookup and context
+     * are read in one task on the {@link BlockingWorkScheduler}, and the
+     * provider's tokens arrive asynchronously.
+     */
     @Override
-    public Flux<String> streamUserQuery(String userQuery) {
+    public Flux<ResponseEvent> streamUserQuery(String userQuery, Long conversationId) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        if (supportsStreaming()) {
-            return doStreamUserQuery(userQuery)
-                    .contextWrite(ReactiveSecurityContextHolder.withAuthentication(authentication));
+        return blockingWork.call(authentication, () -> prepare(userQuery, conversationId))
+            .flatMapMany(prepared -> prepared.lookup() != null && prepared.lookup().hit()
+                ? Flux.fromIterable(prepared.lookup().events())
+                : answer(userQuery, conversationId, prepared, authentication))
+            .contextWrite(ReactiveSecurityContextHolder.withAuthentication(authentication));
+    }
+
+    private PreparedQuery prepare(String userQuery, Long conversationId) {
+        String history = conversationSummaries.historyFor(conversationId, userQuery, providerType());
+        ResponseCache.Lookup lookup = history.isEmpty()
+            ? responseCache.lookup(getClass().getSimpleName(), modelId(), userQuery)
+            : null;
+        if (lookup != null && lookup.hit()) {
+            return new PreparedQuery(history, lookup, null);
         }
-        return Flux.just(processUserQuery(userQuery))
-                .contextWrite(ReactiveSecurityContextHolder.withAuthentication(authentication));
+        return new PreparedQuery(history, lookup, buildFinancialContext(userQuery));
     }
-***********/
-    @Override
-    public Flux<String> streamUserQuery(String userQuery) {
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        // Just return the complete response as a single element flux
-        return Flux.just(processUserQuery(userQuery))
-                .contextWrite(ReactiveSecurityContextHolder.withAuthentication(authentication));
+
+    private Flux<ResponseEvent> answer(String userQuery, Long conversationId, PreparedQuery prepared,
+                                       Authentication authentication) {
+        Flux<String> tokens = BlockingWorkScheduler.withAuthentication(authentication, () -> supportsStreaming()
+            ? doStreamUserQuery(userQuery, prepared.context(), conversationId, prepared.history())
+            : callLLM(buildPrompt(userQuery, prepared.context(), prepared.history())).flux());
+
+        ResponseStreamParser parser = new ResponseStreamParser();
+        FunctionCallScope scope = newFunctionCallScope(authentication);
+        List<ResponseEvent> events = new ArrayList<>();
+        AtomicBoolean functionFailed = new AtomicBoolean();
+        // flatMap, not concatMap: text keeps flowing while function calls run
+        return tokens
+            .concatMapIterable(parser::feed)
+            .concatWith(Flux.defer(() -> Flux.fromIterable(parser.finish())))
+            .flatMap(event -> event.type() == ResponseEvent.Type.TEXT
+                ? Mono.just(event)
+                // A failed call comes back as a text note; don't cache that answer
+                : resolveElement(event, scope).doOnNext(resolved ->
+                    functionFailed.compareAndSet(false, resolved.type() != event.type())))
+            .doOnNext(events::add)
+            .doOnComplete(() -> {
+                if (prepared.lookup() != null && !functionFailed.get()) {
+                    responseCache.put(prepared.lookup(), events);
+                }
+            });
     }
+
     protected abstract boolean supportsStreaming();
 
-    protected Flux<String> doStreamUserQuery(String userQuery) {
+    /**
+     * The model answering queries, part of the response cache key.
+     */
+    protected abstract String modelId();
+
+    /**
+     * The provider's settings name, which prompts are sized for: a hedged
+     * or fallback provider gets a prompt that fits its own window.
+     */
+    protected abstract String providerType();
+
+    /**
+     * Streams the model's raw output for the query. {@code context} is the
+     * financial context, already built; {@code history} is the
+     * conversation so far, empty for a standalone query; providers that
+     * keep per-conversation state can use the conversation id instead.
+     * Called with the user's authentication on the thread, and must not
+     * block.
+     */
+    protected Flux<String> doStreamUserQuery(String userQuery, String context, Long conversationId, String history) {
         throw new UnsupportedOperationException("Streaming not supported by this implementation");
     }
 
-    protected String buildFinancialContext() {
-        Map<String, Object> realTimeData = getRealTimeFinancialData();
-        StringBuilder context = new StringBuilder();
-
-        // Add real-time account balances
-        context.append("Current Account Balances:\n");
-        ((List<Map<String, Object>>)realTimeData.get("accounts"))
-            .forEach(acc -> context.append(String.format("- %s (%s): $%.2f\n",
-                acc.get("name"),
-                acc.get("type"),
-                acc.get("balance"))));
-
-        // Add real-time envelope statuses
-        context.append("\nEnvelope Statuses:\n");
-        ((List<Map<String, Object>>)realTimeData.get("envelopes"))
-            .forEach(env -> context.append(String.format("- %s: Available $%.2f, Spent $%.2f, Allocated $%.2f\n",
-                env.get("name"),
-                env.get("available"),
-                env.get("spent"),
-                env.get("allocated"))));
-        
-        // Recent transactions
+    /**
+     * Replaces a streamed chart or table that is a function call with the
+     * data it produces.
+     */
+    protected Mono<ResponseEvent> resolveElement(ResponseEvent event, FunctionCallScope scope) {
+        Map<String, Object> element;
+        try {
+            element = objectMapper.readValue(event.content(), Map.class);
+        } catch (JsonProcessingException e) {
+            return Mono.just(event);
+        }
+        if (!element.containsKey("function")) {
+            return Mono.just(event);
+        }
+        return Mono.fromFuture(callFunction(scope, element))
+            .map(result -> {
+                try {
+                    return new ResponseEvent(event.type(), objectMapper.writeValueAsString(result));
+                } catch (JsonProcessingException e) {
+                    throw new RuntimeException("Could not serialize function result: " + e.getMessage());
+                }
+            })
+            .onErrorResume(e -> {
+                String reason = e instanceof TimeoutException ? "timed out" : e.getMessage();
+                log.warn("Function {} failed: {}", element.get("function"), reason);
+                return Mono.just(ResponseEvent.text(
+                    String.format("\n\n_Could not run %s: %s_\n", element.get("function"), reason)));
+            });
+    }
+
+    /**
+     * Extracts the content delta from one OpenAI-style streaming chunk. The
+     * SSE reader normally strips the "data:" prefix already.
+     */
+    protected String openAiStreamDelta(String chunk) {
+        String data = chunk.trim();
+        if (data.startsWith("data:")) {
+            data = data.substring(5).trim();
+        }
+        if (data.isEmpty() || data.equals("[DONE]")) {
+            return "";
+        }
+        try {
+            JsonNode node = objectMapper.readTree(data);
+            if (node.has("choices") && node.get("choices").size() > 0) {
+                JsonNode delta = node.get("choices").get(0).get("delta");
+                if (delta != null && delta.hasNonNull("content")) {
+                    return delta.get("content").asText();
+                }
+            }
+            return "";
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Error parsing stream chunk: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Builds only the sections the question's intent needs; a general
+     * question, or one the classifier is unsure about, gets the full
+     * context. Sections that aren't sent aren't built either, which for
+     * budget and spending questions skips the insight analytics.
+     * <p>
+     * The result fits the context share of the provider's window: sections
+     * are admitted in priority order, and the first one that doesn't fit is
+     * cut to its leading lines, so large ledgers lose their least important
+     * detail instead of overflowing the model.
+     */
+    protected String buildFinancialContext(String userQuery) {
+        IntentPrediction prediction = intentDetectionService.classify(userQuery);
+        Set<ContextSection> sections = prediction.confidence() >= MIN_INTENT_CONFIDENCE
+            ? INTENT_SECTIONS.getOrDefault(prediction.intent(), EnumSet.allOf(ContextSection.class))
+            : EnumSet.allOf(ContextSection.class);
+        PromptBudget budget = tokenCounter.budget(providerType(), buildInstructions() + buildQuestion(userQuery, ""));
+        log.debug("Query intent {} ({}), sending context sections {} within {} tokens",
+            prediction.intent(), String.format("%.2f", prediction.confidence()), sections, budget.context());
+        return buildContext(sections, budget.context());
+    }
+
+    private String buildContext(Set<ContextSection> sections, int maxTokens) {
+        Map<ContextSection, String> admitted = new EnumMap<>(ContextSection.class);
+        int remaining = maxTokens;
+        for (ContextSection section : SECTION_PRIORITY) {
+            if (!sections.contains(section) || remaining <= 0) {
+                continue;
+            }
+            String text = buildSection(section);
+            int tokens = tokenCounter.count(providerType(), text);
+            if (tokens > remaining) {
+                text = tokenCounter.truncateLines(providerType(), text, remaining);
+                tokens = tokenCounter.count(providerType(), text);
+            }
+            admitted.put(section, text);
+            remaining -= tokens;
+        }
+        // Declaration order reads naturally: accounts, envelopes, transactions...
+        return String.join("", admitted.values());
+    }
+
+    private String buildSection(ContextSection section) {
+        return switch (section) {
+            case ACCOUNTS -> contextCache.get(section, this::buildAccountsSection);
+            case ENVELOPES -> contextCache.get(section, this::buildEnvelopesSection);
+            case RECENT_TRANSACTIONS -> contextCache.get(section, this::buildRecentTransactionsSection);
+            case INSIGHTS -> contextCache.get(section, this::buildInsightsSection);
+            case OVERALL_STATUS -> contextCache.get(section, this::buildOverallStatusSection);
+            case CATEGORY_SPENDING -> contextCache.get(section, this::buildCategorySpendingSection);
+        };
+    }
+
+    protected String buildAccountsSection() {
+        StringBuilder section = new StringBuilder("Current Account Balances:\n");
+        accountService.getAllAccounts()
+            .forEach(acc -> section.append(String.format("- %s (%s): $%.2f\n",
+                acc.getName(),
+                acc.getType().getDisplayName(),
+                acc.getBalance())));
+        return section.toString();
+    }
+
+    protected String buildEnvelopesSection() {
+        StringBuilder section = new StringBuilder("\nEnvelope Statuses:\n");
+        envelopeService.getAllEnvelopes()
+            .forEach(env -> section.append(String.format("- %s: Available $%.2f, Spent $%.2f, Allocated $%.2f\n",
+                env.getName(),
+                env.getAvailable(),
+                env.getSpent(),
+                env.getAllocated())));
+        return section.toString();
+    }
+
+    protected String buildRecentTransactionsSection() {
         LocalDateTime oneMonthAgo = LocalDateTime.now().minusMonths(1);
         List<Transaction> recentTransactions = transactionService.getRecentTransactions(
                 oneMonthAgo,
                 LocalDateTime.now()
         );
         
-        context.append("\nRecent Transactions:\n");
+        StringBuilder section = new StringBuilder("\nRecent Transactions:\n");
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MM/dd/yyyy");
         for (Transaction tx : recentTransactions.stream().limit(10).collect(Collectors.toList())) {
-            context.append(String.format("- %s: $%.2f in %s (%s) from %s\n",
+            section.append(String.format("- %s: $%.2f in %s (%s) from %s\n",
                     tx.getDate().format(formatter),
                     tx.getAmount(),
                     tx.getEnvelope().getName(),
                     tx.getDescription(),
                     tx.getAccount().getName()));
         }
+        return section.toString();
+    }
 
+    protected String buildInsightsSection() {
         // Merge regular insights with advanced ML insights
-        List<SpendingInsight> regularInsights = insightService.generateInsights();
-        List<SpendingInsight> advancedInsights = getAdvancedMLInsights();
         List<SpendingInsight> allInsights = new ArrayList<>();
-        allInsights.addAll(regularInsights);
-        allInsights.addAll(advancedInsights);
+        allInsights.addAll(insightService.generateInsights());
+        allInsights.addAll(getAdvancedMLInsights());
         
-        context.append("\nFinancial Insights:\n");
+        StringBuilder section = new StringBuilder("\nFinancial Insights:\n");
         for (SpendingInsight insight : allInsights) {
-            context.append("- ").append(insight.getMessage()).append("\n");
+            section.append("- ").append(insight.getMessage()).append("\n");
         }
+        return section.toString();
+    }
 
-        // Overall financial status
-        BigDecimal totalBudget = envelopeService.getAllEnvelopes().stream()
+    protected String buildOverallStatusSection() {
+        List<Envelope> envelopes = envelopeService.getAllEnvelopes();
+        BigDecimal totalBudget = envelopes.stream()
                 .map(Envelope::getMonthlyBudget)
                 .reduce(BigDecimal.ZERO, BigDecimal::add);
                 
-        BigDecimal totalAvailable = envelopeService.getAllEnvelopes().stream()
+        BigDecimal totalAvailable = envelopes.stream()
                 .map(Envelope::getAvailable)
                 .reduce(BigDecimal.ZERO, BigDecimal::add);
                 
-        context.append(String.format("\nOverall Status:\n- Total Budget: $%.2f\n- Total Available: $%.2f\n",
-                totalBudget, totalAvailable));
-
-        context.append("\nSpending By Category (Last 30 Days):\n");
-        Map<String, BigDecimal> categorySpending = 
-            (Map<String, BigDecimal>) realTimeData.get("categorySpending");
-        categorySpending.forEach((category, amount) ->
-            context.append(String.format("- %s: $%.2f\n", category, amount)));
-        
-        return context.toString();
+        return String.format("\nOverall Status:\n- Total Budget: $%.2f\n- Total Available: $%.2f\n",
+                totalBudget, totalAvailable);
     }
 
+    protected String buildCategorySpendingSection() {
+        StringBuilder section = new StringBuilder("\nSpending By Category (Last 30 Days):\n");
+        LocalDateTime oneMonthAgo = LocalDateTime.now().minusMonths(1);
+        getSpendingByCategory(transactionService.getRecentTransactions(oneMonthAgo, LocalDateTime.now()))
+            .forEach((category, amount) ->
+                section.append(String.format("- %s: $%.2f\n", category, amount)));
+        return section.toString();
+    }
+
+    /**
+     * The static instructions come first and the data and question last, so
+     * every prompt starts with the same prefix and providers that cache
+     * prompt prefixes can reuse it.
+     */
     protected String buildPrompt(String userQuery, String context) {
-        return String.format("""
+        return buildPrompt(userQuery, context, "");
+    }
+
+    protected String buildPrompt(String userQuery, String context, String history) {
+        return buildInstructions() + "\n" + buildQuestion(userQuery, context, history);
+    }
+
+    protected String buildInstructions() {
+        return """
             Role: You are a financial analysis assistant specializing in personal finance and budgeting.
             
-            Available Financial Data:
-            %s
-            
             Available Functions:
             - get_envelope_balance(envelope_name): Returns the current balance of the specified envelope.
             - generate_spending_chart(start_date, end_date, chart_type): Generates a chart of spending (e.g., 'pie', 'bar').
             - generate_transaction_table(start_date, end_date, limit): Generates a table of recent transactions.
             - get_total_spent(envelope_name, start_date, end_date): Returns total spending in an envelope over a period.
             
-            User Question: %s
-            
             Instructions:
             1. Analyze the financial data thoroughly.
             2. Use function calls for precise data retrieval or visualization (e.g., charts, tables).
@@ -210,75 +458,224 @@ public abstract class AbstractLLMService implements LLMService {
               "charts": [{"function": "function_name", "params": {"param1": "value1", ...}} or chart_data],
               "tables": [{"function": "function_name", "params": {"param1": "value1", ...}} or table_data]
             }
-            """, context, userQuery);
+            """;
+    }
+
+    protected String buildQuestion(String userQuery, String context) {
+        return buildQuestion(userQuery, context, "");
+    }
+
+    // The conversation follows the data, which changes less often between turns
+    protected String buildQuestion(String userQuery, String context, String history) {
+        if (history.isEmpty()) {
+            return String.format("""
+                Available Financial Data:
+                %s
+                
+                User Question: %s
+                """, context, userQuery);
+        }
+        return String.format("""
+            Available Financial Data:
+            %s
+            
+            Conversation So Far:
+            %s
+            
+            User Question: %s
+            """, context, history, userQuery);
     }
 
-    protected String processFunctionCalls(String rawResponse) {
+    /**
+     * Replaces chart and table function calls with their data. All calls of
+     * the response run concurrently in one {@link FunctionCallScope}; a call
+     * that fails or times out is dropped and noted in the text. The calls
+     * run on the {@link BlockingWorkScheduler}; nothing waits for them.
+     */
+    protected Mono<String> processFunctionCalls(String rawResponse, Authentication authentication) {
         try {
-            Map<String, Object> response = objectMapper.readValue(rawResponse, Map.class);
+            Map<String, Object> response = parseResponse(rawResponse);
             List<Map<String, Object>> charts = (List<Map<String, Object>>) response.getOrDefault("charts", new ArrayList<>());
             List<Map<String, Object>> tables = (List<Map<String, Object>>) response.getOrDefault("tables", new ArrayList<>());
 
-            // Process charts
-            for (Map<String, Object> chart : charts) {
-                if (chart.containsKey("function")) {
-                    String functionName = (String) chart.get("function");
-                    Map<String, Object> params = (Map<String, Object>) chart.get("params");
-                    Map<String, Object> chartData = executeFunction(functionName, params);
-                    chart.clear();
-                    chart.putAll(chartData);
-                }
+            List<Map<String, Object>> calls = new ArrayList<>();
+            charts.stream().filter(chart -> chart.containsKey("function")).forEach(calls::add);
+            tables.stream().filter(table -> table.containsKey("function")).forEach(calls::add);
+            if (calls.isEmpty()) {
+                return Mono.just(objectMapper.writeValueAsString(response));
             }
 
-            // Process tables
-            for (Map<String, Object> table : tables) {
-                if (table.containsKey("function")) {
-                    String functionName = (String) table.get("function");
-                    Map<String, Object> params = (Map<String, Object>) table.get("params");
-                    Map<String, Object> tableData = executeFunction(functionName, params);
-                    table.clear();
-                    table.putAll(tableData);
-                }
-            }
+            FunctionCallScope scope = newFunctionCallScope(authentication);
+            Map<Map<String, Object>, CompletableFuture<Map<String, Object>>> pending = new IdentityHashMap<>();
+            return blockingWork.run(authentication, () -> prefetchUnion(scope, calls))
+                .then(Mono.defer(() -> {
+                    for (Map<String, Object> call : calls) {
+                        pending.put(call, callFunction(scope, call));
+                    }
+                    // Settles once every call has finished, failed or not
+                    return Mono.fromFuture(CompletableFuture
+                        .allOf(pending.values().toArray(CompletableFuture[]::new))
+                        .handle((ignored, e) -> true));
+                }))
+                .map(settled -> mergeResults(response, charts, tables, calls, pending))
+                .onErrorResume(e -> Mono.just(errorResponse(e)));
+        } catch (Exception e) {
+            return Mono.just(errorResponse(e));
+        }
+    }
+
+    private Map<String, Object> parseResponse(String rawResponse) {
+        try {
+            return objectMapper.readValue(rawResponse, Map.class);
+        } catch (JsonProcessingException e) {
+            log.debug("Salvaging malformed response: {}", e.getOriginalMessage());
+            return salvage(rawResponse);
+        }
+    }
 
+    // Every future is complete by now, so join() only collects
+    private String mergeResults(Map<String, Object> response, List<Map<String, Object>> charts,
+                                List<Map<String, Object>> tables, List<Map<String, Object>> calls,
+                                Map<Map<String, Object>, CompletableFuture<Map<String, Object>>> pending) {
+        StringBuilder failures = new StringBuilder();
+        for (Map<String, Object> call : calls) {
+            try {
+                Map<String, Object> data = pending.get(call).join();
+                call.clear();
+                call.putAll(data);
+            } catch (CompletionException e) {
+                String reason = e.getCause() instanceof TimeoutException
+                    ? "timed out"
+                    : String.valueOf(e.getCause().getMessage());
+                log.warn("Function {} failed: {}", call.get("function"), reason);
+                failures.append(String.format("\n\n_Could not run %s: %s_", call.get("function"), reason));
+                charts.remove(call);
+                tables.remove(call);
+            }
+        }
+        if (failures.length() > 0) {
+            response.put("text", response.getOrDefault("text", "") + failures.toString());
+        }
+        try {
             return objectMapper.writeValueAsString(response);
-        } catch (Exception e) {
-            return "{\"text\": \"Error processing response: " + e.getMessage() + "\", \"charts\": [], \"tables\": []}";
+        } catch (JsonProcessingException e) {
+            return errorResponse(e);
+        }
+    }
+
+    private static String errorResponse(Throwable e) {
+        return "{\"text\": \"Error processing response: " + e.getMessage() + "\", \"charts\": [], \"tables\": []}";
+    }
+
+    /**
+     * Last resort for output that isn't a single valid object, such as an
+     * answer cut off by the token limit or wrapped in prose: the streaming
+     * parser recovers the text and every chart or table it can.
+     */
+    private Map<String, Object> salvage(String rawResponse) {
+        ResponseStreamParser parser = new ResponseStreamParser();
+        List<ResponseEvent> events = new ArrayList<>(parser.feed(rawResponse));
+        events.addAll(parser.finish());
+
+        StringBuilder text = new StringBuilder();
+        List<Map<String, Object>> charts = new ArrayList<>();
+        List<Map<String, Object>> tables = new ArrayList<>();
+        for (ResponseEvent event : events) {
+            if (event.type() == ResponseEvent.Type.TEXT) {
+                text.append(event.content());
+                continue;
+            }
+            try {
+                Map<String, Object> element = objectMapper.readValue(event.content(), Map.class);
+                (event.type() == ResponseEvent.Type.CHART ? charts : tables).add(element);
+            } catch (JsonProcessingException e) {
+                log.debug("Dropping unrecoverable {}: {}", event.type(), e.getOriginalMessage());
+            }
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("text", text.toString());
+        response.put("charts", charts);
+        response.put("tables", tables);
+        return response;
+    }
+
+    protected FunctionCallScope newFunctionCallScope(Authentication authentication) {
+        return new FunctionCallScope(
+            transactionService,
+            envelopeService,
+            new DelegatingSecurityContextExecutor(blockingWork.executor(),
+                BlockingWorkScheduler.securityContext(authentication)),
+            FUNCTION_TIMEOUT
+        );
+    }
+
+    /**
+     * Starts one chart or table call, memoized within the scope by function
+     * name and parameters.
+     */
+    protected CompletableFuture<Map<String, Object>> callFunction(FunctionCallScope scope, Map<String, Object> call) {
+        String functionName = (String) call.get("function");
+        Map<String, Object> params = call.get("params") instanceof Map<?, ?> map
+            ? (Map<String, Object>) map
+            : Map.of();
+        String key;
+        try {
+            key = functionName + objectMapper.writeValueAsString(new TreeMap<>(params));
+        } catch (JsonProcessingException e) {
+            key = functionName + params;
+        }
+        return scope.call(key, () -> executeFunction(functionName, params, scope));
+    }
+
+    // One fetch for the whole period the calls span, which each call then slices
+    private void prefetchUnion(FunctionCallScope scope, List<Map<String, Object>> calls) {
+        LocalDateTime from = null;
+        LocalDateTime to = null;
+        for (Map<String, Object> call : calls) {
+            if (!(call.get("params") instanceof Map<?, ?> params)
+                    || !(params.get("start_date") instanceof String start)
+                    || !(params.get("end_date") instanceof String end)) {
+                continue;
+            }
+            try {
+                LocalDateTime callStart = parseStart(start);
+                LocalDateTime callEnd = parseEnd(end);
+                from = from == null || callStart.isBefore(from) ? callStart : from;
+                to = to == null || callEnd.isAfter(to) ? callEnd : to;
+            } catch (DateTimeParseException e) {
+                // The call itself reports the bad date
+            }
+        }
+        if (from != null) {
+            scope.prefetch(from, to);
         }
     }
 
-    protected Map<String, Object> executeFunction(String functionName, Map<String, Object> params) {
+    protected Map<String, Object> executeFunction(String functionName, Map<String, Object> params, FunctionCallScope scope) {
         switch (functionName) {
             case "generate_spending_chart": {
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MM/dd/yyyy");
-                LocalDate startDate = LocalDate.parse((String) params.get("start_date"), formatter);
-                LocalDate endDate = LocalDate.parse((String) params.get("end_date"), formatter);
-                LocalDateTime start = startDate.atStartOfDay();
-                LocalDateTime end = endDate.atTime(23, 59, 59);
+                LocalDateTime start = parseStart((String) params.get("start_date"));
+                LocalDateTime end = parseEnd((String) params.get("end_date"));
                 String chartType = (String) params.get("chart_type");
-                return buildSpendingChart(start, end, chartType);
+                return buildSpendingChart(scope.transactions(start, end), chartType);
             }
             case "generate_transaction_table": {
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MM/dd/yyyy");
-                LocalDate startDate = LocalDate.parse((String) params.get("start_date"), formatter);
-                LocalDate endDate = LocalDate.parse((String) params.get("end_date"), formatter);
-                LocalDateTime start = startDate.atStartOfDay();
-                LocalDateTime end = endDate.atTime(23, 59, 59);
+                LocalDateTime start = parseStart((String) params.get("start_date"));
+                LocalDateTime end = parseEnd((String) params.get("end_date"));
                 int limit = params.containsKey("limit") ? ((Number) params.get("limit")).intValue() : 10;
-                return buildTransactionTable(start, end, limit);
+                return buildTransactionTable(scope.transactions(start, end), limit);
             }
             case "get_envelope_balance": {
                 String envelopeName = (String) params.get("envelope_name");
-                return Map.of("text", "$" + calculateAvailableInEnvelope(envelopeName).toString());
+                return Map.of("text", "$" + calculateAvailableInEnvelope(scope.envelopes(), envelopeName).toString());
             }
             case "get_total_spent": {
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MM/dd/yyyy");
-                LocalDate startDate = LocalDate.parse((String) params.get("start_date"), formatter);
-                LocalDate endDate = LocalDate.parse((String) params.get("end_date"), formatter);
-                LocalDateTime start = startDate.atStartOfDay();
-                LocalDateTime end = endDate.atTime(23, 59, 59);
+                LocalDateTime start = parseStart((String) params.get("start_date"));
+                LocalDateTime end = parseEnd((String) params.get("end_date"));
                 String envelopeName = (String) params.get("envelope_name");
-                BigDecimal totalSpent = calculateTotalSpent(envelopeName, start, end);
+                BigDecimal totalSpent = calculateTotalSpent(
+                    scope.envelopes(), scope.transactions(start, end), envelopeName);
                 return Map.of("text", String.format("Total spent in %s from %s to %s: $%s",
                     envelopeName, params.get("start_date"), params.get("end_date"), totalSpent.toString()));
             }
@@ -287,8 +684,16 @@ public abstract class AbstractLLMService implements LLMService {
         }
     }
 
-    protected Map<String, Object> buildSpendingChart(LocalDateTime start, LocalDateTime end, String chartType) {
-        Map<String, BigDecimal> spending = getSpendingByCategory(start, end);
+    private static LocalDateTime parseStart(String date) {
+        return LocalDate.parse(date, FUNCTION_DATE_FORMAT).atStartOfDay();
+    }
+
+    private static LocalDateTime parseEnd(String date) {
+        return LocalDate.parse(date, FUNCTION_DATE_FORMAT).atTime(23, 59, 59);
+    }
+
+    protected Map<String, Object> buildSpendingChart(List<Transaction> transactions, String chartType) {
+        Map<String, BigDecimal> spending = getSpendingByCategory(transactions);
         List<String> labels = new ArrayList<>(spending.keySet());
         List<BigDecimal> data = new ArrayList<>(spending.values());
 
@@ -312,8 +717,8 @@ public abstract class AbstractLLMService implements LLMService {
         return chartData;
     }
 
-    protected Map<String, Object> buildTransactionTable(LocalDateTime start, LocalDateTime end, int limit) {
-        List<Transaction> transactions = transactionService.getRecentTransactions(start, end)
+    protected Map<String, Object> buildTransactionTable(List<Transaction> recentTransactions, int limit) {
+        List<Transaction> transactions = recentTransactions
             .stream()
             .limit(limit)
             .collect(Collectors.toList());
@@ -337,16 +742,16 @@ public abstract class AbstractLLMService implements LLMService {
         );
     }
 
-    protected BigDecimal calculateAvailableInEnvelope(String envelopeName) {
-        return envelopeService.getAllEnvelopes().stream()
+    protected BigDecimal calculateAvailableInEnvelope(List<Envelope> envelopes, String envelopeName) {
+        return envelopes.stream()
             .filter(env -> env.getName().equalsIgnoreCase(envelopeName))
             .findFirst()
             .map(Envelope::getAvailable)
             .orElse(BigDecimal.ZERO);
     }
 
-    protected BigDecimal calculateTotalSpent(String envelopeName, LocalDateTime start, LocalDateTime end) {
-        Envelope envelope = envelopeService.getAllEnvelopes().stream()
+    protected BigDecimal calculateTotalSpent(List<Envelope> envelopes, List<Transaction> transactions, String envelopeName) {
+        Envelope envelope = envelopes.stream()
             .filter(env -> env.getName().equalsIgnoreCase(envelopeName))
             .findFirst()
             .orElse(null);
@@ -355,15 +760,15 @@ public abstract class AbstractLLMService implements LLMService {
             return BigDecimal.ZERO;
         }
 
-        return transactionService.getRecentTransactions(start, end).stream()
+        return transactions.stream()
             .filter(tx -> tx.getEnvelope().getId().equals(envelope.getId()))
             .filter(tx -> tx.getType() == TransactionType.EXPENSE)
             .map(Transaction::getAmount)
             .reduce(BigDecimal.ZERO, BigDecimal::add);
     }
 
-    protected Map<String, BigDecimal> getSpendingByCategory(LocalDateTime start, LocalDateTime end) {
-        return transactionService.getRecentTransactions(start, end)
+    protected Map<String, BigDecimal> getSpendingByCategory(List<Transaction> transactions) {
+        return transactions
             .stream()
             .filter(tx -> tx.getType() == TransactionType.EXPENSE)
             .collect(Collectors.groupingBy(
@@ -438,60 +843,15 @@ public abstract class AbstractLLMService implements LLMService {
         return mlInsights;
     }
     
-    protected Map<String, Object> getRealTimeFinancialData() {
-        Map<String, Object> data = new HashMap<>();
-
-        List<Envelope> envelopes = envelopeService.getAllEnvelopes();
-        data.put("envelopes", envelopes.stream()
-            .map(env -> Map.of(
-                "name", env.getName(),
-                "available", env.getAvailable(),
-                "allocated", env.getAllocated(),
-                "spent", env.getSpent(),
-                "monthlyBudget", env.getMonthlyBudget() != null ? env.getMonthlyBudget() : BigDecimal.ZERO
-            ))
-            .collect(Collectors.toList()));
-
-        List<Account> accounts = accountService.getAllAccounts();
-        data.put("accounts", accounts.stream()
-            .map(acc -> Map.of(
-                "name", acc.getName(),
-                "type", acc.getType().getDisplayName(),
-                "balance", acc.getBalance(),
-                "institution", acc.getInstitution() != null ? acc.getInstitution() : "N/A"
-            ))
-            .collect(Collectors.toList()));
-
-        LocalDateTime oneMonthAgo = LocalDateTime.now().minusMonths(1);
-        Map<String, BigDecimal> categorySpending = getSpendingByCategory(oneMonthAgo, LocalDateTime.now());
-        data.put("categorySpending", categorySpending);
-
-        List<Transaction> recentTransactions = transactionService.getRecentTransactions(
-            oneMonthAgo, LocalDateTime.now()
-        );
-        data.put("recentTransactions", recentTransactions.stream()
-            .limit(10)
-            .map(tx -> Map.of(
-                "date", tx.getDate().format(DateTimeFormatter.ofPattern("MM/dd/yyyy")),
-                "amount", tx.getAmount(),
-                "envelope", tx.getEnvelope().getName(),
-                "description", tx.getDescription(),
-                "account", tx.getAccount().getName(),
-                "type", tx.getType().toString()
-            ))
-            .collect(Collectors.toList()));
-
-        BigDecimal totalAvailable = envelopes.stream()
-            .map(Envelope::getAvailable)
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
-        BigDecimal totalBalance = accounts.stream()
-            .map(Account::getBalance)
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
-        data.put("totalAvailable", totalAvailable);
-        data.put("totalBalance", totalBalance);
-
-        return data;
-    }
-
-    protected abstract String callLLM(String prompt);
+    /**
+     * Sends the prompt and completes with the model's whole answer. Called
+     * with the user's authentication on the thread, and must not block.
+     */
+    protected abstract Mono<String> callLLM(String prompt);
+
+    /**
+     * What a query needs before the model is called; the context is null
+     * when the answer is replayed from the cache.
+     */
+    private record PreparedQuery(String history, ResponseCache.Lookup lookup, String context) {}
 }
\ No newline at end of file
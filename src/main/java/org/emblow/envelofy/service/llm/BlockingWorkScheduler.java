@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+/**
+ * The threads the reactive chat pipeline hands its blocking work to:
+ * building the financial context, reading chat history and running
+ * function calls all go through JPA. The pool is bounded, and so is the
+ * queue in front of it, so however many chats are open only a handful of
+ * threads ever wait on the database, and the rest of the pipeline never
+ * blocks at all.
+ * <p>
+ * Work runs as the user who asked for it: the authentication is installed
+ * on the worker thread for the duration of the task, since the services
+ * read the current user from the thread.
+ * <p>
+ * With {@code spring.threads.virtual.enabled} the workers are virtual
+ * threads. The pool stays bounded either way, since its size is what
+ * limits concurrent load on the database.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class BlockingWorkScheduler {
+    private final Scheduler scheduler;
+
+    public BlockingWorkScheduler(
+        @Value("${envelofy.llm.blocking.threads:8}") int threads,
+        @Value("${envelofy.llm.blocking.queue-capacity:1000}") int queueCapacity,
+        @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads
+    ) {
+        ThreadFactory threadFactory = virtualThreads
+            ? Thread.ofVirtual().name("llm-blocking-", 0).factory()
+            : Thread.ofPlatform().name("llm-blocking-", 0).daemon(true).factory();
+        this.scheduler = Schedulers.newBoundedElastic(
+            Math.max(1, threads), Math.max(1, queueCapacity), threadFactory, 60);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.dispose();
+    }
+
+    /**
+     * Runs the work on the bounded pool as the given user when subscribed.
+     * A null result completes the Mono empty.
+     */
+    public <T> Mono<T> call(Authentication authentication, Supplier<T> work) {
+        return Mono.fromSupplier(() -> withAuthentication(authentication, work))
+            .subscribeOn(scheduler);
+    }
+
+    public Mono<Void> run(Authentication authentication, Runnable work) {
+        return call(authentication, () -> {
+            work.run();
+            return null;
+        }).then();
+    }
+
+    /**
+     * The pool as an executor, for work started as a future. The caller
+     * propagates the security context.
+     */
+    public Executor executor() {
+        return scheduler::schedule;
+    }
+
+    /**
+     * Runs the work on the calling thread as the given user, restoring the
+     * thread's own security context afterwards. Reactor and timer threads
+     * don't carry the caller's context, and the services read the current
+     * user from the thread.
+     */
+    public static <T> T withAuthentication(Authentication authentication, Supplier<T> work) {
+        SecurityContext previous = SecurityContextHolder.getContext();
+        SecurityContextHolder.setContext(securityContext(authentication));
+        try {
+            return work.get();
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+    /**
+     * A fresh security context holding the authentication, for wrappers
+     * such as DelegatingSecurityContextExecutor.
+     */
+    public static SecurityContext securityContext(Authentication authentication) {
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(authentication);
+        return context;
+    }
+}
@@ -16,6 +16,7 @@
  */
 package org.emblow.envelofy.service.llm;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -26,14 +27,15 @@ import org.emblow.envelofy.service.TransactionService;
 import org.emblow.envelofy.service.IntentDetectionService;
 import org.emblow.envelofy.service.ml.AdvancedMLService;
 import org.emblow.envelofy.service.ml.SpendingInsightService;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public class ChatGPTService extends AbstractLLMService {
     private final String openaiApiKey;
     private final String openaiChatEndpoint;
+    private final ProviderTransport transport;
     private final WebClient webClient;
 
     public ChatGPTService(
@@ -44,95 +46,84 @@ public class ChatGPTService extends AbstractLLMService {
             AdvancedMLService advancedMLService,
             IntentDetectionService intentDetectionService,
             AccountService accountService,
+            FinancialContextCache contextCache,
+            TokenCountingService tokenCounter,
+            ResponseCache responseCache,
+            ConversationSummaryService conversationSummaries,
+            BlockingWorkScheduler blockingWork,
+            ProviderTransport transport,
             String openaiApiKey,
             String openaiChatEndpoint) {
         super(transactionService, envelopeService, insightService, patternService,
-              advancedMLService, intentDetectionService, accountService);
+              advancedMLService, intentDetectionService, accountService, contextCache, tokenCounter, responseCache,
+              conversationSummaries, blockingWork);
         this.openaiApiKey = openaiApiKey;
         this.openaiChatEndpoint = openaiChatEndpoint;
-        this.webClient = WebClient.builder()
-            .baseUrl(openaiChatEndpoint)
-            .defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + openaiApiKey)
-            .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-            .build();
+        this.transport = transport;
+        this.webClient = transport.client(openaiChatEndpoint, openaiApiKey);
     }
 
     @Override
-    public String processUserQuery(String userQuery) {
-        return super.processUserQuery(userQuery); // Delegate to AbstractLLMService
-    }
-
-    @Override
-    protected String callLLM(String prompt) {
-        try {
-            ObjectNode requestBody = objectMapper.createObjectNode();
-            requestBody.put("model", "gpt-3.5-turbo");
-            requestBody.put("temperature", 0.0);
-            requestBody.put("stream", false);
-            requestBody.put("top_p", 1.0);
-            requestBody.put("frequency_penalty", 0.0);
-            requestBody.put("presence_penalty", 0.0);
-
-            ArrayNode messages = objectMapper.createArrayNode();
-            messages.add(createMessage("system", "You are a financial analysis assistant with direct access to the user's financial data."));
-            messages.add(createMessage("user", prompt));
-            requestBody.set("messages", messages);
+    protected Mono<String> callLLM(String prompt) {
+        ObjectNode requestBody = objectMapper.createObjectNode();
+        requestBody.put("model", "gpt-3.5-turbo");
+        requestBody.put("temperature", 0.0);
+        requestBody.put("stream", false);
+        requestBody.put("top_p", 1.0);
+        requestBody.put("frequency_penalty", 0.0);
+        requestBody.put("presence_penalty", 0.0);
+        requestBody.set("response_format", jsonMode());
 
-            String responseBody = webClient.post()
-                .bodyValue(requestBody)
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
+        ArrayNode messages = objectMapper.createArrayNode();
+        messages.add(createMessage("system", "You are a financial analysis assistant with direct access to the user's financial data."));
+        messages.add(createMessage("user", prompt));
+        requestBody.set("messages", messages);
 
-            JsonNode root = objectMapper.readTree(responseBody);
-            if (root.has("choices") && root.get("choices").isArray() && root.get("choices").size() > 0) {
-                return root.get("choices").get(0).get("message").get("content").asText();
-            }
-            return "No response received from ChatGPT.";
-        } catch (Exception e) {
-            throw new RuntimeException("Error during ChatGPT inference: " + e.getMessage(), e);
-        }
+        return transport.call("ChatGPT", webClient.post()
+                .bodyValue(requestBody))
+            .map(responseBody -> {
+                try {
+                    JsonNode root = objectMapper.readTree(responseBody);
+                    if (root.has("choices") && root.get("choices").isArray() && root.get("choices").size() > 0) {
+                        return root.get("choices").get(0).get("message").get("content").asText();
+                    }
+                    return "No response received from ChatGPT.";
+                } catch (JsonProcessingException e) {
+                    throw new RuntimeException("Error during ChatGPT inference: " + e.getMessage(), e);
+                }
+            });
     }
 
     @Override
-    protected Flux<String> doStreamUserQuery(String userQuery) {
-        String context = buildFinancialContext();
-        String fullPrompt = buildPrompt(userQuery, context);
+    protected Flux<String> doStreamUserQuery(String userQuery, String context, Long conversationId, String history) {
+        String fullPrompt = buildPrompt(userQuery, context, history);
 
         ObjectNode requestBody = objectMapper.createObjectNode();
         requestBody.put("model", "gpt-3.5-turbo");
         requestBody.put("temperature", 0.0);
-        requestBody.put("stream", false);
+        requestBody.put("stream", true);
         requestBody.put("top_p", 1.0);
         requestBody.put("frequency_penalty", 0.0);
         requestBody.put("presence_penalty", 0.0);
+        requestBody.set("response_format", jsonMode());
 
         ArrayNode messages = objectMapper.createArrayNode();
         messages.add(createMessage("system", "You are a financial analysis assistant with direct access to the user's financial data."));
         messages.add(createMessage("user", fullPrompt));
         requestBody.set("messages", messages);
 
-        return webClient.post()
-            .bodyValue(requestBody)
-            .retrieve()
-            .bodyToFlux(String.class)
-            .filter(chunk -> chunk.startsWith("data: ") && !chunk.contains("[DONE]"))
-            .map(chunk -> {
-                try {
-                    String json = chunk.substring(6).trim();
-                    JsonNode node = objectMapper.readTree(json);
-                    if (node.has("choices") && node.get("choices").size() > 0) {
-                        JsonNode delta = node.get("choices").get(0).get("delta");
-                        return delta.has("content") ? delta.get("content").asText() : "";
-                    }
-                    return "";
-                } catch (Exception e) {
-                    throw new RuntimeException("Error parsing ChatGPT stream chunk: " + e.getMessage(), e);
-                }
-            })
+        return transport.stream("ChatGPT", webClient.post()
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .bodyValue(requestBody))
+            .map(this::openAiStreamDelta)
             .filter(chunk -> !chunk.isEmpty());
     }
 
+    // JSON mode: the API only returns a syntactically valid JSON object
+    private ObjectNode jsonMode() {
+        return objectMapper.createObjectNode().put("type", "json_object");
+    }
+
     private ObjectNode createMessage(String role, String content) {
         ObjectNode msg = objectMapper.createObjectNode();
         msg.put("role", role);
@@ -144,4 +135,14 @@ public class ChatGPTService extends AbstractLLMService {
     protected boolean supportsStreaming() {
         return true;
     }
-}
\ No newline at end of file
+
+    @Override
+    protected String modelId() {
+        return "gpt-3.5-turbo";
+    }
+
+    @Override
+    protected String providerType() {
+        return "chatgpt";
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import com.github.tjake.jlama.model.AbstractModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the JLlama session of each chat conversation. JLlama keeps the KV
+ * cache of a session between calls, so a follow-up turn sent on the same
+ * session only prefills its own tokens: the instructions and data of
+ * earlier turns are already computed.
+ * <p>
+ * Only the turns of one conversation share state. The instructions are
+ * not computed once and reused across requests: every new conversation,
+ * every restart, and every one-off generation outside a conversation
+ * prefills them again on a fresh session.
+ * <p>
+ * Conversations are restarted when they approach the generation window,
+ * and only the most recently used are tracked. An evicted conversation
+ * simply starts a new session on its next turn. JLlama has no way to
+ * release a single session, so neither frees KV memory. Instead
+ * {@link JllamaModelManager} counts the KV memory of every session and
+ * reloads the model once it exceeds its budget. The new model clears this
+ * bookkeeping on its first turn.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class ConversationKvCache {
+    private static final Logger log = LoggerFactory.getLogger(ConversationKvCache.class);
+    // Bounds this bookkeeping only
+    private static final int MAX_CONVERSATIONS = 1024;
+
+    private final int maxConversationTokens;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Access order, so iteration starts at the least recently used conversation
+    private final Map<Long, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    private AbstractModel owner;
+
+    public ConversationKvCache(
+        @Value("${envelofy.llm.jllama.kv-cache.max-conversation-tokens:4096}") int maxConversationTokens
+    ) {
+        this.maxConversationTokens = maxConversationTokens;
+    }
+
+    /**
+     * Starts a turn of the conversation on the given model. Without a
+     * conversation id, or while another turn of the same conversation is
+     * running, the turn gets a one-off session that is not cached.
+     */
+    public Turn begin(Long conversationId, AbstractModel model) {
+        lock.lock();
+        try {
+            if (model != owner) {
+                // KV state belongs to the model that computed it
+                conversations.clear();
+                owner = model;
+            }
+            if (conversationId == null) {
+                return Turn.standalone();
+            }
+
+            Conversation conversation = conversations.get(conversationId);
+            if (conversation != null && conversation.busy) {
+                return Turn.standalone();
+            }
+            if (conversation != null && conversation.tokens >= maxConversationTokens) {
+                conversations.remove(conversationId);
+                conversation = null;
+            }
+            if (conversation == null) {
+                conversation = new Conversation(UUID.randomUUID());
+                conversations.put(conversationId, conversation);
+            }
+            conversation.busy = true;
+            evictLeastRecentlyUsed();
+            return new Turn(conversationId, conversation.session, conversation.tokens, conversation.context, model);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a finished turn: the tokens it added to the session and the
+     * financial context the conversation has now seen.
+     */
+    public void complete(Turn turn, int tokensAdded, String context) {
+        if (turn.conversationId() == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            Conversation conversation = conversations.get(turn.conversationId());
+            if (turn.model() != owner || conversation == null || !conversation.session.equals(turn.session())) {
+                return;
+            }
+            conversation.busy = false;
+            conversation.tokens += tokensAdded;
+            conversation.context = context;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the conversation after a failed turn, since its session may hold
+     * a partial turn.
+     */
+    public void discard(Turn turn) {
+        if (turn.conversationId() == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            Conversation conversation = conversations.get(turn.conversationId());
+            if (turn.model() == owner && conversation != null && conversation.session.equals(turn.session())) {
+                conversations.remove(turn.conversationId());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Iterator<Map.Entry<Long, Conversation>> it = conversations.entrySet().iterator();
+        while (conversations.size() > MAX_CONVERSATIONS && it.hasNext()) {
+            Map.Entry<Long, Conversation> entry = it.next();
+            if (!entry.getValue().busy) {
+                it.remove();
+                log.debug("Stopped tracking the session of conversation {}", entry.getKey());
+            }
+        }
+    }
+
+    private static final class Conversation {
+        private final UUID session;
+        private int tokens;
+        private String context;
+        private boolean busy;
+
+        private Conversation(UUID session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * One turn of a conversation. {@code position} is the number of tokens
+     * already in the session; zero means the turn must send the full prompt.
+     * {@code context} is the financial context earlier turns sent, if any.
+     */
+    public record Turn(Long conversationId, UUID session, int position, String context, AbstractModel model) {
+        static Turn standalone() {
+            return new Turn(null, UUID.randomUUID(), 0, null, null);
+        }
+
+        public boolean isFollowUp() {
+            return position > 0;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.functions.Generator;
+import com.github.tjake.jlama.safetensors.prompt.PromptContext;
+import jakarta.annotation.PreDestroy;
+import org.emblow.envelofy.domain.ChatMessage;
+import org.emblow.envelofy.domain.ChatSession;
+import org.emblow.envelofy.repository.ChatMessageRepository;
+import org.emblow.envelofy.repository.ChatSessionRepository;
+import org.emblow.envelofy.service.SecurityService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps a rolling summary of each chat session, so prompts carry the gist
+ * of the whole conversation at a constant size: the summary plus the last
+ * few turns, instead of a history that grows until it is cut.
+ * <p>
+ * After each answer, turns that have fallen out of the recent window are
+ * folded into the session's summary by the local model, in the background
+ * and through the {@link InferenceScheduler} so it takes its turn with the
+ * chats. Without a loaded local model nothing is folded and prompts carry
+ * as many recent turns as fit the history budget.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class ConversationSummaryService {
+    private static final Logger log = LoggerFactory.getLogger(ConversationSummaryService.class);
+    private static final String SYSTEM_MESSAGE =
+        "You maintain short summaries of conversations between a user and their budgeting assistant.";
+
+    private final ChatSessionRepository chatSessionRepository;
+    private final ChatMessageRepository chatMessageRepository;
+    private final SecurityService securityService;
+    private final TokenCountingService tokenCounter;
+    private final JllamaModelManager modelManager;
+    private final InferenceScheduler scheduler;
+    private final int recentMessages;
+    private final int compactBatch;
+    private final int summaryMaxTokens;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "conversation-summarizer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+
+    public ConversationSummaryService(
+        ChatSessionRepository chatSessionRepository,
+        ChatMessageRepository chatMessageRepository,
+        SecurityService securityService,
+        TokenCountingService tokenCounter,
+        JllamaModelManager modelManager,
+        InferenceScheduler scheduler,
+        @Value("${envelofy.llm.summary.recent-messages:6}") int recentMessages,
+        @Value("${envelofy.llm.summary.compact-batch:4}") int compactBatch,
+        @Value("${envelofy.llm.summary.max-tokens:256}") int summaryMaxTokens
+    ) {
+        this.chatSessionRepository = chatSessionRepository;
+        this.chatMessageRepository = chatMessageRepository;
+        this.securityService = securityService;
+        this.tokenCounter = tokenCounter;
+        this.modelManager = modelManager;
+        this.scheduler = scheduler;
+        this.recentMessages = recentMessages;
+        this.compactBatch = Math.max(1, compactBatch);
+        this.summaryMaxTokens = summaryMaxTokens;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compactor.shutdownNow();
+    }
+
+    /**
+     * The conversation so far for a prompt: the session's summary and the
+     * most recent turns that fit the history budget. The current question,
+     * already stored as the last message, is left out. Empty for a
+     * standalone query or a session with no earlier turns. Sized for the
+     * given provider's window.
+     */
+    public String historyFor(Long sessionId, String currentQuery, String provider) {
+        if (sessionId == null) {
+            return "";
+        }
+        ChatSession session = chatSessionRepository.findById(sessionId).orElse(null);
+        if (session == null || !securityService.isOwner(session.getOwner())) {
+            return "";
+        }
+        List<ChatMessage> unsummarized = unsummarized(session);
+        if (!unsummarized.isEmpty()) {
+            ChatMessage last = unsummarized.get(unsummarized.size() - 1);
+            if ("user".equals(last.getRole()) && last.getContent().equals(currentQuery)) {
+                unsummarized = unsummarized.subList(0, unsummarized.size() - 1);
+            }
+        }
+
+        String summary = session.getSummary();
+        int remaining = tokenCounter.historyBudget(provider) - tokenCounter.count(provider, summary);
+        // Newest first, so the latest turns win when they don't all fit
+        Deque<String> turns = new ArrayDeque<>();
+        for (int i = unsummarized.size() - 1; i >= 0 && turns.size() < recentMessages; i--) {
+            String turn = formatTurn(unsummarized.get(i));
+            int tokens = tokenCounter.count(provider, turn);
+            if (tokens > remaining) {
+                break;
+            }
+            turns.addFirst(turn);
+            remaining -= tokens;
+        }
+
+        StringBuilder history = new StringBuilder();
+        if (summary != null && !summary.isBlank()) {
+            history.append("Summary of earlier conversation:\n").append(summary.trim()).append("\n\n");
+        }
+        if (!turns.isEmpty()) {
+            history.append("Recent turns:\n");
+            turns.forEach(history::append);
+        }
+        return history.toString();
+    }
+
+    /**
+     * Whether turns are being folded into summaries, so the stored turns
+     * after a session's summary are still needed for prompts.
+     */
+    public boolean isSummarizing() {
+        return modelManager.isLoaded();
+    }
+
+    /**
+     * Queues the session for compaction. Called once a turn is stored; a
+     * session already queued is not queued again.
+     */
+    public void compactLater(Long sessionId) {
+        if (!isSummarizing() || !pending.add(sessionId)) {
+            return;
+        }
+        compactor.execute(() -> {
+            pending.remove(sessionId);
+            try {
+                compact(sessionId);
+            } catch (Exception e) {
+                log.warn("Could not summarize chat session {}: {}", sessionId, e.getMessage());
+            }
+        });
+    }
+
+    // Folds the turns before the recent window into the summary, a batch at a time
+    private void compact(Long sessionId) {
+        ChatSession session = chatSessionRepository.findById(sessionId).orElse(null);
+        if (session == null) {
+            return;
+        }
+        List<ChatMessage> unsummarized = unsummarized(session);
+        int foldable = unsummarized.size() - recentMessages;
+        if (foldable < compactBatch) {
+            return;
+        }
+        List<ChatMessage> folded = unsummarized.subList(0, foldable);
+
+        StringBuilder turns = new StringBuilder();
+        folded.forEach(message -> turns.append(formatTurn(message)));
+        String prompt = String.format("""
+            Update the summary with the new turns. Keep amounts, dates, envelope and account names,
+            the user's goals and anything they asked to be remembered; drop pleasantries.
+            Reply with the summary only, in at most %d words.
+
+            Summary so far:
+            %s
+
+            New turns:
+            %s
+            """, summaryMaxTokens * 3 / 4, session.getSummary() == null ? "(none)" : session.getSummary(), turns);
+
+        String summary;
+        try {
+            summary = scheduler.call("summary:" + sessionId, onToken -> modelManager.withModel(model -> {
+                Generator.Response response = model.generate(UUID.randomUUID(), promptContext(model, prompt), 0.0f,
+                    summaryMaxTokens, (token, timing) -> onToken.accept(token));
+                modelManager.recordSessionTokens(model, response.promptTokens + response.generatedTokens);
+                return response.responseText;
+            }));
+        } catch (RejectedExecutionException e) {
+            // The model is busy with chats; the next stored turn tries again
+            log.debug("Deferred summary of chat session {}: {}", sessionId, e.getMessage());
+            return;
+        }
+
+        // An update rather than a save: the session may have been deleted while the model ran
+        if (chatSessionRepository.updateSummary(sessionId, summary.trim(), folded.get(folded.size() - 1).getId()) > 0) {
+            log.debug("Folded {} messages into the summary of chat session {}", folded.size(), sessionId);
+        }
+    }
+
+    private List<ChatMessage> unsummarized(ChatSession session) {
+        Long through = session.getSummarizedThroughId();
+        return chatMessageRepository.findBySessionAndIdGreaterThanOrderByIdAsc(session, through != null ? through : 0L);
+    }
+
+    // Answers are stored as the model's JSON; only their text matters here
+    private String formatTurn(ChatMessage message) {
+        String content = message.getContent();
+        if ("assistant".equals(message.getRole()) && content.trim().startsWith("{")) {
+            try {
+                JsonNode node = objectMapper.readTree(content);
+                if (node.hasNonNull("text")) {
+                    content = node.get("text").asText();
+                }
+            } catch (Exception e) {
+                // Not JSON after all; keep it as written
+            }
+        }
+        return ("user".equals(message.getRole()) ? "User: " : "Assistant: ") + content.trim() + "\n";
+    }
+
+    private PromptContext promptContext(AbstractModel model, String prompt) {
+        if (model.promptSupport().isPresent()) {
+            return model.promptSupport().get().builder()
+                .addSystemMessage(SYSTEM_MESSAGE)
+                .addUserMessage(prompt)
+                .build();
+        }
+        return PromptContext.of(SYSTEM_MESSAGE + "\n\n" + prompt);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.emblow.envelofy.service.DataVersionService;
+import org.emblow.envelofy.service.DataVersionService.DataDomain;
+import org.emblow.envelofy.service.SecurityService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Caches the sections of the financial context sent with every chat
+ * message. Each section is keyed by the data versions it was built from
+ * and by the day, since several sections cover a rolling 30-day window, so
+ * a follow-up question only rebuilds what actually changed.
+ * <p>
+ * Kept as its own singleton so the cache survives the LLM service being
+ * rebuilt on a settings refresh.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class FinancialContextCache {
+    private static final Logger log = LoggerFactory.getLogger(FinancialContextCache.class);
+
+    private final DataVersionService dataVersionService;
+    private final SecurityService securityService;
+
+    private final Map<Long, Map<ContextSection, CachedSection>> sections = new ConcurrentHashMap<>();
+
+    public FinancialContextCache(DataVersionService dataVersionService, SecurityService securityService) {
+        this.dataVersionService = dataVersionService;
+        this.securityService = securityService;
+    }
+
+    /**
+     * Returns the current user's cached section, building it if the data it
+     * depends on changed since it was cached.
+     */
+    public String get(ContextSection section, Supplier<String> builder) {
+        Long userId = securityService.getCurrentUser().getId();
+        // Read the version before building, so a write during the build leaves the entry stale
+        long version = dataVersionService.version(userId, section.dependsOn());
+        LocalDate today = LocalDate.now();
+
+        Map<ContextSection, CachedSection> userSections =
+            sections.computeIfAbsent(userId, id -> new ConcurrentHashMap<>());
+        CachedSection cached = userSections.get(section);
+        if (cached != null && cached.version() == version && cached.day().equals(today)) {
+            return cached.text();
+        }
+
+        long start = System.currentTimeMillis();
+        String text = builder.get();
+        userSections.put(section, new CachedSection(version, today, text));
+        log.debug("Rebuilt {} context section for user {} in {} ms",
+            section, userId, System.currentTimeMillis() - start);
+        return text;
+    }
+
+    public enum ContextSection {
+        ACCOUNTS(DataDomain.ACCOUNTS, DataDomain.TRANSACTIONS),
+        ENVELOPES(DataDomain.ENVELOPES, DataDomain.TRANSACTIONS),
+        RECENT_TRANSACTIONS(DataDomain.ACCOUNTS, DataDomain.ENVELOPES, DataDomain.TRANSACTIONS),
+        INSIGHTS(DataDomain.ACCOUNTS, DataDomain.ENVELOPES, DataDomain.TRANSACTIONS),
+        OVERALL_STATUS(DataDomain.ENVELOPES, DataDomain.TRANSACTIONS),
+        CATEGORY_SPENDING(DataDomain.ENVELOPES, DataDomain.TRANSACTIONS);
+
+        private final Set<DataDomain> dependsOn;
+
+        ContextSection(DataDomain first, DataDomain... rest) {
+            this.dependsOn = EnumSet.of(first, rest);
+        }
+
+        public Set<DataDomain> dependsOn() {
+            return dependsOn;
+        }
+    }
+
+    private record CachedSection(long version, LocalDate day, String text) {}
+}
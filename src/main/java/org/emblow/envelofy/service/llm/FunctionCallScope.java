@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.emblow.envelofy.domain.Envelope;
+import org.emblow.envelofy.domain.Transaction;
+import org.emblow.envelofy.service.EnvelopeService;
+import org.emblow.envelofy.service.TransactionService;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Shared state for the function calls of one response. Calls run
+ * concurrently on the given executor, each with its own timeout, and
+ * identical calls share one result. Transactions are fetched once per
+ * covering date range and sliced in memory, so charts and tables over the
+ * same or overlapping periods don't each query the database.
+ *
+ * @author Nicholas J Emblow
+ */
+public final class FunctionCallScope {
+    private final TransactionService transactionService;
+    private final EnvelopeService envelopeService;
+    private final Executor executor;
+    private final Duration timeout;
+
+    private final Map<String, CompletableFuture<Map<String, Object>>> results = new ConcurrentHashMap<>();
+
+    // Guards fetched and envelopes; a call that needs data another call is loading waits for it
+    private final ReentrantLock dataLock = new ReentrantLock();
+    private final List<FetchedRange> fetched = new ArrayList<>();
+    private List<Envelope> envelopes;
+
+    FunctionCallScope(
+        TransactionService transactionService,
+        EnvelopeService envelopeService,
+        Executor executor,
+        Duration timeout
+    ) {
+        this.transactionService = transactionService;
+        this.envelopeService = envelopeService;
+        this.executor = executor;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts the call unless one with the same key already ran in this
+     * scope. The future fails with a TimeoutException if the call takes
+     * longer than the scope's timeout.
+     */
+    public CompletableFuture<Map<String, Object>> call(String key, Supplier<Map<String, Object>> function) {
+        return results.computeIfAbsent(key, k -> CompletableFuture
+            .supplyAsync(function, executor)
+            .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Loads a range up front, typically the union of all ranges the calls
+     * of a response will ask for.
+     */
+    public void prefetch(LocalDateTime start, LocalDateTime end) {
+        transactions(start, end);
+    }
+
+    /**
+     * Transactions between start and end inclusive, newest first, as
+     * {@link TransactionService#getRecentTransactions} returns them.
+     */
+    public List<Transaction> transactions(LocalDateTime start, LocalDateTime end) {
+        dataLock.lock();
+        try {
+            for (FetchedRange range : fetched) {
+                if (range.covers(start, end)) {
+                    return range.slice(start, end);
+                }
+            }
+
+            // Widen to any overlapping range, so the merged one replaces it
+            LocalDateTime from = start;
+            LocalDateTime to = end;
+            Iterator<FetchedRange> it = fetched.iterator();
+            while (it.hasNext()) {
+                FetchedRange range = it.next();
+                if (range.overlaps(from, to)) {
+                    from = range.start().isBefore(from) ? range.start() : from;
+                    to = range.end().isAfter(to) ? range.end() : to;
+                    it.remove();
+                }
+            }
+            FetchedRange range = new FetchedRange(from, to, transactionService.getRecentTransactions(from, to));
+            fetched.add(range);
+            return range.slice(start, end);
+        } finally {
+            dataLock.unlock();
+        }
+    }
+
+    public List<Envelope> envelopes() {
+        dataLock.lock();
+        try {
+            if (envelopes == null) {
+                envelopes = envelopeService.getAllEnvelopes();
+            }
+            return envelopes;
+        } finally {
+            dataLock.unlock();
+        }
+    }
+
+    private record FetchedRange(LocalDateTime start, LocalDateTime end, List<Transaction> transactions) {
+        boolean covers(LocalDateTime from, LocalDateTime to) {
+            return !from.isBefore(start) && !to.isAfter(end);
+        }
+
+        boolean overlaps(LocalDateTime from, LocalDateTime to) {
+            return !from.isAfter(end) && !to.isBefore(start);
+        }
+
+        List<Transaction> slice(LocalDateTime from, LocalDateTime to) {
+            if (from.equals(start) && to.equals(end)) {
+                return transactions;
+            }
+            return transactions.stream()
+                .filter(tx -> !tx.getDate().isBefore(from) && !tx.getDate().isAfter(to))
+                .toList();
+        }
+    }
+}
@@ -27,15 +27,16 @@ import org.emblow.envelofy.service.TransactionService;
 import org.emblow.envelofy.service.IntentDetectionService;
 import org.emblow.envelofy.service.ml.AdvancedMLService;
 import org.emblow.envelofy.service.ml.SpendingInsightService;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public class GroqService extends AbstractLLMService {
     private final String groqApiKey;
     private final String groqBaseUrl;
     private final String groqModel;
+    private final ProviderTransport transport;
     private final WebClient webClient;
 
     public GroqService(
@@ -46,73 +47,67 @@ public class GroqService extends AbstractLLMService {
             AdvancedMLService advancedMLService,
             IntentDetectionService intentDetectionService,
             AccountService accountService,
+            FinancialContextCache contextCache,
+            TokenCountingService tokenCounter,
+            ResponseCache responseCache,
+            ConversationSummaryService conversationSummaries,
+            BlockingWorkScheduler blockingWork,
+            ProviderTransport transport,
             String groqApiKey,
             String groqBaseUrl,
             String groqModel) {
         super(transactionService, envelopeService, insightService,
               patternService, advancedMLService, intentDetectionService,
-              accountService);
+              accountService, contextCache, tokenCounter, responseCache,
+              conversationSummaries, blockingWork);
         this.groqApiKey = groqApiKey;
         this.groqBaseUrl = groqBaseUrl;
         this.groqModel = groqModel;
-        this.webClient = WebClient.builder()
-            .baseUrl(groqBaseUrl)
-            .defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + groqApiKey)
-            .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-            .build();
+        this.transport = transport;
+        this.webClient = transport.client(groqBaseUrl, groqApiKey);
     }
 
     @Override
-    public String processUserQuery(String userQuery) {
-        return super.processUserQuery(userQuery); // Delegate to AbstractLLMService
-    }
-
-    @Override
-    protected String callLLM(String prompt) {
-        try {
-            ObjectNode requestBody = objectMapper.createObjectNode();
-            requestBody.put("model", groqModel);
-            requestBody.put("temperature", 0.0);
-            requestBody.put("stream", false);
-            requestBody.put("top_p", 1.0);
-            requestBody.put("frequency_penalty", 0.0);
-            requestBody.put("presence_penalty", 0.0);
+    protected Mono<String> callLLM(String prompt) {
+        ObjectNode requestBody = objectMapper.createObjectNode();
+        requestBody.put("model", groqModel);
+        requestBody.put("temperature", 0.0);
+        requestBody.put("stream", false);
+        requestBody.put("top_p", 1.0);
+        requestBody.put("frequency_penalty", 0.0);
+        requestBody.put("presence_penalty", 0.0);
+        // JSON mode; Groq doesn't support it on streamed completions
+        requestBody.set("response_format", objectMapper.createObjectNode().put("type", "json_object"));
 
-            ArrayNode messages = objectMapper.createArrayNode();
-            messages.add(createMessage("system", "You are a financial analysis assistant with direct access to the user's financial data."));
-            messages.add(createMessage("user", prompt));
-            requestBody.set("messages", messages);
+        ArrayNode messages = objectMapper.createArrayNode();
+        messages.add(createMessage("system", "You are a financial analysis assistant with direct access to the user's financial data."));
+        messages.add(createMessage("user", prompt));
+        requestBody.set("messages", messages);
 
-            String responseBody = webClient.post()
+        return transport.call("Groq", webClient.post()
                 .uri("/openai/v1/chat/completions")
-                .bodyValue(requestBody)
-                .retrieve()
-                .onStatus(status -> status.value() != 200,
-                    response -> response.bodyToMono(String.class)
-                        .map(body -> new RuntimeException("Groq API error: " + body)))
-                .bodyToMono(String.class)
-                .block();
-
-            JsonNode root = objectMapper.readTree(responseBody);
-            if (root.has("choices") && root.get("choices").isArray() && root.get("choices").size() > 0) {
-                return root.get("choices").get(0).get("message").get("content").asText();
-            }
-            return "No response received from Groq.";
-        } catch (Exception e) {
-            throw new RuntimeException("Error during Groq inference: " + e.getMessage(), e);
-        }
+                .bodyValue(requestBody))
+            .map(responseBody -> {
+                try {
+                    JsonNode root = objectMapper.readTree(responseBody);
+                    if (root.has("choices") && root.get("choices").isArray() && root.get("choices").size() > 0) {
+                        return root.get("choices").get(0).get("message").get("content").asText();
+                    }
+                    return "No response received from Groq.";
+                } catch (JsonProcessingException e) {
+                    throw new RuntimeException("Error during Groq inference: " + e.getMessage(), e);
+                }
+            });
     }
 
     @Override
-    protected Flux<String> doStreamUserQuery(String userQuery) {
-        String intent = intentDetectionService.detectIntent(userQuery);
-        String context = buildFinancialContext();
-        String fullPrompt = buildPrompt(userQuery, context);
+    protected Flux<String> doStreamUserQuery(String userQuery, String context, Long conversationId, String history) {
+        String fullPrompt = buildPrompt(userQuery, context, history);
 
         ObjectNode requestBody = objectMapper.createObjectNode();
         requestBody.put("model", groqModel);
         requestBody.put("temperature", 0.0);
-        requestBody.put("stream", false);
+        requestBody.put("stream", true);
         requestBody.put("top_p", 1.0);
         requestBody.put("frequency_penalty", 0.0);
         requestBody.put("presence_penalty", 0.0);
@@ -122,35 +117,12 @@ public class GroqService extends AbstractLLMService {
         messages.add(createMessage("user", fullPrompt));
         requestBody.set("messages", messages);
 
-        return webClient.post()
-            .uri("/openai/v1/chat/completions")
-            .bodyValue(requestBody)
-            .retrieve()
-            .bodyToFlux(String.class)
-            .map(chunk -> {
-                try {
-                    if (chunk.trim().equals("DONE")) {
-                        return "";
-                    }
-
-                    JsonNode node = objectMapper.readTree(chunk);
-                    if (node.has("choices") && node.get("choices").size() > 0) {
-                        JsonNode delta = node.get("choices").get(0).get("delta");
-                        if (delta.has("content")) {
-                            return delta.get("content").asText();
-                        }
-                    }
-                    return "";
-                } catch (JsonProcessingException e) {
-                    System.err.println("Failed to parse chunk: " + chunk);
-                    return "";
-                }
-            })
-            .filter(chunk -> !chunk.isEmpty())
-            .onErrorResume(e -> {
-                System.err.println("Stream error: " + e.getMessage());
-                return Flux.empty();
-            });
+        return transport.stream("Groq", webClient.post()
+                .uri("/openai/v1/chat/completions")
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .bodyValue(requestBody))
+            .map(this::openAiStreamDelta)
+            .filter(chunk -> !chunk.isEmpty());
     }
 
     private ObjectNode createMessage(String role, String content) {
@@ -164,4 +136,14 @@ public class GroqService extends AbstractLLMService {
     protected boolean supportsStreaming() {
         return true;
     }
-}
\ No newline at end of file
+
+    @Override
+    protected String modelId() {
+        return groqModel;
+    }
+
+    @Override
+    protected String providerType() {
+        return "groq";
+    }
+}
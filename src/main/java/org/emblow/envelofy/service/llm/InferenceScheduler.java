@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs local model generations on a fixed number of worker threads, so
+ * concurrent chats queue for the model instead of all slowing each other
+ * down on the same cores.
+ * <p>
+ * Each user has their own queue and workers take from the users in turn,
+ * so one user sending several messages cannot starve the others. When the
+ * queue is full new requests are rejected. A request whose coalescing key
+ * matches one the same user already has queued or running shares that
+ * generation instead of starting another; requests of different users
+ * never share one, since a generation reads its user's data. Once every caller of a generation has cancelled,
+ * it is dropped from the queue, or aborted at its next token if it already
+ * started, so an abandoned answer doesn't hold up everyone else.
+ * <p>
+ * Workers stay platform threads in virtual-thread mode: a generation is
+ * CPU-bound from start to end, so a virtual thread would only hold its
+ * carrier for as long.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class InferenceScheduler {
+    private static final Logger log = LoggerFactory.getLogger(InferenceScheduler.class);
+    private static final String ANONYMOUS = "anonymous";
+
+    private final int concurrency;
+    private final int queueCapacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition jobAvailable = lock.newCondition();
+    // Insertion order is the rotation: a user goes to the back after each dispatch
+    private final Map<String, Deque<Job>> queues = new LinkedHashMap<>();
+    // Keyed by user and coalescing key
+    private final Map<String, Job> inFlight = new HashMap<>();
+    private int queued;
+    private int running;
+
+    private final Map<String, List<IntConsumer>> queueListeners = new ConcurrentHashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final LongAccumulator maxWaitMillis = new LongAccumulator(Long::max, 0);
+    private final AtomicLong totalGenerationMillis = new AtomicLong();
+    private final LongAccumulator maxGenerationMillis = new LongAccumulator(Long::max, 0);
+
+    public InferenceScheduler(
+        @Value("${envelofy.llm.inference.concurrency:1}") int concurrency,
+        @Value("${envelofy.llm.inference.queue-capacity:16}") int queueCapacity
+    ) {
+        this.concurrency = Math.max(1, concurrency);
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    @PostConstruct
+    public void start() {
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = new Thread(this::work, "inference-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * Queues the generation for the current user and streams its tokens.
+     * A subscriber that joins a coalesced generation late still receives
+     * every token. Cancelling withdraws this caller from the generation.
+     * The stream fails with a RejectedExecutionException if the queue is
+     * full.
+     */
+    public Flux<String> stream(String coalesceKey, Generation generation) {
+        try {
+            Job job = submit(currentUser(), coalesceKey, generation);
+            return job.tokens.asFlux().doOnCancel(() -> release(job));
+        } catch (RejectedExecutionException e) {
+            return Flux.error(e);
+        }
+    }
+
+    /**
+     * Queues the generation for the current user and waits for its text.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public String call(String coalesceKey, Generation generation) {
+        Job job = submit(currentUser(), coalesceKey, generation);
+        try {
+            return job.result.get();
+        } catch (InterruptedException e) {
+            release(job);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for inference");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new RuntimeException("Could not run inference: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Queues the generation for the current user and completes with its
+     * text, without a thread waiting for it. Cancelling withdraws this
+     * caller; the generation keeps running only for others sharing it.
+     * Fails with a RejectedExecutionException if the queue is full.
+     */
+    public Mono<String> callAsync(String coalesceKey, Generation generation) {
+        try {
+            Job job = submit(currentUser(), coalesceKey, generation);
+            // The shared future itself is never cancelled, only this caller's interest in it
+            return Mono.fromFuture(job.result, true).doOnCancel(() -> release(job));
+        } catch (RejectedExecutionException e) {
+            return Mono.error(e);
+        }
+    }
+
+    /**
+     * Notifies the listener of the user's position in the queue whenever it
+     * changes; 0 means their request started generating.
+     */
+    public Disposable addQueueListener(String user, IntConsumer listener) {
+        queueListeners.computeIfAbsent(user, u -> new CopyOnWriteArrayList<>()).add(listener);
+        return () -> queueListeners.computeIfPresent(user, (u, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
+    public SchedulerMetrics getMetrics() {
+        lock.lock();
+        try {
+            long done = completed.sum();
+            return new SchedulerMetrics(
+                queued,
+                running,
+                done,
+                rejected.sum(),
+                coalesced.sum(),
+                done == 0 ? 0 : totalWaitMillis.get() / done,
+                maxWaitMillis.get(),
+                done == 0 ? 0 : totalGenerationMillis.get() / done,
+                maxGenerationMillis.get()
+            );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Job submit(String user, String coalesceKey, Generation generation) {
+        Map<String, Integer> positions;
+        Job job;
+        lock.lock();
+        try {
+            String inFlightKey = coalesceKey != null ? user + "\u0000" + coalesceKey : null;
+            if (inFlightKey != null) {
+                Job existing = inFlight.get(inFlightKey);
+                if (existing != null) {
+                    coalesced.increment();
+                    existing.subscribers++;
+                    return existing;
+                }
+            }
+            if (queued >= queueCapacity) {
+                rejected.increment();
+                throw new RejectedExecutionException("The model is busy, please try again shortly");
+            }
+            job = new Job(user, inFlightKey, generation);
+            queues.computeIfAbsent(user, u -> new ArrayDeque<>()).addLast(job);
+            queued++;
+            if (inFlightKey != null) {
+                inFlight.put(inFlightKey, job);
+            }
+            positions = queuePositions();
+            jobAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        notifyPositions(positions);
+        return job;
+    }
+
+    /**
+     * Withdraws one caller from the job. When none are left, a queued job
+     * is removed and a running one is flagged so its next token aborts it.
+     */
+    private void release(Job job) {
+        Map<String, Integer> positions = null;
+        boolean dropped = false;
+        lock.lock();
+        try {
+            if (--job.subscribers > 0 || job.result.isDone()) {
+                return;
+            }
+            if (job.inFlightKey != null) {
+                inFlight.remove(job.inFlightKey, job);
+            }
+            if (job.started) {
+                job.cancelled = true;
+            } else {
+                Deque<Job> queue = queues.get(job.user);
+                if (queue != null && queue.remove(job)) {
+                    dropped = true;
+                    queued--;
+                    if (queue.isEmpty()) {
+                        queues.remove(job.user);
+                    }
+                    positions = queuePositions();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (dropped) {
+            CancellationException cancelled = new CancellationException("Inference cancelled before it started");
+            job.result.completeExceptionally(cancelled);
+            job.tokens.tryEmitError(cancelled);
+        }
+        if (positions != null) {
+            notifyPositions(positions);
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Job job;
+            Map<String, Integer> positions;
+            lock.lock();
+            try {
+                while (queued == 0) {
+                    jobAvailable.await();
+                }
+                job = next();
+                running++;
+                positions = queuePositions();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            notify(job.user, 0);
+            notifyPositions(positions);
+            run(job);
+        }
+    }
+
+    private Job next() {
+        Iterator<Map.Entry<String, Deque<Job>>> it = queues.entrySet().iterator();
+        Map.Entry<String, Deque<Job>> first = it.next();
+        Job job = first.getValue().pollFirst();
+        it.remove();
+        if (!first.getValue().isEmpty()) {
+            queues.put(first.getKey(), first.getValue());
+        }
+        queued--;
+        job.started = true;
+        return job;
+    }
+
+    private void run(Job job) {
+        long start = System.currentTimeMillis();
+        long waited = start - job.enqueuedAt;
+        try {
+            String text = job.generation.generate(token -> {
+                if (job.cancelled) {
+                    throw new CancellationException("Inference cancelled");
+                }
+                job.tokens.tryEmitNext(token);
+            });
+            job.result.complete(text);
+            job.tokens.tryEmitComplete();
+        } catch (Exception e) {
+            if (job.cancelled) {
+                // Generations may wrap the exception thrown from the callback
+                log.debug("Inference for user {} aborted, every caller cancelled", job.user);
+                e = new CancellationException("Inference cancelled");
+            } else {
+                log.error("Inference failed for user {}", job.user, e);
+            }
+            job.result.completeExceptionally(e);
+            job.tokens.tryEmitError(e);
+        } finally {
+            long generated = System.currentTimeMillis() - start;
+            lock.lock();
+            try {
+                running--;
+                if (job.inFlightKey != null) {
+                    inFlight.remove(job.inFlightKey, job);
+                }
+            } finally {
+                lock.unlock();
+            }
+            completed.increment();
+            totalWaitMillis.addAndGet(waited);
+            maxWaitMillis.accumulate(waited);
+            totalGenerationMillis.addAndGet(generated);
+            maxGenerationMillis.accumulate(generated);
+            log.debug("Inference for user {} waited {} ms and generated for {} ms", job.user, waited, generated);
+        }
+    }
+
+    // The first job of the i-th user in the rotation is dispatched i-th
+    private Map<String, Integer> queuePositions() {
+        Map<String, Integer> positions = new HashMap<>();
+        int position = 1;
+        for (String user : queues.keySet()) {
+            positions.put(user, position++);
+        }
+        return positions;
+    }
+
+    private void notifyPositions(Map<String, Integer> positions) {
+        positions.forEach(this::notify);
+    }
+
+    private void notify(String user, int position) {
+        List<IntConsumer> listeners = queueListeners.get(user);
+        if (listeners == null) {
+            return;
+        }
+        for (IntConsumer listener : listeners) {
+            try {
+                listener.accept(position);
+            } catch (Exception e) {
+                log.warn("Queue listener failed for user {}", user, e);
+            }
+        }
+    }
+
+    private static String currentUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return authentication != null ? authentication.getName() : ANONYMOUS;
+    }
+
+    /**
+     * A generation: passes each token to the consumer as it is produced and
+     * returns the full text.
+     */
+    @FunctionalInterface
+    public interface Generation {
+        String generate(Consumer<String> onToken);
+    }
+
+    private static final class Job {
+        private final String user;
+        private final String inFlightKey;
+        private final Generation generation;
+        private final long enqueuedAt = System.currentTimeMillis();
+        private final Sinks.Many<String> tokens = Sinks.many().replay().all();
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        // Guarded by the scheduler's lock; cancelled is read by the worker on every token
+        private int subscribers = 1;
+        private boolean started;
+        private volatile boolean cancelled;
+
+        private Job(String user, String inFlightKey, Generation generation) {
+            this.user = user;
+            this.inFlightKey = inFlightKey;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Queue state and timings since startup; wait is the time from
+     * submission until a worker started the generation.
+     */
+    public record SchedulerMetrics(
+        int queued,
+        int running,
+        long completed,
+        long rejected,
+        long coalesced,
+        long avgQueueWaitMillis,
+        long maxQueueWaitMillis,
+        long avgGenerationMillis,
+        long maxGenerationMillis
+    ) {}
+}
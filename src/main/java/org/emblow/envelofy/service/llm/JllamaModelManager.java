@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.ModelSupport;
+import com.github.tjake.jlama.safetensors.Config;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.safetensors.prompt.PromptContext;
+import com.github.tjake.jlama.util.Downloader;
+import jakarta.annotation.PreDestroy;
+import org.emblow.envelofy.service.SettingService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.OptionalInt;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Owns the local JLlama model independently of the refresh-scoped
+ * {@link LLMService}. The configured model is downloaded, loaded and warmed
+ * in the background at startup, survives settings refreshes, and is only
+ * reloaded when its name, directory or DTypes change. Switching to a remote
+ * provider releases the weights.
+ * <p>
+ * JLlama keeps the KV cache of every session it has seen until the model
+ * is closed, and has no way to release a single one. Callers therefore
+ * report the tokens each generation added to its session, and once the
+ * estimated KV memory of all sessions exceeds the configured budget the
+ * model is reloaded from the same files. Requests wait for the reload, and
+ * every conversation starts a new session afterwards.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class JllamaModelManager {
+    private static final Logger log = LoggerFactory.getLogger(JllamaModelManager.class);
+
+    private final SettingService settingService;
+    private final boolean warmUpEnabled;
+    private final int warmUpTokens;
+    private final long kvBudgetBytes;
+
+    // One loader thread: loads are rare and must not overlap
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jllama-model-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guards spec/loading; readers of the model hold modelLock's read lock while generating
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final ReentrantReadWriteLock modelLock = new ReentrantReadWriteLock();
+
+    private ModelSpec spec;
+    private CompletableFuture<AbstractModel> loading;
+    private volatile AbstractModel model;
+    private volatile ModelStatus status = ModelStatus.idle();
+    // Estimated KV memory of all sessions of the loaded model
+    private final AtomicLong kvBytes = new AtomicLong();
+
+    public JllamaModelManager(
+        SettingService settingService,
+        @Value("${envelofy.llm.jllama.warm-up:true}") boolean warmUpEnabled,
+        @Value("${envelofy.llm.jllama.warm-up-tokens:8}") int warmUpTokens,
+        @Value("${envelofy.llm.jllama.kv-cache.budget-mb:1024}") long kvBudgetMb
+    ) {
+        this.settingService = settingService;
+        this.warmUpEnabled = warmUpEnabled;
+        this.warmUpTokens = warmUpTokens;
+        this.kvBudgetBytes = kvBudgetMb * 1024 * 1024;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        applyConfiguration();
+    }
+
+    /**
+     * Settings saves refresh every refresh-scoped bean; only react when the
+     * model configuration itself changed.
+     */
+    @EventListener(RefreshScopeRefreshedEvent.class)
+    public void onRefresh() {
+        applyConfiguration();
+    }
+
+    private void applyConfiguration() {
+        try {
+            // A fallback model must already be loaded when the primary provider fails
+            if (isConfigured()) {
+                load(ModelSpec.fromSettings(settingService));
+            } else {
+                release();
+            }
+        } catch (Exception e) {
+            log.error("Error applying JLlama configuration", e);
+        }
+    }
+
+    // Whether JLlama is the configured provider or one of its fallbacks
+    private boolean isConfigured() {
+        String type = settingService.getSetting("llm.service.type", "jllama").trim().toLowerCase();
+        String fallbacks = settingService.getSetting("llm.service.fallback", "").trim().toLowerCase();
+        return "jllama".equals(type) || Arrays.asList(fallbacks.split("\\s*,\\s*")).contains("jllama");
+    }
+
+    /**
+     * Runs the action with the loaded model, waiting for a load in progress.
+     * Fails at once when JLlama isn't configured, rather than loading it.
+     * The model is not released while an action is running.
+     */
+    public <T> T withModel(Function<AbstractModel, T> action) {
+        while (true) {
+            AbstractModel loaded = awaitModel();
+            modelLock.readLock().lock();
+            try {
+                // A reload may have swapped the model while we waited for the lock
+                if (loaded == model) {
+                    return action.apply(loaded);
+                }
+            } finally {
+                modelLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Records the tokens a generation added to its session on the given
+     * model, and schedules a reload once all sessions together exceed the
+     * KV budget. Call it while still inside {@link #withModel}.
+     */
+    public void recordSessionTokens(AbstractModel generatedOn, int tokens) {
+        if (generatedOn != model || tokens <= 0) {
+            return;
+        }
+        long total = kvBytes.addAndGet(tokens * estimateKvBytesPerToken(generatedOn.getConfig()));
+        if (total > kvBudgetBytes) {
+            reclaimKvMemory(generatedOn, total);
+        }
+    }
+
+    /**
+     * Estimated KV memory held by the sessions of the loaded model.
+     */
+    public long getKvBytes() {
+        return kvBytes.get();
+    }
+
+    public ModelStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * The model that serves requests: the one loaded or loading, otherwise
+     * the configured one.
+     */
+    public String getModelName() {
+        stateLock.lock();
+        try {
+            return spec != null ? spec.modelName() : ModelSpec.fromSettings(settingService).modelName();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Whether a model is loaded and ready, without waiting for a load.
+     */
+    public boolean isLoaded() {
+        return model != null;
+    }
+
+    /**
+     * Counts tokens with the loaded model's tokenizer; empty while no model
+     * is loaded. Never waits for a load.
+     */
+    public OptionalInt countTokens(String text) {
+        AbstractModel current = model;
+        return current == null
+            ? OptionalInt.empty()
+            : OptionalInt.of(current.getTokenizer().encode(text).length);
+    }
+
+    /**
+     * The loaded model's context length; empty while no model is loaded.
+     */
+    public OptionalInt contextLength() {
+        AbstractModel current = model;
+        return current == null ? OptionalInt.empty() : OptionalInt.of(current.getConfig().contextLength);
+    }
+
+    private AbstractModel awaitModel() {
+        CompletableFuture<AbstractModel> pending;
+        stateLock.lock();
+        try {
+            pending = loading;
+        } finally {
+            stateLock.unlock();
+        }
+        if (pending == null || pending.isCompletedExceptionally()) {
+            // Released, or a late call from a provider that was switched away from: don't reload the weights
+            if (!isConfigured()) {
+                throw new IllegalStateException("JLlama model is not configured");
+            }
+            // Not started yet (chat before ApplicationReady) or the last load failed: retry
+            pending = load(ModelSpec.fromSettings(settingService));
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the JLlama model");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not load JLlama model: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private CompletableFuture<AbstractModel> load(ModelSpec requested) {
+        stateLock.lock();
+        try {
+            if (requested.equals(spec) && loading != null && !loading.isCompletedExceptionally()) {
+                return loading;
+            }
+            spec = requested;
+            loading = CompletableFuture.supplyAsync(() -> doLoad(requested), loader);
+            return loading;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private void reclaimKvMemory(AbstractModel full, long total) {
+        stateLock.lock();
+        try {
+            // Only once per model, and never over a load or release already under way
+            if (full != model || spec == null || loading == null || !loading.isDone()
+                    || loading.isCompletedExceptionally() || loading.join() != full) {
+                return;
+            }
+            log.info("Reloading JLlama model to free {} MB of session KV cache", total / (1024 * 1024));
+            ModelSpec current = spec;
+            loading = CompletableFuture.supplyAsync(() -> doLoad(current), loader);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    // Keys and values for every layer and KV head, in F32
+    private static long estimateKvBytesPerToken(Config config) {
+        return 2L * config.numberOfLayers * config.numberOfKeyValueHeads * config.headSize * Float.BYTES;
+    }
+
+    private AbstractModel doLoad(ModelSpec requested) {
+        unload();
+        long start = System.currentTimeMillis();
+        try {
+            status = ModelStatus.of(requested, LoadState.DOWNLOADING, 0, 0, null);
+            File localModelPath = new Downloader(requested.workingDirectory(), requested.modelName()).huggingFaceModel();
+            long weightBytes = sizeOfWeights(localModelPath.toPath());
+
+            status = ModelStatus.of(requested, LoadState.LOADING, weightBytes, 0, null);
+            AbstractModel loaded = ModelSupport.loadModel(localModelPath, requested.workingDType(), requested.quantizedDType());
+
+            if (warmUpEnabled) {
+                status = ModelStatus.of(requested, LoadState.WARMING, weightBytes, 0, null);
+                warmUp(loaded);
+            }
+
+            modelLock.writeLock().lock();
+            try {
+                model = loaded;
+                kvBytes.set(0);
+            } finally {
+                modelLock.writeLock().unlock();
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            status = ModelStatus.of(requested, LoadState.READY, weightBytes, elapsed, null);
+            log.info("Loaded JLlama model {} ({} MB of weights) in {} ms",
+                requested.modelName(), weightBytes / (1024 * 1024), elapsed);
+            return loaded;
+        } catch (Exception e) {
+            log.error("Error loading JLlama model {}", requested.modelName(), e);
+            status = ModelStatus.of(requested, LoadState.FAILED, 0, 0, e.getMessage());
+            throw new RuntimeException("Could not load JLlama model: " + e.getMessage(), e);
+        }
+    }
+
+    // A short generation pages in the weights and JITs the kernels before the first real request
+    private void warmUp(AbstractModel loaded) {
+        PromptContext ctx = loaded.promptSupport().isPresent()
+            ? loaded.promptSupport().get().builder().addUserMessage("Hello").build()
+            : PromptContext.of("Hello");
+        loaded.generateBuilder()
+            .session(UUID.randomUUID())
+            .promptContext(ctx)
+            .ntokens(warmUpTokens)
+            .temperature(0.0f)
+            .generate();
+    }
+
+    private void release() {
+        stateLock.lock();
+        try {
+            if (spec == null && model == null) {
+                return;
+            }
+            spec = null;
+            loading = null;
+            loader.submit(this::unload);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    // Waits for running generations, then drops the weights
+    private void unload() {
+        AbstractModel previous;
+        modelLock.writeLock().lock();
+        try {
+            previous = model;
+            model = null;
+            kvBytes.set(0);
+        } finally {
+            modelLock.writeLock().unlock();
+        }
+        if (previous == null) {
+            return;
+        }
+        try {
+            if (previous instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+        } catch (Exception e) {
+            log.warn("Error closing JLlama model", e);
+        }
+        status = ModelStatus.idle();
+        log.info("Released JLlama model");
+    }
+
+    private static long sizeOfWeights(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files
+                .filter(path -> path.toString().endsWith(".safetensors"))
+                .mapToLong(path -> path.toFile().length())
+                .sum();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loader.shutdownNow();
+        unload();
+    }
+
+    public record ModelSpec(String modelName, String workingDirectory, DType workingDType, DType quantizedDType) {
+        static ModelSpec fromSettings(SettingService settings) {
+            return new ModelSpec(
+                settings.getSetting("jllama.model.name", "tjake/Llama-3.2-1B-Instruct-JQ4"),
+                settings.getSetting("jllama.model.directory", "./models"),
+                DType.valueOf(settings.getSetting("jllama.model.working.dtype", "F32").trim().toUpperCase()),
+                DType.valueOf(settings.getSetting("jllama.model.quantized.dtype", "I8").trim().toUpperCase())
+            );
+        }
+    }
+
+    public enum LoadState {
+        IDLE,
+        DOWNLOADING,
+        LOADING,
+        WARMING,
+        READY,
+        FAILED
+    }
+
+    /**
+     * Load state of the model; {@code weightBytes} is the size of its
+     * weight files, which is what the loaded model maps into memory.
+     */
+    public record ModelStatus(
+        String modelName,
+        LoadState state,
+        long weightBytes,
+        long loadMillis,
+        String error
+    ) {
+        static ModelStatus idle() {
+            return new ModelStatus(null, LoadState.IDLE, 0, 0, null);
+        }
+
+        static ModelStatus of(ModelSpec spec, LoadState state, long weightBytes, long loadMillis, String error) {
+            return new ModelStatus(spec.modelName(), state, weightBytes, loadMillis, error);
+        }
+    }
+}
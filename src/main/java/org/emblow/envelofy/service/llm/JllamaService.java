@@ -17,10 +17,9 @@
 package org.emblow.envelofy.service.llm;
 
 import com.github.tjake.jlama.model.AbstractModel;
-import com.github.tjake.jlama.model.ModelSupport;
-import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.model.functions.Generator;
 import com.github.tjake.jlama.safetensors.prompt.PromptContext;
-import com.github.tjake.jlama.util.Downloader;
+import com.github.tjake.jlama.safetensors.prompt.PromptSupport;
 import org.emblow.envelofy.service.AccountService;
 import org.emblow.envelofy.service.EnvelopeService;
 import org.emblow.envelofy.service.PatternService;
@@ -28,16 +27,23 @@ import org.emblow.envelofy.service.TransactionService;
 import org.emblow.envelofy.service.IntentDetectionService;
 import org.emblow.envelofy.service.ml.AdvancedMLService;
 import org.emblow.envelofy.service.ml.SpendingInsightService;
+import org.emblow.envelofy.service.llm.ConversationKvCache.Turn;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.UUID;
 
 public class JllamaService extends AbstractLLMService {
+    private static final int MAX_TOKENS = 8096;
+    private static final String SYSTEM_MESSAGE =
+        "You are a financial analysis assistant with direct access to the user's financial data.";
+    // The start of every answer, written into the prompt so the model continues inside the JSON object
+    private static final String ANSWER_PREFIX = "{\"text\": \"";
 
-    private final String modelName;
-    private final String workingDirectory;
-    private AbstractModel model;
+    private final JllamaModelManager modelManager;
+    private final ConversationKvCache conversations;
+    private final InferenceScheduler scheduler;
 
     public JllamaService(
             TransactionService transactionService,
@@ -47,59 +53,111 @@ public class JllamaService extends AbstractLLMService {
             AdvancedMLService advancedMLService,
             IntentDetectionService intentDetectionService,
             AccountService accountService,
-            String modelName,
-            String workingDirectory
+            FinancialContextCache contextCache,
+            TokenCountingService tokenCounter,
+            ResponseCache responseCache,
+            ConversationSummaryService conversationSummaries,
+            BlockingWorkScheduler blockingWork,
+            JllamaModelManager modelManager,
+            ConversationKvCache conversations,
+            InferenceScheduler scheduler
     ) {
         super(transactionService, envelopeService, insightService, patternService,
-              advancedMLService, intentDetectionService, accountService);
-        this.modelName = modelName;
-        this.workingDirectory = workingDirectory;
+              advancedMLService, intentDetectionService, accountService, contextCache, tokenCounter, responseCache,
+              conversationSummaries, blockingWork);
+        this.modelManager = modelManager;
+        this.conversations = conversations;
+        this.scheduler = scheduler;
     }
 
     @Override
-    public String processUserQuery(String userQuery) {
-        return super.processUserQuery(userQuery); // Delegate to AbstractLLMService
+    protected Mono<String> callLLM(String prompt) {
+        return scheduler.callAsync(prompt, onToken -> modelManager.withModel(localModel -> {
+                Generator.Response response = localModel.generate(UUID.randomUUID(),
+                    promptContext(localModel, SYSTEM_MESSAGE, prompt), 0.0f, MAX_TOKENS,
+                    (token, timing) -> onToken.accept(token));
+                modelManager.recordSessionTokens(localModel, response.promptTokens + response.generatedTokens);
+                return response.responseText;
+            }))
+            .map(text -> ANSWER_PREFIX + text)
+            .onErrorMap(e -> new RuntimeException("Error during JLlama inference: " + e.getMessage(), e));
     }
 
+    /**
+     * Generates on the conversation's JLlama session, so a follow-up turn
+     * only prefills the new question: the instructions, the data and the
+     * earlier turns are already in the session's KV cache. Generations go
+     * through the {@link InferenceScheduler}; an identical turn already in
+     * flight for the same conversation is shared. A turn that starts a new
+     * session, because the conversation was evicted or restarted, carries
+     * the conversation's history instead.
+     */
     @Override
-    protected String callLLM(String prompt) {
-        try {
-            AbstractModel localModel = getModel();
-
-            PromptContext ctx;
-            if (localModel.promptSupport().isPresent()) {
-                ctx = localModel.promptSupport()
-                        .get()
-                        .builder()
-                        .addSystemMessage("You are a financial analysis assistant with direct access to the user's financial data.")
-                        .addUserMessage(prompt)
-                        .build();
-            } else {
-                ctx = PromptContext.of(prompt);
+    protected Flux<String> doStreamUserQuery(String userQuery, String context, Long conversationId, String history) {
+        String coalesceKey = conversationId + "\n" + userQuery + "\n" + context;
+        Flux<String> generated = scheduler.stream(coalesceKey, onToken -> modelManager.withModel(localModel -> {
+            Turn turn = conversations.begin(conversationId, localModel);
+            try {
+                Generator.Response response = localModel.generate(turn.session(),
+                    turnContext(localModel, turn, userQuery, context, history), 0.0f, MAX_TOKENS,
+                    (token, timing) -> onToken.accept(token));
+                int tokensAdded = response.promptTokens + response.generatedTokens;
+                conversations.complete(turn, tokensAdded, context);
+                modelManager.recordSessionTokens(localModel, tokensAdded);
+                return response.responseText;
+            } catch (RuntimeException e) {
+                conversations.discard(turn);
+                throw new RuntimeException("Error during JLlama inference: " + e.getMessage(), e);
             }
+        }));
+        return Flux.concat(Flux.just(ANSWER_PREFIX), generated);
+    }
 
-            return localModel.generateBuilder()
-                .session(UUID.randomUUID())
-                .promptContext(ctx)
-                .ntokens(8096)
-                .temperature(0.0f)
-                .generate()
-                .responseText;
-        } catch (IOException e) {
-            throw new RuntimeException("Error during JLlama inference: " + e.getMessage(), e);
+    private PromptContext turnContext(AbstractModel localModel, Turn turn, String userQuery, String context,
+                                      String history) {
+        if (!turn.isFollowUp()) {
+            return promptContext(localModel, SYSTEM_MESSAGE + "\n\n" + buildInstructions(),
+                buildQuestion(userQuery, context, history));
         }
+        // Resend the data only if it changed since the conversation last saw it
+        String question = context.equals(turn.context())
+            ? String.format("User Question: %s%n%nAnswer in the same JSON format as before.", userQuery)
+            : buildQuestion(userQuery, context);
+        return promptContext(localModel, null, question);
     }
 
-    private synchronized AbstractModel getModel() throws IOException {
-        if (model == null) {
-            File localModelPath = new Downloader(workingDirectory, modelName).huggingFaceModel();
-            model = ModelSupport.loadModel(localModelPath, DType.F32, DType.I8);
+    /**
+     * JLlama has no grammar-constrained sampling, so the answer is primed
+     * instead: the prompt ends with the opening of the response object, a
+     * prefix the model will usually continue. It constrains nothing; a model
+     * that writes the opening again is repaired by the
+     * {@link ResponseStreamParser}. A follow-up turn has no system message:
+     * the session already holds it.
+     */
+    private PromptContext promptContext(AbstractModel localModel, String systemMessage, String prompt) {
+        if (localModel.promptSupport().isPresent()) {
+            PromptSupport.Builder builder = localModel.promptSupport().get().builder();
+            if (systemMessage != null) {
+                builder.addSystemMessage(systemMessage);
+            }
+            return PromptContext.of(builder.addUserMessage(prompt).build().getPrompt() + ANSWER_PREFIX);
         }
-        return model;
+        return PromptContext.of((systemMessage != null ? systemMessage + "\n\n" + prompt : prompt)
+            + "\n\n" + ANSWER_PREFIX);
     }
 
     @Override
     protected boolean supportsStreaming() {
-        return false;
+        return true;
+    }
+
+    @Override
+    protected String modelId() {
+        return modelManager.getModelName();
+    }
+
+    @Override
+    protected String providerType() {
+        return "jllama";
     }
-}
\ No newline at end of file
+}
@@ -18,6 +18,7 @@ package org.emblow.envelofy.service.llm;
 
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 /**
  *
@@ -32,6 +33,34 @@ public interface LLMService {
      * @param userQuery
      * @return
      */
-    String processUserQuery(String userQuery);
-        Flux<String> streamUserQuery(String userQuery);
+    default String processUserQuery(String userQuery) {
+        return processUserQueryAsync(userQuery).block();
+    }
+
+    /**
+     * Processes the user query without blocking the caller: building the
+     * context, the provider call and the function calls all complete
+     * asynchronously, so a waiting query holds no thread.
+     * @param userQuery
+     * @return
+     */
+    Mono<String> processUserQueryAsync(String userQuery);
+
+    /**
+     * Streams the response as text deltas and completed charts and tables.
+     * @param userQuery
+     * @return
+     */
+    default Flux<ResponseEvent> streamUserQuery(String userQuery) {
+        return streamUserQuery(userQuery, null);
+    }
+
+    /**
+     * Streams the response to a query that belongs to a chat session, so
+     * providers can carry state from earlier turns.
+     * @param userQuery
+     * @param conversationId the chat session id, or null for a standalone query
+     * @return
+     */
+    Flux<ResponseEvent> streamUserQuery(String userQuery, Long conversationId);
 }
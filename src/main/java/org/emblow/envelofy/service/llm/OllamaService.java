@@ -16,6 +16,7 @@
  */
 package org.emblow.envelofy.service.llm;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -26,14 +27,14 @@ import org.emblow.envelofy.service.TransactionService;
 import org.emblow.envelofy.service.IntentDetectionService;
 import org.emblow.envelofy.service.ml.AdvancedMLService;
 import org.emblow.envelofy.service.ml.SpendingInsightService;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public class OllamaService extends AbstractLLMService {
     private final String ollamaUrl;
     private final String ollamaModel;
+    private final ProviderTransport transport;
     private final WebClient webClient;
 
     public OllamaService(
@@ -44,83 +45,84 @@ public class OllamaService extends AbstractLLMService {
             AdvancedMLService advancedMLService,
             IntentDetectionService intentDetectionService,
             AccountService accountService,
+            FinancialContextCache contextCache,
+            TokenCountingService tokenCounter,
+            ResponseCache responseCache,
+            ConversationSummaryService conversationSummaries,
+            BlockingWorkScheduler blockingWork,
+            ProviderTransport transport,
             String ollamaUrl,
             String ollamaModel) {
         super(transactionService, envelopeService, insightService, patternService,
-              advancedMLService, intentDetectionService, accountService);
+              advancedMLService, intentDetectionService, accountService, contextCache, tokenCounter, responseCache,
+              conversationSummaries, blockingWork);
         this.ollamaUrl = ollamaUrl;
         this.ollamaModel = ollamaModel;
-        this.webClient = WebClient.builder()
-            .baseUrl(ollamaUrl)
-            .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-            .build();
+        this.transport = transport;
+        // Ollama is unauthenticated
+        this.webClient = transport.client(ollamaUrl, null);
     }
 
     @Override
-    public String processUserQuery(String userQuery) {
-        // Delegate to AbstractLLMService, which handles context, prompt, and function calls
-        return super.processUserQuery(userQuery);
-    }
-
-    @Override
-    protected String callLLM(String prompt) {
-        try {
-            ObjectNode requestBody = objectMapper.createObjectNode();
-            requestBody.put("model", ollamaModel);
-            requestBody.put("stream", false);
-            requestBody.put("temperature", 0.0);
-            requestBody.put("top_p", 1.0);
-            requestBody.put("frequency_penalty", 0.0);
-            requestBody.put("repeat_penalty", 1.0);
-            requestBody.put("mirostat", 0);
+    protected Mono<String> callLLM(String prompt) {
+        ObjectNode requestBody = objectMapper.createObjectNode();
+        requestBody.put("model", ollamaModel);
+        requestBody.put("stream", false);
+        requestBody.put("temperature", 0.0);
+        requestBody.put("top_p", 1.0);
+        requestBody.put("frequency_penalty", 0.0);
+        requestBody.put("repeat_penalty", 1.0);
+        requestBody.put("mirostat", 0);
+        // Constrains sampling to valid JSON
+        requestBody.put("format", "json");
 
-            ArrayNode messages = objectMapper.createArrayNode();
-            messages.add(createMessage("system", "You are a financial analysis assistant with direct access to the user's financial data."));
-            messages.add(createMessage("user", prompt));
-            requestBody.set("messages", messages);
+        ArrayNode messages = objectMapper.createArrayNode();
+        messages.add(createMessage("system", "You are a financial analysis assistant with direct access to the user's financial data."));
+        messages.add(createMessage("user", prompt));
+        requestBody.set("messages", messages);
 
-            String responseBody = webClient.post()
+        return transport.call("Ollama", webClient.post()
                 .uri("/api/chat")
-                .bodyValue(requestBody)
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-
-            JsonNode root = objectMapper.readTree(responseBody);
-            if (root.has("message") && root.get("message").has("content")) {
-                return root.get("message").get("content").asText();
-            }
-            return "No response received from Ollama.";
-        } catch (Exception e) {
-            throw new RuntimeException("Error during Ollama inference: " + e.getMessage(), e);
-        }
+                .bodyValue(requestBody))
+            .map(responseBody -> {
+                try {
+                    JsonNode root = objectMapper.readTree(responseBody);
+                    if (root.has("message") && root.get("message").has("content")) {
+                        return root.get("message").get("content").asText();
+                    }
+                    return "No response received from Ollama.";
+                } catch (JsonProcessingException e) {
+                    throw new RuntimeException("Error during Ollama inference: " + e.getMessage(), e);
+                }
+            });
     }
 
     @Override
-    protected Flux<String> doStreamUserQuery(String userQuery) {
-        String context = buildFinancialContext();
-        String fullPrompt = buildPrompt(userQuery, context);
+    protected Flux<String> doStreamUserQuery(String userQuery, String context, Long conversationId, String history) {
+        String fullPrompt = buildPrompt(userQuery, context, history);
 
         ObjectNode requestBody = objectMapper.createObjectNode();
         requestBody.put("model", ollamaModel);
-        requestBody.put("stream", false);
+        requestBody.put("stream", true);
         requestBody.put("temperature", 0.0);
         requestBody.put("top_p", 1.0);
         requestBody.put("frequency_penalty", 0.0);
         requestBody.put("repeat_penalty", 1.0);
         requestBody.put("mirostat", 0);
+        // Constrains sampling to valid JSON
+        requestBody.put("format", "json");
 
         ArrayNode messages = objectMapper.createArrayNode();
         messages.add(createMessage("system", "You are a financial analysis assistant with direct access to the user's financial data."));
         messages.add(createMessage("user", fullPrompt));
         requestBody.set("messages", messages);
 
-        return webClient.post()
-            .uri("/api/chat")
-            .bodyValue(requestBody)
-            .retrieve()
-            .bodyToFlux(String.class)
+        return transport.stream("Ollama", webClient.post()
+                .uri("/api/chat")
+                .bodyValue(requestBody))
+            .filter(chunk -> !chunk.isBlank())
             .map(chunk -> {
+                // One JSON object per line, the last one marked "done"
                 try {
                     JsonNode node = objectMapper.readTree(chunk);
                     if (node.has("message") && node.get("message").has("content")) {
@@ -145,4 +147,14 @@ public class OllamaService extends AbstractLLMService {
     protected boolean supportsStreaming() {
         return true;
     }
-}
\ No newline at end of file
+
+    @Override
+    protected String modelId() {
+        return ollamaModel;
+    }
+
+    @Override
+    protected String providerType() {
+        return "ollama";
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Latency and health of each LLM provider, kept across settings refreshes
+ * so the routing service rebuilt on a refresh starts from what it learned.
+ * <p>
+ * Each provider has a histogram of its time to first response event, from
+ * which the hedge delay is read as a high percentile, and a circuit
+ * breaker: after consecutive failures the provider is skipped for a
+ * cool-down, then a single request probes it before it is used again.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class ProviderHealthTracker {
+    private static final Logger log = LoggerFactory.getLogger(ProviderHealthTracker.class);
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final double hedgePercentile;
+    private final long defaultHedgeMillis;
+    private final long minHedgeMillis;
+    private final long maxHedgeMillis;
+    private final int minSamples;
+    private final int window;
+
+    private final Map<String, ProviderState> providers = new ConcurrentHashMap<>();
+
+    public ProviderHealthTracker(
+        @Value("${envelofy.llm.routing.failure-threshold:3}") int failureThreshold,
+        @Value("${envelofy.llm.routing.open-ms:30000}") long openMillis,
+        @Value("${envelofy.llm.routing.hedge-percentile:0.9}") double hedgePercentile,
+        @Value("${envelofy.llm.routing.default-hedge-ms:3000}") long defaultHedgeMillis,
+        @Value("${envelofy.llm.routing.min-hedge-ms:250}") long minHedgeMillis,
+        @Value("${envelofy.llm.routing.max-hedge-ms:15000}") long maxHedgeMillis,
+        @Value("${envelofy.llm.routing.min-samples:20}") int minSamples,
+        @Value("${envelofy.llm.routing.window:500}") int window
+    ) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+        this.hedgePercentile = hedgePercentile;
+        this.defaultHedgeMillis = defaultHedgeMillis;
+        this.minHedgeMillis = minHedgeMillis;
+        this.maxHedgeMillis = maxHedgeMillis;
+        this.minSamples = minSamples;
+        this.window = Math.max(minSamples, window);
+    }
+
+    /**
+     * Whether a request may go to the provider now. While the breaker is
+     * open this is false; once the cool-down has passed it is true for a
+     * single probe until that probe reports back.
+     */
+    public boolean tryAcquire(String provider) {
+        return state(provider).tryAcquire();
+    }
+
+    /**
+     * Records the time the provider took to produce its first event.
+     */
+    public void recordLatency(String provider, long millis) {
+        state(provider).recordLatency(millis);
+    }
+
+    public void recordSuccess(String provider) {
+        state(provider).recordSuccess();
+    }
+
+    public void recordFailure(String provider, Throwable error) {
+        state(provider).recordFailure(error);
+    }
+
+    /**
+     * Releases a probe whose request was cancelled before it could tell
+     * whether the provider recovered.
+     */
+    public void recordCancelled(String provider) {
+        state(provider).recordCancelled();
+    }
+
+    /**
+     * How long to wait for the provider's first event before hedging to
+     * the next one: the configured percentile of its recent latency, or
+     * the default until enough requests have been measured.
+     */
+    public Duration hedgeDelay(String provider) {
+        long millis = state(provider).percentile(hedgePercentile);
+        if (millis < 0) {
+            millis = defaultHedgeMillis;
+        }
+        return Duration.ofMillis(Math.max(minHedgeMillis, Math.min(maxHedgeMillis, millis)));
+    }
+
+    public List<ProviderHealth> getHealth() {
+        List<ProviderHealth> health = new ArrayList<>();
+        providers.forEach((name, state) -> health.add(state.snapshot(name)));
+        return health;
+    }
+
+    private ProviderState state(String provider) {
+        return providers.computeIfAbsent(provider, ProviderState::new);
+    }
+
+    public enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    public record ProviderHealth(
+        String provider,
+        CircuitState circuit,
+        long requests,
+        long failures,
+        long p50Millis,
+        long p90Millis,
+        long p99Millis
+    ) {}
+
+    private final class ProviderState {
+        private final String name;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private CircuitState circuit = CircuitState.CLOSED;
+        private int consecutiveFailures;
+        private long openedAt;
+        private boolean probing;
+        private long requests;
+        private long failures;
+
+        private ProviderState(String name) {
+            this.name = name;
+        }
+
+        private boolean tryAcquire() {
+            lock.lock();
+            try {
+                switch (circuit) {
+                    case CLOSED -> {
+                        requests++;
+                        return true;
+                    }
+                    case OPEN -> {
+                        if (System.currentTimeMillis() - openedAt < openMillis) {
+                            return false;
+                        }
+                        circuit = CircuitState.HALF_OPEN;
+                        probing = false;
+                    }
+                    case HALF_OPEN -> { }
+                }
+                if (probing) {
+                    return false;
+                }
+                probing = true;
+                requests++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void recordLatency(long millis) {
+            lock.lock();
+            try {
+                latency.record(millis);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void recordSuccess() {
+            lock.lock();
+            try {
+                consecutiveFailures = 0;
+                if (circuit != CircuitState.CLOSED) {
+                    log.info("LLM provider {} recovered", name);
+                }
+                circuit = CircuitState.CLOSED;
+                probing = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void recordFailure(Throwable error) {
+            lock.lock();
+            try {
+                failures++;
+                consecutiveFailures++;
+                probing = false;
+                if (circuit == CircuitState.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+                    if (circuit != CircuitState.OPEN) {
+                        log.warn("LLM provider {} failed {} times, skipping it for {} ms: {}",
+                            name, consecutiveFailures, openMillis, error.getMessage());
+                    }
+                    circuit = CircuitState.OPEN;
+                    openedAt = System.currentTimeMillis();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void recordCancelled() {
+            lock.lock();
+            try {
+                probing = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long percentile(double p) {
+            lock.lock();
+            try {
+                return latency.total < minSamples ? -1 : latency.percentile(p);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private ProviderHealth snapshot(String provider) {
+            lock.lock();
+            try {
+                return new ProviderHealth(provider, circuit, requests, failures,
+                    latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Counts latencies in buckets that grow by a quarter, from 10 ms to
+     * several minutes. Counts are halved whenever the total passes the
+     * window, so older requests fade out and the percentiles follow the
+     * provider's current behaviour.
+     */
+    private final class LatencyHistogram {
+        private static final long[] BOUNDS = bounds();
+
+        private final long[] counts = new long[BOUNDS.length + 1];
+        private long total;
+
+        private void record(long millis) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            if (++total > window) {
+                total = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] /= 2;
+                    total += counts[i];
+                }
+            }
+        }
+
+        // The upper bound of the bucket holding the p-th latency, or -1 when empty
+        private long percentile(double p) {
+            if (total == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return BOUNDS[i];
+                }
+            }
+            return BOUNDS[BOUNDS.length - 1];
+        }
+
+        private static long[] bounds() {
+            List<Long> bounds = new ArrayList<>();
+            for (double bound = 10; bound <= 300_000; bound *= 1.25) {
+                bounds.add(Math.round(bound));
+            }
+            return bounds.stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The HTTP transport shared by the remote chat providers. It outlives the
+ * refresh-scoped provider beans, so a settings change swaps the provider
+ * without dropping the pooled keep-alive connections behind it.
+ * <p>
+ * Requests get connect and read timeouts, a cap on the response size, and
+ * retries with jittered exponential backoff when the provider is
+ * unreachable, rate limits (429) or fails (5xx). These failures all
+ * happen before any of the response body arrives, so a retried stream
+ * never repeats tokens.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class ProviderTransport {
+    private static final Logger log = LoggerFactory.getLogger(ProviderTransport.class);
+
+    private final ConnectionProvider connections;
+    private final HttpClient httpClient;
+    private final Duration callTimeout;
+    private final int maxResponseBytes;
+    private final int maxRetries;
+    private final Duration minBackoff;
+    private final Duration maxBackoff;
+    private final double jitter;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public ProviderTransport(
+        @Value("${envelofy.llm.http.max-connections:32}") int maxConnections,
+        @Value("${envelofy.llm.http.pending-acquire-timeout-ms:10000}") long pendingAcquireTimeoutMs,
+        @Value("${envelofy.llm.http.max-idle-ms:30000}") long maxIdleMs,
+        @Value("${envelofy.llm.http.max-life-ms:300000}") long maxLifeMs,
+        @Value("${envelofy.llm.http.connect-timeout-ms:5000}") int connectTimeoutMs,
+        @Value("${envelofy.llm.http.read-timeout-ms:60000}") long readTimeoutMs,
+        @Value("${envelofy.llm.http.call-timeout-ms:120000}") long callTimeoutMs,
+        @Value("${envelofy.llm.http.max-response-kb:2048}") int maxResponseKb,
+        @Value("${envelofy.llm.http.retry.max-retries:2}") int maxRetries,
+        @Value("${envelofy.llm.http.retry.min-backoff-ms:250}") long minBackoffMs,
+        @Value("${envelofy.llm.http.retry.max-backoff-ms:4000}") long maxBackoffMs,
+        @Value("${envelofy.llm.http.retry.jitter:0.5}") double jitter
+    ) {
+        this.connections = ConnectionProvider.builder("llm-providers")
+            .maxConnections(maxConnections)
+            .pendingAcquireTimeout(Duration.ofMillis(pendingAcquireTimeoutMs))
+            .maxIdleTime(Duration.ofMillis(maxIdleMs))
+            .maxLifeTime(Duration.ofMillis(maxLifeMs))
+            // Close idle connections the provider may already have dropped
+            .evictInBackground(Duration.ofMillis(maxIdleMs))
+            .build();
+        this.httpClient = HttpClient.create(connections)
+            .keepAlive(true)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+            // The longest gap between reads, so a stalled stream fails instead of hanging
+            .responseTimeout(Duration.ofMillis(readTimeoutMs));
+        this.callTimeout = Duration.ofMillis(callTimeoutMs);
+        this.maxResponseBytes = maxResponseKb * 1024;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.minBackoff = Duration.ofMillis(minBackoffMs);
+        this.maxBackoff = Duration.ofMillis(maxBackoffMs);
+        this.jitter = jitter;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        connections.dispose();
+    }
+
+    /**
+     * A client for one provider on the shared connection pool. A null or
+     * blank API key sends no Authorization header.
+     */
+    public WebClient client(String baseUrl, String apiKey) {
+        WebClient.Builder builder = WebClient.builder()
+            .clientConnector(new ReactorClientHttpConnector(httpClient))
+            .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(maxResponseBytes))
+            .baseUrl(baseUrl)
+            .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+        if (apiKey != null && !apiKey.isBlank()) {
+            builder.defaultHeader(HttpHeaders.AUTHORIZATION, "Bearer " + apiKey);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Sends the request and completes with the whole response body,
+     * retrying transient failures, for at most the call timeout.
+     */
+    public Mono<String> call(String provider, WebClient.RequestHeadersSpec<?> request) {
+        return request.retrieve()
+            .bodyToMono(String.class)
+            .retryWhen(retrySpec(provider))
+            .doOnSubscribe(s -> requests.increment())
+            .timeout(callTimeout)
+            .onErrorMap(e -> describe(provider, e));
+    }
+
+    /**
+     * Streams the response body, retrying transient failures that happen
+     * before the first chunk. The stream fails once it has delivered more
+     * than the response size limit.
+     */
+    public Flux<String> stream(String provider, WebClient.RequestHeadersSpec<?> request) {
+        Flux<String> chunks = request.retrieve()
+            .bodyToFlux(String.class)
+            .retryWhen(retrySpec(provider))
+            .doOnSubscribe(s -> requests.increment());
+        return Flux.defer(() -> {
+            AtomicLong received = new AtomicLong();
+            return chunks.doOnNext(chunk -> {
+                if (received.addAndGet(chunk.length()) > maxResponseBytes) {
+                    throw new IllegalStateException("response exceeded " + maxResponseBytes / 1024 + " KB");
+                }
+            });
+        }).onErrorMap(e -> describe(provider, e));
+    }
+
+    public TransportStats getStats() {
+        return new TransportStats(requests.sum(), retries.sum(), failures.sum());
+    }
+
+    private Retry retrySpec(String provider) {
+        return Retry.backoff(maxRetries, minBackoff)
+            .maxBackoff(maxBackoff)
+            .jitter(jitter)
+            .filter(ProviderTransport::isTransient)
+            .doBeforeRetry(signal -> {
+                retries.increment();
+                log.warn("Retrying {} request (attempt {}): {}",
+                    provider, signal.totalRetries() + 2, signal.failure().getMessage());
+            })
+            .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    private static boolean isTransient(Throwable e) {
+        if (e instanceof WebClientResponseException response) {
+            int status = response.getStatusCode().value();
+            return status == 429 || status >= 500;
+        }
+        // Connection refused, reset or timed out before a response
+        return e instanceof WebClientRequestException;
+    }
+
+    private RuntimeException describe(String provider, Throwable e) {
+        failures.increment();
+        if (e instanceof WebClientResponseException response) {
+            return new RuntimeException(provider + " API error " + response.getStatusCode().value()
+                + ": " + response.getResponseBodyAsString(), e);
+        }
+        if (e instanceof TimeoutException) {
+            return new RuntimeException(provider + " did not respond within " + callTimeout.toMillis() + " ms", e);
+        }
+        return new RuntimeException("Could not complete " + provider + " request: " + e.getMessage(), e);
+    }
+
+    /**
+     * Counts since startup; a failure is a request that still failed after
+     * its retries.
+     */
+    public record TransportStats(long requests, long retries, long failures) {}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.emblow.envelofy.service.DataVersionService;
+import org.emblow.envelofy.service.DataVersionService.DataDomain;
+import org.emblow.envelofy.service.SecurityService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches complete chat responses, with their charts and tables already
+ * resolved, so a question the user asked before is answered without
+ * building context or running the model.
+ * <p>
+ * Entries are keyed by user, provider, model and query, and remember the
+ * data version and day they were generated at. Any change to the user's
+ * accounts, envelopes or transactions moves the version, so the entry is
+ * no longer served and is replaced by the next answer. A query is looked
+ * up as typed first and then normalized (case, whitespace, trailing
+ * punctuation), so trivially different phrasings share an answer.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class ResponseCache {
+    private static final Logger log = LoggerFactory.getLogger(ResponseCache.class);
+    // Answers embed context and function results over all of these
+    private static final Set<DataDomain> DEPENDS_ON = EnumSet.allOf(DataDomain.class);
+
+    private final DataVersionService dataVersionService;
+    private final SecurityService securityService;
+    private final int maxEntries;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<CacheKey, CachedResponse> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, CachedResponse> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private final LongAdder exactHits = new LongAdder();
+    private final LongAdder normalizedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResponseCache(
+        DataVersionService dataVersionService,
+        SecurityService securityService,
+        @Value("${envelofy.llm.response-cache.max-entries:500}") int maxEntries
+    ) {
+        this.dataVersionService = dataVersionService;
+        this.securityService = securityService;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Looks the query up for the current user. The returned lookup carries
+     * the data version read now, before any generation, so an answer
+     * generated while the data changes is stored as already stale.
+     */
+    public Lookup lookup(String provider, String model, String query) {
+        Long userId = securityService.getCurrentUser().getId();
+        long version = dataVersionService.version(userId, DEPENDS_ON);
+        LocalDate today = LocalDate.now();
+        CacheKey exact = new CacheKey(userId, provider, model, query);
+        CacheKey normalized = new CacheKey(userId, provider, model, normalize(query));
+
+        List<ResponseEvent> events;
+        lock.lock();
+        try {
+            events = current(exact, version, today);
+            if (events != null) {
+                exactHits.increment();
+            } else {
+                events = current(normalized, version, today);
+                if (events != null) {
+                    normalizedHits.increment();
+                } else {
+                    misses.increment();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.debug("Response cache {} for user {}: {}", events != null ? "hit" : "miss", userId, query);
+        return new Lookup(exact, normalized, version, today, events);
+    }
+
+    /**
+     * Stores a complete response under both the exact and normalized query.
+     * Consecutive text events are merged, since a streamed answer arrives
+     * as many small deltas.
+     */
+    public void put(Lookup lookup, List<ResponseEvent> events) {
+        List<ResponseEvent> merged = mergeText(events);
+        CachedResponse response = new CachedResponse(lookup.version(), lookup.day(), merged);
+        lock.lock();
+        try {
+            entries.put(lookup.exact(), response);
+            entries.put(lookup.normalized(), response);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public CacheStats getStats() {
+        lock.lock();
+        try {
+            return new CacheStats(entries.size(), exactHits.sum(), normalizedHits.sum(), misses.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<ResponseEvent> current(CacheKey key, long version, LocalDate today) {
+        CachedResponse cached = entries.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.version() != version || !cached.day().equals(today)) {
+            entries.remove(key);
+            return null;
+        }
+        return cached.events();
+    }
+
+    private static String normalize(String query) {
+        return query.toLowerCase(Locale.ROOT)
+            .replaceAll("\\s+", " ")
+            .replaceAll("[\\s?!.]+$", "")
+            .trim();
+    }
+
+    private static List<ResponseEvent> mergeText(List<ResponseEvent> events) {
+        List<ResponseEvent> merged = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        for (ResponseEvent event : events) {
+            if (event.type() == ResponseEvent.Type.TEXT) {
+                text.append(event.content());
+                continue;
+            }
+            if (text.length() > 0) {
+                merged.add(ResponseEvent.text(text.toString()));
+                text.setLength(0);
+            }
+            merged.add(event);
+        }
+        if (text.length() > 0) {
+            merged.add(ResponseEvent.text(text.toString()));
+        }
+        return List.copyOf(merged);
+    }
+
+    private record CacheKey(Long userId, String provider, String model, String query) {}
+
+    private record CachedResponse(long version, LocalDate day, List<ResponseEvent> events) {}
+
+    /**
+     * Result of a lookup; {@code events} is null on a miss.
+     */
+    public record Lookup(CacheKey exact, CacheKey normalized, long version, LocalDate day, List<ResponseEvent> events) {
+        public boolean hit() {
+            return events != null;
+        }
+    }
+
+    public record CacheStats(int entries, long exactHits, long normalizedHits, long misses) {
+        public double hitRate() {
+            long lookups = exactHits + normalizedHits + misses;
+            return lookups == 0 ? 0.0 : (double) (exactHits + normalizedHits) / lookups;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+/**
+ * One piece of a streamed assistant response. TEXT carries the next part
+ * of the markdown answer; CHART and TABLE carry one complete chart or table
+ * as JSON, with any function call in it already executed.
+ *
+ * @author Nicholas J Emblow
+ */
+public record ResponseEvent(Type type, String content) {
+
+    public static ResponseEvent text(String content) {
+        return new ResponseEvent(Type.TEXT, content);
+    }
+
+    public static ResponseEvent chart(String json) {
+        return new ResponseEvent(Type.CHART, json);
+    }
+
+    public static ResponseEvent table(String json) {
+        return new ResponseEvent(Type.TABLE, json);
+    }
+
+    public enum Type {
+        TEXT,
+        CHART,
+        TABLE
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental parser for the {"text", "charts", "tables"} response the
+ * prompt asks for. Tokens are fed as they arrive: the decoded "text" value
+ * comes out as it is generated, and each chart or table comes out as raw
+ * JSON the moment its closing bracket arrives. Prose the model writes
+ * around the object is passed through as text, minus markdown code fences.
+ * A chart or table cut off by the end of the stream is closed and emitted
+ * anyway, so a truncated answer loses as little as possible; a unicode
+ * escape cut off in the text is kept as written rather than dropped.
+ * A text value that starts by opening the object again, as a model primed
+ * with {"text": " sometimes does, has that repeated opening dropped.
+ * <p>
+ * One instance per response; not thread-safe.
+ *
+ * @author Nicholas J Emblow
+ */
+public final class ResponseStreamParser {
+    private static final String TEXT_FIELD = "text";
+    private static final String CHARTS_FIELD = "charts";
+    private static final String TABLES_FIELD = "tables";
+    private static final String REPEATED_OPENING = "{\"text\":";
+
+    private enum StringRole { KEY, TEXT, OTHER }
+
+    private int depth;
+    private boolean started;
+    private boolean closed;
+
+    private boolean inString;
+    private boolean escape;
+    private int unicodeRemaining;
+    private int unicodeValue;
+    // The escape as written, kept until its last hex digit arrives
+    private final StringBuilder unicodeRaw = new StringBuilder();
+    private StringRole stringRole;
+
+    private boolean expectingKey;
+    private final StringBuilder key = new StringBuilder();
+    private String field;
+    private boolean inElementArray;
+    private StringBuilder element;
+    // Brackets opened inside the top-level object, innermost last
+    private final StringBuilder openBrackets = new StringBuilder();
+
+    private final StringBuilder outsideLine = new StringBuilder();
+    private boolean outsideEmitted;
+    private boolean separatorPending;
+
+    // Raw start of the text value, held while it may be the opening again
+    private StringBuilder opening;
+    private int openingMatched;
+
+    private final StringBuilder pendingText = new StringBuilder();
+    private List<ResponseEvent> events;
+
+    /**
+     * Consumes the next chunk and returns the events it completed, in order.
+     */
+    public List<ResponseEvent> feed(String chunk) {
+        events = new ArrayList<>();
+        for (int i = 0; i < chunk.length(); i++) {
+            process(chunk.charAt(i));
+        }
+        flushText();
+        return events;
+    }
+
+    /**
+     * Ends the stream, returning whatever was still buffered.
+     */
+    public List<ResponseEvent> finish() {
+        events = new ArrayList<>();
+        if (!started || closed) {
+            emitOutsideLine();
+        } else if (element != null) {
+            closeTruncatedElement();
+        } else if (opening != null) {
+            releaseOpening();
+        } else if (unicodeRemaining > 0) {
+            abandonUnicodeEscape();
+        }
+        flushText();
+        return events;
+    }
+
+    /**
+     * Whether a complete top-level object was seen.
+     */
+    public boolean isComplete() {
+        return closed;
+    }
+
+    private void process(char c) {
+        if (!started || closed) {
+            processOutside(c);
+            return;
+        }
+        if (element != null) {
+            element.append(c);
+        }
+        if (inString) {
+            processStringChar(c);
+            return;
+        }
+        switch (c) {
+            case '"' -> {
+                inString = true;
+                if (depth == 1 && expectingKey) {
+                    stringRole = StringRole.KEY;
+                    key.setLength(0);
+                } else if (depth == 1 && TEXT_FIELD.equals(field)) {
+                    stringRole = StringRole.TEXT;
+                    opening = new StringBuilder();
+                    openingMatched = 0;
+                } else {
+                    stringRole = StringRole.OTHER;
+                }
+            }
+            case ':' -> {
+                if (depth == 1) {
+                    expectingKey = false;
+                }
+            }
+            case ',' -> {
+                if (depth == 1) {
+                    expectingKey = true;
+                    field = null;
+                }
+            }
+            case '{', '[' -> {
+                depth++;
+                openBrackets.append(c);
+                if (depth == 2) {
+                    inElementArray = c == '[' && (CHARTS_FIELD.equals(field) || TABLES_FIELD.equals(field));
+                } else if (depth == 3 && inElementArray && element == null) {
+                    element = new StringBuilder().append(c);
+                }
+            }
+            case '}', ']' -> {
+                if (depth == 3 && element != null) {
+                    emitElement();
+                }
+                depth--;
+                if (openBrackets.length() > 0) {
+                    openBrackets.setLength(openBrackets.length() - 1);
+                }
+                if (depth == 0) {
+                    closed = true;
+                    separatorPending = true;
+                }
+            }
+            default -> {
+                // Whitespace and literals carry nothing we stream
+            }
+        }
+    }
+
+    private void processStringChar(char c) {
+        if (opening != null) {
+            holdOpening(c);
+            return;
+        }
+        if (unicodeRemaining > 0) {
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                // Not an escape after all; keep what was written and read c as usual
+                abandonUnicodeEscape();
+                processStringChar(c);
+                return;
+            }
+            unicodeRaw.append(c);
+            unicodeValue = unicodeValue * 16 + digit;
+            if (--unicodeRemaining == 0) {
+                decoded((char) unicodeValue);
+            }
+            return;
+        }
+        if (escape) {
+            escape = false;
+            switch (c) {
+                case 'n' -> decoded('\n');
+                case 't' -> decoded('\t');
+                case 'r' -> decoded('\r');
+                case 'b' -> decoded('\b');
+                case 'f' -> decoded('\f');
+                case 'u' -> {
+                    unicodeRemaining = 4;
+                    unicodeValue = 0;
+                    unicodeRaw.setLength(0);
+                    unicodeRaw.append("\\u");
+                }
+                default -> decoded(c);
+            }
+            return;
+        }
+        if (c == '\\') {
+            escape = true;
+        } else if (c == '"') {
+            inString = false;
+            if (stringRole == StringRole.KEY) {
+                field = key.toString();
+            }
+        } else {
+            decoded(c);
+        }
+    }
+
+    // Drops {"text": and its quote once matched; anything else is read as text
+    private void holdOpening(char c) {
+        opening.append(c);
+        if (openingMatched == REPEATED_OPENING.length()) {
+            if (!Character.isWhitespace(c)) {
+                opening = null;
+                if (c != '"') {
+                    processStringChar(c);
+                }
+            }
+            return;
+        }
+        // Whitespace may come anywhere but inside "text" itself
+        boolean inKey = openingMatched >= 2 && openingMatched <= 6;
+        if (c == REPEATED_OPENING.charAt(openingMatched)) {
+            openingMatched++;
+        } else if (inKey || !Character.isWhitespace(c)) {
+            releaseOpening();
+        }
+    }
+
+    private void releaseOpening() {
+        String held = opening.toString();
+        opening = null;
+        // A quote among them ends the string, so they are read from the top
+        for (int i = 0; i < held.length(); i++) {
+            process(held.charAt(i));
+        }
+    }
+
+    // A unicode escape cut short by the end of the stream or a non-hex character
+    private void abandonUnicodeEscape() {
+        unicodeRemaining = 0;
+        for (int i = 0; i < unicodeRaw.length(); i++) {
+            decoded(unicodeRaw.charAt(i));
+        }
+    }
+
+    private void decoded(char c) {
+        if (stringRole == StringRole.KEY) {
+            key.append(c);
+        } else if (stringRole == StringRole.TEXT) {
+            pendingText.append(c);
+        }
+    }
+
+    private void processOutside(char c) {
+        if (!started && c == '{') {
+            emitOutsideLine();
+            if (outsideEmitted) {
+                pendingText.append("\n\n");
+            }
+            started = true;
+            depth = 1;
+            expectingKey = true;
+            return;
+        }
+        outsideLine.append(c);
+        if (c == '\n') {
+            emitOutsideLine();
+        }
+    }
+
+    // Lines outside the object, without the ```json fences models like to add
+    private void emitOutsideLine() {
+        String line = outsideLine.toString();
+        outsideLine.setLength(0);
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() ? !outsideEmitted || separatorPending : trimmed.startsWith("```")) {
+            return;
+        }
+        if (separatorPending && !trimmed.isEmpty()) {
+            pendingText.append("\n\n");
+            separatorPending = false;
+        }
+        pendingText.append(line);
+        outsideEmitted = true;
+    }
+
+    // Ends the open string and closes every bracket down to the element's own
+    private void closeTruncatedElement() {
+        if (escape) {
+            element.setLength(element.length() - 1);
+        } else if (unicodeRemaining > 0) {
+            element.setLength(element.length() - unicodeRaw.length());
+        }
+        if (inString) {
+            element.append('"');
+        }
+        // Depth 2 is the charts or tables array; the element starts at depth 3
+        for (int i = openBrackets.length() - 1; i >= 1; i--) {
+            element.append(openBrackets.charAt(i) == '{' ? '}' : ']');
+        }
+        emitElement();
+    }
+
+    private void emitElement() {
+        flushText();
+        String json = element.toString();
+        element = null;
+        events.add(CHARTS_FIELD.equals(field) ? ResponseEvent.chart(json) : ResponseEvent.table(json));
+    }
+
+    private void flushText() {
+        if (pendingText.length() > 0) {
+            events.add(ResponseEvent.text(pendingText.toString()));
+            pendingText.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Answers from the first of several providers that responds. The query
+ * goes to the primary; if it has produced nothing by its hedge delay, or
+ * fails before producing anything, it is also sent to the next provider,
+ * and whichever answers first is streamed while the other is cancelled.
+ * Should both fail before answering, the remaining providers are tried in
+ * order.
+ * <p>
+ * Hedge delays and circuit breaking come from the
+ * {@link ProviderHealthTracker}, so a provider that keeps failing is
+ * skipped rather than waited for.
+ *
+ * @author Nicholas J Emblow
+ */
+public class RoutingLLMService implements LLMService {
+    private static final Logger log = LoggerFactory.getLogger(RoutingLLMService.class);
+
+    private final List<Route> routes;
+    private final ProviderHealthTracker health;
+
+    public RoutingLLMService(List<Route> routes, ProviderHealthTracker health) {
+        if (routes.isEmpty()) {
+            throw new IllegalArgumentException("At least one LLM provider is required");
+        }
+        this.routes = List.copyOf(routes);
+        this.health = health;
+    }
+
+    @Override
+    public Mono<String> processUserQueryAsync(String userQuery) {
+        // Not next(): it cancels once the value arrives, so the provider's success would be recorded as a cancellation
+        return route(service -> service.processUserQueryAsync(userQuery).flux()).singleOrEmpty();
+    }
+
+    @Override
+    public Flux<ResponseEvent> streamUserQuery(String userQuery, Long conversationId) {
+        return route(service -> service.streamUserQuery(userQuery, conversationId));
+    }
+
+    private <T> Flux<T> route(Function<LLMService, Flux<T>> call) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        int primary = 0;
+        while (primary < routes.size() && !health.tryAcquire(routes.get(primary).name())) {
+            primary++;
+        }
+        if (primary == routes.size()) {
+            // Every breaker is open: better to try the preferred provider than to fail outright
+            log.warn("All LLM providers are unhealthy, trying {}", routes.get(0).name());
+            primary = 0;
+        }
+        return fallBack(hedged(primary, call, authentication), primary + 2, call, authentication);
+    }
+
+    // The primary, raced against the next provider once the hedge delay passes or the primary fails
+    private <T> Flux<T> hedged(int primary, Function<LLMService, Flux<T>> call, Authentication authentication) {
+        Route first = routes.get(primary);
+        Flux<T> primaryAnswer = attempt(first, call, authentication);
+        if (primary + 1 >= routes.size()) {
+            return primaryAnswer;
+        }
+        Route second = routes.get(primary + 1);
+        Sinks.Empty<Void> primaryFailed = Sinks.empty();
+        Flux<T> hedgeAnswer = Mono.firstWithSignal(
+                Mono.delay(health.hedgeDelay(first.name())).then(),
+                primaryFailed.asMono())
+            .thenMany(Flux.defer(() -> {
+                if (!health.tryAcquire(second.name())) {
+                    return Flux.<T>error(new IllegalStateException(second.name() + " is unavailable"));
+                }
+                log.debug("Hedging LLM request from {} to {}", first.name(), second.name());
+                return attempt(second, call, authentication);
+            }));
+        return Flux.firstWithValue(
+                primaryAnswer.doOnError(e -> primaryFailed.tryEmitEmpty()),
+                hedgeAnswer)
+            .onErrorMap(NoSuchElementException.class, e -> failure(first, second, e));
+    }
+
+    // Tries the remaining providers in order, but only if nothing was streamed yet
+    private <T> Flux<T> fallBack(Flux<T> answer, int next, Function<LLMService, Flux<T>> call,
+                                 Authentication authentication) {
+        if (next >= routes.size()) {
+            return answer;
+        }
+        return Flux.defer(() -> {
+            AtomicBoolean answered = new AtomicBoolean();
+            return answer
+                .doOnNext(value -> answered.set(true))
+                .onErrorResume(e -> {
+                    if (answered.get()) {
+                        return Flux.error(e);
+                    }
+                    Route route = routes.get(next);
+                    if (!health.tryAcquire(route.name())) {
+                        return fallBack(Flux.error(e), next + 1, call, authentication);
+                    }
+                    log.warn("Falling back to LLM provider {}: {}", route.name(), e.getMessage());
+                    return fallBack(attempt(route, call, authentication), next + 1, call, authentication);
+                });
+        });
+    }
+
+    /**
+     * Calls one provider, reporting its latency to first value, or to its
+     * failure, and its outcome. A call cancelled before its first value
+     * lost a race; its elapsed time says only how long the winner took, so
+     * it is not recorded as this provider's latency.
+     */
+    private <T> Flux<T> attempt(Route route, Function<LLMService, Flux<T>> call, Authentication authentication) {
+        return Flux.defer(() -> {
+            long start = System.currentTimeMillis();
+            AtomicBoolean waiting = new AtomicBoolean(true);
+            // Providers read the current user from the thread, and a hedge starts on a timer thread
+            return BlockingWorkScheduler.withAuthentication(authentication, () -> call.apply(route.service()))
+                .doOnNext(value -> {
+                    if (waiting.compareAndSet(true, false)) {
+                        health.recordLatency(route.name(), System.currentTimeMillis() - start);
+                    }
+                })
+                .doOnComplete(() -> health.recordSuccess(route.name()))
+                .doOnError(e -> {
+                    if (waiting.compareAndSet(true, false)) {
+                        health.recordLatency(route.name(), System.currentTimeMillis() - start);
+                    }
+                    health.recordFailure(route.name(), e);
+                })
+                .doOnCancel(() -> health.recordCancelled(route.name()));
+        });
+    }
+
+    private static RuntimeException failure(Route first, Route second, NoSuchElementException e) {
+        StringBuilder message = new StringBuilder("Neither ")
+            .append(first.name()).append(" nor ").append(second.name()).append(" answered");
+        for (Throwable cause : e.getSuppressed()) {
+            message.append("; ").append(cause.getMessage());
+        }
+        return new RuntimeException(message.toString(), e);
+    }
+
+    /**
+     * A provider and the name its health is tracked under.
+     */
+    public record Route(String name, LLMService service) {}
+}
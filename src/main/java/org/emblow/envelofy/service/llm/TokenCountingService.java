@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.emblow.envelofy.service.SettingService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.OptionalInt;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counts prompt tokens for the active provider and splits its context
+ * window between the parts of a request. Local JLlama prompts are counted
+ * with the loaded model's tokenizer; remote providers don't expose theirs,
+ * so their counts come from an approximation of BPE pre-tokenization that
+ * errs on the high side.
+ * <p>
+ * Each method has a form for a named provider, so a request hedged or
+ * failed over to another provider is sized for that provider's window;
+ * the plain forms use the configured provider.
+ *
+ * @author Nicholas J Emblow
+ */
+@Service
+public class TokenCountingService {
+    // Words, up to three digits, or a single symbol: roughly how BPE tokenizers split text
+    private static final Pattern PIECE = Pattern.compile("\\p{L}+|\\p{N}{1,3}|[^\\s\\p{L}\\p{N}]");
+    private static final int CHARS_PER_WORD_TOKEN = 5;
+    // JllamaService generates at most this many positions, whatever the model supports
+    private static final int JLLAMA_MAX_WINDOW = 8192;
+
+    private final SettingService settingService;
+    private final JllamaModelManager jllamaModelManager;
+    private final int configuredWindow;
+    private final double answerShare;
+    private final double historyShare;
+
+    private volatile String providerType;
+
+    public TokenCountingService(
+        SettingService settingService,
+        JllamaModelManager jllamaModelManager,
+        @Value("${envelofy.llm.budget.context-window:0}") int configuredWindow,
+        @Value("${envelofy.llm.budget.answer-share:0.25}") double answerShare,
+        @Value("${envelofy.llm.budget.history-share:0.2}") double historyShare
+    ) {
+        this.settingService = settingService;
+        this.jllamaModelManager = jllamaModelManager;
+        this.configuredWindow = configuredWindow;
+        this.answerShare = answerShare;
+        this.historyShare = historyShare;
+    }
+
+    @EventListener(RefreshScopeRefreshedEvent.class)
+    public void onRefresh() {
+        providerType = null;
+    }
+
+    public int count(String text) {
+        return count(providerType(), text);
+    }
+
+    public int count(String provider, String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        if ("jllama".equals(provider)) {
+            OptionalInt exact = jllamaModelManager.countTokens(text);
+            if (exact.isPresent()) {
+                return exact.getAsInt();
+            }
+        }
+        return approximate(text);
+    }
+
+    /**
+     * The number of tokens the active provider accepts for prompt and answer
+     * together. {@code envelofy.llm.budget.context-window} overrides it.
+     */
+    public int contextWindow() {
+        return contextWindow(providerType());
+    }
+
+    public int contextWindow(String provider) {
+        if (configuredWindow > 0) {
+            return configuredWindow;
+        }
+        return switch (provider) {
+            case "jllama" -> Math.min(jllamaModelManager.contextLength().orElse(JLLAMA_MAX_WINDOW), JLLAMA_MAX_WINDOW);
+            case "chatgpt" -> 16_385;
+            case "groq" -> 32_768;
+            // Ollama's default num_ctx
+            default -> 2_048;
+        };
+    }
+
+    /**
+     * Splits the window: the fixed prompt (instructions and question) gets
+     * what it measures, the answer and history get their configured shares,
+     * and the financial context gets the rest.
+     */
+    public PromptBudget budget(String fixedPrompt) {
+        return budget(providerType(), fixedPrompt);
+    }
+
+    public PromptBudget budget(String provider, String fixedPrompt) {
+        int window = contextWindow(provider);
+        int fixed = count(provider, fixedPrompt);
+        int answer = (int) (window * answerShare);
+        int history = (int) (window * historyShare);
+        int context = Math.max(0, window - fixed - answer - history);
+        return new PromptBudget(window, fixed, context, history, answer);
+    }
+
+    /**
+     * The tokens of conversation history a request may carry.
+     */
+    public int historyBudget() {
+        return historyBudget(providerType());
+    }
+
+    public int historyBudget(String provider) {
+        return (int) (contextWindow(provider) * historyShare);
+    }
+
+    /**
+     * The longest prefix of whole lines that fits in the token limit.
+     */
+    public String truncateLines(String text, int maxTokens) {
+        return truncateLines(providerType(), text, maxTokens);
+    }
+
+    public String truncateLines(String provider, String text, int maxTokens) {
+        StringBuilder kept = new StringBuilder();
+        int used = 0;
+        for (String line : text.split("(?<=\n)")) {
+            int tokens = count(provider, line);
+            if (used + tokens > maxTokens) {
+                break;
+            }
+            kept.append(line);
+            used += tokens;
+        }
+        return kept.toString();
+    }
+
+    private String providerType() {
+        String type = providerType;
+        if (type == null) {
+            type = settingService.getSetting("llm.service.type", "jllama").trim().toLowerCase();
+            providerType = type;
+        }
+        return type;
+    }
+
+    private static int approximate(String text) {
+        int tokens = 0;
+        Matcher matcher = PIECE.matcher(text);
+        while (matcher.find()) {
+            int length = matcher.end() - matcher.start();
+            tokens += Character.isLetter(text.charAt(matcher.start()))
+                ? (length + CHARS_PER_WORD_TOKEN - 1) / CHARS_PER_WORD_TOKEN
+                : 1;
+        }
+        return tokens;
+    }
+
+    /**
+     * Token shares of one request; {@code fixed} is the instructions and
+     * question, which are always sent whole.
+     */
+    public record PromptBudget(int window, int fixed, int context, int history, int answer) {}
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.ml;
+
+/**
+ *
+ * @author Nicholas J Emblow
+ */
+import org.emblow.envelofy.domain.User;
+import org.emblow.envelofy.repository.TransactionRepository;
+import org.emblow.envelofy.service.DataVersionService;
+import org.emblow.envelofy.service.DataVersionService.DataChangedEvent;
+import org.emblow.envelofy.service.DataVersionService.DataDomain;
+import org.emblow.envelofy.service.ml.TransactionNaiveBayes.TransactionFeatures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Holds one {@link UserClassifierModel} per user. A model is trained from
+ * the user's own transactions on their first prediction, kept in an LRU map
+ * bounded by estimated resident bytes, and written to disk when it is
+ * evicted so the next access only has to read it back instead of retraining.
+ * A change to the user's transactions or envelopes drops both copies.
+ * <p>
+ * Each persisted model carries the data version it was trained at, and is
+ * discarded on load if the version has moved since. Writing and deleting a
+ * user's file are serialized per user, and an evicted model is only
+ * written while its version is still current. An invalidation that races
+ * an eviction therefore can't leave a stale model behind. Versions are
+ * counted from startup, so a model persisted by an earlier run is only
+ * reused if its user's data hadn't changed in that run before it was
+ * written; otherwise it is retrained.
+ */
+@Service
+public class ClassifierRegistry {
+    private static final Logger log = LoggerFactory.getLogger(ClassifierRegistry.class);
+    private static final String MODEL_SUFFIX = ".nbm";
+    private static final Set<DataDomain> TRAINED_ON = Set.of(DataDomain.TRANSACTIONS, DataDomain.ENVELOPES);
+
+    private final TransactionRepository transactionRepository;
+    private final DataVersionService dataVersionService;
+    private final Path modelDirectory;
+    private final long maxResidentBytes;
+
+    // Access-ordered, so iteration starts at the least recently used model
+    private final LinkedHashMap<Long, Resident> resident = new LinkedHashMap<>(16, 0.75f, true);
+    // Guards resident and residentBytes; every prediction takes it, so it must not pin virtual threads
+    private final ReentrantLock residentLock = new ReentrantLock();
+    private long residentBytes = 0;
+    private final Map<Long, CompletableFuture<UserClassifierModel>> pending = new ConcurrentHashMap<>();
+    // Serializes writes and deletes of each user's model file
+    private final Map<Long, ReentrantLock> fileLocks = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder diskLoads = new LongAdder();
+    private final LongAdder trainings = new LongAdder();
+    private final LongAdder trainingNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ClassifierRegistry(
+        TransactionRepository transactionRepository,
+        DataVersionService dataVersionService,
+        @Value("${envelofy.ml.registry.directory:./models/classifiers}") String modelDirectory,
+        @Value("${envelofy.ml.registry.max-resident-mb:256}") long maxResidentMb
+    ) {
+        this.transactionRepository = transactionRepository;
+        this.dataVersionService = dataVersionService;
+        this.modelDirectory = Path.of(modelDirectory);
+        this.maxResidentBytes = maxResidentMb * 1024 * 1024;
+    }
+
+    /**
+     * Returns the user's model, reading it from disk or training it on first
+     * use. Concurrent first requests for the same user share one load.
+     */
+    public UserClassifierModel getModel(User user) {
+        Long userId = user.getId();
+        UserClassifierModel model = getResident(userId);
+        if (model != null) {
+            hits.increment();
+            return model;
+        }
+        misses.increment();
+
+        CompletableFuture<UserClassifierModel> created = new CompletableFuture<>();
+        CompletableFuture<UserClassifierModel> existing = pending.putIfAbsent(userId, created);
+        if (existing != null) {
+            return existing.join();
+        }
+
+        try {
+            model = getResident(userId);
+            if (model == null) {
+                long version = dataVersionService.version(userId, TRAINED_ON);
+                model = loadOrTrain(user, version);
+                // Data changed while loading: serve this model once, but don't keep it
+                if (version == dataVersionService.version(userId, TRAINED_ON)) {
+                    admit(userId, new Resident(model, version));
+                }
+            }
+            created.complete(model);
+            return model;
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            pending.remove(userId, created);
+        }
+    }
+
+    /**
+     * Drops the user's resident and persisted model so the next prediction
+     * retrains it from current data.
+     */
+    public void invalidate(Long userId) {
+        residentLock.lock();
+        try {
+            Resident removed = resident.remove(userId);
+            if (removed != null) {
+                residentBytes -= removed.model().estimatedBytes();
+            }
+        } finally {
+            residentLock.unlock();
+        }
+        ReentrantLock fileLock = fileLock(userId);
+        fileLock.lock();
+        try {
+            Files.deleteIfExists(modelPath(userId));
+        } catch (IOException e) {
+            log.warn("Could not delete persisted classifier for user {}", userId, e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    @EventListener
+    public void onDataChanged(DataChangedEvent event) {
+        if (TRAINED_ON.contains(event.domain())) {
+            invalidate(event.userId());
+        }
+    }
+
+    public void invalidateAll() {
+        residentLock.lock();
+        try {
+            resident.clear();
+            residentBytes = 0;
+        } finally {
+            residentLock.unlock();
+        }
+        if (!Files.isDirectory(modelDirectory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(modelDirectory)) {
+            files.filter(p -> p.getFileName().toString().endsWith(MODEL_SUFFIX))
+                .forEach(p -> {
+                    try {
+                        Files.deleteIfExists(p);
+                    } catch (IOException e) {
+                        log.warn("Could not delete persisted classifier {}", p, e);
+                    }
+                });
+        } catch (IOException e) {
+            log.warn("Could not clear persisted classifiers in {}", modelDirectory, e);
+        }
+    }
+
+    public RegistryStats getStats() {
+        int models;
+        long bytes;
+        residentLock.lock();
+        try {
+            models = resident.size();
+            bytes = residentBytes;
+        } finally {
+            residentLock.unlock();
+        }
+        long trained = trainings.sum();
+        return new RegistryStats(
+            models,
+            bytes,
+            hits.sum(),
+            misses.sum(),
+            diskLoads.sum(),
+            trained,
+            trained == 0 ? 0.0 : trainingNanos.sum() / 1_000_000.0 / trained,
+            evictions.sum()
+        );
+    }
+
+    private UserClassifierModel getResident(Long userId) {
+        residentLock.lock();
+        try {
+            Resident entry = resident.get(userId);
+            return entry != null ? entry.model() : null;
+        } finally {
+            residentLock.unlock();
+        }
+    }
+
+    private UserClassifierModel loadOrTrain(User user, long version) {
+        UserClassifierModel persisted = load(user.getId(), version);
+        if (persisted != null) {
+            diskLoads.increment();
+            return persisted;
+        }
+
+        long start = System.nanoTime();
+        List<TransactionFeatures> features = transactionRepository.findByEnvelope_Owner(user).stream()
+            .map(TransactionFeatures::fromTransaction)
+            .toList();
+        UserClassifierModel model = UserClassifierModel.train(features);
+        long elapsed = System.nanoTime() - start;
+
+        trainings.increment();
+        trainingNanos.add(elapsed);
+        log.info("Trained classifier for user {} with {} transactions in {} ms",
+            user.getId(), features.size(), elapsed / 1_000_000);
+        return model;
+    }
+
+    // The persisted model, or null if there is none or it was trained on older data
+    private UserClassifierModel load(Long userId, long version) {
+        Path path = modelPath(userId);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readLong() == version) {
+                return UserClassifierModel.readFrom(in);
+            }
+            log.debug("Discarding classifier for user {} trained on older data", userId);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Discarding unreadable classifier for user {}", userId, e);
+        }
+        return null;
+    }
+
+    private void admit(Long userId, Resident admitted) {
+        Map<Long, Resident> evicted = new LinkedHashMap<>();
+        residentLock.lock();
+        try {
+            Resident previous = resident.put(userId, admitted);
+            if (previous != null) {
+                residentBytes -= previous.model().estimatedBytes();
+            }
+            residentBytes += admitted.model().estimatedBytes();
+
+            // Always keep the model just admitted, even if it alone exceeds the budget
+            Iterator<Map.Entry<Long, Resident>> it = resident.entrySet().iterator();
+            while (residentBytes > maxResidentBytes && resident.size() > 1 && it.hasNext()) {
+                Map.Entry<Long, Resident> eldest = it.next();
+                if (eldest.getKey().equals(userId)) {
+                    continue;
+                }
+                residentBytes -= eldest.getValue().model().estimatedBytes();
+                evicted.put(eldest.getKey(), eldest.getValue());
+                it.remove();
+            }
+        } finally {
+            residentLock.unlock();
+        }
+
+        // Persist outside the resident lock so disk writes don't stall other lookups
+        evicted.forEach(this::persist);
+        evictions.add(evicted.size());
+    }
+
+    private void persist(Long userId, Resident evicted) {
+        Path path = modelPath(userId);
+        Path temp = null;
+        ReentrantLock fileLock = fileLock(userId);
+        fileLock.lock();
+        try {
+            // Trained on data that has since changed: invalidate has run or is about to, so don't write it back
+            if (evicted.version() != dataVersionService.version(userId, TRAINED_ON)) {
+                return;
+            }
+            Files.createDirectories(modelDirectory);
+            temp = Files.createTempFile(modelDirectory, "user-" + userId, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeLong(evicted.version());
+                evicted.model().writeTo(out);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+            // The model is simply retrained on its next use
+            log.warn("Could not persist classifier for user {}", userId, e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private ReentrantLock fileLock(Long userId) {
+        return fileLocks.computeIfAbsent(userId, id -> new ReentrantLock());
+    }
+
+    private Path modelPath(Long userId) {
+        return modelDirectory.resolve("user-" + userId + MODEL_SUFFIX);
+    }
+
+    private record Resident(UserClassifierModel model, long version) {}
+
+    public record RegistryStats(
+        int residentModels,
+        long residentBytes,
+        long hits,
+        long misses,
+        long diskLoads,
+        long trainings,
+        double averageTrainingMillis,
+        long evictions
+    ) {
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0.0 : (double) hits / lookups;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.ml;
+
+import java.util.Arrays;
+
+/**
+ * Single-pass tokenizer for the text classifiers. Characters are scanned
+ * once, ASCII letters are lower-cased, digits are kept, whitespace separates
+ * tokens and everything else is dropped (the same rules as the old
+ * lowercase/replaceAll/split pipeline). Instead of Strings, each token is
+ * hashed into a fixed number of buckets and written into a reusable
+ * {@link TokenBuffer}, so the feature space - and the memory of any model
+ * indexed by it - is capped at {@link #buckets()} no matter how many distinct
+ * merchants show up.
+ *
+ * @author Nicholas J Emblow
+ */
+public final class FeatureHashingTokenizer {
+    public static final int DEFAULT_BUCKETS = 1 << 14;
+
+    private static final int FNV_OFFSET = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+    private static final int BIGRAM_SEED = 0x9E3779B1;
+
+    private final int buckets;
+    private final int mask;
+    private final boolean bigrams;
+
+    public FeatureHashingTokenizer() {
+        this(DEFAULT_BUCKETS, false);
+    }
+
+    /**
+     * @param buckets number of hash buckets, rounded up to a power of two
+     * @param bigrams whether adjacent token pairs are emitted as extra features
+     */
+    public FeatureHashingTokenizer(int buckets, boolean bigrams) {
+        if (buckets < 2) {
+            throw new IllegalArgumentException("Bucket count must be at least 2");
+        }
+        this.buckets = Integer.highestOneBit(buckets - 1) << 1;
+        this.mask = this.buckets - 1;
+        this.bigrams = bigrams;
+    }
+
+    public int buckets() {
+        return buckets;
+    }
+
+    public boolean bigrams() {
+        return bigrams;
+    }
+
+    /**
+     * Tokenizes {@code text} into {@code out}, replacing its previous
+     * contents. A {@code null} text yields no tokens.
+     */
+    public TokenBuffer tokenize(CharSequence text, TokenBuffer out) {
+        out.clear();
+        if (text == null) {
+            return out;
+        }
+
+        int hash = FNV_OFFSET;
+        int length = 0;
+        int previous = 0;
+        boolean hasPrevious = false;
+
+        for (int i = 0, n = text.length(); i <= n; i++) {
+            char c = i < n ? text.charAt(i) : ' ';
+            if (c >= 'A' && c <= 'Z') {
+                c = (char) (c + ('a' - 'A'));
+            }
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                hash = (hash ^ c) * FNV_PRIME;
+                length++;
+            } else if (isWhitespace(c) && length > 0) {
+                int token = mix(hash);
+                out.add(token & mask);
+                if (bigrams && hasPrevious) {
+                    out.add(mix(previous * BIGRAM_SEED ^ token) & mask);
+                }
+                previous = token;
+                hasPrevious = true;
+                hash = FNV_OFFSET;
+                length = 0;
+            }
+        }
+        return out;
+    }
+
+    public TokenBuffer tokenize(CharSequence text) {
+        return tokenize(text, new TokenBuffer());
+    }
+
+    // Matches the regex \s character class used by the old tokenizer
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    // Murmur3 finalizer, spreads the FNV hash before it is masked to a bucket
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Growable int array holding the bucket ids of one tokenized text. Meant
+     * to be reused across calls, so it only grows and never shrinks.
+     */
+    public static final class TokenBuffer {
+        private int[] ids;
+        private int size;
+
+        public TokenBuffer() {
+            this(16);
+        }
+
+        public TokenBuffer(int initialCapacity) {
+            this.ids = new int[Math.max(initialCapacity, 1)];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return ids[index];
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size << 1);
+            }
+            ids[size++] = id;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
@@ -24,8 +24,10 @@ import org.springframework.stereotype.Service;
 import org.emblow.envelofy.domain.Transaction;
 import org.emblow.envelofy.domain.Envelope;
 import org.emblow.envelofy.domain.Account;
+import org.emblow.envelofy.domain.User;
 import org.emblow.envelofy.repository.TransactionRepository;
-import org.emblow.envelofy.repository.EnvelopeRepository;
+import org.emblow.envelofy.service.EnvelopeIndexService;
+import org.emblow.envelofy.service.EnvelopeIndexService.EnvelopeIndex;
 import org.emblow.envelofy.service.ml.TransactionNaiveBayes.TransactionFeatures;
 
 import java.time.*;
@@ -39,126 +41,64 @@ public class TransactionClassifier {
     private static final Logger log = LoggerFactory.getLogger(TransactionClassifier.class);
     
     private final TransactionRepository transactionRepository;
-    private final EnvelopeRepository envelopeRepository;
-    private final TransactionNaiveBayes classifier;
-    
-    // Cache of account-specific models
-    private final Map<Account.AccountType, TransactionNaiveBayes> accountTypeModels = new HashMap<>();
-    private final Map<String, TransactionNaiveBayes> accountSpecificModels = new HashMap<>();
+    private final EnvelopeIndexService envelopeIndexService;
+    private final ClassifierRegistry registry;
 
     public TransactionClassifier(
         TransactionRepository transactionRepository,
-        EnvelopeRepository envelopeRepository
+        EnvelopeIndexService envelopeIndexService,
+        ClassifierRegistry registry
     ) {
         this.transactionRepository = transactionRepository;
-        this.envelopeRepository = envelopeRepository;
-        this.classifier = new TransactionNaiveBayes();
+        this.envelopeIndexService = envelopeIndexService;
+        this.registry = registry;
     }
 
+    /**
+     * Models are trained per user on first use by the {@link ClassifierRegistry};
+     * this only discards existing models so they are rebuilt from fresh data.
+     */
     public void trainModel() {
-        List<Transaction> transactions = transactionRepository.findAll();
-        if (transactions.isEmpty()) {
-            log.warn("No transactions available for training");
-            return;
-        }
-
-        // Train main classifier
-        List<TransactionFeatures> features = transactions.stream()
-            .map(TransactionFeatures::fromTransaction)
-            .toList();
-        classifier.train(features);
-        
-        // Train account type specific models
-        for (Account.AccountType accountType : Account.AccountType.values()) {
-            List<Transaction> accountTypeTransactions = transactions.stream()
-                .filter(tx -> tx.getAccount().getType() == accountType)
-                .toList();
-                
-            if (!accountTypeTransactions.isEmpty()) {
-                TransactionNaiveBayes typeModel = new TransactionNaiveBayes();
-                typeModel.train(accountTypeTransactions.stream()
-                    .map(TransactionFeatures::fromTransaction)
-                    .toList());
-                accountTypeModels.put(accountType, typeModel);
-            }
-        }
-        
-        // Train account-specific models
-        Set<String> accountNames = transactions.stream()
-            .map(tx -> tx.getAccount().getName())
-            .collect(java.util.stream.Collectors.toSet());
-            
-        for (String accountName : accountNames) {
-            List<Transaction> accountTransactions = transactions.stream()
-                .filter(tx -> tx.getAccount().getName().equals(accountName))
-                .toList();
-                
-            if (accountTransactions.size() >= 50) { // Only train if enough data
-                TransactionNaiveBayes accountModel = new TransactionNaiveBayes();
-                accountModel.train(accountTransactions.stream()
-                    .map(TransactionFeatures::fromTransaction)
-                    .toList());
-                accountSpecificModels.put(accountName, accountModel);
-            }
-        }
-        
-        log.info("Model trained with {} transactions", transactions.size());
+        registry.invalidateAll();
+        log.info("Classifier models invalidated, users will retrain on next prediction");
     }
 
     public Map<Envelope, Double> predictCategory(Transaction transaction) {
-        TransactionFeatures features = TransactionFeatures.fromTransaction(transaction);
-        
-        // Get predictions from different models
-        Map<String, Double> generalPredictions = classifier.predict(features);
-        Map<String, Double> typeSpecificPredictions = accountTypeModels
-            .getOrDefault(transaction.getAccount().getType(), classifier)
-            .predict(features);
-        Map<String, Double> accountSpecificPredictions = accountSpecificModels
-            .getOrDefault(transaction.getAccount().getName(), classifier)
-            .predict(features);
-            
-        // Weighted combination of predictions
-        Map<String, Double> combinedPredictions = new HashMap<>();
-        Set<String> allCategories = new HashSet<>();
-        allCategories.addAll(generalPredictions.keySet());
-        allCategories.addAll(typeSpecificPredictions.keySet());
-        allCategories.addAll(accountSpecificPredictions.keySet());
+        User owner = resolveOwner(transaction);
+        if (owner == null) {
+            log.warn("Cannot classify transaction without envelope or account owner");
+            return Map.of();
+        }
         
-        for (String category : allCategories) {
-            double generalWeight = 0.4;
-            double typeWeight = 0.3;
-            double accountWeight = 0.3;
-            
-            double combinedScore = 
-                generalWeight * generalPredictions.getOrDefault(category, 0.0) +
-                typeWeight * typeSpecificPredictions.getOrDefault(category, 0.0) +
-                accountWeight * accountSpecificPredictions.getOrDefault(category, 0.0);
-                
-            combinedPredictions.put(category, combinedScore);
+        TransactionFeatures features = TransactionFeatures.fromTransaction(transaction);
+        Map<String, Double> normalizedPredictions = registry.getModel(owner).predict(features);
+        if (normalizedPredictions.isEmpty()) {
+            return Map.of();
         }
         
-        // Normalize combined scores
-        double totalScore = combinedPredictions.values().stream()
-            .mapToDouble(Double::doubleValue)
-            .sum();
-            
-        Map<String, Double> normalizedPredictions = new HashMap<>();
-        combinedPredictions.forEach((category, score) -> 
-            normalizedPredictions.put(category, score / totalScore));
+        // Convert category names to the owner's envelopes
+        EnvelopeIndex index = envelopeIndexService.getIndex(owner);
         
-        // Convert category names to envelopes
         Map<Envelope, Double> predictions = new HashMap<>();
         normalizedPredictions.forEach((categoryName, probability) -> {
-            if (probability > 0.05) { // Only include non-trivial probabilities
-                transactionRepository.findByEnvelopeName(categoryName)
-                    .stream()
-                    .findFirst()
-                    .ifPresent(tx -> predictions.put(tx.getEnvelope(), probability));
+            Envelope envelope = index.forName(categoryName);
+            if (envelope != null && probability > 0.05) { // Only include non-trivial probabilities
+                predictions.put(envelope, probability);
             }
         });
         
         return predictions;
     }
+    
+    private User resolveOwner(Transaction transaction) {
+        if (transaction.getEnvelope() != null && transaction.getEnvelope().getOwner() != null) {
+            return transaction.getEnvelope().getOwner();
+        }
+        if (transaction.getAccount() != null) {
+            return transaction.getAccount().getOwner();
+        }
+        return null;
+    }
 
     public Map<Envelope, Double> suggestEnvelopesForAccount(Account account) {
         // Get recent transactions for this account
@@ -199,8 +139,10 @@ public class TransactionClassifier {
     }
 
     public void retrain() {
-        accountTypeModels.clear();
-        accountSpecificModels.clear();
         trainModel();
     }
+    
+    public ClassifierRegistry.RegistryStats getRegistryStats() {
+        return registry.getStats();
+    }
 }
\ No newline at end of file
@@ -20,7 +20,12 @@ package org.emblow.envelofy.service.ml;
  *
  * @author Nicholas J Emblow
  */
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 import java.time.DayOfWeek;
 import java.time.LocalDateTime;
 import java.time.Month;
@@ -28,6 +33,7 @@ import java.math.BigDecimal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.emblow.envelofy.domain.Account;
+import org.emblow.envelofy.service.ml.FeatureHashingTokenizer.TokenBuffer;
 import java.util.stream.Collectors;
 
 public class TransactionNaiveBayes {
@@ -35,7 +41,8 @@ public class TransactionNaiveBayes {
     
     // Probability tables
     private final Map<String, Double> categoryPriors = new HashMap<>();
-    private final Map<String, Map<String, Double>> wordLikelihoods = new HashMap<>();
+    private final Map<String, int[]> wordCounts = new HashMap<>();
+    private final Map<String, Double> wordLogDenominators = new HashMap<>();
     private final Map<String, GaussianDistribution> amountDistributions = new HashMap<>();
     private final Map<String, Map<DayOfWeek, Double>> dayOfWeekLikelihoods = new HashMap<>();
     private final Map<String, Map<Month, Double>> monthLikelihoods = new HashMap<>();
@@ -44,22 +51,11 @@ public class TransactionNaiveBayes {
     
     // Subscription-specific fields
     private boolean subscriptionMode = false; // Toggle between envelope and subscription prediction
-    private double subscriptionPrior = 0.5; // P(subscription)
-    private double nonSubscriptionPrior = 0.5; // P(non-subscription)
-    private final Map<String, Double> subscriptionWordLikelihoods = new HashMap<>();
-    private final Map<String, Double> nonSubscriptionWordLikelihoods = new HashMap<>();
-    private GaussianDistribution subscriptionAmountDist = new GaussianDistribution(0, MIN_STD_DEV);
-    private GaussianDistribution nonSubscriptionAmountDist = new GaussianDistribution(0, MIN_STD_DEV);
-    private final Map<DayOfWeek, Double> subscriptionDayLikelihoods = new HashMap<>();
-    private final Map<DayOfWeek, Double> nonSubscriptionDayLikelihoods = new HashMap<>();
-    private final Map<Month, Double> subscriptionMonthLikelihoods = new HashMap<>();
-    private final Map<Month, Double> nonSubscriptionMonthLikelihoods = new HashMap<>();
-    private final Map<Account.AccountType, Double> subscriptionAccountTypeLikelihoods = new HashMap<>();
-    private final Map<Account.AccountType, Double> nonSubscriptionAccountTypeLikelihoods = new HashMap<>();
-    private final Map<String, Double> subscriptionAccountNameLikelihoods = new HashMap<>();
-    private final Map<String, Double> nonSubscriptionAccountNameLikelihoods = new HashMap<>();
-    private int subscriptionCount = 0;
-    private int nonSubscriptionCount = 0;
+    private ClassStatistics subscriptionStats;
+    private ClassStatistics nonSubscriptionStats;
+    private final Set<String> subscriptionAccountNames = new HashSet<>();
+    
+    private static final int FORMAT_VERSION = 1;
     
     // Smoothing parameters
     private static final double ALPHA = 1.0;  // Laplace smoothing
@@ -72,16 +68,28 @@ public class TransactionNaiveBayes {
     private static final double ACCOUNT_TYPE_WEIGHT = 0.1;
     private static final double ACCOUNT_NAME_WEIGHT = 0.1;
     
-    private final Set<String> vocabulary = new HashSet<>();
-    private final TextPreprocessor textPreprocessor;
+    // Hashed feature ids seen during training; its cardinality is the vocabulary size
+    private final BitSet vocabulary = new BitSet();
+    private int vocabularySize = 0;
+    private final FeatureHashingTokenizer tokenizer;
+    private static final ThreadLocal<TokenBuffer> TOKENS = ThreadLocal.withInitial(TokenBuffer::new);
+    // Guards subscription training and persistence; a lock rather than a monitor so
+    // writing a model to disk doesn't pin a virtual thread's carrier
+    private final ReentrantLock lock = new ReentrantLock();
     
     public TransactionNaiveBayes() {
         this(false); // Default to envelope mode
     }
     
     public TransactionNaiveBayes(boolean subscriptionMode) {
-        this.textPreprocessor = new TextPreprocessor();
+        this(subscriptionMode, new FeatureHashingTokenizer());
+    }
+    
+    public TransactionNaiveBayes(boolean subscriptionMode, FeatureHashingTokenizer tokenizer) {
+        this.tokenizer = tokenizer;
         this.subscriptionMode = subscriptionMode;
+        this.subscriptionStats = new ClassStatistics();
+        this.nonSubscriptionStats = new ClassStatistics();
     }
     
     public void train(List<TransactionFeatures> transactions) {
@@ -89,23 +97,23 @@ public class TransactionNaiveBayes {
             subscriptionMode ? "subscription" : "envelope");
             
         if (subscriptionMode) {
-            subscriptionCount = 0;
-            nonSubscriptionCount = 0;
-            vocabulary.clear();
-            
-            for (TransactionFeatures tx : transactions) {
-                boolean isSubscription = tx.category().equals("SUBSCRIPTION"); // Placeholder label
-                trainSubscription(tx, isSubscription);
+            lock.lock();
+            try {
+                resetSubscriptionModel();
+                warmStartSubscriptions(transactions, tx -> "SUBSCRIPTION".equals(tx.category()));
+            } finally {
+                lock.unlock();
             }
         } else {
             categoryPriors.clear();
-            wordLikelihoods.clear();
+            wordCounts.clear();
+            wordLogDenominators.clear();
             amountDistributions.clear();
             dayOfWeekLikelihoods.clear();
             monthLikelihoods.clear();
             accountTypeLikelihoods.clear();
             accountNameLikelihoods.clear();
-            vocabulary.clear();
+            clearVocabulary();
             
             Map<String, Integer> categoryCounts = new HashMap<>();
             for (TransactionFeatures tx : transactions) {
@@ -117,11 +125,7 @@ public class TransactionNaiveBayes {
                 categoryPriors.put(category, (count.doubleValue() + ALPHA) / 
                     (totalTransactions + ALPHA * categoryCounts.size())));
             
-            transactions.forEach(tx -> 
-                vocabulary.addAll(Arrays.asList(textPreprocessor.tokenize(tx.description()))));
-            
             for (String category : categoryCounts.keySet()) {
-                wordLikelihoods.put(category, new HashMap<>());
                 dayOfWeekLikelihoods.put(category, new HashMap<>());
                 monthLikelihoods.put(category, new HashMap<>());
                 accountTypeLikelihoods.put(category, new HashMap<>());
@@ -134,12 +138,21 @@ public class TransactionNaiveBayes {
             calculateAccountLikelihoods(transactions, categoryCounts);
         }
         
-        log.info("Training complete. Vocabulary size: {}", vocabulary.size());
+        log.info("Training complete. Vocabulary size: {}", vocabularySize);
     }
     
     public Map<String, Double> predict(TransactionFeatures transaction) {
+        return predict(transaction, tokenizer.tokenize(transaction.description(), TOKENS.get()));
+    }
+
+    /**
+     * Predicts from description tokens already produced by a model that
+     * {@link #tokenizesLike tokenizes like this one}, so models scoring the
+     * same transaction tokenize it only once.
+     */
+    public Map<String, Double> predict(TransactionFeatures transaction, TokenBuffer tokens) {
         if (subscriptionMode) {
-            double probSub = predictSubscriptionProbability(transaction);
+            double probSub = predictSubscriptionProbability(transaction, tokens);
             return Map.of("SUBSCRIPTION", probSub, "NON_SUBSCRIPTION", 1.0 - probSub);
         } else {
             Map<String, Double> scores = new HashMap<>();
@@ -148,12 +161,13 @@ public class TransactionNaiveBayes {
             for (String category : categoryPriors.keySet()) {
                 double score = Math.log(categoryPriors.get(category));
                 
-                String[] words = textPreprocessor.tokenize(transaction.description());
+                int[] counts = wordCounts.get(category);
+                double logDenominator = wordLogDenominators.get(category);
                 double wordScore = 0.0;
-                for (String word : words) {
-                    if (vocabulary.contains(word)) {
-                        wordScore += Math.log(wordLikelihoods.get(category)
-                            .getOrDefault(word, ALPHA / (vocabulary.size() * ALPHA)));
+                for (int i = 0; i < tokens.size(); i++) {
+                    int id = tokens.get(i);
+                    if (vocabulary.get(id)) {
+                        wordScore += Math.log(counts[id] + ALPHA) - logDenominator;
                     }
                 }
                 
@@ -190,34 +204,61 @@ public class TransactionNaiveBayes {
         }
     }
     
+    /**
+     * Tokenizes the description the way this model does, into the caller's
+     * buffer.
+     */
+    public TokenBuffer tokenize(String description, TokenBuffer out) {
+        return tokenizer.tokenize(description, out);
+    }
+
+    /**
+     * Whether the other model maps descriptions to the same token ids.
+     */
+    public boolean tokenizesLike(TransactionNaiveBayes other) {
+        return tokenizer.buckets() == other.tokenizer.buckets() && tokenizer.bigrams() == other.tokenizer.bigrams();
+    }
+
     private void calculateWordLikelihoods(
         List<TransactionFeatures> transactions,
         Map<String, Integer> categoryCounts
     ) {
-        Map<String, Map<String, Integer>> wordCounts = new HashMap<>();
-        categoryCounts.keySet().forEach(category -> 
-            wordCounts.put(category, new HashMap<>()));
+        // Raw counts per hashed feature; likelihoods are derived at prediction
+        // time, so training stays O(tokens) instead of O(categories x vocabulary)
+        Map<String, Integer> totalWords = new HashMap<>();
+        categoryCounts.keySet().forEach(category -> {
+            wordCounts.put(category, new int[tokenizer.buckets()]);
+            totalWords.put(category, 0);
+        });
         
+        TokenBuffer tokens = TOKENS.get();
         for (TransactionFeatures tx : transactions) {
-            String[] words = textPreprocessor.tokenize(tx.description());
-            for (String word : words) {
-                wordCounts.get(tx.category()).merge(word, 1, Integer::sum);
+            tokenizer.tokenize(tx.description(), tokens);
+            int[] counts = wordCounts.get(tx.category());
+            for (int i = 0; i < tokens.size(); i++) {
+                int id = tokens.get(i);
+                counts[id]++;
+                addToVocabulary(id);
             }
+            totalWords.merge(tx.category(), tokens.size(), Integer::sum);
         }
         
-        for (String category : categoryCounts.keySet()) {
-            int totalWords = wordCounts.get(category).values().stream()
-                .mapToInt(Integer::intValue).sum();
-            
-            for (String word : vocabulary) {
-                int count = wordCounts.get(category).getOrDefault(word, 0);
-                double likelihood = (count + ALPHA) / 
-                    (totalWords + ALPHA * vocabulary.size());
-                wordLikelihoods.get(category).put(word, likelihood);
-            }
+        totalWords.forEach((category, total) -> 
+            wordLogDenominators.put(category, Math.log(total + ALPHA * vocabularySize)));
+    }
+    
+    private void addToVocabulary(int id) {
+        if (!vocabulary.get(id)) {
+            vocabulary.set(id);
+            vocabularySize++;
         }
     }
     
+    private void clearVocabulary() {
+        vocabulary.clear();
+        vocabularySize = 0;
+    }
+    
     private void calculateAccountLikelihoods(
         List<TransactionFeatures> transactions,
         Map<String, Integer> categoryCounts
@@ -336,199 +377,281 @@ public class TransactionNaiveBayes {
         }
     }
     
-    public synchronized void trainSubscription(TransactionFeatures transaction, boolean isSubscription) {
-        subscriptionMode = true;
-        List<TransactionFeatures> singleTx = Collections.singletonList(transaction);
-        
-        if (subscriptionCount == 0 && nonSubscriptionCount == 0) {
-            vocabulary.addAll(Arrays.asList(textPreprocessor.tokenize(transaction.description())));
-        }
-        
-        if (isSubscription) {
-            subscriptionCount++;
-        } else {
-            nonSubscriptionCount++;
-        }
-        
-        int total = subscriptionCount + nonSubscriptionCount;
-        subscriptionPrior = (subscriptionCount + ALPHA) / (total + 2 * ALPHA);
-        nonSubscriptionPrior = (nonSubscriptionCount + ALPHA) / (total + 2 * ALPHA);
-        
-        updateWordLikelihoods(singleTx, isSubscription);
-        updateAmountDistributions(singleTx, isSubscription);
-        updateTemporalLikelihoods(singleTx, isSubscription);
-        updateAccountLikelihoods(singleTx, isSubscription);
-    }
-
-    public double predictSubscriptionProbability(TransactionFeatures transaction) {
-        subscriptionMode = true;
-        double logProbSub = Math.log(subscriptionPrior);
-        double logProbNonSub = Math.log(nonSubscriptionPrior);
-        
-        String[] words = textPreprocessor.tokenize(transaction.description());
-        for (String word : words) {
-            if (vocabulary.contains(word)) {
-                logProbSub += Math.log(subscriptionWordLikelihoods.getOrDefault(word, 
-                    ALPHA / (vocabulary.size() * ALPHA)));
-                logProbNonSub += Math.log(nonSubscriptionWordLikelihoods.getOrDefault(word, 
-                    ALPHA / (vocabulary.size() * ALPHA)));
+    public void trainSubscription(TransactionFeatures transaction, boolean isSubscription) {
+        lock.lock();
+        try {
+            subscriptionMode = true;
+            TokenBuffer tokens = tokenizer.tokenize(transaction.description(), TOKENS.get());
+            for (int i = 0; i < tokens.size(); i++) {
+                addToVocabulary(tokens.get(i));
             }
+            if (transaction.accountName() != null) {
+                subscriptionAccountNames.add(transaction.accountName());
+            }
+            (isSubscription ? subscriptionStats : nonSubscriptionStats).add(transaction, tokens);
+        } finally {
+            lock.unlock();
         }
-        
-        logProbSub += AMOUNT_WEIGHT * subscriptionAmountDist.logProbability(transaction.amount().doubleValue());
-        logProbNonSub += AMOUNT_WEIGHT * nonSubscriptionAmountDist.logProbability(transaction.amount().doubleValue());
-        
-        double dayScoreSub = Math.log(subscriptionDayLikelihoods.getOrDefault(transaction.date().getDayOfWeek(), 
-            ALPHA / (7 * ALPHA)));
-        double dayScoreNonSub = Math.log(nonSubscriptionDayLikelihoods.getOrDefault(transaction.date().getDayOfWeek(), 
-            ALPHA / (7 * ALPHA)));
-        double monthScoreSub = Math.log(subscriptionMonthLikelihoods.getOrDefault(transaction.date().getMonth(), 
-            ALPHA / (12 * ALPHA)));
-        double monthScoreNonSub = Math.log(nonSubscriptionMonthLikelihoods.getOrDefault(transaction.date().getMonth(), 
-            ALPHA / (12 * ALPHA)));
-        
-        logProbSub += TIME_WEIGHT * (dayScoreSub + monthScoreSub);
-        logProbNonSub += TIME_WEIGHT * (dayScoreNonSub + monthScoreNonSub);
-        
-        double typeScoreSub = Math.log(subscriptionAccountTypeLikelihoods.getOrDefault(transaction.accountType(), 
-            ALPHA / (Account.AccountType.values().length * ALPHA)));
-        double typeScoreNonSub = Math.log(nonSubscriptionAccountTypeLikelihoods.getOrDefault(transaction.accountType(), 
-            ALPHA / (Account.AccountType.values().length * ALPHA)));
-        double nameScoreSub = Math.log(subscriptionAccountNameLikelihoods.getOrDefault(transaction.accountName(), 
-            ALPHA / accountNameLikelihoods.size()));
-        double nameScoreNonSub = Math.log(nonSubscriptionAccountNameLikelihoods.getOrDefault(transaction.accountName(), 
-            ALPHA / accountNameLikelihoods.size()));
-        
-        logProbSub += ACCOUNT_TYPE_WEIGHT * typeScoreSub + ACCOUNT_NAME_WEIGHT * nameScoreSub;
-        logProbNonSub += ACCOUNT_TYPE_WEIGHT * typeScoreNonSub + ACCOUNT_NAME_WEIGHT * nameScoreNonSub;
-        
-        double probSub = Math.exp(logProbSub) / (Math.exp(logProbSub) + Math.exp(logProbNonSub));
-        return Double.isNaN(probSub) ? 0.5 : probSub;
     }
-
-    private void updateWordLikelihoods(List<TransactionFeatures> transactions, boolean isSubscription) {
-        Map<String, Integer> wordCounts = isSubscription ? 
-            subscriptionWordLikelihoods.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().intValue())) :
-            nonSubscriptionWordLikelihoods.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().intValue()));
-        
-        for (TransactionFeatures tx : transactions) {
-            String[] words = textPreprocessor.tokenize(tx.description());
-            vocabulary.addAll(Arrays.asList(words));
-            for (String word : words) {
-                wordCounts.merge(word, 1, Integer::sum);
+    
+    /**
+     * Bulk-loads labelled history into the subscription model without
+     * discarding what it has already learned, e.g. to warm-start a fresh
+     * model from a user's ledger before scoring new transactions.
+     */
+    public void warmStartSubscriptions(
+        Collection<TransactionFeatures> history,
+        Predicate<TransactionFeatures> isSubscription
+    ) {
+        lock.lock();
+        try {
+            for (TransactionFeatures tx : history) {
+                trainSubscription(tx, isSubscription.test(tx));
             }
-        }
-        
-        int totalWords = wordCounts.values().stream().mapToInt(Integer::intValue).sum();
-        Map<String, Double> updatedLikelihoods = new HashMap<>();
-        for (String word : vocabulary) {
-            int count = wordCounts.getOrDefault(word, 0);
-            updatedLikelihoods.put(word, (count + ALPHA) / (totalWords + ALPHA * vocabulary.size()));
-        }
-        
-        if (isSubscription) {
-            subscriptionWordLikelihoods.clear();
-            subscriptionWordLikelihoods.putAll(updatedLikelihoods);
-        } else {
-            nonSubscriptionWordLikelihoods.clear();
-            nonSubscriptionWordLikelihoods.putAll(updatedLikelihoods);
+            log.info("Subscription model warm-started with {} transactions ({} subscriptions)",
+                history.size(), subscriptionStats.count);
+        } finally {
+            lock.unlock();
         }
     }
-
-    private void updateAmountDistributions(List<TransactionFeatures> transactions, boolean isSubscription) {
-        List<Double> amounts = transactions.stream()
-            .map(tx -> tx.amount().doubleValue())
-            .collect(Collectors.toList());
-        
-        double mean, stdDev;
-        if (isSubscription) {
-            mean = amounts.isEmpty() ? subscriptionAmountDist.mean : 
-                (subscriptionAmountDist.mean * (subscriptionCount - 1) + amounts.get(0)) / subscriptionCount;
-            stdDev = calculateIncrementalStdDev(amounts, subscriptionAmountDist, subscriptionCount, true);
-            subscriptionAmountDist = new GaussianDistribution(mean, stdDev);
-        } else {
-            mean = amounts.isEmpty() ? nonSubscriptionAmountDist.mean : 
-                (nonSubscriptionAmountDist.mean * (nonSubscriptionCount - 1) + amounts.get(0)) / nonSubscriptionCount;
-            stdDev = calculateIncrementalStdDev(amounts, nonSubscriptionAmountDist, nonSubscriptionCount, false);
-            nonSubscriptionAmountDist = new GaussianDistribution(mean, stdDev);
-        }
+    
+    private void resetSubscriptionModel() {
+        subscriptionStats = new ClassStatistics();
+        nonSubscriptionStats = new ClassStatistics();
+        subscriptionAccountNames.clear();
+        clearVocabulary();
     }
 
-    private double calculateIncrementalStdDev(List<Double> newAmounts, GaussianDistribution dist, int count, boolean isSub) {
-        if (count <= 1) return MIN_STD_DEV;
-        double mean = isSub ? dist.mean : dist.mean;
-        double variance = newAmounts.stream()
-            .mapToDouble(a -> Math.pow(a - mean, 2))
-            .average()
-            .orElse(MIN_STD_DEV);
-        return Math.max(Math.sqrt(variance), MIN_STD_DEV);
+    public double predictSubscriptionProbability(TransactionFeatures transaction) {
+        TokenBuffer tokens = tokenizer.tokenize(transaction.description(), TOKENS.get());
+        return predictSubscriptionProbability(transaction, tokens);
     }
 
-    private void updateTemporalLikelihoods(List<TransactionFeatures> transactions, boolean isSubscription) {
-        Map<DayOfWeek, Integer> dayCounts = new HashMap<>();
-        Map<Month, Integer> monthCounts = new HashMap<>();
+    private double predictSubscriptionProbability(TransactionFeatures transaction, TokenBuffer tokens) {
+        int total = subscriptionStats.count + nonSubscriptionStats.count;
         
-        for (TransactionFeatures tx : transactions) {
-            dayCounts.merge(tx.date().getDayOfWeek(), 1, Integer::sum);
-            monthCounts.merge(tx.date().getMonth(), 1, Integer::sum);
-        }
+        double logProbSub = subscriptionStats.logScore(transaction, tokens, total);
+        double logProbNonSub = nonSubscriptionStats.logScore(transaction, tokens, total);
         
-        int total = isSubscription ? subscriptionCount : nonSubscriptionCount;
-        Map<DayOfWeek, Double> dayLikelihoods = new HashMap<>();
-        Map<Month, Double> monthLikelihoods = new HashMap<>();
-        
-        for (DayOfWeek day : DayOfWeek.values()) {
-            int count = dayCounts.getOrDefault(day, 0);
-            dayLikelihoods.put(day, (count + ALPHA) / (total + 7 * ALPHA));
+        // Logistic form of exp(a) / (exp(a) + exp(b)), safe for large negative log scores
+        double probSub = 1.0 / (1.0 + Math.exp(logProbNonSub - logProbSub));
+        return Double.isNaN(probSub) ? 0.5 : probSub;
+    }
+    
+    /**
+     * Raw counts and running amount moments for one side of the subscription
+     * model. Updates and scoring only touch the features of the transaction at
+     * hand, so both are O(tokens) rather than O(vocabulary).
+     */
+    private final class ClassStatistics {
+        private final int[] wordCounts = new int[tokenizer.buckets()];
+        private long totalWords = 0;
+        private int count = 0;
+        
+        // Welford running mean and sum of squared deviations of the amount
+        private double amountMean = 0.0;
+        private double amountM2 = 0.0;
+        
+        private final int[] dayCounts = new int[DayOfWeek.values().length];
+        private final int[] monthCounts = new int[Month.values().length];
+        private final int[] accountTypeCounts = new int[Account.AccountType.values().length];
+        private final Map<String, Integer> accountNameCounts = new HashMap<>();
+        
+        void add(TransactionFeatures tx, TokenBuffer tokens) {
+            for (int i = 0; i < tokens.size(); i++) {
+                wordCounts[tokens.get(i)]++;
+            }
+            totalWords += tokens.size();
+            count++;
+            
+            double amount = tx.amount().doubleValue();
+            double delta = amount - amountMean;
+            amountMean += delta / count;
+            amountM2 += delta * (amount - amountMean);
+            
+            dayCounts[tx.date().getDayOfWeek().ordinal()]++;
+            monthCounts[tx.date().getMonth().ordinal()]++;
+            if (tx.accountType() != null) {
+                accountTypeCounts[tx.accountType().ordinal()]++;
+            }
+            if (tx.accountName() != null) {
+                accountNameCounts.merge(tx.accountName(), 1, Integer::sum);
+            }
         }
         
-        for (Month month : Month.values()) {
-            int count = monthCounts.getOrDefault(month, 0);
-            monthLikelihoods.put(month, (count + ALPHA) / (total + 12 * ALPHA));
+        double logScore(TransactionFeatures tx, TokenBuffer tokens, int totalCount) {
+            double score = Math.log((count + ALPHA) / (totalCount + 2 * ALPHA));
+            
+            double logWordDenominator = Math.log(totalWords + ALPHA * vocabularySize);
+            for (int i = 0; i < tokens.size(); i++) {
+                int id = tokens.get(i);
+                if (vocabulary.get(id)) {
+                    score += Math.log(wordCounts[id] + ALPHA) - logWordDenominator;
+                }
+            }
+            
+            double stdDev = count > 1 ? Math.sqrt(amountM2 / count) : MIN_STD_DEV;
+            score += AMOUNT_WEIGHT * new GaussianDistribution(amountMean, stdDev)
+                .logProbability(tx.amount().doubleValue());
+            
+            double dayScore = Math.log((dayCounts[tx.date().getDayOfWeek().ordinal()] + ALPHA) /
+                (count + 7 * ALPHA));
+            double monthScore = Math.log((monthCounts[tx.date().getMonth().ordinal()] + ALPHA) /
+                (count + 12 * ALPHA));
+            score += TIME_WEIGHT * (dayScore + monthScore);
+            
+            if (tx.accountType() != null) {
+                score += ACCOUNT_TYPE_WEIGHT * Math.log((accountTypeCounts[tx.accountType().ordinal()] + ALPHA) /
+                    (count + ALPHA * accountTypeCounts.length));
+            }
+            if (tx.accountName() != null) {
+                score += ACCOUNT_NAME_WEIGHT * Math.log((accountNameCounts.getOrDefault(tx.accountName(), 0) + ALPHA) /
+                    (count + ALPHA * Math.max(subscriptionAccountNames.size(), 1)));
+            }
+            return score;
         }
-        
-        if (isSubscription) {
-            subscriptionDayLikelihoods.putAll(dayLikelihoods);
-            subscriptionMonthLikelihoods.putAll(monthLikelihoods);
-        } else {
-            nonSubscriptionDayLikelihoods.putAll(dayLikelihoods);
-            nonSubscriptionMonthLikelihoods.putAll(monthLikelihoods);
+    }
+    
+    /**
+     * Rough resident size of the envelope-mode model, used by
+     * {@link ClassifierRegistry} to bound how many models stay in memory.
+     */
+    public long estimatedBytes() {
+        long bytes = 256 + vocabulary.size() / 8;
+        for (String category : categoryPriors.keySet()) {
+            int mapEntries = DayOfWeek.values().length + Month.values().length +
+                Account.AccountType.values().length +
+                accountNameLikelihoods.getOrDefault(category, Map.of()).size();
+            bytes += 16L + 4L * tokenizer.buckets() + 48L * mapEntries + 2L * category.length();
         }
+        return bytes;
     }
-
-    private void updateAccountLikelihoods(List<TransactionFeatures> transactions, boolean isSubscription) {
-        Map<Account.AccountType, Integer> typeCounts = new HashMap<>();
-        Map<String, Integer> nameCounts = new HashMap<>();
+    
+    /**
+     * Writes the trained envelope-mode model in a compact binary form. Word
+     * counts are written sparsely, so a model mostly costs what its
+     * vocabulary costs.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        lock.lock();
+        try {
+            if (subscriptionMode) {
+                throw new IllegalStateException("Only envelope-mode models can be persisted");
+            }
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(tokenizer.buckets());
+            out.writeBoolean(tokenizer.bigrams());
+        
+            long[] vocabularyWords = vocabulary.toLongArray();
+            out.writeInt(vocabularySize);
+            out.writeInt(vocabularyWords.length);
+            for (long word : vocabularyWords) {
+                out.writeLong(word);
+            }
         
-        for (TransactionFeatures tx : transactions) {
-            typeCounts.merge(tx.accountType(), 1, Integer::sum);
-            nameCounts.merge(tx.accountName(), 1, Integer::sum);
+            out.writeInt(categoryPriors.size());
+            for (Map.Entry<String, Double> entry : categoryPriors.entrySet()) {
+                String category = entry.getKey();
+                out.writeUTF(category);
+                out.writeDouble(entry.getValue());
+                out.writeDouble(wordLogDenominators.get(category));
+            
+                GaussianDistribution amounts = amountDistributions.get(category);
+                out.writeDouble(amounts.mean);
+                out.writeDouble(amounts.stdDev);
+            
+                int[] counts = wordCounts.get(category);
+                int nonZero = 0;
+                for (int count : counts) {
+                    if (count != 0) nonZero++;
+                }
+                out.writeInt(nonZero);
+                for (int id = 0; id < counts.length; id++) {
+                    if (counts[id] != 0) {
+                        out.writeInt(id);
+                        out.writeInt(counts[id]);
+                    }
+                }
+            
+                for (DayOfWeek day : DayOfWeek.values()) {
+                    out.writeDouble(dayOfWeekLikelihoods.get(category).get(day));
+                }
+                for (Month month : Month.values()) {
+                    out.writeDouble(monthLikelihoods.get(category).get(month));
+                }
+                for (Account.AccountType type : Account.AccountType.values()) {
+                    out.writeDouble(accountTypeLikelihoods.get(category).get(type));
+                }
+            
+                Map<String, Double> names = accountNameLikelihoods.get(category);
+                out.writeInt(names.size());
+                for (Map.Entry<String, Double> name : names.entrySet()) {
+                    out.writeUTF(name.getKey());
+                    out.writeDouble(name.getValue());
+                }
+            }
+        } finally {
+            lock.unlock();
         }
-        
-        int total = isSubscription ? subscriptionCount : nonSubscriptionCount;
-        Map<Account.AccountType, Double> typeLikelihoods = new HashMap<>();
-        Map<String, Double> nameLikelihoods = new HashMap<>();
-        
-        for (Account.AccountType type : Account.AccountType.values()) {
-            int count = typeCounts.getOrDefault(type, 0);
-            typeLikelihoods.put(type, (count + ALPHA) / (total + ALPHA * Account.AccountType.values().length));
+    }
+    
+    public static TransactionNaiveBayes readFrom(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported model format version: " + version);
         }
+        TransactionNaiveBayes model = new TransactionNaiveBayes(
+            false, new FeatureHashingTokenizer(in.readInt(), in.readBoolean()));
         
-        Set<String> allNames = transactions.stream().map(TransactionFeatures::accountName).collect(Collectors.toSet());
-        for (String name : allNames) {
-            int count = nameCounts.getOrDefault(name, 0);
-            nameLikelihoods.put(name, (count + ALPHA) / (total + ALPHA * allNames.size()));
+        model.vocabularySize = in.readInt();
+        long[] vocabularyWords = new long[in.readInt()];
+        for (int i = 0; i < vocabularyWords.length; i++) {
+            vocabularyWords[i] = in.readLong();
         }
-        
-        if (isSubscription) {
-            subscriptionAccountTypeLikelihoods.putAll(typeLikelihoods);
-            subscriptionAccountNameLikelihoods.putAll(nameLikelihoods);
-        } else {
-            nonSubscriptionAccountTypeLikelihoods.putAll(typeLikelihoods);
-            nonSubscriptionAccountNameLikelihoods.putAll(nameLikelihoods);
+        model.vocabulary.or(BitSet.valueOf(vocabularyWords));
+        
+        int categories = in.readInt();
+        for (int c = 0; c < categories; c++) {
+            String category = in.readUTF();
+            model.categoryPriors.put(category, in.readDouble());
+            model.wordLogDenominators.put(category, in.readDouble());
+            model.amountDistributions.put(category, 
+                new GaussianDistribution(in.readDouble(), in.readDouble()));
+            
+            int[] counts = new int[model.tokenizer.buckets()];
+            int nonZero = in.readInt();
+            for (int i = 0; i < nonZero; i++) {
+                int id = in.readInt();
+                counts[id] = in.readInt();
+            }
+            model.wordCounts.put(category, counts);
+            
+            Map<DayOfWeek, Double> days = new EnumMap<>(DayOfWeek.class);
+            for (DayOfWeek day : DayOfWeek.values()) {
+                days.put(day, in.readDouble());
+            }
+            model.dayOfWeekLikelihoods.put(category, days);
+            
+            Map<Month, Double> months = new EnumMap<>(Month.class);
+            for (Month month : Month.values()) {
+                months.put(month, in.readDouble());
+            }
+            model.monthLikelihoods.put(category, months);
+            
+            Map<Account.AccountType, Double> types = new EnumMap<>(Account.AccountType.class);
+            for (Account.AccountType type : Account.AccountType.values()) {
+                types.put(type, in.readDouble());
+            }
+            model.accountTypeLikelihoods.put(category, types);
+            
+            Map<String, Double> names = new HashMap<>();
+            int nameCount = in.readInt();
+            for (int i = 0; i < nameCount; i++) {
+                names.put(in.readUTF(), in.readDouble());
+            }
+            model.accountNameLikelihoods.put(category, names);
         }
+        return model;
     }
     
     // Helper class for Gaussian distribution calculations
@@ -548,15 +671,6 @@ public class TransactionNaiveBayes {
         }
     }
     
-    // Helper class for text preprocessing
-    private static class TextPreprocessor {
-        public String[] tokenize(String text) {
-            return text.toLowerCase()
-                .replaceAll("[^a-z0-9\\s]", "")
-                .split("\\s+");
-        }
-    }
-
     // Feature record
     public record TransactionFeatures(
         String description,
@@ -573,9 +687,9 @@ public class TransactionNaiveBayes {
                 tx.getDescription(),
                 tx.getAmount(),
                 tx.getDate(),
-                tx.getEnvelope().getName(),
-                tx.getAccount().getType(),
-                tx.getAccount().getName()
+                tx.getEnvelope() != null ? tx.getEnvelope().getName() : null,
+                tx.getAccount() != null ? tx.getAccount().getType() : null,
+                tx.getAccount() != null ? tx.getAccount().getName() : null
             );
         }
     }
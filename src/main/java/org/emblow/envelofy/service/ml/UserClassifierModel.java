@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.ml;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.emblow.envelofy.domain.Account;
+import org.emblow.envelofy.service.ml.FeatureHashingTokenizer.TokenBuffer;
+import org.emblow.envelofy.service.ml.TransactionNaiveBayes.TransactionFeatures;
+
+/**
+ * The envelope classifiers of a single user: one general model, one per
+ * account type and one per account with enough history. Predictions are
+ * blended the same way the shared classifier used to blend them.
+ *
+ * @author Nicholas J Emblow
+ */
+public final class UserClassifierModel {
+    private static final int MIN_ACCOUNT_TRANSACTIONS = 50;
+    // A single user's vocabulary is small, so per-user models use fewer buckets
+    private static final int USER_MODEL_BUCKETS = 1 << 12;
+
+    private static final double GENERAL_WEIGHT = 0.4;
+    private static final double TYPE_WEIGHT = 0.3;
+    private static final double ACCOUNT_WEIGHT = 0.3;
+    // Separate from the models' own buffers, which a model that tokenizes differently reuses
+    private static final ThreadLocal<TokenBuffer> TOKENS = ThreadLocal.withInitial(TokenBuffer::new);
+
+    private final TransactionNaiveBayes general;
+    private final Map<Account.AccountType, TransactionNaiveBayes> accountTypeModels;
+    private final Map<String, TransactionNaiveBayes> accountSpecificModels;
+    private final int transactionCount;
+
+    private UserClassifierModel(
+        TransactionNaiveBayes general,
+        Map<Account.AccountType, TransactionNaiveBayes> accountTypeModels,
+        Map<String, TransactionNaiveBayes> accountSpecificModels,
+        int transactionCount
+    ) {
+        this.general = general;
+        this.accountTypeModels = accountTypeModels;
+        this.accountSpecificModels = accountSpecificModels;
+        this.transactionCount = transactionCount;
+    }
+
+    public static UserClassifierModel train(List<TransactionFeatures> features) {
+        TransactionNaiveBayes general = newModel();
+        Map<Account.AccountType, TransactionNaiveBayes> typeModels = new EnumMap<>(Account.AccountType.class);
+        Map<String, TransactionNaiveBayes> accountModels = new HashMap<>();
+
+        if (!features.isEmpty()) {
+            general.train(features);
+
+            Map<Account.AccountType, List<TransactionFeatures>> byType = features.stream()
+                .filter(f -> f.accountType() != null)
+                .collect(Collectors.groupingBy(TransactionFeatures::accountType));
+            byType.forEach((type, typeFeatures) -> {
+                TransactionNaiveBayes model = newModel();
+                model.train(typeFeatures);
+                typeModels.put(type, model);
+            });
+
+            Map<String, List<TransactionFeatures>> byAccount = features.stream()
+                .filter(f -> f.accountName() != null)
+                .collect(Collectors.groupingBy(TransactionFeatures::accountName));
+            byAccount.forEach((name, accountFeatures) -> {
+                if (accountFeatures.size() >= MIN_ACCOUNT_TRANSACTIONS) { // Only train if enough data
+                    TransactionNaiveBayes model = newModel();
+                    model.train(accountFeatures);
+                    accountModels.put(name, model);
+                }
+            });
+        }
+
+        return new UserClassifierModel(general, typeModels, accountModels, features.size());
+    }
+
+    private static TransactionNaiveBayes newModel() {
+        return new TransactionNaiveBayes(false, new FeatureHashingTokenizer(USER_MODEL_BUCKETS, false));
+    }
+
+    /**
+     * Blends the general, account-type and account-specific predictions and
+     * returns normalized probabilities keyed by envelope name. The
+     * description is tokenized once and shared by all three models.
+     */
+    public Map<String, Double> predict(TransactionFeatures features) {
+        if (transactionCount == 0) {
+            return Map.of();
+        }
+
+        TokenBuffer tokens = general.tokenize(features.description(), TOKENS.get());
+        Map<String, Double> generalPredictions = general.predict(features, tokens);
+        Map<String, Double> typeSpecificPredictions = features.accountType() == null
+            ? generalPredictions
+            : predict(accountTypeModels.get(features.accountType()), features, tokens, generalPredictions);
+        Map<String, Double> accountSpecificPredictions = features.accountName() == null
+            ? generalPredictions
+            : predict(accountSpecificModels.get(features.accountName()), features, tokens, generalPredictions);
+
+        Set<String> allCategories = new HashSet<>(generalPredictions.keySet());
+        allCategories.addAll(typeSpecificPredictions.keySet());
+        allCategories.addAll(accountSpecificPredictions.keySet());
+
+        Map<String, Double> combined = new HashMap<>();
+        double totalScore = 0.0;
+        for (String category : allCategories) {
+            double score =
+                GENERAL_WEIGHT * generalPredictions.getOrDefault(category, 0.0) +
+                TYPE_WEIGHT * typeSpecificPredictions.getOrDefault(category, 0.0) +
+                ACCOUNT_WEIGHT * accountSpecificPredictions.getOrDefault(category, 0.0);
+            combined.put(category, score);
+            totalScore += score;
+        }
+
+        if (totalScore > 0) {
+            final double total = totalScore;
+            combined.replaceAll((category, score) -> score / total);
+        }
+        return combined;
+    }
+
+    // Falls back to the general model's predictions, or tokenizes again if a persisted model hashes differently
+    private Map<String, Double> predict(TransactionNaiveBayes model, TransactionFeatures features, TokenBuffer tokens,
+                                        Map<String, Double> generalPredictions) {
+        if (model == null) {
+            return generalPredictions;
+        }
+        return model.tokenizesLike(general) ? model.predict(features, tokens) : model.predict(features);
+    }
+
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    public long estimatedBytes() {
+        long bytes = general.estimatedBytes();
+        for (TransactionNaiveBayes model : accountTypeModels.values()) {
+            bytes += model.estimatedBytes();
+        }
+        for (TransactionNaiveBayes model : accountSpecificModels.values()) {
+            bytes += model.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(transactionCount);
+        general.writeTo(out);
+
+        out.writeInt(accountTypeModels.size());
+        for (Map.Entry<Account.AccountType, TransactionNaiveBayes> entry : accountTypeModels.entrySet()) {
+            out.writeUTF(entry.getKey().name());
+            entry.getValue().writeTo(out);
+        }
+
+        out.writeInt(accountSpecificModels.size());
+        for (Map.Entry<String, TransactionNaiveBayes> entry : accountSpecificModels.entrySet()) {
+            out.writeUTF(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    public static UserClassifierModel readFrom(DataInput in) throws IOException {
+        int transactionCount = in.readInt();
+        TransactionNaiveBayes general = TransactionNaiveBayes.readFrom(in);
+
+        Map<Account.AccountType, TransactionNaiveBayes> typeModels = new EnumMap<>(Account.AccountType.class);
+        int typeCount = in.readInt();
+        for (int i = 0; i < typeCount; i++) {
+            typeModels.put(Account.AccountType.valueOf(in.readUTF()), TransactionNaiveBayes.readFrom(in));
+        }
+
+        Map<String, TransactionNaiveBayes> accountModels = new HashMap<>();
+        int accountCount = in.readInt();
+        for (int i = 0; i < accountCount; i++) {
+            accountModels.put(in.readUTF(), TransactionNaiveBayes.readFrom(in));
+        }
+
+        return new UserClassifierModel(general, typeModels, accountModels, transactionCount);
+    }
+}
@@ -19,7 +19,6 @@ package org.emblow.envelofy.ui.components;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.button.ButtonVariant;
 import com.vaadin.flow.component.combobox.ComboBox;
@@ -38,11 +37,13 @@ import com.vaadin.flow.spring.annotation.SpringComponent;
 import com.vaadin.flow.spring.annotation.UIScope;
 import org.emblow.envelofy.domain.ChatSession;
 import org.emblow.envelofy.domain.ChatMessage;
+import org.emblow.envelofy.service.llm.BlockingWorkScheduler;
+import org.emblow.envelofy.service.llm.InferenceScheduler;
 import org.emblow.envelofy.service.llm.LLMService;
+import org.emblow.envelofy.service.llm.ResponseEvent;
 import org.emblow.envelofy.service.ChatHistoryService;
 import com.vladsch.flexmark.parser.Parser;
 import com.vladsch.flexmark.html.HtmlRenderer;
-import org.springframework.security.concurrent.DelegatingSecurityContextRunnable;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.emblow.envelofy.ui.components.DataTable;
@@ -53,13 +54,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.emblow.envelofy.domain.ChartArtifact;
 import org.emblow.envelofy.exception.BusinessException;
 import org.emblow.envelofy.repository.ChartArtifactRepository;
 import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
 
 /**
  * A Vaadin component for handling chat interactions with an LLM service,
@@ -68,6 +71,7 @@ import org.springframework.security.core.context.ReactiveSecurityContextHolder;
 @SpringComponent
 @UIScope
 public class ChatComponent extends VerticalLayout {
+    private static final Logger log = LoggerFactory.getLogger(ChatComponent.class);
     private final LLMService llmService;
     private final ChatHistoryService chatHistoryService;
     private final VerticalLayout messagesLayout;
@@ -81,18 +85,25 @@ public class ChatComponent extends VerticalLayout {
     private ChatSession currentSession;
     private Div currentAssistantMessage;
     private StringBuilder streamedResponse;
+    private List<String> streamedCharts;
+    private Disposable streamSubscription;
+    private long lastRender;
     private static final Pattern JSON_PATTERN = Pattern.compile("\\{.*\\}", Pattern.DOTALL);
-    private int retryCount = 0;
-    private static final int MAX_RETRIES = 2;
-    private boolean isRetrying = false;
     private static final int MAX_TEXT_LENGTH = 4000;
     private static final int MAX_RESPONSE_SIZE = 1_000_000; // 1MB
+    private static final long RENDER_INTERVAL_MS = 100;
     private ChartArtifactRepository chartArtifactRepository;
+    private final InferenceScheduler inferenceScheduler;
+    private final BlockingWorkScheduler blockingWork;
 
-    public ChatComponent(LLMService llmService, ChatHistoryService chatHistoryService, ChartArtifactRepository chartArtifactRepository) {
+    public ChatComponent(LLMService llmService, ChatHistoryService chatHistoryService,
+                         ChartArtifactRepository chartArtifactRepository, InferenceScheduler inferenceScheduler,
+                         BlockingWorkScheduler blockingWork) {
         this.llmService = llmService;
         this.chatHistoryService = chatHistoryService;
         this.chartArtifactRepository = chartArtifactRepository;
+        this.inferenceScheduler = inferenceScheduler;
+        this.blockingWork = blockingWork;
         // Set up component styling (unchanged)
         setHeightFull();
         setWidth("100%");
@@ -212,17 +223,14 @@ public class ChatComponent extends VerticalLayout {
 
     private void handleSend() {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        retryCount = 0;
-        isRetrying = false;
 
         String rawMessage = inputField.getValue().trim();
         String message = sanitizeInput(rawMessage);
         if (message.isEmpty()) return;
 
-        System.out.println("Starting handleSend with message: " + message);
-
+        Long sessionId = currentSession.getId();
         addMessage(message, true);
-        chatHistoryService.addMessage(currentSession.getId(), "user", message);
+        chatHistoryService.addMessage(sessionId, "user", message);
         inputField.clear();
         setInputEnabled(false);
 
@@ -241,9 +249,16 @@ public class ChatComponent extends VerticalLayout {
         
         Icon spinner = VaadinIcon.SPINNER.create();
         spinner.getStyle().set("animation", "spin 2s infinite linear");
-        thinkingIndicator.add(spinner, new Span("Thinking..."));
+        Span thinkingLabel = new Span("Thinking...");
+        thinkingIndicator.add(spinner, thinkingLabel);
         messagesLayout.add(thinkingIndicator);
 
+        // Local models queue requests; show the position while waiting
+        Disposable queueListener = inferenceScheduler.addQueueListener(authentication.getName(), position ->
+            getUI().ifPresent(ui -> ui.access(() -> thinkingLabel.setText(position > 0
+                ? "Waiting for the model (position " + position + " in queue)..."
+                : "Thinking..."))));
+
         UI.getCurrent().getPage().addStyleSheet(
             "data:text/css," + 
             "@keyframes spin {" +
@@ -253,6 +268,8 @@ public class ChatComponent extends VerticalLayout {
         );
 
         streamedResponse = new StringBuilder();
+        streamedCharts = new ArrayList<>();
+        lastRender = 0;
         currentAssistantMessage = new Div();
         currentAssistantMessage.addClassName("assistant-message");
         currentAssistantMessage.getStyle()
@@ -263,182 +280,127 @@ public class ChatComponent extends VerticalLayout {
             .set("max-width", "80%")
             .set("margin", "0 auto var(--lumo-space-m) 0");
 
-        Runnable task = () -> {
-            try {
-                System.out.println("Starting LLM query...");
-                SecurityContextHolder.getContext().setAuthentication(authentication);
-
-                llmService.streamUserQuery(message)
-                    .contextWrite(ReactiveSecurityContextHolder.withAuthentication(authentication))
-                    .subscribe(
-                        chunk -> {
-                            System.out.println("Received chunk: " + chunk);
-                            getUI().ifPresent(ui -> ui.access(() -> {
-                                streamedResponse.append(chunk);
-                                processStreamedChunk(chunk);
-                            }));
-                        },
-                        error -> {
-                            System.out.println("Stream error: " + error.getMessage());
-                            error.printStackTrace();
-                            getUI().ifPresent(ui -> ui.access(() -> {
-                                messagesLayout.remove(thinkingIndicator);
-                                Notification.show("Error: " + error.getMessage(), 3000, Notification.Position.MIDDLE);
-                                setInputEnabled(true);
-                            }));
-                        },
-                        () -> {
-                            System.out.println("Stream completed");
-                            getUI().ifPresent(ui -> ui.access(() -> {
-                                messagesLayout.remove(thinkingIndicator);
-                                messagesLayout.add(currentAssistantMessage);
-                                finalizeStreamedMessage(authentication);
-                                setInputEnabled(true);
-                            }));
+        // The stream never blocks: subscribing here only starts the work, which
+        // runs on the service's own threads and reports back through ui.access
+        try {
+            streamSubscription = llmService.streamUserQuery(message, sessionId)
+                .contextWrite(ReactiveSecurityContextHolder.withAuthentication(authentication))
+                .subscribe(
+                    event -> getUI().ifPresent(ui -> ui.access(() -> {
+                        if (streamedResponse != null && thinkingIndicator.getParent().isPresent()) {
+                            messagesLayout.replace(thinkingIndicator, currentAssistantMessage);
                         }
-                    );
-            } catch (Exception e) {
-                System.out.println("Task execution error: " + e.getMessage());
-                e.printStackTrace();
-                getUI().ifPresent(ui -> ui.access(() -> {
-                    messagesLayout.remove(thinkingIndicator);
-                    Notification.show("Unexpected error: " + e.getMessage(), 3000, Notification.Position.MIDDLE);
-                    setInputEnabled(true);
-                }));
-            }
-        };
-
-        CompletableFuture.runAsync(new DelegatingSecurityContextRunnable(task));
+                        processStreamedEvent(event, authentication);
+                    })),
+                    error -> {
+                        log.error("Chat stream failed", error);
+                        queueListener.dispose();
+                        getUI().ifPresent(ui -> ui.access(() -> {
+                            messagesLayout.remove(thinkingIndicator);
+                            Notification.show("Error: " + error.getMessage(), 3000, Notification.Position.MIDDLE);
+                            finalizeStreamedMessage(authentication);
+                        }));
+                    },
+                    () -> {
+                        queueListener.dispose();
+                        getUI().ifPresent(ui -> ui.access(() -> {
+                            messagesLayout.remove(thinkingIndicator);
+                            finalizeStreamedMessage(authentication);
+                        }));
+                    }
+                );
+        } catch (Exception e) {
+            log.error("Chat task failed", e);
+            queueListener.dispose();
+            messagesLayout.remove(thinkingIndicator);
+            Notification.show("Unexpected error: " + e.getMessage(), 3000, Notification.Position.MIDDLE);
+            setInputEnabled(true);
+        }
     }
 
-  private void processStreamedChunk(String chunk) {
-    if (streamedResponse.length() > MAX_RESPONSE_SIZE) {
-        Notification.show("Response too large. Please try a different query.", 
-            3000, Notification.Position.MIDDLE);
-        return;
-    }
-    streamedResponse.append(chunk);
-}
-
-    private void processFullResponse() {
-      if (streamedResponse.length() > MAX_RESPONSE_SIZE) {
-          Notification.show("Response too large. Please try a different query.", 
-              3000, Notification.Position.MIDDLE);
-          return;
-      }
-
-      String responseText = streamedResponse.toString();
-      currentAssistantMessage.removeAll();
-
-      Matcher matcher = JSON_PATTERN.matcher(responseText);
-      if (matcher.find()) {
-          String jsonPart = matcher.group();
-          String beforeJson = responseText.substring(0, matcher.start()).trim();
-          String afterJson = responseText.substring(matcher.end()).trim();
-
-          StringBuilder fullText = new StringBuilder();
-          if (!beforeJson.isEmpty()) {
-              fullText.append(beforeJson).append("\n\n");
-          }
-
-          try {
-              JsonNode response = objectMapper.readTree(jsonPart);
-              String innerText = response.has("text") ? response.get("text").asText() : "";
-              if (!innerText.isEmpty()) {
-                  fullText.append(innerText);
-              }
-              if (!afterJson.isEmpty()) {
-                  fullText.append("\n\n").append(afterJson);
-              }
-
-              String html = htmlRenderer.render(markdownParser.parse(fullText.toString()));
-              html = html.replaceAll("(?s)<think>.*?</think>", "");
-              currentAssistantMessage.getElement().setProperty("innerHTML", html);
-
-              List<String> chartDataList = new ArrayList<>();
-              if (response.has("charts") && response.get("charts").isArray()) {
-                  ArrayNode charts = (ArrayNode) response.get("charts");
-                  for (JsonNode chartNode : charts) {
-                      chartDataList.add(chartNode.toString());
-                      dataLayout.add(renderChart(chartNode));
-                  }
-              }
-
-              if (response.has("tables") && response.get("tables").isArray()) {
-                  ArrayNode tables = (ArrayNode) response.get("tables");
-                  for (JsonNode tableNode : tables) {
-                      dataLayout.add(DataTable.createFromJson(tableNode));
-                  }
-              }
-
-              chatHistoryService.addMessageWithCharts(
-                  currentSession.getId(),
-                  "assistant",
-                  fullText.toString(),
-                  chartDataList
-              );
-
-          } catch (JsonProcessingException e) {
-              throw new BusinessException(
-                  "CHART_PROCESSING_ERROR",
-                  "Failed to process chart data: " + e.getMessage()
-              );
-          }
-      } else {
-          String html = htmlRenderer.render(markdownParser.parse(responseText));
-          html = html.replaceAll("(?s)<think>.*?</think>", "");
-          currentAssistantMessage.getElement().setProperty("innerHTML", html);
-          chatHistoryService.addMessage(currentSession.getId(), "assistant", responseText);
-      }
-  }
-
-    private void handleJsonError(Exception e, String invalidJson) {
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        if (isRetrying || retryCount >= MAX_RETRIES) {
-            Notification.show("Failed to fix JSON after retries. Please try again.", 3000, Notification.Position.MIDDLE);
-            setInputEnabled(true);
+    private void processStreamedEvent(ResponseEvent event, Authentication authentication) {
+        if (streamedResponse == null) {
             return;
         }
+        try {
+            switch (event.type()) {
+                case TEXT -> {
+                    if (streamedResponse.length() + event.content().length() > MAX_RESPONSE_SIZE) {
+                        if (streamSubscription != null) {
+                            streamSubscription.dispose();
+                        }
+                        Notification.show("Response too large. Please try a different query.",
+                            3000, Notification.Position.MIDDLE);
+                        finalizeStreamedMessage(authentication);
+                        return;
+                    }
+                    streamedResponse.append(event.content());
+                    // Re-rendering markdown on every token would flood the push channel
+                    long now = System.currentTimeMillis();
+                    if (now - lastRender >= RENDER_INTERVAL_MS) {
+                        renderStreamedText();
+                        lastRender = now;
+                    }
+                }
+                case CHART -> {
+                    JsonNode chartNode = objectMapper.readTree(event.content());
+                    streamedCharts.add(chartNode.toString());
+                    dataLayout.add(renderChart(chartNode));
+                }
+                case TABLE -> dataLayout.add(DataTable.createFromJson(objectMapper.readTree(event.content())));
+            }
+        } catch (JsonProcessingException e) {
+            log.warn("Skipping malformed {} in response: {}", event.type(), e.getMessage());
+        }
+    }
 
-        isRetrying = true;
-        streamedResponse = new StringBuilder();
-
-        String errorMessage = "The previous response had invalid JSON: " + e.getMessage() + ". Please provide a corrected version:\n" + invalidJson;
-        retryCount++;
+    private void renderStreamedText() {
+        String html = htmlRenderer.render(markdownParser.parse(streamedResponse.toString()));
+        html = html.replaceAll("(?s)<think>.*?</think>", "");
+        currentAssistantMessage.getElement().setProperty("innerHTML", html);
+        messagesLayout.getElement().executeJs("this.scrollTop = this.scrollHeight;");
+    }
 
-        Notification.show("Correcting JSON response...", 1000, Notification.Position.BOTTOM_END);
+    /**
+     * Shows the final answer and stores it. Called under ui.access, which may
+     * run on a provider's event loop, so the answer is saved on the blocking
+     * work threads as the user; input comes back once it is stored, so the
+     * next question can't be saved ahead of it.
+     */
+    private void finalizeStreamedMessage(Authentication authentication) {
+        UI ui = UI.getCurrent();
+        boolean save = streamedResponse != null && (streamedResponse.length() > 0 || !streamedCharts.isEmpty());
+        Long sessionId = currentSession.getId();
+        String content = save ? streamedResponse.toString() : null;
+        List<String> charts = save ? streamedCharts : null;
+        if (save) {
+            renderStreamedText();
+        }
+        currentAssistantMessage = null;
+        streamedResponse = null;
+        streamedCharts = null;
+        streamSubscription = null;
 
-        llmService.streamUserQuery(errorMessage)
+        if (!save) {
+            setInputEnabled(true);
+            return;
+        }
+        blockingWork.run(authentication, () ->
+                chatHistoryService.addMessageWithCharts(sessionId, "assistant", content, charts))
             .subscribe(
-                chunk -> getUI().ifPresent(ui -> ui.access(() -> {
-                    streamedResponse.append(chunk);
-                    processStreamedChunk(chunk);
-                })),
-                error -> getUI().ifPresent(ui -> ui.access(() -> {
-                    System.out.println("Retry error: " + error.getMessage());
-                    Notification.show("Retry failed: " + error.getMessage(), 3000, Notification.Position.MIDDLE);
-                    setInputEnabled(true);
-                    isRetrying = false;
-                })),
-                () -> getUI().ifPresent(ui -> ui.access(() -> {
-                    System.out.println("Retry stream completed");
-                    finalizeStreamedMessage(authentication);
-                    setInputEnabled(true);
-                    isRetrying = false;
-                }))
+                null,
+                error -> {
+                    log.error("Could not save chat response", error);
+                    ui.access(() -> {
+                        Notification.show("Could not save the response: " + error.getMessage(),
+                            3000, Notification.Position.MIDDLE);
+                        setInputEnabled(true);
+                    });
+                },
+                () -> ui.access(() -> setInputEnabled(true))
             );
     }
 
- private void finalizeStreamedMessage(Authentication authentication) {
-    SecurityContextHolder.getContext().setAuthentication(authentication);
-    if (streamedResponse.length() > 0) {
-        processFullResponse();
-    }
-    retryCount = 0;
-    currentAssistantMessage = null;
-    streamedResponse = null;
-}
-
     private void addMessage(String text, boolean isUser) {
         Div messageDiv = new Div();
         messageDiv.addClassName(isUser ? "user-message" : "assistant-message");
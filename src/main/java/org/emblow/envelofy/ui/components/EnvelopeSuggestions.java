@@ -28,20 +28,21 @@ import com.vaadin.flow.component.combobox.ComboBox;
 import com.vaadin.flow.component.orderedlayout.FlexComponent.Alignment;
 import org.emblow.envelofy.domain.Envelope;
 import org.emblow.envelofy.domain.Transaction;
-import org.emblow.envelofy.service.PatternService;
+import org.emblow.envelofy.service.EnvelopeSuggestionService;
+import org.emblow.envelofy.service.EnvelopeSuggestionService.EnvelopeSuggestion;
 
-import java.util.Map;
+import java.util.List;
 
 public class EnvelopeSuggestions extends HorizontalLayout {
     private final ComboBox<Envelope> envelopeField;
-    private final PatternService patternService;
+    private final EnvelopeSuggestionService suggestionService;
 
     public EnvelopeSuggestions(
         ComboBox<Envelope> envelopeField,
-        PatternService patternService
+        EnvelopeSuggestionService suggestionService
     ) {
         this.envelopeField = envelopeField;
-        this.patternService = patternService;
+        this.suggestionService = suggestionService;
         
         setSpacing(true);
         setAlignItems(Alignment.CENTER);
@@ -56,25 +57,36 @@ public class EnvelopeSuggestions extends HorizontalLayout {
             return;
         }
 
-        Map<Envelope, Double> suggestions = patternService.suggestEnvelopes(transaction);
+        List<EnvelopeSuggestion> suggestions = suggestionService.suggest(transaction, 3); // Show top 3 suggestions
         if (!suggestions.isEmpty()) {
             setVisible(true);
             
             add(new Span("Suggested: "));
             
-            suggestions.entrySet().stream()
-                .sorted((e1, e2) -> e2.getValue().compareTo(e1.getValue()))
-                .limit(3)  // Show top 3 suggestions
-                .forEach(entry -> {
-                    Button suggestionButton = new Button(
-                        entry.getKey().getName(),
-                        click -> envelopeField.setValue(entry.getKey())
-                    );
-                    suggestionButton.addThemeVariants(ButtonVariant.LUMO_SMALL);
-                    add(suggestionButton);
-                });
+            suggestions.forEach(suggestion -> {
+                Button suggestionButton = new Button(
+                    suggestion.envelope().getName(),
+                    click -> select(suggestion.envelope())
+                );
+                suggestionButton.addThemeVariants(ButtonVariant.LUMO_SMALL);
+                suggestionButton.setTooltipText(String.format(
+                    "%.0f%% confidence (patterns %.0f%%, model %.0f%%)",
+                    suggestion.confidence() * 100,
+                    suggestion.patternScore() * 100,
+                    suggestion.modelScore() * 100
+                ));
+                add(suggestionButton);
+            });
         } else {
             setVisible(false);
         }
     }
+
+    // Suggestions come from a cache, so select the field's own instance of the envelope
+    private void select(Envelope envelope) {
+        envelopeField.getListDataView().getItems()
+            .filter(item -> item.getId().equals(envelope.getId()))
+            .findFirst()
+            .ifPresentOrElse(envelopeField::setValue, () -> envelopeField.setValue(envelope));
+    }
 }
\ No newline at end of file
@@ -44,7 +44,7 @@ import org.emblow.envelofy.domain.TransactionType;
 import org.emblow.envelofy.service.TransactionService;
 import org.emblow.envelofy.service.EnvelopeService;
 import org.emblow.envelofy.service.AccountService;
-import org.emblow.envelofy.service.PatternService;
+import org.emblow.envelofy.service.EnvelopeSuggestionService;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -56,18 +56,18 @@ public class TransactionManagementDialogs {
     private final TransactionService transactionService;
     private final EnvelopeService envelopeService;
     private final AccountService accountService;
-    private final PatternService patternService;
+    private final EnvelopeSuggestionService suggestionService;
 
     public TransactionManagementDialogs(
         TransactionService transactionService,
         EnvelopeService envelopeService,
         AccountService accountService,
-        PatternService patternService
+        EnvelopeSuggestionService suggestionService
     ) {
         this.transactionService = transactionService;
         this.envelopeService = envelopeService;
         this.accountService = accountService;
-        this.patternService = patternService;
+        this.suggestionService = suggestionService;
     }
 
     public void showNewTransactionDialog(Runnable onSuccess) {
@@ -180,7 +180,7 @@ public class TransactionManagementDialogs {
         }
 
         // Add envelope suggestions
-        EnvelopeSuggestions suggestions = new EnvelopeSuggestions(envelopeField, patternService);
+        EnvelopeSuggestions suggestions = new EnvelopeSuggestions(envelopeField, suggestionService);
 
         // Update suggestions when description changes
         descriptionField.addValueChangeListener(e -> {
@@ -28,7 +28,8 @@ import org.emblow.envelofy.service.ml.SpendingInsight;
 import org.emblow.envelofy.service.ml.AdvancedMLService;
 import org.emblow.envelofy.service.ml.SpendingInsightService;
 import org.emblow.envelofy.service.CSVImportService;
-import org.emblow.envelofy.service.PatternService;
+import org.emblow.envelofy.service.EnvelopeSuggestionService;
+import org.emblow.envelofy.service.EnvelopeSuggestionService.EnvelopeSuggestion;
 import org.emblow.envelofy.service.TransactionService;
 import org.emblow.envelofy.service.EnvelopeService;
 import org.emblow.envelofy.service.AccountService;
@@ -72,6 +73,7 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.HashMap;
 import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.PatternSyntaxException;
@@ -93,7 +95,7 @@ public class AccountView extends VerticalLayout implements HasUrlParameter<Long>
     private final CSVImportService csvImportService;
     private final SpendingInsightService spendingInsightService;
     private final AdvancedMLService advancedMLService;
-    private final PatternService patternService;
+    private final EnvelopeSuggestionService suggestionService;
     private final EnvelopeService envelopeService;
     private Tabs tabs; 
     private Account currentAccount;
@@ -110,7 +112,7 @@ public class AccountView extends VerticalLayout implements HasUrlParameter<Long>
         CSVImportService csvImportService,
         SpendingInsightService spendingInsightService,
         AdvancedMLService advancedMLService,
-        PatternService patternService,
+        EnvelopeSuggestionService suggestionService,
         EnvelopeService envelopeService,
         RecurringTransactionService recurringTransactionService
     ) {
@@ -120,7 +122,7 @@ public class AccountView extends VerticalLayout implements HasUrlParameter<Long>
         this.csvImportService = csvImportService;
         this.spendingInsightService = spendingInsightService;
         this.advancedMLService = advancedMLService;
-        this.patternService = patternService;
+        this.suggestionService = suggestionService;
         this.envelopeService = envelopeService;
         this.recurringTransactionService = recurringTransactionService;
 
@@ -650,6 +652,15 @@ public class AccountView extends VerticalLayout implements HasUrlParameter<Long>
         );
 
         if (!recentTransactions.isEmpty()) {
+            // Score the whole grid in one batch instead of once per rendered row
+            List<List<EnvelopeSuggestion>> batch = suggestionService.suggestAll(recentTransactions, 1);
+            Map<Transaction, EnvelopeSuggestion> topSuggestions = new HashMap<>();
+            for (int i = 0; i < recentTransactions.size(); i++) {
+                if (!batch.get(i).isEmpty()) {
+                    topSuggestions.put(recentTransactions.get(i), batch.get(i).get(0));
+                }
+            }
+
             Grid<Transaction> grid = new Grid<>();
             grid.setItems(recentTransactions);
             
@@ -663,36 +674,29 @@ public class AccountView extends VerticalLayout implements HasUrlParameter<Long>
                 .setHeader("Current Envelope")
                 .setAutoWidth(true);
             grid.addComponentColumn(tx -> {
-                // Get envelope suggestions
-                Map<Envelope, Double> suggestions = patternService.suggestEnvelopes(tx);
-                if (!suggestions.isEmpty()) {
-                    Map.Entry<Envelope, Double> topSuggestion = suggestions.entrySet().stream()
-                        .max(Map.Entry.comparingByValue())
-                        .get();
-                    
-                    if (!topSuggestion.getKey().equals(tx.getEnvelope())) {
-                        Button changeBtn = new Button(
-                            String.format("Change to %s (%.0f%% match)", 
-                                topSuggestion.getKey().getName(),
-                                topSuggestion.getValue() * 100
-                            ),
-                            e -> {
-                                // Update transaction envelope
-                                transactionService.updateTransaction(
-                                    tx.getId(),
-                                    topSuggestion.getKey().getId(),
-                                    tx.getAccount().getId(),
-                                    tx.getDate(),
-                                    tx.getDescription(),
-                                    tx.getAmount(),
-                                    tx.getType()
-                                );
-                                refreshData();
-                            }
-                        );
-                        changeBtn.addThemeVariants(ButtonVariant.LUMO_SMALL);
-                        return changeBtn;
-                    }
+                EnvelopeSuggestion topSuggestion = topSuggestions.get(tx);
+                if (topSuggestion != null && !topSuggestion.envelope().getId().equals(tx.getEnvelope().getId())) {
+                    Button changeBtn = new Button(
+                        String.format("Change to %s (%.0f%% match)", 
+                            topSuggestion.envelope().getName(),
+                            topSuggestion.confidence() * 100
+                        ),
+                        e -> {
+                            // Update transaction envelope
+                            transactionService.updateTransaction(
+                                tx.getId(),
+                                topSuggestion.envelope().getId(),
+                                tx.getAccount().getId(),
+                                tx.getDate(),
+                                tx.getDescription(),
+                                tx.getAmount(),
+                                tx.getType()
+                            );
+                            refreshData();
+                        }
+                    );
+                    changeBtn.addThemeVariants(ButtonVariant.LUMO_SMALL);
+                    return changeBtn;
                 }
                 return new Span("Best match");
             })
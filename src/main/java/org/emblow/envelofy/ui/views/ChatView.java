@@ -25,6 +25,8 @@ import com.vaadin.flow.component.orderedlayout.VerticalLayout;
 import com.vaadin.flow.router.PageTitle;
 import com.vaadin.flow.router.Route;
 import org.emblow.envelofy.repository.ChartArtifactRepository;
+import org.emblow.envelofy.service.llm.BlockingWorkScheduler;
+import org.emblow.envelofy.service.llm.InferenceScheduler;
 import org.emblow.envelofy.service.llm.LLMService;
 import org.emblow.envelofy.service.ChatHistoryService;
 import org.emblow.envelofy.ui.MainLayout;
@@ -36,7 +38,9 @@ public class ChatView extends VerticalLayout {
 
     public ChatView(LLMService llmService, 
                    ChatHistoryService chatHistoryService,
-                   ChartArtifactRepository chartArtifactRepository) { // Add this parameter
+                   ChartArtifactRepository chartArtifactRepository,
+                   InferenceScheduler inferenceScheduler,
+                   BlockingWorkScheduler blockingWork) {
         addClassName("chat-view");
         setSizeFull(); 
         setAlignItems(Alignment.CENTER);
@@ -44,7 +48,8 @@ public class ChatView extends VerticalLayout {
         H2 header = new H2("Financial Assistant");
         header.getStyle().set("margin-top", "var(--lumo-space-m)");
         
-        ChatComponent chat = new ChatComponent(llmService, chatHistoryService, chartArtifactRepository);
+        ChatComponent chat = new ChatComponent(llmService, chatHistoryService, chartArtifactRepository, inferenceScheduler,
+            blockingWork);
         
         add(header, chat);
         setFlexGrow(1, chat);
@@ -36,8 +36,15 @@ import com.vaadin.flow.router.Route;
 import com.vaadin.flow.server.auth.AnonymousAllowed;
 import org.emblow.envelofy.ui.MainLayout;
 import org.emblow.envelofy.service.SettingService;
+import org.emblow.envelofy.service.llm.JllamaModelManager;
+import org.emblow.envelofy.service.llm.JllamaModelManager.ModelStatus;
+import org.emblow.envelofy.service.llm.ProviderHealthTracker;
+import org.emblow.envelofy.service.llm.ProviderHealthTracker.ProviderHealth;
+import org.emblow.envelofy.service.llm.ResponseCache;
+import org.emblow.envelofy.service.llm.ResponseCache.CacheStats;
 import org.springframework.beans.factory.annotation.Value;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -64,6 +71,21 @@ public class ConfigurationView extends VerticalLayout {
      * The SettingService used to retrieve and update configuration settings.
      */
     private final SettingService settingService;
+
+    /**
+     * Reports the load state of the local JLlama model.
+     */
+    private final JllamaModelManager jllamaModelManager;
+
+    /**
+     * Reports how often chat questions are answered from cache.
+     */
+    private final ResponseCache responseCache;
+
+    /**
+     * Reports the latency and circuit state of each LLM provider.
+     */
+    private final ProviderHealthTracker providerHealthTracker;
     
     @Value("${llm.service.type:jllama}")
     private String currentLLMType;
@@ -93,9 +115,16 @@ public class ConfigurationView extends VerticalLayout {
      * Constructs a new ConfigurationView.
      *
      * @param settingService the service used to retrieve and update configuration settings
+     * @param jllamaModelManager the manager of the local JLlama model
+     * @param responseCache the cache of chat responses
+     * @param providerHealthTracker the tracker of LLM provider health
      */
-    public ConfigurationView(SettingService settingService) {
+    public ConfigurationView(SettingService settingService, JllamaModelManager jllamaModelManager,
+                             ResponseCache responseCache, ProviderHealthTracker providerHealthTracker) {
         this.settingService = settingService;
+        this.jllamaModelManager = jllamaModelManager;
+        this.responseCache = responseCache;
+        this.providerHealthTracker = providerHealthTracker;
         
         addClassName("config-view");
         setSpacing(true);
@@ -153,6 +182,13 @@ public class ConfigurationView extends VerticalLayout {
         ComboBox<String> llmTypeSelect = new ComboBox<>("LLM Service Type");
         llmTypeSelect.setItems("jllama", "chatgpt", "ollama", "groq");
         llmTypeSelect.setValue(currentLLMType != null ? currentLLMType : "jllama");
+
+        // ComboBox for the service to hedge to when the selected one is slow or failing.
+        ComboBox<String> fallbackSelect = new ComboBox<>("Fallback Service");
+        fallbackSelect.setItems("none", "jllama", "chatgpt", "ollama", "groq");
+        String currentFallback = settingService.getSetting("llm.service.fallback", "").trim();
+        fallbackSelect.setValue(currentFallback.isEmpty() ? "none" : currentFallback);
+        fallbackSelect.setHelperText("Also asked when the selected service is slow or failing; the first answer is used");
         
         // Create separate layouts for each LLM configuration.
         VerticalLayout chatgptSettings = createChatGPTSettings();
@@ -170,7 +206,8 @@ public class ConfigurationView extends VerticalLayout {
         
         // Save button that collects all settings and saves them.
         Button saveButton = new Button("Save Changes", new Icon(VaadinIcon.CHECK), e ->
-            saveLLMSettings(llmTypeSelect.getValue(), chatgptSettings, ollamaSettings, groqSettings, jllamaSettings)
+            saveLLMSettings(llmTypeSelect.getValue(), fallbackSelect.getValue(),
+                    chatgptSettings, ollamaSettings, groqSettings, jllamaSettings)
         );
         saveButton.addThemeVariants(ButtonVariant.LUMO_PRIMARY);
         
@@ -178,7 +215,10 @@ public class ConfigurationView extends VerticalLayout {
         content.add(
             llmTitle,
             new Paragraph("Choose your preferred language model service and configure its settings."),
+            new Paragraph(describeCacheStats(responseCache.getStats())),
+            new Paragraph(describeProviderHealth(providerHealthTracker.getHealth())),
             llmTypeSelect,
+            fallbackSelect,
             chatgptSettings,
             ollamaSettings,
             groqSettings,
@@ -284,12 +324,65 @@ public class ConfigurationView extends VerticalLayout {
         
         Paragraph info = new Paragraph(
                 "JLlama runs locally and requires no additional configuration. " +
-                "Models will be automatically downloaded when first used."
+                "The model is downloaded and loaded in the background when JLlama is selected."
         );
         
-        layout.add(title, info);
+        layout.add(title, info, new Paragraph(describeModelStatus(jllamaModelManager.getStatus())));
         return layout;
     }
+
+    /**
+     * Formats the response cache hit rate.
+     *
+     * @param stats the current cache statistics
+     * @return a one-line description of the statistics
+     */
+    private String describeCacheStats(CacheStats stats) {
+        long hits = stats.exactHits() + stats.normalizedHits();
+        long lookups = hits + stats.misses();
+        return String.format("Response cache: %.0f%% hit rate (%d of %d questions, %d cached answers)",
+                stats.hitRate() * 100, hits, lookups, stats.entries());
+    }
+
+    /**
+     * Formats the circuit state and time to first response of each provider used so far.
+     *
+     * @param health the current provider health
+     * @return a one-line description of the providers
+     */
+    private String describeProviderHealth(List<ProviderHealth> health) {
+        if (health.isEmpty()) {
+            return "Provider health: no requests yet";
+        }
+        return "Provider health: " + health.stream()
+                .map(h -> String.format("%s %s, p50 %d ms, p90 %d ms (%d failures of %d)",
+                        h.provider(), h.circuit().name().toLowerCase(), h.p50Millis(), h.p90Millis(),
+                        h.failures(), h.requests()))
+                .collect(Collectors.joining("; "));
+    }
+
+    /**
+     * Formats the load state and weight size of the local model.
+     *
+     * @param status the current model status
+     * @return a one-line description of the status
+     */
+    private String describeModelStatus(ModelStatus status) {
+        if (status.modelName() == null) {
+            return "Model status: not loaded";
+        }
+        StringBuilder description = new StringBuilder("Model status: ")
+                .append(status.modelName())
+                .append(" - ")
+                .append(status.state().name().toLowerCase());
+        if (status.weightBytes() > 0) {
+            description.append(String.format(" (%.1f MB of weights)", status.weightBytes() / (1024.0 * 1024.0)));
+        }
+        if (status.error() != null) {
+            description.append(": ").append(status.error());
+        }
+        return description.toString();
+    }
     
     /**
      * Updates the visibility of the various LLM settings layouts based on the selected LLM service type.
@@ -319,6 +412,7 @@ public class ConfigurationView extends VerticalLayout {
      * we iterate over the settings map and call saveSetting for each entry.
      *
      * @param selectedType      the selected LLM service type
+     * @param fallbackType      the selected fallback service type, or "none"
      * @param chatgptSettings   the ChatGPT settings layout
      * @param ollamaSettings    the Ollama settings layout
      * @param groqSettings      the Groq settings layout
@@ -326,6 +420,7 @@ public class ConfigurationView extends VerticalLayout {
      */
     private void saveLLMSettings(
         String selectedType,
+        String fallbackType,
         VerticalLayout chatgptSettings,
         VerticalLayout ollamaSettings,
         VerticalLayout groqSettings,
@@ -336,6 +431,8 @@ public class ConfigurationView extends VerticalLayout {
             
             // Save the LLM service type.
             newSettings.put("llm.service.type", selectedType);
+            newSettings.put("llm.service.fallback",
+                    fallbackType == null || "none".equals(fallbackType) ? "" : fallbackType);
             
             // Save ChatGPT settings.
             if ("chatgpt".equals(selectedType)) {
@@ -32,6 +32,9 @@ CREATE TABLE IF NOT EXISTS chat_session (
     title VARCHAR(255) NOT NULL,
     owner_id BIGINT NOT NULL,
     created_at TIMESTAMP NOT NULL,
+    summary TEXT,
+    summarized_through_id BIGINT,
+    token_count INT DEFAULT 0 NOT NULL,
     FOREIGN KEY (owner_id) REFERENCES app_user(id)
 );
 
@@ -40,6 +43,12 @@ CREATE TABLE IF NOT EXISTS chat_message (
     role VARCHAR(50) NOT NULL,
     content VARCHAR(4000) NOT NULL,
     timestamp TIMESTAMP NOT NULL,
+    token_count INT DEFAULT 0 NOT NULL,
     session_id BIGINT NOT NULL,
     FOREIGN KEY (session_id) REFERENCES chat_session(id)
-);
\ No newline at end of file
+);
+
+CREATE TABLE IF NOT EXISTS pattern_feedback_batch (
+    batch_id VARCHAR(64) PRIMARY KEY,
+    applied_at TIMESTAMP NOT NULL
+);
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+import org.emblow.envelofy.domain.ChatMessage;
+import org.emblow.envelofy.domain.ChatSession;
+import org.emblow.envelofy.domain.User;
+import org.emblow.envelofy.repository.ChartArtifactRepository;
+import org.emblow.envelofy.repository.ChatMessageRepository;
+import org.emblow.envelofy.repository.ChatMessageRepository.MessageTokens;
+import org.emblow.envelofy.repository.ChatSessionRepository;
+import org.emblow.envelofy.service.llm.ConversationSummaryService;
+import org.emblow.envelofy.service.llm.TokenCountingService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Trimming of stored history when a message is appended: the oldest turns
+ * go until the session fits its retention limit again.
+ *
+ * @author Nicholas J Emblow
+ */
+class ChatHistoryServiceTest {
+    private static final long SESSION_ID = 5L;
+    private static final long APPENDED_ID = 10L;
+    private static final int RETAINED_TOKENS = 4000;
+
+    private final SecurityService securityService = mock(SecurityService.class);
+    private final ChatSessionRepository chatSessionRepository = mock(ChatSessionRepository.class);
+    private final ChatMessageRepository chatMessageRepository = mock(ChatMessageRepository.class);
+    private final TokenCountingService tokenCounter = mock(TokenCountingService.class);
+    private final ConversationSummaryService conversationSummaries = mock(ConversationSummaryService.class);
+
+    private ChatSession session;
+    private ChatHistoryService service;
+
+    @BeforeEach
+    void setUp() {
+        User user = new User("alice", "hash", "alice@example.com");
+        user.setId(1L);
+        session = new ChatSession("Budget questions", user);
+        session.setId(SESSION_ID);
+
+        when(securityService.isOwner(any())).thenReturn(true);
+        when(chatSessionRepository.findById(SESSION_ID)).thenReturn(Optional.of(session));
+        when(chatMessageRepository.save(any(ChatMessage.class))).thenAnswer(invocation -> {
+            ChatMessage message = invocation.getArgument(0);
+            message.setId(APPENDED_ID);
+            return message;
+        });
+        when(tokenCounter.count(anyString())).thenReturn(600);
+
+        service = new ChatHistoryService(
+            securityService,
+            chatSessionRepository,
+            chatMessageRepository,
+            mock(ChartArtifactRepository.class),
+            tokenCounter,
+            conversationSummaries,
+            RETAINED_TOKENS
+        );
+    }
+
+    @Test
+    void keepsEverythingWhileTheSessionFits() {
+        session.setTokenCount(RETAINED_TOKENS - 600);
+
+        service.addMessage(SESSION_ID, "user", "How much did I spend on coffee?");
+
+        verify(chatSessionRepository).addTokens(SESSION_ID, 600);
+        verify(chatMessageRepository, never()).streamTokens(anyLong(), anyLong());
+        verify(chatMessageRepository, never()).deleteThrough(anyLong(), anyLong());
+    }
+
+    @Test
+    void deletesTheOldestMessagesThatCoverTheExcess() {
+        session.setTokenCount(RETAINED_TOKENS - 100);
+        when(chatMessageRepository.streamTokens(SESSION_ID, APPENDED_ID - 1))
+            .thenReturn(Stream.of(stored(1, 300), stored(2, 300), stored(3, 300)));
+
+        service.addMessage(SESSION_ID, "user", "And on fuel?");
+
+        verify(chatMessageRepository).deleteThrough(SESSION_ID, 2L);
+        verify(chatSessionRepository).addTokens(SESSION_ID, -600);
+    }
+
+    @Test
+    void onlyDeletesTurnsAlreadySummarized() {
+        session.setTokenCount(RETAINED_TOKENS);
+        session.setSummarizedThroughId(4L);
+        when(conversationSummaries.isSummarizing()).thenReturn(true);
+        when(chatMessageRepository.streamTokens(SESSION_ID, 4L))
+            .thenReturn(Stream.of(stored(3, 200), stored(4, 200)));
+
+        service.addMessage(SESSION_ID, "user", "And on groceries?");
+
+        verify(chatMessageRepository).deleteThrough(SESSION_ID, 4L);
+        verify(chatSessionRepository).addTokens(SESSION_ID, -400);
+    }
+
+    @Test
+    void keepsEverythingWhileNothingIsSummarizedYet() {
+        session.setTokenCount(RETAINED_TOKENS);
+        when(conversationSummaries.isSummarizing()).thenReturn(true);
+        when(chatMessageRepository.streamTokens(SESSION_ID, 0L)).thenReturn(Stream.empty());
+
+        service.addMessage(SESSION_ID, "user", "And on rent?");
+
+        verify(chatMessageRepository).streamTokens(SESSION_ID, 0L);
+        verify(chatMessageRepository, never()).deleteThrough(anyLong(), anyLong());
+    }
+
+    private static MessageTokens stored(long id, int tokens) {
+        return new MessageTokens() {
+            @Override
+            public Long getId() {
+                return id;
+            }
+
+            @Override
+            public int getTokenCount() {
+                return tokens;
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+import org.emblow.envelofy.service.MerchantPatternMiner.Example;
+import org.emblow.envelofy.service.MerchantPatternMiner.MinedPattern;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ * Candidate extraction and the support, confidence and cover rules.
+ *
+ * @author Nicholas J Emblow
+ */
+class MerchantPatternMinerTest {
+    private static final Long COFFEE = 1L;
+    private static final Long FUEL = 2L;
+    private static final Long SHOPPING = 3L;
+
+    private final MerchantPatternMiner miner = new MerchantPatternMiner(2, 0.8, 2);
+
+    @Test
+    void extractsWordsAndAdjacentPairsWithoutNoise() {
+        assertThat(miner.candidates("POS SHELL OIL 5732"))
+            .containsExactlyInAnyOrder("shell", "oil", "shell oil");
+        assertThat(miner.candidates(null)).isEmpty();
+    }
+
+    @Test
+    void doesNotJoinWordsAcrossNumbers() {
+        assertThat(miner.candidates("STARBUCKS #1234 SEATTLE"))
+            .containsExactlyInAnyOrder("starbucks", "seattle");
+    }
+
+    @Test
+    void bridgesANoiseWordOnlyInsideALongerNgram() {
+        MerchantPatternMiner trigrams = new MerchantPatternMiner(2, 0.8, 3);
+
+        assertThat(trigrams.candidates("BARNES AND NOBLE"))
+            .containsExactlyInAnyOrder("barnes", "noble", "barnes and noble");
+    }
+
+    @Test
+    void minesOnePatternPerMerchant() {
+        List<MinedPattern> mined = miner.mine(List.of(
+            new Example("STARBUCKS 123", COFFEE),
+            new Example("SQ STARBUCKS", COFFEE),
+            new Example("STARBUCKS 99 SEATTLE", COFFEE),
+            new Example("SHELL 1234 HOUSTON", FUEL),
+            new Example("SHELL 88 DALLAS", FUEL),
+            new Example("SHELL 77", FUEL)
+        ));
+
+        assertThat(mined)
+            .extracting(MinedPattern::text, MinedPattern::categoryId, MinedPattern::support)
+            .containsExactlyInAnyOrder(tuple("starbucks", COFFEE, 3), tuple("shell", FUEL, 3));
+    }
+
+    @Test
+    void rejectsCandidatesBelowSupportOrConfidence() {
+        List<MinedPattern> mined = miner.mine(List.of(
+            new Example("AMAZON", SHOPPING),
+            new Example("AMAZON", SHOPPING),
+            new Example("AMAZON", COFFEE),
+            new Example("AMAZON", FUEL),
+            new Example("BLUE BOTTLE", COFFEE)
+        ));
+
+        assertThat(mined).isEmpty();
+    }
+
+    @Test
+    void scoresCandidatesByEveryDescriptionContainingThem() {
+        Long entertainment = 4L;
+        List<MinedPattern> mined = miner.mine(List.of(
+            new Example("GAS 1", FUEL),
+            new Example("GAS 22", FUEL),
+            new Example("GAS 333", FUEL),
+            new Example("VEGAS CASINO", entertainment),
+            new Example("LAS VEGAS HOTEL", entertainment)
+        ));
+
+        // As a word "gas" is always fuel, but the matcher would also fire it on both Vegas rows
+        assertThat(mined).extracting(MinedPattern::text).doesNotContain("gas");
+    }
+
+    @Test
+    void collapsesCandidatesThatExplainTheSameTransactions() {
+        List<MinedPattern> mined = miner.mine(List.of(
+            new Example("SHELL OIL 1", FUEL),
+            new Example("SHELL OIL 22", FUEL),
+            new Example("SHELL OIL 333", FUEL)
+        ));
+
+        assertThat(mined).hasSize(1);
+        assertThat(mined.get(0).categoryId()).isEqualTo(FUEL);
+        assertThat(mined.get(0).confidence()).isEqualTo(1.0);
+    }
+}
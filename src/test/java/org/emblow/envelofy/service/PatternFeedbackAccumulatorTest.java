@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Journaling, batching into one UPDATE per pattern, commit-only recording
+ * and replay of journals left by a previous run.
+ *
+ * @author Nicholas J Emblow
+ */
+class PatternFeedbackAccumulatorTest {
+    @TempDir
+    Path journalDirectory;
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+
+    private PatternFeedbackAccumulator accumulator;
+
+    @BeforeEach
+    void setUp() {
+        when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+        accumulator = accumulator();
+        accumulator.recover();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        accumulator.shutdown();
+    }
+
+    @Test
+    void foldsEveryEventForAPatternIntoOneUpdate() throws IOException {
+        List<Set<Long>> flushedUsers = new ArrayList<>();
+        accumulator.addFlushListener(flushedUsers::add);
+
+        accumulator.record(1L, List.of(10L, 11L), true);
+        accumulator.record(1L, List.of(10L), false);
+        assertThat(accumulator.getPendingEvents()).isEqualTo(3);
+        assertThat(Files.readAllLines(journalDirectory.resolve("feedback.journal")))
+            .containsExactly("1,10,1", "1,11,1", "1,10,0");
+
+        accumulator.flush();
+
+        assertThat(updates()).containsExactlyInAnyOrder(
+            new Object[] { 1.0, 2.0, 2.0, 1.0, 2.0, 2L, 10L },
+            new Object[] { 1.0, 1.0, 1.0, 1.0, 1.0, 1L, 11L }
+        );
+        verify(jdbcTemplate).update(anyString(), anyString(), any());
+        assertThat(accumulator.getPendingEvents()).isZero();
+        assertThat(flushedUsers).containsExactly(Set.of(1L));
+        assertThat(journals()).isEmpty();
+    }
+
+    @Test
+    void recordsFeedbackGivenInATransactionOnlyOnceItCommits() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        accumulator.record(1L, List.of(10L), true);
+        assertThat(accumulator.getPendingEvents()).isZero();
+
+        TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        assertThat(accumulator.getPendingEvents()).isEqualTo(1);
+    }
+
+    @Test
+    void dropsFeedbackFromARolledBackTransaction() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        accumulator.record(1L, List.of(10L), true);
+        TransactionSynchronizationManager.getSynchronizations()
+            .forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+        TransactionSynchronizationManager.clearSynchronization();
+
+        accumulator.flush();
+        assertThat(accumulator.getPendingEvents()).isZero();
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), any(List.class));
+    }
+
+    @Test
+    void keepsTheJournalWhenApplyingFailsAndRetriesLater() throws IOException {
+        when(jdbcTemplate.batchUpdate(anyString(), any(List.class)))
+            .thenThrow(new IllegalStateException("database unavailable"))
+            .thenReturn(new int[] { 1 });
+
+        accumulator.record(1L, List.of(10L), true);
+        accumulator.flush();
+        assertThat(journals()).hasSize(1);
+
+        accumulator.flush();
+        assertThat(journals()).isEmpty();
+    }
+
+    @Test
+    void replaysJournalsLeftByAPreviousRun() throws IOException {
+        accumulator.shutdown();
+        // Left behind by a crash before the flush, with the last line torn mid-write
+        Files.writeString(journalDirectory.resolve("feedback.journal"), "2,20,0\n2,20,1\n2,21");
+
+        accumulator = accumulator();
+        accumulator.recover();
+        accumulator.flush();
+
+        assertThat(updates()).containsExactly(new Object[] { 1.0, 2.0, 2.0, 1.0, 2.0, 2L, 20L });
+        assertThat(journals()).isEmpty();
+    }
+
+    @Test
+    void skipsABatchAlreadyAppliedBeforeACrash() throws IOException {
+        accumulator.shutdown();
+        Files.writeString(journalDirectory.resolve("feedback-0000000000001-000000.sealed"), "3,30,1\n");
+        when(jdbcTemplate.queryForObject(anyString(), eq(Integer.class), eq("0000000000001-000000")))
+            .thenReturn(1);
+
+        accumulator = accumulator();
+        accumulator.recover();
+        accumulator.flush();
+
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), any(List.class));
+        assertThat(journals()).isEmpty();
+    }
+
+    private PatternFeedbackAccumulator accumulator() {
+        return new PatternFeedbackAccumulator(jdbcTemplate, transactionManager, journalDirectory.toString(), 60_000, 10_000);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object[]> updates() {
+        ArgumentCaptor<List<Object[]>> batches = ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate, atLeastOnce()).batchUpdate(anyString(), batches.capture());
+        return batches.getAllValues().stream().flatMap(List::stream).toList();
+    }
+
+    private List<Path> journals() throws IOException {
+        try (Stream<Path> files = Files.list(journalDirectory)) {
+            return files.sorted(Comparator.naturalOrder()).toList();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+import org.emblow.envelofy.domain.Pattern;
+import org.emblow.envelofy.domain.Pattern.PatternType;
+import org.emblow.envelofy.domain.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The compiled matcher must agree with {@link Pattern#appliesTo} on every
+ * pattern type, including overlapping merchants and amount edges.
+ *
+ * @author Nicholas J Emblow
+ */
+class PatternMatcherTest {
+    // 2025-01-15 is a Wednesday
+    private static final LocalDateTime WEDNESDAY_15TH = LocalDateTime.of(2025, 1, 15, 9, 30);
+
+    @Test
+    void findsEveryMerchantContainedInTheDescription() {
+        Pattern shell = pattern("shell", PatternType.MERCHANT);
+        Pattern shellOil = pattern("Shell Oil", PatternType.MERCHANT);
+        Pattern oil = pattern("oil", PatternType.MERCHANT);
+        Pattern hello = pattern("hello", PatternType.MERCHANT);
+        PatternMatcher matcher = PatternMatcher.compile(List.of(shell, shellOil, oil, hello));
+
+        assertThat(matcher.matches(transaction("POS SHELL OIL 5732", 40)))
+            .containsExactlyInAnyOrder(shell, shellOil, oil);
+        assertThat(matcher.matches(transaction("SHELLSHOCK", 40))).containsExactly(shell);
+        assertThat(matcher.matches(transaction("TOIL AND TROUBLE", 40))).containsExactly(oil);
+    }
+
+    @Test
+    void matchesTheDayOfWeekOrMonth() {
+        Pattern wednesday = pattern("DOW3:09", PatternType.TEMPORAL);
+        Pattern fifteenth = pattern("DOM15:00", PatternType.TEMPORAL);
+        Pattern monday = pattern("DOW1:09", PatternType.TEMPORAL);
+        Pattern garbage = pattern("DOWx:09", PatternType.TEMPORAL);
+        PatternMatcher matcher = PatternMatcher.compile(List.of(wednesday, fifteenth, monday, garbage));
+
+        assertThat(matcher.matches(transaction("RENT", 1000))).containsExactlyInAnyOrder(wednesday, fifteenth);
+    }
+
+    @Test
+    void comparesAmountsStrictlyAndEqualityWithinACent() {
+        Pattern over100 = pattern(">100", PatternType.AMOUNT);
+        Pattern over99 = pattern(">99.99", PatternType.AMOUNT);
+        Pattern under200 = pattern("<200", PatternType.AMOUNT);
+        Pattern under100 = pattern("<100", PatternType.AMOUNT);
+        Pattern exactly = pattern("=100.005", PatternType.AMOUNT);
+        Pattern unparseable = pattern(">abc", PatternType.AMOUNT);
+        PatternMatcher matcher = PatternMatcher.compile(
+            List.of(over100, over99, under200, under100, exactly, unparseable));
+
+        assertThat(matcher.matches(transaction("X", 100))).containsExactlyInAnyOrder(over99, under200, exactly);
+    }
+
+    @Test
+    void agreesWithAppliesToAcrossMixedPatterns() {
+        List<Pattern> patterns = List.of(
+            pattern("star", PatternType.MERCHANT),
+            pattern("starbucks", PatternType.MERCHANT),
+            pattern("bucks", PatternType.MERCHANT),
+            pattern("amazon", PatternType.MERCHANT),
+            pattern("DOW3:12", PatternType.TEMPORAL),
+            pattern("DOM1:00", PatternType.TEMPORAL),
+            pattern(">50", PatternType.AMOUNT),
+            pattern("<5", PatternType.AMOUNT),
+            pattern("=4.50", PatternType.AMOUNT)
+        );
+        PatternMatcher matcher = PatternMatcher.compile(patterns);
+        List<Transaction> transactions = List.of(
+            transaction("SQ *STARBUCKS #42", 4.5),
+            transaction("Amazon.com*MK1", 75),
+            transaction("BUCKSTAR", 4.49),
+            transaction("Payroll", 2500)
+        );
+
+        for (Transaction transaction : transactions) {
+            List<Pattern> expected = patterns.stream().filter(p -> p.appliesTo(transaction)).toList();
+            assertThat(matcher.matches(transaction))
+                .as(transaction.getDescription())
+                .containsExactlyInAnyOrderElementsOf(expected);
+        }
+    }
+
+    @Test
+    void matchesNothingOfATypeWhoseFieldIsMissing() {
+        PatternMatcher matcher = PatternMatcher.compile(List.of(
+            pattern("shell", PatternType.MERCHANT),
+            pattern("DOW3:09", PatternType.TEMPORAL),
+            pattern(">1", PatternType.AMOUNT)
+        ));
+
+        assertThat(matcher.matches(new Transaction())).isEmpty();
+    }
+
+    private static Pattern pattern(String text, PatternType type) {
+        return new Pattern(text, type, null);
+    }
+
+    private static Transaction transaction(String description, double amount) {
+        Transaction transaction = new Transaction();
+        transaction.setDescription(description);
+        transaction.setAmount(BigDecimal.valueOf(amount));
+        transaction.setDate(WEDNESDAY_15TH);
+        return transaction;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service;
+
+import org.emblow.envelofy.domain.Category;
+import org.emblow.envelofy.domain.Envelope;
+import org.emblow.envelofy.domain.Pattern;
+import org.emblow.envelofy.domain.Pattern.PatternType;
+import org.emblow.envelofy.domain.Transaction;
+import org.emblow.envelofy.domain.User;
+import org.emblow.envelofy.repository.CategoryRepository;
+import org.emblow.envelofy.repository.PatternRepository;
+import org.emblow.envelofy.repository.TransactionRepository;
+import org.emblow.envelofy.repository.UserRepository;
+import org.emblow.envelofy.service.EnvelopeIndexService.EnvelopeIndex;
+import org.emblow.envelofy.service.PatternMiningService.MiningResult;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Mines a small ledger whose envelopes are linked to categories only from
+ * the category side, the way the application stores them.
+ *
+ * @author Nicholas J Emblow
+ */
+class PatternMiningServiceTest {
+    private final TransactionRepository transactionRepository = mock(TransactionRepository.class);
+    private final PatternRepository patternRepository = mock(PatternRepository.class);
+    private final CategoryRepository categoryRepository = mock(CategoryRepository.class);
+    private final EnvelopeIndexService envelopeIndexService = mock(EnvelopeIndexService.class);
+
+    private User user;
+    private Envelope coffeeEnvelope;
+    private Envelope fuelEnvelope;
+    private Category coffee;
+    private Category fuel;
+    private PatternMiningService service;
+
+    @BeforeEach
+    void setUp() {
+        user = new User("alice", "hash", "alice@example.com");
+        user.setId(1L);
+        coffeeEnvelope = envelope(10L, "Coffee");
+        fuelEnvelope = envelope(11L, "Fuel");
+        coffee = category(20L, "Coffee", coffeeEnvelope);
+        fuel = category(21L, "Fuel", fuelEnvelope);
+
+        when(categoryRepository.findByOwner(user)).thenReturn(List.of(coffee, fuel));
+        when(envelopeIndexService.getIndex(user)).thenReturn(new EnvelopeIndex(
+            Map.of(coffee.getId(), coffeeEnvelope, fuel.getId(), fuelEnvelope),
+            Map.of("Coffee", coffeeEnvelope, "Fuel", fuelEnvelope)));
+        when(patternRepository.findByUserId(anyLong())).thenReturn(List.of());
+
+        service = new PatternMiningService(
+            mock(UserRepository.class),
+            transactionRepository,
+            patternRepository,
+            categoryRepository,
+            mock(PatternService.class),
+            envelopeIndexService,
+            mock(PlatformTransactionManager.class),
+            "0 30 3 * * *",
+            3,
+            0.9,
+            3
+        );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void minesMerchantPatternsFromCategoriesLinkedOnTheCategorySide() {
+        when(transactionRepository.findByEnvelope_Owner(user)).thenReturn(List.of(
+            transaction("STARBUCKS STORE 1234", coffeeEnvelope),
+            transaction("STARBUCKS STORE 5678", coffeeEnvelope),
+            transaction("SQ *STARBUCKS 99", coffeeEnvelope),
+            transaction("STARBUCKS #42 SEATTLE", coffeeEnvelope),
+            transaction("SHELL OIL 57442", fuelEnvelope),
+            transaction("SHELL OIL 12345", fuelEnvelope),
+            transaction("SHELL OIL 99887", fuelEnvelope)
+        ));
+
+        MiningResult result = service.mineForUser(user);
+
+        ArgumentCaptor<List<Pattern>> saved = ArgumentCaptor.forClass(List.class);
+        verify(patternRepository).saveAll(saved.capture());
+        List<Pattern> patterns = new ArrayList<>(saved.getValue());
+
+        assertThat(result.created()).isEqualTo(2);
+        assertThat(patterns).allMatch(p -> p.getType() == PatternType.MERCHANT);
+        assertThat(patterns)
+            .anyMatch(p -> p.getPattern().equals("starbucks") && p.getCategory() == coffee)
+            .anyMatch(p -> p.getPattern().contains("shell") || p.getPattern().contains("oil"))
+            .filteredOn(p -> p.getCategory() == fuel).hasSize(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void foldsTheFeedbackOfACoveredRowIntoTheMinedPattern() {
+        Pattern oneOff = new Pattern("STARBUCKS STORE 1234", PatternType.MERCHANT, coffee);
+        oneOff.setId(100L);
+        oneOff.setMatchCount(4);
+        oneOff.setAccuracy(0.5);
+        when(patternRepository.findByUserId(anyLong())).thenReturn(List.of(oneOff));
+        when(transactionRepository.findByEnvelope_Owner(user)).thenReturn(List.of(
+            transaction("STARBUCKS STORE 1234", coffeeEnvelope),
+            transaction("STARBUCKS STORE 5678", coffeeEnvelope),
+            transaction("SQ *STARBUCKS 99", coffeeEnvelope),
+            transaction("STARBUCKS #42 SEATTLE", coffeeEnvelope)
+        ));
+
+        service.mineForUser(user);
+
+        ArgumentCaptor<List<Pattern>> saved = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<List<Pattern>> deleted = ArgumentCaptor.forClass(List.class);
+        verify(patternRepository).saveAll(saved.capture());
+        verify(patternRepository).deleteAll(deleted.capture());
+        assertThat(deleted.getValue()).containsExactly(oneOff);
+        Pattern starbucks = saved.getValue().stream()
+            .filter(p -> p.getPattern().equals("starbucks"))
+            .findFirst()
+            .orElseThrow();
+        // 4 mined matches at 1.0 plus the removed row's 4 at 0.5
+        assertThat(starbucks.getMatchCount()).isEqualTo(8);
+        assertThat(starbucks.getAccuracy()).isEqualTo(0.75);
+        assertThat(starbucks.getConfidence()).isEqualTo((1.0 - 1.0 / 8) * 0.75);
+    }
+
+    @Test
+    void skipsTransactionsWhoseEnvelopeHasNoCategory() {
+        Envelope uncategorized = envelope(12L, "Misc");
+        when(transactionRepository.findByEnvelope_Owner(user)).thenReturn(List.of(
+            transaction("AMAZON MKTPLACE 1", uncategorized),
+            transaction("AMAZON MKTPLACE 2", uncategorized),
+            transaction("AMAZON MKTPLACE 3", uncategorized)
+        ));
+
+        MiningResult result = service.mineForUser(user);
+
+        assertThat(result.transactions()).isEqualTo(3);
+        assertThat(result.created()).isZero();
+    }
+
+    private Envelope envelope(Long id, String name) {
+        Envelope envelope = new Envelope(name, BigDecimal.valueOf(100), user);
+        envelope.setId(id);
+        return envelope;
+    }
+
+    private Category category(Long id, String name, Envelope envelope) {
+        Category category = new Category(name, name);
+        category.setId(id);
+        category.setOwner(user);
+        category.setEnvelope(envelope);
+        return category;
+    }
+
+    private static Transaction transaction(String description, Envelope envelope) {
+        Transaction transaction = new Transaction();
+        transaction.setDescription(description);
+        transaction.setAmount(BigDecimal.TEN);
+        transaction.setDate(LocalDateTime.of(2025, 1, 15, 12, 0));
+        transaction.setEnvelope(envelope);
+        return transaction;
+    }
+}
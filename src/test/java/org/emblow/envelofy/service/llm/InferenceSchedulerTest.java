@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.emblow.envelofy.service.llm.InferenceScheduler.Generation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Queues jobs before the workers start, so the order they run in is
+ * decided by the scheduler alone.
+ *
+ * @author Nicholas J Emblow
+ */
+class InferenceSchedulerTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private InferenceScheduler scheduler;
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void takesUsersInTurnSoOneCannotStarveAnother() {
+        scheduler = new InferenceScheduler(1, 16);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        Mono<String> a1 = as("alice", () -> scheduler.callAsync(null, recording(order, "a1")));
+        Mono<String> a2 = as("alice", () -> scheduler.callAsync(null, recording(order, "a2")));
+        Mono<String> a3 = as("alice", () -> scheduler.callAsync(null, recording(order, "a3")));
+        Mono<String> b1 = as("bob", () -> scheduler.callAsync(null, recording(order, "b1")));
+        scheduler.start();
+
+        Mono.when(a1, a2, a3, b1).block(TIMEOUT);
+        assertThat(order).containsExactly("a1", "b1", "a2", "a3");
+    }
+
+    @Test
+    void rejectsRequestsOnceTheQueueIsFull() {
+        scheduler = new InferenceScheduler(1, 2);
+
+        as("alice", () -> scheduler.callAsync(null, onToken -> "1"));
+        as("alice", () -> scheduler.callAsync(null, onToken -> "2"));
+        Mono<String> third = as("alice", () -> scheduler.callAsync(null, onToken -> "3"));
+
+        assertThatThrownBy(() -> third.block(TIMEOUT)).isInstanceOf(RejectedExecutionException.class);
+        assertThat(scheduler.getMetrics().rejected()).isEqualTo(1);
+        assertThat(scheduler.getMetrics().queued()).isEqualTo(2);
+    }
+
+    @Test
+    void sharesOneGenerationBetweenRequestsOfTheSameUserWithTheSameKey() {
+        scheduler = new InferenceScheduler(1, 16);
+        AtomicInteger generations = new AtomicInteger();
+        Generation generation = onToken -> {
+            generations.incrementAndGet();
+            onToken.accept("answer");
+            return "answer";
+        };
+
+        Mono<String> first = as("alice", () -> scheduler.callAsync("same question", generation));
+        Mono<String> second = as("alice", () -> scheduler.callAsync("same question", generation));
+        scheduler.start();
+
+        assertThat(first.block(TIMEOUT)).isEqualTo("answer");
+        assertThat(second.block(TIMEOUT)).isEqualTo("answer");
+        assertThat(generations).hasValue(1);
+        assertThat(scheduler.getMetrics().coalesced()).isEqualTo(1);
+    }
+
+    @Test
+    void neverSharesAGenerationBetweenUsers() {
+        scheduler = new InferenceScheduler(1, 16);
+        AtomicInteger generations = new AtomicInteger();
+        Generation generation = onToken -> {
+            int n = generations.incrementAndGet();
+            onToken.accept("answer " + n);
+            return "answer " + n;
+        };
+
+        Mono<String> alice = as("alice", () -> scheduler.callAsync("same question", generation));
+        Mono<String> bob = as("bob", () -> scheduler.callAsync("same question", generation));
+        scheduler.start();
+
+        assertThat(alice.block(TIMEOUT)).isEqualTo("answer 1");
+        assertThat(bob.block(TIMEOUT)).isEqualTo("answer 2");
+        assertThat(generations).hasValue(2);
+        assertThat(scheduler.getMetrics().coalesced()).isZero();
+    }
+
+    @Test
+    void dropsAQueuedGenerationOnceEveryCallerCancels() {
+        scheduler = new InferenceScheduler(1, 16);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        Disposable first = as("alice", () -> scheduler.callAsync("k", recording(order, "cancelled"))).subscribe();
+        Disposable second = as("alice", () -> scheduler.callAsync("k", recording(order, "cancelled"))).subscribe();
+        first.dispose();
+        assertThat(scheduler.getMetrics().queued()).isEqualTo(1);
+        second.dispose();
+        assertThat(scheduler.getMetrics().queued()).isZero();
+
+        Mono<String> next = as("alice", () -> scheduler.callAsync(null, recording(order, "next")));
+        scheduler.start();
+
+        assertThat(next.block(TIMEOUT)).isEqualTo("next");
+        assertThat(order).containsExactly("next");
+    }
+
+    @Test
+    void abortsARunningGenerationAtItsNextTokenOnceEveryCallerCancels() throws InterruptedException {
+        scheduler = new InferenceScheduler(1, 16);
+        scheduler.start();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch ended = new CountDownLatch(1);
+        AtomicReference<Throwable> endedWith = new AtomicReference<>();
+        Generation endless = onToken -> {
+            started.countDown();
+            try {
+                for (int i = 0; i < 10_000; i++) {
+                    onToken.accept("t");
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                return "finished";
+            } catch (RuntimeException e) {
+                endedWith.set(e);
+                throw e;
+            } finally {
+                ended.countDown();
+            }
+        };
+
+        Disposable stream = as("alice", () -> scheduler.stream(null, endless)).subscribe();
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        stream.dispose();
+
+        assertThat(ended.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(endedWith.get()).isInstanceOf(CancellationException.class);
+    }
+
+    private static Generation recording(List<String> order, String label) {
+        return onToken -> {
+            order.add(label);
+            onToken.accept(label);
+            return label;
+        };
+    }
+
+    private static <T> T as(String user, Supplier<T> action) {
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken(user, null));
+        try {
+            return action.get();
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.emblow.envelofy.service.llm.ProviderHealthTracker.CircuitState;
+import org.emblow.envelofy.service.llm.ProviderHealthTracker.ProviderHealth;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Circuit breaker transitions and the latency percentiles the hedge delay
+ * is read from.
+ *
+ * @author Nicholas J Emblow
+ */
+class ProviderHealthTrackerTest {
+    private static final String PROVIDER = "ollama";
+    private static final IllegalStateException FAILURE = new IllegalStateException("connection refused");
+
+    @Test
+    void opensTheCircuitAfterConsecutiveFailures() {
+        ProviderHealthTracker tracker = tracker(60_000);
+
+        tracker.recordFailure(PROVIDER, FAILURE);
+        tracker.recordFailure(PROVIDER, FAILURE);
+        assertThat(tracker.tryAcquire(PROVIDER)).isTrue();
+
+        tracker.recordFailure(PROVIDER, FAILURE);
+        assertThat(tracker.tryAcquire(PROVIDER)).isFalse();
+        assertThat(health(tracker).circuit()).isEqualTo(CircuitState.OPEN);
+        assertThat(health(tracker).failures()).isEqualTo(3);
+    }
+
+    @Test
+    void aSuccessResetsTheFailureCount() {
+        ProviderHealthTracker tracker = tracker(60_000);
+
+        tracker.recordFailure(PROVIDER, FAILURE);
+        tracker.recordFailure(PROVIDER, FAILURE);
+        tracker.recordSuccess(PROVIDER);
+        tracker.recordFailure(PROVIDER, FAILURE);
+
+        assertThat(tracker.tryAcquire(PROVIDER)).isTrue();
+        assertThat(health(tracker).circuit()).isEqualTo(CircuitState.CLOSED);
+    }
+
+    @Test
+    void letsASingleProbeThroughAfterTheCoolDown() {
+        ProviderHealthTracker tracker = tracker(0);
+        open(tracker);
+
+        assertThat(tracker.tryAcquire(PROVIDER)).isTrue();
+        assertThat(health(tracker).circuit()).isEqualTo(CircuitState.HALF_OPEN);
+        assertThat(tracker.tryAcquire(PROVIDER)).isFalse();
+
+        tracker.recordSuccess(PROVIDER);
+        assertThat(health(tracker).circuit()).isEqualTo(CircuitState.CLOSED);
+        assertThat(tracker.tryAcquire(PROVIDER)).isTrue();
+        assertThat(tracker.tryAcquire(PROVIDER)).isTrue();
+    }
+
+    @Test
+    void aFailedProbeReopensTheCircuit() {
+        ProviderHealthTracker tracker = tracker(0);
+        open(tracker);
+
+        assertThat(tracker.tryAcquire(PROVIDER)).isTrue();
+        tracker.recordFailure(PROVIDER, FAILURE);
+
+        assertThat(health(tracker).circuit()).isEqualTo(CircuitState.OPEN);
+    }
+
+    @Test
+    void aCancelledProbeFreesTheSlotForAnother() {
+        ProviderHealthTracker tracker = tracker(0);
+        open(tracker);
+
+        assertThat(tracker.tryAcquire(PROVIDER)).isTrue();
+        tracker.recordCancelled(PROVIDER);
+
+        assertThat(tracker.tryAcquire(PROVIDER)).isTrue();
+    }
+
+    @Test
+    void usesTheDefaultHedgeDelayUntilEnoughLatenciesAreRecorded() {
+        ProviderHealthTracker tracker = tracker(60_000);
+        for (int i = 0; i < 19; i++) {
+            tracker.recordLatency(PROVIDER, 1000);
+        }
+        assertThat(tracker.hedgeDelay(PROVIDER)).isEqualTo(Duration.ofMillis(3000));
+
+        tracker.recordLatency(PROVIDER, 1000);
+        assertThat(tracker.hedgeDelay(PROVIDER).toMillis()).isBetween(1000L, 1250L);
+    }
+
+    @Test
+    void readsPercentilesFromTheLatencyHistogram() {
+        ProviderHealthTracker tracker = tracker(60_000);
+        for (int i = 0; i < 90; i++) {
+            tracker.recordLatency(PROVIDER, 500);
+        }
+        for (int i = 0; i < 10; i++) {
+            tracker.recordLatency(PROVIDER, 4000);
+        }
+
+        ProviderHealth health = health(tracker);
+        // Buckets grow by a quarter, so a percentile is at most 25% above the latency it covers
+        assertThat(health.p50Millis()).isBetween(500L, 625L);
+        assertThat(health.p90Millis()).isBetween(500L, 625L);
+        assertThat(health.p99Millis()).isBetween(4000L, 5000L);
+        assertThat(tracker.hedgeDelay(PROVIDER).toMillis()).isEqualTo(health.p90Millis());
+    }
+
+    @Test
+    void clampsTheHedgeDelay() {
+        ProviderHealthTracker tracker = tracker(60_000);
+        for (int i = 0; i < 20; i++) {
+            tracker.recordLatency("fast", 1);
+            tracker.recordLatency("slow", 120_000);
+        }
+
+        assertThat(tracker.hedgeDelay("fast")).isEqualTo(Duration.ofMillis(250));
+        assertThat(tracker.hedgeDelay("slow")).isEqualTo(Duration.ofMillis(15_000));
+    }
+
+    private static ProviderHealthTracker tracker(long openMillis) {
+        return new ProviderHealthTracker(3, openMillis, 0.9, 3000, 250, 15_000, 20, 500);
+    }
+
+    private static void open(ProviderHealthTracker tracker) {
+        for (int i = 0; i < 3; i++) {
+            tracker.recordFailure(PROVIDER, FAILURE);
+        }
+    }
+
+    private static ProviderHealth health(ProviderHealthTracker tracker) {
+        return tracker.getHealth().stream()
+            .filter(health -> health.provider().equals(PROVIDER))
+            .findFirst()
+            .orElseThrow();
+    }
+}
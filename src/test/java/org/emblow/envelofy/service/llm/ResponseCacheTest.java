@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.emblow.envelofy.domain.User;
+import org.emblow.envelofy.service.DataVersionService;
+import org.emblow.envelofy.service.DataVersionService.DataDomain;
+import org.emblow.envelofy.service.SecurityService;
+import org.emblow.envelofy.service.llm.ResponseCache.Lookup;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Hits, misses and invalidation against a real {@link DataVersionService}.
+ *
+ * @author Nicholas J Emblow
+ */
+class ResponseCacheTest {
+    private final SecurityService securityService = mock(SecurityService.class);
+
+    private User alice;
+    private User bob;
+    private DataVersionService dataVersionService;
+    private ResponseCache cache;
+
+    @BeforeEach
+    void setUp() {
+        alice = user(1L, "alice");
+        bob = user(2L, "bob");
+        when(securityService.getCurrentUser()).thenReturn(alice);
+        dataVersionService = new DataVersionService(securityService, mock(ApplicationEventPublisher.class));
+        cache = new ResponseCache(dataVersionService, securityService, 500);
+    }
+
+    @Test
+    void servesAStoredAnswerWithItsTextMerged() {
+        store("How much did I spend on coffee?",
+            ResponseEvent.text("You spent "), ResponseEvent.text("$40."), ResponseEvent.chart("{}"));
+
+        Lookup lookup = cache.lookup("ollama", "llama3", "How much did I spend on coffee?");
+
+        assertThat(lookup.hit()).isTrue();
+        assertThat(lookup.events()).containsExactly(ResponseEvent.text("You spent $40."), ResponseEvent.chart("{}"));
+        assertThat(cache.getStats().exactHits()).isEqualTo(1);
+    }
+
+    @Test
+    void matchesTriviallyDifferentPhrasings() {
+        store("How much did I spend on coffee?", ResponseEvent.text("$40"));
+
+        Lookup lookup = cache.lookup("ollama", "llama3", "how much  did I spend on COFFEE");
+
+        assertThat(lookup.hit()).isTrue();
+        assertThat(cache.getStats().normalizedHits()).isEqualTo(1);
+    }
+
+    @Test
+    void stopsServingAnAnswerOnceTheDataVersionMoves() {
+        store("What is my balance?", ResponseEvent.text("$100"));
+
+        dataVersionService.bump(alice.getId(), DataDomain.TRANSACTIONS);
+
+        assertThat(cache.lookup("ollama", "llama3", "What is my balance?").hit()).isFalse();
+        assertThat(cache.getStats().entries()).isZero();
+    }
+
+    @Test
+    void storesAnAnswerGeneratedWhileTheDataChangedAsStale() {
+        Lookup lookup = cache.lookup("ollama", "llama3", "What is my balance?");
+        dataVersionService.bump(alice.getId(), DataDomain.ACCOUNTS);
+        cache.put(lookup, List.of(ResponseEvent.text("$100")));
+
+        assertThat(cache.lookup("ollama", "llama3", "What is my balance?").hit()).isFalse();
+    }
+
+    @Test
+    void keepsUsersProvidersAndModelsApart() {
+        store("What is my balance?", ResponseEvent.text("$100"));
+
+        assertThat(cache.lookup("groq", "llama3", "What is my balance?").hit()).isFalse();
+        assertThat(cache.lookup("ollama", "mistral", "What is my balance?").hit()).isFalse();
+        when(securityService.getCurrentUser()).thenReturn(bob);
+        assertThat(cache.lookup("ollama", "llama3", "What is my balance?").hit()).isFalse();
+    }
+
+    @Test
+    void anotherUsersChangeDoesNotInvalidate() {
+        store("What is my balance?", ResponseEvent.text("$100"));
+
+        dataVersionService.bump(bob.getId(), DataDomain.TRANSACTIONS);
+
+        assertThat(cache.lookup("ollama", "llama3", "What is my balance?").hit()).isTrue();
+    }
+
+    private void store(String query, ResponseEvent... events) {
+        Lookup lookup = cache.lookup("ollama", "llama3", query);
+        assertThat(lookup.hit()).isFalse();
+        cache.put(lookup, List.of(events));
+    }
+
+    private static User user(Long id, String username) {
+        User user = new User(username, "hash", username + "@example.com");
+        user.setId(id);
+        return user;
+    }
+}
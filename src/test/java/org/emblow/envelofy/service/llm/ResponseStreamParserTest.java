@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.emblow.envelofy.service.llm.ResponseEvent.Type;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Feeds responses the way providers stream them, split at arbitrary
+ * points, including inside escapes and at a truncated end.
+ *
+ * @author Nicholas J Emblow
+ */
+class ResponseStreamParserTest {
+    private static final String RESPONSE =
+        "{\"text\": \"Spent \\\"$40\\\" on caf\\u00e9\\nTotal\", " +
+        "\"charts\": [{\"type\":\"pie\",\"data\":[{\"label\":\"a\",\"value\":1}]}], " +
+        "\"tables\": [{\"rows\":[[\"x\",\"y\"]]}]}";
+
+    @Test
+    void decodesTextAndEmitsElementsInOneChunk() {
+        List<ResponseEvent> events = parse(RESPONSE);
+
+        assertThat(text(events)).isEqualTo("Spent \"$40\" on caf\u00e9\nTotal");
+        assertThat(contents(events, Type.CHART))
+            .containsExactly("{\"type\":\"pie\",\"data\":[{\"label\":\"a\",\"value\":1}]}");
+        assertThat(contents(events, Type.TABLE)).containsExactly("{\"rows\":[[\"x\",\"y\"]]}");
+    }
+
+    @Test
+    void givesTheSameResultWhereverTheChunksAreSplit() {
+        List<ResponseEvent> whole = parse(RESPONSE);
+
+        for (int split = 1; split < RESPONSE.length(); split++) {
+            List<ResponseEvent> events = parse(RESPONSE.substring(0, split), RESPONSE.substring(split));
+            assertThat(text(events)).as("split at %d", split).isEqualTo(text(whole));
+            assertThat(contents(events, Type.CHART)).as("split at %d", split)
+                .isEqualTo(contents(whole, Type.CHART));
+            assertThat(contents(events, Type.TABLE)).as("split at %d", split)
+                .isEqualTo(contents(whole, Type.TABLE));
+        }
+
+        String[] characters = RESPONSE.split("");
+        assertThat(text(parse(characters))).isEqualTo(text(whole));
+    }
+
+    @Test
+    void streamsTextBeforeTheObjectIsComplete() {
+        ResponseStreamParser parser = new ResponseStreamParser();
+
+        assertThat(text(parser.feed("{\"text\": \"Hel"))).isEqualTo("Hel");
+        assertThat(text(parser.feed("lo\\"))).isEqualTo("lo");
+        assertThat(text(parser.feed("n!\"}"))).isEqualTo("\n!");
+        assertThat(parser.isComplete()).isTrue();
+    }
+
+    @Test
+    void keepsAUnicodeEscapeCutOffByTheEndOfTheStream() {
+        List<ResponseEvent> events = parse("{\"text\": \"caf\\u00");
+
+        assertThat(text(events)).isEqualTo("caf\\u00");
+    }
+
+    @Test
+    void keepsAUnicodeEscapeInterruptedByANonHexCharacter() {
+        List<ResponseEvent> events = parse("{\"text\": \"a\\u12zq b\"}");
+
+        assertThat(text(events)).isEqualTo("a\\u12zq b");
+    }
+
+    @Test
+    void closesAChartCutOffByTheEndOfTheStream() {
+        List<ResponseEvent> events = parse("{\"text\":\"hi\",\"charts\":[{\"type\":\"bar\",\"data\":[1,2");
+
+        assertThat(text(events)).isEqualTo("hi");
+        assertThat(contents(events, Type.CHART)).containsExactly("{\"type\":\"bar\",\"data\":[1,2]}");
+    }
+
+    @Test
+    void dropsAPartialUnicodeEscapeFromATruncatedChart() {
+        List<ResponseEvent> events = parse("{\"charts\":[{\"title\":\"caf\\u00");
+
+        assertThat(contents(events, Type.CHART)).containsExactly("{\"title\":\"caf\"}");
+    }
+
+    @Test
+    void passesProseAroundTheObjectThroughWithoutCodeFences() {
+        List<ResponseEvent> events = parse("Here you go:\n```json\n{\"text\":\"A\"}\n```\n");
+
+        assertThat(text(events)).startsWith("Here you go:").endsWith("A").doesNotContain("```");
+    }
+
+    @Test
+    void dropsTheOpeningWhenTheModelWritesItAgain() {
+        String repeated = "{\"text\": \"{\"text\": \"Hello\", \"charts\": [{\"type\":\"bar\"}]}";
+
+        for (int split = 1; split < repeated.length(); split++) {
+            List<ResponseEvent> events = parse(repeated.substring(0, split), repeated.substring(split));
+            assertThat(text(events)).as("split at %d", split).isEqualTo("Hello");
+            assertThat(contents(events, Type.CHART)).as("split at %d", split).containsExactly("{\"type\":\"bar\"}");
+        }
+        assertThat(text(parse("{\"text\": \"{ \"text\" :\n \"Hi\"}"))).isEqualTo("Hi");
+    }
+
+    @Test
+    void keepsTextThatOnlyLooksLikeTheOpening() {
+        assertThat(text(parse("{\"text\": \"{\\\"te\"}"))).isEqualTo("{\"te");
+        assertThat(text(parse("{\"text\": \"  {\"tex"))).isEqualTo("  {");
+        assertThat(text(parse("{\"text\": \"{x} items\"}"))).isEqualTo("{x} items");
+    }
+
+    private static List<ResponseEvent> parse(String... chunks) {
+        ResponseStreamParser parser = new ResponseStreamParser();
+        List<ResponseEvent> events = new ArrayList<>();
+        for (String chunk : chunks) {
+            events.addAll(parser.feed(chunk));
+        }
+        events.addAll(parser.finish());
+        return events;
+    }
+
+    private static String text(List<ResponseEvent> events) {
+        StringBuilder text = new StringBuilder();
+        events.stream()
+            .filter(event -> event.type() == Type.TEXT)
+            .forEach(event -> text.append(event.content()));
+        return text.toString();
+    }
+
+    private static List<String> contents(List<ResponseEvent> events, Type type) {
+        return events.stream()
+            .filter(event -> event.type() == type)
+            .map(ResponseEvent::content)
+            .toList();
+    }
+}
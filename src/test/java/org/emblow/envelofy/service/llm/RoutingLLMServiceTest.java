@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.llm;
+
+import org.emblow.envelofy.service.llm.RoutingLLMService.Route;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The outcome each provider call reports to the health tracker.
+ *
+ * @author Nicholas J Emblow
+ */
+class RoutingLLMServiceTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final ProviderHealthTracker health = mock(ProviderHealthTracker.class);
+    private final LLMService primary = mock(LLMService.class);
+    private final LLMService fallback = mock(LLMService.class);
+
+    private RoutingLLMService routing;
+
+    @BeforeEach
+    void setUp() {
+        when(health.tryAcquire(anyString())).thenReturn(true);
+        when(health.hedgeDelay(anyString())).thenReturn(Duration.ofMinutes(1));
+        routing = new RoutingLLMService(List.of(new Route("groq", primary), new Route("ollama", fallback)), health);
+    }
+
+    @Test
+    void recordsASingleAnswerAsASuccessNotACancellation() {
+        when(primary.processUserQueryAsync("How much is left?")).thenReturn(Mono.just("answer"));
+
+        assertThat(routing.processUserQueryAsync("How much is left?").block(TIMEOUT)).isEqualTo("answer");
+
+        verify(health).recordSuccess("groq");
+        verify(health, never()).recordCancelled("groq");
+        verify(health, never()).recordFailure(eq("groq"), any());
+    }
+
+    @Test
+    void recordsACompletedStreamAsASuccess() {
+        ResponseEvent text = ResponseEvent.text("answer");
+        when(primary.streamUserQuery("How much is left?", 7L)).thenReturn(Flux.just(text));
+
+        assertThat(routing.streamUserQuery("How much is left?", 7L).collectList().block(TIMEOUT))
+            .containsExactly(text);
+
+        verify(health).recordSuccess("groq");
+        verify(health, never()).recordCancelled("groq");
+    }
+
+    @Test
+    void fallsBackWhenThePrimaryFailsBeforeAnswering() {
+        when(primary.processUserQueryAsync("How much is left?"))
+            .thenReturn(Mono.error(new IllegalStateException("connection refused")));
+        when(fallback.processUserQueryAsync("How much is left?")).thenReturn(Mono.just("fallback answer"));
+
+        assertThat(routing.processUserQueryAsync("How much is left?").block(TIMEOUT)).isEqualTo("fallback answer");
+
+        verify(health).recordFailure(eq("groq"), any(IllegalStateException.class));
+        verify(health).recordSuccess("ollama");
+        verify(health, never()).recordCancelled("ollama");
+    }
+}
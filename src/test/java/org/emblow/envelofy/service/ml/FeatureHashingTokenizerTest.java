@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2025 Nicholas J Emblow
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.emblow.envelofy.service.ml;
+
+import org.emblow.envelofy.service.ml.FeatureHashingTokenizer.TokenBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tokenizer rules, bucket bounds and bigram layout.
+ *
+ * @author Nicholas J Emblow
+ */
+class FeatureHashingTokenizerTest {
+    private final FeatureHashingTokenizer tokenizer = new FeatureHashingTokenizer();
+
+    @Test
+    void ignoresCaseAndDropsPunctuationInsideTokens() {
+        assertThat(ids("STARBUCKS #123")).containsExactly(ids("starbucks 123"));
+        assertThat(ids("7-Eleven")).containsExactly(ids("7eleven"));
+    }
+
+    @Test
+    void splitsOnAnyWhitespaceOnly() {
+        assertThat(ids("shell\toil\n 42  ")).containsExactly(ids("shell oil 42"));
+        assertThat(ids("shell oil 42")).hasSize(3);
+    }
+
+    @Test
+    void distinctTokensUsuallyLandInDistinctBuckets() {
+        int[] ids = ids("coffee fuel groceries rent");
+
+        assertThat(ids).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void yieldsNoTokensForEmptyOrMissingText() {
+        assertThat(ids(null)).isEmpty();
+        assertThat(ids("")).isEmpty();
+        assertThat(ids("  #!  ")).isEmpty();
+    }
+
+    @Test
+    void roundsTheBucketCountUpToAPowerOfTwoAndStaysInsideIt() {
+        FeatureHashingTokenizer small = new FeatureHashingTokenizer(1000, false);
+
+        assertThat(small.buckets()).isEqualTo(1024);
+        assertThat(new FeatureHashingTokenizer(1024, false).buckets()).isEqualTo(1024);
+        for (int id : small.tokenize("amazon mktplace pmts wa 98109 seattle").toArray()) {
+            assertThat(id).isBetween(0, 1023);
+        }
+    }
+
+    @Test
+    void rejectsFewerThanTwoBuckets() {
+        assertThatThrownBy(() -> new FeatureHashingTokenizer(1, false))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void emitsEachBigramAfterItsSecondWord() {
+        FeatureHashingTokenizer withBigrams = new FeatureHashingTokenizer(FeatureHashingTokenizer.DEFAULT_BUCKETS, true);
+        int[] unigrams = ids("whole foods market");
+
+        int[] ids = withBigrams.tokenize("whole foods market").toArray();
+
+        assertThat(ids).hasSize(5);
+        assertThat(new int[] { ids[0], ids[1], ids[3] }).containsExactly(unigrams);
+        assertThat(withBigrams.tokenize("foods whole").toArray()[2]).isNotEqualTo(ids[2]);
+    }
+
+    @Test
+    void reusesTheBufferItIsGiven() {
+        TokenBuffer buffer = new TokenBuffer(1);
+
+        tokenizer.tokenize("a much longer description than fits", buffer);
+        assertThat(buffer.size()).isEqualTo(6);
+
+        tokenizer.tokenize("short", buffer);
+        assertThat(buffer.toArray()).containsExactly(ids("short"));
+        assertThatThrownBy(() -> buffer.get(1)).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+
+    private int[] ids(String text) {
+        return tokenizer.tokenize(text).toArray();
+    }
+}